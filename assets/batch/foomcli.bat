@@ -23,7 +23,7 @@ if [%1]==[] (
 
 if "%1"=="--help" goto usage
 
-if not "%1"=="start" if not "%1"=="stop" if not "%1"=="status" if not "%1"=="validate" if not "%1"=="shutdown" if not "%1"=="test" if not "%1"=="config" if not "%1"=="autodetect" if not "%1"=="settings" (
+if not "%1"=="start" if not "%1"=="stop" if not "%1"=="status" if not "%1"=="validate" if not "%1"=="shutdown" if not "%1"=="metrics" if not "%1"=="connections" if not "%1"=="test" if not "%1"=="config" if not "%1"=="autodetect" if not "%1"=="settings" (
    @echo Unknown command "%1", try 'foomcli --help' for more information
    exit /B 1
 )
@@ -48,6 +48,16 @@ if "%1"=="config" if "%2"=="-d" if [%3]==[]  (
    exit /B 1
 )
 
+if "%1"=="connections" if not [%2]==[] if not "%2"=="-t"  if not "%2"=="-k" (
+   @echo Invalid command: unknown option "%2", try 'foomcli --help' for more information
+   exit /B 1
+)
+
+if "%1"=="connections" if "%2"=="-k" if [%3]==[]  (
+   @echo Invalid command: the connection id is missing, try 'foomcli --help' for more information
+   exit /B 1
+)
+
 if "%1"=="settings" if not [%2]==[] if not "%2"=="-f"  if not "%2"=="-d" (
    @echo Invalid command: unknown option "%2", try 'foomcli --help' for more information
    exit /B 1
@@ -95,8 +105,24 @@ if "%1"=="config" (
             curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
         )
     ) else (
-        if "%1"=="validate" @echo It may take some time, please be pacient ...
-        curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
+        if "%1"=="connections" (
+            if "%2"=="-t" (
+                if [%3]==[] (
+                    curl --user %CTL_USER% http://%FOOM_LOCATION%/%1/top
+                ) else (
+                    curl --user %CTL_USER% http://%FOOM_LOCATION%/%1/top?limit=%3
+                )
+            ) else (
+                if "%2"=="-k" (
+                    curl -X DELETE --user %CTL_USER% http://%FOOM_LOCATION%/%1?id=%3
+                ) else (
+                    curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
+                )
+            )
+        ) else (
+            if "%1"=="validate" @echo It may take some time, please be pacient ...
+            curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
+        )
 	)
 )
 
@@ -124,6 +150,10 @@ exit /B %ERRORLEVEL%
 @echo    status                             - get the current status of the local proxy facade
 @echo    shutdown                           - shutdown the application
 @echo    validate                           - test the local proxy facade configuration
+@echo    metrics                            - print the metrics, in Prometheus text format
+@echo    connections                        - list the active connections
+@echo    connections -t [limit]             - list the tunnels with the highest throughput (default limit 10)
+@echo    connections -k [id]                - kill the connection having the [id] identifier, closing its tunnel
 @echo    autodetect                         - attempt to apply Internet Explorer settings
 @echo    config                             - print the current configuration
 @echo    config -f [json_filepath]          - apply the proxy configuration, where the [json_filepath] is
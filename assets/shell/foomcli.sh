@@ -31,6 +31,10 @@ usage() {
   echo "status                        - get the current status of the local proxy facade"
   echo "shutdown                      - shutdown the application"
   echo "validate                      - test the local proxy facade configuration"
+  echo "metrics                       - print the metrics, in Prometheus text format"
+  echo "connections                   - list the active connections"
+  echo "connections -t [limit]        - list the tunnels with the highest throughput (default limit 10)"
+  echo "connections -k [id]           - kill the connection having the [id] identifier, closing its tunnel"
   echo "config                        - print the current configuration"
   echo "config -f [json_filepath]     - apply the proxy configuration, where the [json_filepath] is"
   echo "                              the path to the JSON file containing the configuration to be applied"
@@ -53,7 +57,7 @@ if [ "$1" == "--help" ]; then
   exit 0
 fi
 
-if [[ "$1" != "start" && "$1" != "stop" && "$1" != "status" && "$1" != "validate" && "$1" != "shutdown" && "$1" != "test" && "$1" != "config"  && "$1" != "settings" ]]; then
+if [[ "$1" != "start" && "$1" != "stop" && "$1" != "status" && "$1" != "validate" && "$1" != "shutdown" && "$1" != "metrics" && "$1" != "connections" && "$1" != "test" && "$1" != "config"  && "$1" != "settings" ]]; then
   echo "Invalid command, try 'foomcli --help' for more information"
   exit 1
 fi
@@ -69,6 +73,17 @@ if [ "$1" == "config" ]; then
   fi
 fi
 
+if [ "$1" == "connections" ]; then
+  if [[ "$2" != "-t" && "$2" != "-k" && ! -z "$2" ]]; then
+    echo "Invalid option '$2', try 'foomcli --help' for more information"
+    exit 1
+  fi
+  if [[ "$2" == "-k" && -z "$3" ]]; then
+    echo "Missing option's value, try 'foomcli --help' for more information"
+    exit 1
+  fi
+fi
+
 if [ "$1" == "settings" ]; then
   if [[ "$2" != "-f" && "$2" != "-d" && ! -z "$2" ]]; then
     echo "Invalid option '$2', try 'foomcli --help' for more information"
@@ -102,6 +117,14 @@ elif [ "$1" == "settings" ]; then
   else
     curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
   fi
+elif [ "$1" == "connections" ]; then
+  if [ "$2" == "-t" ]; then
+    curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"/top?limit="${3:-10}"
+  elif [ "$2" == "-k" ]; then
+    curl -w '\n' -X DELETE --user "$CTL_USER" http://$FOOM_LOCATION/"$1"?id="$3"
+  else
+    curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
+  fi
 else
   if [ "$1" == "validate" ]; then echo "It may take some time, please be pacient ..."; fi
   curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
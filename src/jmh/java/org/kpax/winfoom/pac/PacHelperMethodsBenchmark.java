@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Measure the PAC helper methods the scripts call the most, outside the script engine.
+ * <p>The hosts are IP literals, so {@code isInNet} does not depend on the DNS.
+ *
+ * @author Eugen Covaci
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class PacHelperMethodsBenchmark {
+
+    private GlobPatternMatcher globPatternMatcher;
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    @Setup
+    public void setup() {
+        SystemConfig systemConfig = Mockito.mock(SystemConfig.class);
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(100);
+        globPatternMatcher = new GlobPatternMatcher();
+        ReflectionTestUtils.setField(globPatternMatcher, "systemConfig", systemConfig);
+        pacHelperMethods = new DefaultPacHelperMethods();
+        ReflectionTestUtils.setField(pacHelperMethods, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(pacHelperMethods, "globPatternMatcher", globPatternMatcher);
+    }
+
+    @Benchmark
+    public boolean globToPatternAndMatch() {
+        return globPatternMatcher.toPattern("*.intranet.example.*").matcher("www.intranet.example.com").matches();
+    }
+
+    @Benchmark
+    public boolean shExpMatch() {
+        return pacHelperMethods.shExpMatch("http://www.example.com/index.html", "http://*.example.com/*");
+    }
+
+    @Benchmark
+    public boolean isInNet() {
+        return pacHelperMethods.isInNet("10.10.20.30", "10.10.0.0", "255.255.0.0");
+    }
+
+    @Benchmark
+    public boolean dnsDomainIs() {
+        return pacHelperMethods.dnsDomainIs("www.intranet.example.com", ".intranet.example.com");
+    }
+
+}
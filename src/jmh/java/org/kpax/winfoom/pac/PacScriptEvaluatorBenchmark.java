@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.ProxyStats;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Measure {@link PacScriptEvaluator#findProxyForURL(URI)} over the test PAC files,
+ * script engine's borrowing included.
+ * <p>The helper methods resolving the host (like {@code isResolvable} or {@code dnsResolve})
+ * make the result depend on the DNS, so compare runs made on the same network.
+ * {@code proxy-simple-all-helpers.pac} calls {@code myIpAddress}, which needs Windows.
+ *
+ * @author Eugen Covaci
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class PacScriptEvaluatorBenchmark {
+
+    @Param({"proxy-simple.pac",
+            "proxy-complex.pac",
+            "proxy-direct.pac",
+            "proxy-simple-http.pac",
+            "proxy-simple-http-socks4.pac",
+            "proxy-simple-socks4.pac",
+            "proxy-simple-socks4-direct.pac",
+            "proxy-simple-socks4-http.pac",
+            "proxy-simple-null.pac",
+            "proxy-simple-all-helpers.pac"})
+    private String pacFile;
+
+    private final URI uri = URI.create("http://www.example.com/index.html?lang=en");
+
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    @Setup
+    public void setup() throws Exception {
+        ProxyConfig proxyConfig = Mockito.mock(ProxyConfig.class);
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(getClass().getClassLoader().getResource(pacFile));
+        when(proxyConfig.getBlacklistTimeout()).thenReturn(30);
+
+        SystemConfig systemConfig = Mockito.mock(SystemConfig.class);
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(100);
+        when(systemConfig.getPacScriptEnginePoolMaxTotal()).thenReturn(100);
+        when(systemConfig.getPacScriptEnginePoolMinIdle()).thenReturn(0);
+
+        GlobPatternMatcher globPatternMatcher = new GlobPatternMatcher();
+        ReflectionTestUtils.setField(globPatternMatcher, "systemConfig", systemConfig);
+        DefaultPacHelperMethods pacHelperMethods = new DefaultPacHelperMethods();
+        ReflectionTestUtils.setField(pacHelperMethods, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(pacHelperMethods, "globPatternMatcher", globPatternMatcher);
+        ProxyBlacklist proxyBlacklist = new ProxyBlacklist();
+        ReflectionTestUtils.setField(proxyBlacklist, "proxyConfig", proxyConfig);
+        ProxyStats proxyStats = new ProxyStats();
+        ReflectionTestUtils.setField(proxyStats, "systemConfig", systemConfig);
+
+        pacScriptEvaluator = new PacScriptEvaluator();
+        ReflectionTestUtils.setField(pacScriptEvaluator, "proxyConfig", proxyConfig);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "pacHelperMethods", pacHelperMethods);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "proxyBlacklist", proxyBlacklist);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "proxyStats", proxyStats);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "proxyMetrics", new ProxyMetrics());
+        pacScriptEvaluator.onStart();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pacScriptEvaluator.onStop();
+    }
+
+    @Benchmark
+    public List<?> findProxyForURL() throws Exception {
+        return pacScriptEvaluator.findProxyForURL(uri);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<?> findProxyForURLContended() throws Exception {
+        return pacScriptEvaluator.findProxyForURL(uri);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.kpax.winfoom.util.HttpDate;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the {@link ClientConnection}'s request parsing, as done for every accepted connection,
+ * and the writing of a response's head through {@link ClientConnection#writeHttpResponse(HttpResponse)}.
+ * <p>The socket is an in-memory one, so only the proxy's own work is measured.
+ *
+ * @author Eugen Covaci
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class ClientConnectionBenchmark {
+
+    private static final String GET_HEAD = "GET http://www.example.com/index.html?lang=en HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:83.0) Gecko/20100101 Firefox/83.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Upgrade-Insecure-Requests: 1\r\n" +
+            "\r\n";
+
+    private static final String CONNECT_HEAD = "CONNECT www.example.com:443 HTTP/1.1\r\n" +
+            "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:83.0) Gecko/20100101 Firefox/83.0\r\n" +
+            "Proxy-Connection: keep-alive\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Host: www.example.com:443\r\n" +
+            "\r\n";
+
+    @Param({"GET", "CONNECT"})
+    private String method;
+
+    private byte[] head;
+
+    private HttpResponse response;
+
+    @Setup
+    public void setup() {
+        head = ("GET".equals(method) ? GET_HEAD : CONNECT_HEAD).getBytes(StandardCharsets.US_ASCII);
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader("Date", HttpDate.current());
+        response.addHeader("Server", "Apache");
+        response.addHeader("Content-Type", "text/html; charset=UTF-8");
+        response.addHeader("Cache-Control", "max-age=604800");
+        response.addHeader("Vary", "Accept-Encoding");
+        response.setEntity(new ByteArrayEntity(new byte[512]));
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        ClientConnection clientConnection = new ClientConnection(new InMemorySocket(head), null, null, null, null);
+        blackhole.consume(clientConnection.isConnect() ? clientConnection.getRequestHead() : clientConnection.getRequestUri());
+        clientConnection.close();
+    }
+
+    @Benchmark
+    public void writeHttpResponse(Blackhole blackhole) throws Exception {
+        ClientConnection clientConnection = new ClientConnection(new InMemorySocket(head), null, null, null, null);
+        clientConnection.writeHttpResponse(response);
+        blackhole.consume(clientConnection.getBytesSent());
+        clientConnection.close();
+    }
+
+    /**
+     * An unconnected socket reading the request from memory and discarding what is written.
+     */
+    private static final class InMemorySocket extends Socket {
+
+        private final InputStream inputStream;
+
+        private InMemorySocket(final byte[] input) {
+            this.inputStream = new ByteArrayInputStream(input);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.config.MessageConstraints;
+import org.apache.http.impl.io.DefaultHttpRequestParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the {@link ClientConnection}'s request head parsing: {@link DefaultHttpRequestParser}
+ * followed by the request URI parsing versus {@link HttpRequestHead}.
+ *
+ * @author Eugen Covaci
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class HttpRequestHeadBenchmark {
+
+    private static final String GET_HEAD = "GET http://www.example.com/index.html?lang=en HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:83.0) Gecko/20100101 Firefox/83.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Upgrade-Insecure-Requests: 1\r\n" +
+            "\r\n";
+
+    private static final String CONNECT_HEAD = "CONNECT www.example.com:443 HTTP/1.1\r\n" +
+            "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:83.0) Gecko/20100101 Firefox/83.0\r\n" +
+            "Proxy-Connection: keep-alive\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Host: www.example.com:443\r\n" +
+            "\r\n";
+
+    @Param({"GET", "CONNECT"})
+    private String method;
+
+    private byte[] head;
+
+    private final HttpRequestHead requestHead = new HttpRequestHead();
+
+    @Setup
+    public void setup() {
+        head = ("GET".equals(method) ? GET_HEAD : CONNECT_HEAD).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public void defaultHttpRequestParser(Blackhole blackhole) throws Exception {
+        SessionInputBufferImpl sessionInputBuffer = new SessionInputBufferImpl(
+                new HttpTransportMetricsImpl(),
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                MessageConstraints.DEFAULT,
+                StandardCharsets.UTF_8.newDecoder());
+        sessionInputBuffer.bind(new ByteArrayInputStream(head));
+        HttpRequest request = new DefaultHttpRequestParser(sessionInputBuffer).parse();
+        boolean connect = HttpUtils.HTTP_CONNECT.equals(
+                request.getRequestLine().getMethod().toUpperCase(Locale.ROOT));
+        blackhole.consume(HttpUtils.parseRequestUri(connect, request.getRequestLine().getUri()));
+    }
+
+    @Benchmark
+    public void httpRequestHead(Blackhole blackhole) throws Exception {
+        requestHead.parse(new ByteArrayInputStream(head));
+
+        // Same work as the ClientConnection does
+        if (requestHead.isConnect()) {
+            blackhole.consume(requestHead.getRequestLine());
+        } else {
+            blackhole.consume(requestHead.toHttpRequest());
+            blackhole.consume(HttpUtils.parseRequestUri(false, requestHead.getUri()));
+        }
+    }
+
+}
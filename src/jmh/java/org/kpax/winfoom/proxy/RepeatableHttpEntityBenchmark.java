@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.kpax.winfoom.util.InputOutputs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure a request body's first write, from the client's stream, followed by its replay,
+ * as done when the upstream proxy asks for authentication.
+ * <p>The small body stays in the internal buffer, the large one is spilled into a temporary file.
+ *
+ * @author Eugen Covaci
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class RepeatableHttpEntityBenchmark {
+
+    private static final int INTERNAL_BUFFER_LENGTH = 100 * 1024;
+
+    @Param({"4096", "1048576"})
+    private int bodyLength;
+
+    private byte[] body;
+
+    private BasicHttpEntityEnclosingRequest request;
+
+    private Path tempDirectory;
+
+    @Setup
+    public void setup() throws Exception {
+        body = new byte[bodyLength];
+        request = new BasicHttpEntityEnclosingRequest("POST", "http://www.example.com/upload");
+        request.addHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(bodyLength));
+        request.addHeader(HttpHeaders.CONTENT_TYPE, "application/octet-stream");
+        tempDirectory = Files.createTempDirectory("winfoom-jmh");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDirectory.toFile());
+    }
+
+    @Benchmark
+    public void writeAndReplay() throws Exception {
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(),
+                InputOutputs.DEFAULT_BUFFER_SIZE);
+        inputBuffer.bind(new ByteArrayInputStream(body));
+        try (RepeatableHttpEntity entity = new RepeatableHttpEntity(request, inputBuffer, tempDirectory,
+                INTERNAL_BUFFER_LENGTH)) {
+            entity.writeTo(OutputStream.nullOutputStream());
+            entity.writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the parsing of a PAC script's result line, done for every request in PAC mode.
+ *
+ * @author Eugen Covaci
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class HttpUtilsBenchmark {
+
+    @Param({"DIRECT",
+            "PROXY proxy.example.com:8080",
+            "PROXY proxy1.example.com:8080; PROXY proxy2.example.com:8080; SOCKS5 socks.example.com:1080; DIRECT"})
+    private String proxyLine;
+
+    @Benchmark
+    public List<?> parsePacProxyLine() {
+        return HttpUtils.parsePacProxyLine(proxyLine, proxyInfo -> true);
+    }
+
+}
@@ -17,7 +17,11 @@ import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
 import org.apache.http.auth.Credentials;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.bootstrap.HttpServer;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
@@ -29,10 +33,13 @@ import org.kpax.winfoom.api.json.Views;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.proxy.ConnectionRegistry;
 import org.kpax.winfoom.proxy.ProxyController;
 import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.ProxyMetrics;
 import org.kpax.winfoom.proxy.ProxyValidator;
 import org.kpax.winfoom.util.BeanUtils;
+import org.kpax.winfoom.util.metrics.PrometheusWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -42,7 +49,11 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -54,6 +65,11 @@ public class ApiController implements AutoCloseable {
 
     private static final int SHUTDOWN_GRACE_PERIOD = 1000;
 
+    /**
+     * The default number of tunnels listed by {@code /connections/top}.
+     */
+    private static final int DEFAULT_TOP_LIMIT = 10;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private HttpServer apiServer;
@@ -70,6 +86,12 @@ public class ApiController implements AutoCloseable {
     @Autowired
     private ProxyExecutorService executorService;
 
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
     @Autowired
     private ConfigurableApplicationContext applicationContext;
 
@@ -121,8 +143,15 @@ public class ApiController implements AutoCloseable {
                             public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
                                     throws IOException {
                                 logger.debug("'status' command received");
-                                response.setEntity(new StringEntity(String.format("The local proxy server is %s",
-                                        proxyController.isRunning() ? "up" : "stopped")));
+                                if (proxyController.isRunning()) {
+                                    int draining = connectionRegistry.countOlderThan(proxyController.getGeneration());
+                                    response.setEntity(new StringEntity(String.format(
+                                            "The local proxy server is up, configuration generation: %d%s",
+                                            proxyController.getGeneration(),
+                                            draining > 0 ? String.format(" (%d connections draining on previous generations)", draining) : "")));
+                                } else {
+                                    response.setEntity(new StringEntity("The local proxy server is stopped"));
+                                }
                             }
                         }).
                 registerHandler("/validate",
@@ -193,32 +222,44 @@ public class ApiController implements AutoCloseable {
                             public void doPost(HttpRequest request, HttpResponse response, HttpContext context)
                                     throws IOException {
                                 logger.debug("'config post' command received");
-                                boolean running = proxyController.isRunning();
-                                if (running) {
-                                    response.setEntity(new StringEntity("The local proxy server is up, you need to stop it before applying configuration"));
-                                } else {
-                                    if (request instanceof BasicHttpEntityEnclosingRequest) {
-                                        BasicHttpEntityEnclosingRequest entityEnclosingRequest = (BasicHttpEntityEnclosingRequest) request;
-                                        try {
-                                            ProxyConfigDto proxyConfigDto = new ObjectMapper().
-                                                    readValue(entityEnclosingRequest.getEntity().getContent(),
-                                                            ProxyConfigDto.class);
-                                            proxyConfigDto.validate();
+                                if (request instanceof BasicHttpEntityEnclosingRequest) {
+                                    BasicHttpEntityEnclosingRequest entityEnclosingRequest = (BasicHttpEntityEnclosingRequest) request;
+                                    try {
+                                        ProxyConfigDto proxyConfigDto = new ObjectMapper().
+                                                readValue(entityEnclosingRequest.getEntity().getContent(),
+                                                        ProxyConfigDto.class);
+                                        proxyConfigDto.validate();
+                                        if (proxyController.isRunning()) {
+                                            // Check the change first, so an invalid one leaves the session untouched
+                                            ProxyConfig changedConfig = proxyConfig.copy();
+                                            BeanUtils.copyNonNullProperties(proxyConfigDto, changedConfig);
+                                            try {
+                                                changedConfig.validate();
+                                            } catch (InvalidProxySettingsException e) {
+                                                logger.debug("Invalid proxy configuration change", e);
+                                                response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+                                                response.setEntity(new StringEntity(
+                                                        "Invalid configuration, nothing changed: " + e.getMessage()));
+                                                return;
+                                            }
+                                            BeanUtils.copyNonNullProperties(proxyConfigDto, proxyConfig);
+                                            reload(response);
+                                        } else {
                                             BeanUtils.copyNonNullProperties(proxyConfigDto, proxyConfig);
                                             response.setEntity(new StringEntity("Proxy configuration changed"));
-                                        } catch (IOException e) {
-                                            logger.error("Error on parsing JSON", e);
-                                            response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
-                                        } catch (InvalidProxySettingsException e) {
-                                            logger.error("Invalid JSON", e);
-                                            response.setEntity(new StringEntity("Invalid JSON: " + e.getMessage()));
-                                        } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-                                            logger.error("Error on applying proxy configuration", e);
-                                            response.setEntity(new StringEntity("Failed to changed proxy configuration: " + e.getMessage()));
                                         }
-                                    } else {
-                                        response.setEntity(new StringEntity("Failed to changed proxy configuration: no JSON found"));
+                                    } catch (IOException e) {
+                                        logger.error("Error on parsing JSON", e);
+                                        response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
+                                    } catch (InvalidProxySettingsException e) {
+                                        logger.error("Invalid JSON", e);
+                                        response.setEntity(new StringEntity("Invalid JSON: " + e.getMessage()));
+                                    } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+                                        logger.error("Error on applying proxy configuration", e);
+                                        response.setEntity(new StringEntity("Failed to changed proxy configuration: " + e.getMessage()));
                                     }
+                                } else {
+                                    response.setEntity(new StringEntity("Failed to changed proxy configuration: no JSON found"));
                                 }
                             }
                         }).
@@ -273,6 +314,61 @@ public class ApiController implements AutoCloseable {
                                 }
                             }
                         }).
+                registerHandler("/metrics",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig.getApiServerRequestTimeout()) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'metrics' command received");
+                                response.setEntity(new StringEntity(proxyMetrics.scrape(),
+                                        ContentType.parse(PrometheusWriter.CONTENT_TYPE)));
+                            }
+                        }).
+                registerHandler("/connections",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig.getApiServerRequestTimeout()) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'connections' command received");
+                                response.setEntity(new StringEntity(new ObjectMapper().
+                                        configure(MapperFeature.DEFAULT_VIEW_INCLUSION, false).
+                                        writerWithDefaultPrettyPrinter().
+                                        withView(Views.ConnectionDetails.class).
+                                        writeValueAsString(connectionRegistry.getConnections()),
+                                        ContentType.APPLICATION_JSON));
+                            }
+
+                            @Override
+                            public void doDelete(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'connections kill' command received");
+                                String id = getQueryParameter(request, "id");
+                                if (id == null || !id.matches("\\d{1,18}")) {
+                                    response.setEntity(new StringEntity("Invalid command: the connection id is missing or invalid"));
+                                } else if (connectionRegistry.kill(Long.parseLong(id))) {
+                                    response.setEntity(new StringEntity("Connection " + id + " killed"));
+                                } else {
+                                    response.setEntity(new StringEntity("No active connection with id " + id));
+                                }
+                            }
+                        }).
+                registerHandler("/connections/top",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig.getApiServerRequestTimeout()) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                logger.debug("'connections top' command received");
+                                String limit = getQueryParameter(request, "limit");
+                                response.setEntity(new StringEntity(new ObjectMapper().
+                                        configure(MapperFeature.DEFAULT_VIEW_INCLUSION, false).
+                                        writerWithDefaultPrettyPrinter().
+                                        withView(Views.Connection.class).
+                                        writeValueAsString(connectionRegistry.getTopTunnels(
+                                                limit != null && limit.matches("\\d{1,5}") ?
+                                                        Integer.parseInt(limit) : DEFAULT_TOP_LIMIT)),
+                                        ContentType.APPLICATION_JSON));
+                            }
+                        }).
                 registerHandler("/shutdown",
                         new GenericHttpRequestHandler(credentials, executorService, systemConfig.getApiServerRequestTimeout()) {
                             @Override
@@ -287,6 +383,43 @@ public class ApiController implements AutoCloseable {
     }
 
 
+    /**
+     * Apply the changed (and already validated) configuration to the running proxy,
+     * keeping the connections in progress.
+     * <p>A configuration that cannot be applied ends the proxy session.
+     *
+     * @param response the API response
+     */
+    private void reload(HttpResponse response) throws UnsupportedEncodingException {
+        try {
+            proxyController.reload();
+            response.setEntity(new StringEntity("Proxy configuration changed and reloaded, generation: " +
+                    proxyController.getGeneration()));
+        } catch (Exception e) {
+            logger.error("Error on reloading proxy configuration", e);
+            response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            response.setEntity(new StringEntity("Failed to reload the proxy configuration" +
+                    (proxyController.isRunning() ? ": " : ", the local proxy server has been stopped: ") +
+                    e.getMessage()));
+        }
+    }
+
+    /**
+     * @param request the API request
+     * @param name    the query parameter's name
+     * @return the query parameter's first value, {@code null} if missing.
+     */
+    private static String getQueryParameter(HttpRequest request, String name) {
+        try {
+            return URLEncodedUtils.parse(new URI(request.getRequestLine().getUri()), StandardCharsets.UTF_8).stream().
+                    filter(pair -> pair.getName().equals(name)).
+                    map(NameValuePair::getValue).
+                    findFirst().orElse(null);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
     @Override
     public void close() {
         logger.info("Stop the api server");
@@ -137,12 +137,14 @@ public class GenericHttpRequestHandler implements HttpRequestHandler {
         response.setReasonPhrase("No handler found for POST method");
     }
 
-    public void doPut(HttpRequest request, HttpResponse response, HttpContext context) {
+    public void doPut(HttpRequest request, HttpResponse response, HttpContext context)
+            throws IOException {
         response.setStatusCode(HttpStatus.SC_NOT_FOUND);
         response.setReasonPhrase("No handler found for PUT method");
     }
 
-    public void doDelete(HttpRequest request, HttpResponse response, HttpContext context) {
+    public void doDelete(HttpRequest request, HttpResponse response, HttpContext context)
+            throws IOException {
         response.setStatusCode(HttpStatus.SC_NOT_FOUND);
         response.setReasonPhrase("No handler found for DELETE method");
     }
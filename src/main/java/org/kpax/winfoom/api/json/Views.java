@@ -94,6 +94,12 @@ public class Views {
     public interface PacNonWindows extends Pac, NonWindows {
     }
 
+    public interface Connection {
+    }
+
+    public interface ConnectionDetails extends Connection {
+    }
+
     public static Class<?> getView(@NotNull ProxyConfig proxyConfig) {
         switch (proxyConfig.getProxyType()) {
             case DIRECT:
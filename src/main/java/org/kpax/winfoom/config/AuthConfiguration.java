@@ -23,6 +23,7 @@ import org.apache.http.impl.auth.win.WindowsNTLMSchemeFactory;
 import org.apache.http.impl.auth.win.WindowsNegotiateSchemeFactory;
 import org.apache.http.impl.client.SystemDefaultCredentialsProvider;
 import org.kpax.winfoom.proxy.NonWindowsCredentialsProvider;
+import org.kpax.winfoom.proxy.auth.SpnegoTokenCache;
 import org.kpax.winfoom.util.functional.ProxySingletonSupplier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -55,7 +56,8 @@ class AuthConfiguration {
      * @return the system wide {@link Registry<AuthSchemeProvider>}
      */
     @Bean
-    public ProxySingletonSupplier<Registry<AuthSchemeProvider>> authSchemeRegistrySupplier(ProxyConfig proxyConfig) {
+    public ProxySingletonSupplier<Registry<AuthSchemeProvider>> authSchemeRegistrySupplier(ProxyConfig proxyConfig,
+                                                                                      SpnegoTokenCache spnegoTokenCache) {
         return new ProxySingletonSupplier<Registry<AuthSchemeProvider>>(() -> {
             RegistryBuilder<AuthSchemeProvider> register = RegistryBuilder.<AuthSchemeProvider>create()
                     .register(AuthSchemes.BASIC, new BasicSchemeFactory())
@@ -63,7 +65,7 @@ class AuthConfiguration {
                     .register(AuthSchemes.NTLM, proxyConfig.isAuthAutoMode() ?
                             new WindowsNTLMSchemeFactory(null) : new NTLMSchemeFactory())
                     .register(AuthSchemes.SPNEGO, proxyConfig.isAuthAutoMode() ?
-                            new WindowsNegotiateSchemeFactory(null) : new SPNegoSchemeFactory());
+                            new WindowsNegotiateSchemeFactory(null) : spnegoTokenCache.schemeProvider());
             if (!proxyConfig.isAuthAutoMode()) {
                 register.register(AuthSchemes.KERBEROS, new KerberosSchemeFactory());
             }
@@ -24,6 +24,7 @@ import org.apache.http.HttpHost;
 import org.kpax.winfoom.api.json.Asterisk;
 import org.kpax.winfoom.api.json.Views;
 import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.proxy.ProxyInfo;
 import org.kpax.winfoom.proxy.ProxyType;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.jna.IEProxyConfig;
@@ -35,6 +36,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -174,6 +176,30 @@ public class ProxyConfig {
     }
 
 
+    /**
+     * @return a detached copy of this configuration, to check a change before applying it.
+     */
+    public ProxyConfig copy() {
+        ProxyConfig copy = new ProxyConfig();
+        ReflectionUtils.doWithFields(ProxyConfig.class, field -> {
+            ReflectionUtils.makeAccessible(field);
+            field.set(copy, field.get(this));
+        }, ReflectionUtils.COPYABLE_FIELDS);
+        return copy;
+    }
+
+    /**
+     * Apply a changed copy of this configuration.
+     *
+     * @param changed the changed configuration, obtained with {@link #copy()}
+     */
+    public void apply(final ProxyConfig changed) {
+        ReflectionUtils.doWithFields(ProxyConfig.class, field -> {
+            ReflectionUtils.makeAccessible(field);
+            field.set(this, field.get(changed));
+        }, ReflectionUtils.COPYABLE_FIELDS);
+    }
+
     public boolean isAutoDetectNeeded() {
         return autodetect ||
                 ((proxyType.isHttp() || proxyType.isSocks()) && StringUtils.isEmpty(getProxyHost())) ||
@@ -518,6 +544,19 @@ public class ProxyConfig {
                 proxyType.isHttp() && httpAuthProtocol != null && httpAuthProtocol.isNtlm();
     }
 
+    /**
+     * @param proxyInfo an upstream proxy
+     * @return {@code true} iff the proxy can be used with this configuration: the manual proxy
+     * or, when the configuration is PAC, any proxy a PAC script can return.
+     */
+    public boolean isConfigured(ProxyInfo proxyInfo) {
+        if (proxyType.isPac()) {
+            return proxyInfo.getType() instanceof ProxyInfo.PacType;
+        }
+        return proxyInfo.equals(new ProxyInfo(proxyType,
+                proxyType.isDirect() ? null : new HttpHost(getProxyHost(), getProxyPort())));
+    }
+
     @Autowired
     private void setTempDirectory(@Value("${user.home}") String userHome) {
         tempDirectory = Paths.get(userHome, SystemConfig.APP_HOME_DIR_NAME, "temp");
@@ -662,6 +701,96 @@ public class ProxyConfig {
                 '}';
     }
 
+    /**
+     * An immutable snapshot of the settings the client connections are processed with.
+     * <p>Taken on each start or reload of the proxy session and captured by every client connection,
+     * so that a connection in progress keeps the settings it started with.
+     */
+    public static final class Snapshot {
+
+        private final int generation;
+
+        private final Type proxyType;
+
+        private final String proxyHost;
+
+        private final Integer proxyPort;
+
+        private final boolean autoConfig;
+
+        private final boolean kerberos;
+
+        private final String proxySocks5Username;
+
+        private final String proxySocks5Password;
+
+        private final Path tempDirectory;
+
+        /**
+         * @param proxyConfig the current configuration
+         * @param generation  the configuration's generation
+         */
+        public Snapshot(final ProxyConfig proxyConfig, final int generation) {
+            this.generation = generation;
+            this.proxyType = proxyConfig.getProxyType();
+            this.proxyHost = proxyConfig.getProxyHost();
+            this.proxyPort = proxyConfig.getProxyPort();
+            this.autoConfig = proxyConfig.isAutoConfig();
+            this.kerberos = proxyConfig.isKerberos();
+            this.proxySocks5Username = proxyConfig.getProxySocks5Username();
+            this.proxySocks5Password = proxyConfig.getProxySocks5Password();
+            this.tempDirectory = proxyConfig.getTempDirectory();
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        public Type getProxyType() {
+            return proxyType;
+        }
+
+        public String getProxyHost() {
+            return proxyHost;
+        }
+
+        public Integer getProxyPort() {
+            return proxyPort;
+        }
+
+        public boolean isAutoConfig() {
+            return autoConfig;
+        }
+
+        public boolean isKerberos() {
+            return kerberos;
+        }
+
+        public String getProxySocks5Username() {
+            return proxySocks5Username;
+        }
+
+        public String getProxySocks5Password() {
+            return proxySocks5Password;
+        }
+
+        public Path getTempDirectory() {
+            return tempDirectory;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "generation=" + generation +
+                    ", proxyType=" + proxyType +
+                    ", proxyHost='" + proxyHost + '\'' +
+                    ", proxyPort=" + proxyPort +
+                    ", kerberos=" + kerberos +
+                    ", tempDirectory=" + tempDirectory +
+                    '}';
+        }
+    }
+
     public enum Type implements ProxyType {
         HTTP, SOCKS4, SOCKS5, PAC, DIRECT;
 
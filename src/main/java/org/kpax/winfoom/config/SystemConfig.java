@@ -61,19 +61,40 @@ public class SystemConfig {
     private Integer internalBufferLength;
 
     /**
-     * The frequency of running purge idle
-     * on the connection manager pool (seconds).
+     * The connections idle for longer than this are checked
+     * for staleness before being leased (seconds).
      */
-    @Value("${connectionManager.clean.interval:60}")
-    private Integer connectionManagerCleanInterval;
+    @Value("${connectionManager.validateAfterInactivity:2}")
+    private Integer connectionManagerValidateAfterInactivity;
 
     /**
      * The connections idle timeout,
-     * to be purged by a scheduled task (seconds).
+     * after which they are evicted (seconds).
      */
     @Value("${connectionManager.idleTimeout:100}")
     private Integer connectionManagerIdleTimeout;
 
+    /**
+     * The number of independent pools the routes are partitioned across.
+     * Zero means the number of available processors (max 16).
+     */
+    @Value("${connectionManager.shards:0}")
+    private Integer connectionManagerShards;
+
+    /**
+     * The max number of most used routes persisted
+     * and pre-warmed on start, zero to disable.
+     */
+    @Value("${connectionManager.prewarm.routes:20}")
+    private Integer connectionManagerPrewarmRoutes;
+
+    /**
+     * The number of connections opened
+     * for each pre-warmed route.
+     */
+    @Value("${connectionManager.prewarm.connections:2}")
+    private Integer connectionManagerPrewarmConnections;
+
     /**
      * The maximum number of pending connections.
      */
@@ -138,6 +159,154 @@ public class SystemConfig {
     @Value("${kerberos.login.minInterval:30}")
     private Integer kerberosLoginMinInterval;
 
+    /**
+     * How long before the Kerberos ticket's end time
+     * a new login is done in background, zero to disable (seconds)
+     */
+    @Value("${kerberos.renewal.margin:300}")
+    private Integer kerberosRenewalMargin;
+
+    /**
+     * How long a pre-generated SPNEGO token can be used, zero to disable the token cache (seconds)
+     */
+    @Value("${kerberos.spnego.tokenValidity:60}")
+    private Integer kerberosSpnegoTokenValidity;
+
+    /**
+     * The number of SPNEGO tokens kept ready for each proxy
+     */
+    @Value("${kerberos.spnego.prefetch:4}")
+    private Integer kerberosSpnegoPrefetch;
+
+    /**
+     * The comma separated names of the request headers not to be forwarded.
+     */
+    @Value("${headers.request.remove:Proxy-Connection}")
+    private String headersRequestRemove;
+
+    /**
+     * The request headers to be added, as <code>Name: value</code> separated by <code>|</code>.
+     */
+    @Value("${headers.request.add:}")
+    private String headersRequestAdd;
+
+    /**
+     * The comma separated names of the response headers not to be forwarded.
+     */
+    @Value("${headers.response.remove:}")
+    private String headersResponseRemove;
+
+    /**
+     * The response headers to be added, as <code>Name: value</code> separated by <code>|</code>.
+     */
+    @Value("${headers.response.add:}")
+    private String headersResponseAdd;
+
+    /**
+     * The delay before the first probe of a blacklisted proxy, doubled after each failure (seconds).
+     * Zero disables the probing.
+     */
+    @Value("${blacklist.probe.initialDelay:5}")
+    private Integer blacklistProbeInitialDelay;
+
+    /**
+     * The maximum delay between two probes of a blacklisted proxy (seconds).
+     */
+    @Value("${blacklist.probe.maxDelay:120}")
+    private Integer blacklistProbeMaxDelay;
+
+    /**
+     * The connect and read timeout of a proxy's probe (seconds).
+     */
+    @Value("${blacklist.probe.timeout:5}")
+    private Integer blacklistProbeTimeout;
+
+    /**
+     * The delay between two health checks of a PAC proxy not blacklisted (seconds), zero disables them.
+     */
+    @Value("${blacklist.probe.healthInterval:0}")
+    private Integer blacklistProbeHealthInterval;
+
+    /**
+     * Whether to reorder the equivalent PAC proxies by their measured latency and error rate.
+     */
+    @Value("${pacProxy.latencyOrdering:false}")
+    private boolean pacProxyLatencyOrdering;
+
+    /**
+     * The delay between starting two racing connects, to the addresses of a host
+     * or to the PAC proxies (milliseconds). Zero disables the racing.
+     */
+    @Value("${connect.racing.stagger:250}")
+    private Integer connectRacingStagger;
+
+    /**
+     * Whether to race the connects to the PAC proxies before processing a request.
+     */
+    @Value("${pacProxy.racing:false}")
+    private boolean pacProxyRacing;
+
+    /**
+     * Log the requests whose response takes at least this long to start, with their phase timing (milliseconds).
+     * Zero disables the slow requests log.
+     */
+    @Value("${request.slowThreshold:0}")
+    private Integer requestSlowThreshold;
+
+    /**
+     * Whether to write the access log.
+     */
+    @Value("${accessLog.enabled:false}")
+    private boolean accessLogEnabled;
+
+    /**
+     * The number of access log entries buffered in memory, rounded up to a power of two.
+     */
+    @Value("${accessLog.bufferSize:8192}")
+    private Integer accessLogBufferSize;
+
+    /**
+     * The size of the access log file that triggers the rolling (MB).
+     */
+    @Value("${accessLog.maxFileSize:10}")
+    private Integer accessLogMaxFileSize;
+
+    /**
+     * The number of archived access log files.
+     */
+    @Value("${accessLog.maxFiles:4}")
+    private Integer accessLogMaxFiles;
+
+    /**
+     * Whether to cache the responses to the non-CONNECT requests.
+     */
+    @Value("${responseCache.enabled:false}")
+    private boolean responseCacheEnabled;
+
+    /**
+     * The max number of cached responses, the least recently used are evicted.
+     */
+    @Value("${responseCache.maxEntries:1000}")
+    private Integer responseCacheMaxEntries;
+
+    /**
+     * The max size of a cached response's body (MB).
+     */
+    @Value("${responseCache.maxObjectSize:50}")
+    private Integer responseCacheMaxObjectSize;
+
+    /**
+     * Whether the concurrent identical GET requests share a single upstream request.
+     */
+    @Value("${requestCoalescing.enabled:false}")
+    private boolean requestCoalescingEnabled;
+
+    /**
+     * The max size of a response's body shared by the coalesced requests (MB).
+     */
+    @Value("${requestCoalescing.maxBodySize:10}")
+    private Integer requestCoalescingMaxBodySize;
+
     @PostConstruct
     private void init() {
         logger.info("System settings: {}", this);
@@ -155,14 +324,26 @@ public class SystemConfig {
         return internalBufferLength;
     }
 
-    public Integer getConnectionManagerCleanInterval() {
-        return connectionManagerCleanInterval;
+    public Integer getConnectionManagerValidateAfterInactivity() {
+        return connectionManagerValidateAfterInactivity;
     }
 
     public Integer getConnectionManagerIdleTimeout() {
         return connectionManagerIdleTimeout;
     }
 
+    public Integer getConnectionManagerShards() {
+        return connectionManagerShards;
+    }
+
+    public Integer getConnectionManagerPrewarmRoutes() {
+        return connectionManagerPrewarmRoutes;
+    }
+
+    public Integer getConnectionManagerPrewarmConnections() {
+        return connectionManagerPrewarmConnections;
+    }
+
     public Integer getServerSocketBacklog() {
         return serverSocketBacklog;
     }
@@ -199,6 +380,102 @@ public class SystemConfig {
         return kerberosLoginMinInterval;
     }
 
+    public Integer getKerberosRenewalMargin() {
+        return kerberosRenewalMargin;
+    }
+
+    public Integer getKerberosSpnegoTokenValidity() {
+        return kerberosSpnegoTokenValidity;
+    }
+
+    public Integer getKerberosSpnegoPrefetch() {
+        return kerberosSpnegoPrefetch;
+    }
+
+    public String getHeadersRequestRemove() {
+        return headersRequestRemove;
+    }
+
+    public String getHeadersRequestAdd() {
+        return headersRequestAdd;
+    }
+
+    public String getHeadersResponseRemove() {
+        return headersResponseRemove;
+    }
+
+    public String getHeadersResponseAdd() {
+        return headersResponseAdd;
+    }
+
+    public Integer getBlacklistProbeInitialDelay() {
+        return blacklistProbeInitialDelay;
+    }
+
+    public Integer getBlacklistProbeMaxDelay() {
+        return blacklistProbeMaxDelay;
+    }
+
+    public Integer getBlacklistProbeTimeout() {
+        return blacklistProbeTimeout;
+    }
+
+    public Integer getBlacklistProbeHealthInterval() {
+        return blacklistProbeHealthInterval;
+    }
+
+    public boolean isPacProxyLatencyOrdering() {
+        return pacProxyLatencyOrdering;
+    }
+
+    public Integer getConnectRacingStagger() {
+        return connectRacingStagger;
+    }
+
+    public boolean isPacProxyRacing() {
+        return pacProxyRacing;
+    }
+
+    public Integer getRequestSlowThreshold() {
+        return requestSlowThreshold;
+    }
+
+    public boolean isAccessLogEnabled() {
+        return accessLogEnabled;
+    }
+
+    public Integer getAccessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    public Integer getAccessLogMaxFileSize() {
+        return accessLogMaxFileSize;
+    }
+
+    public Integer getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public boolean isResponseCacheEnabled() {
+        return responseCacheEnabled;
+    }
+
+    public Integer getResponseCacheMaxEntries() {
+        return responseCacheMaxEntries;
+    }
+
+    public Integer getResponseCacheMaxObjectSize() {
+        return responseCacheMaxObjectSize;
+    }
+
+    public boolean isRequestCoalescingEnabled() {
+        return requestCoalescingEnabled;
+    }
+
+    public Integer getRequestCoalescingMaxBodySize() {
+        return requestCoalescingMaxBodySize;
+    }
+
     public RequestConfig.Builder applyConfig(final RequestConfig.Builder configBuilder) {
         return configBuilder.setConnectTimeout(socketConnectTimeout * 1000)
                 .setConnectionRequestTimeout(connectionRequestTimeout * 1000)
@@ -216,8 +493,11 @@ public class SystemConfig {
                 "maxConnectionsPerRoute=" + maxConnectionsPerRoute +
                 ", maxConnections=" + maxConnections +
                 ", internalBufferLength=" + internalBufferLength +
-                ", connectionManagerCleanInterval=" + connectionManagerCleanInterval +
+                ", connectionManagerValidateAfterInactivity=" + connectionManagerValidateAfterInactivity +
                 ", connectionManagerIdleTimeout=" + connectionManagerIdleTimeout +
+                ", connectionManagerShards=" + connectionManagerShards +
+                ", connectionManagerPrewarmRoutes=" + connectionManagerPrewarmRoutes +
+                ", connectionManagerPrewarmConnections=" + connectionManagerPrewarmConnections +
                 ", serverSocketBacklog=" + serverSocketBacklog +
                 ", socketSoTimeout=" + socketSoTimeout +
                 ", socketConnectTimeout=" + socketConnectTimeout +
@@ -227,6 +507,31 @@ public class SystemConfig {
                 ", pacScriptEnginePoolMaxTotal=" + pacScriptEnginePoolMaxTotal +
                 ", pacScriptEnginePoolMinIdle=" + pacScriptEnginePoolMinIdle +
                 ", apiServerRequestTimeout=" + apiServerRequestTimeout +
+                ", kerberosLoginMinInterval=" + kerberosLoginMinInterval +
+                ", kerberosRenewalMargin=" + kerberosRenewalMargin +
+                ", kerberosSpnegoTokenValidity=" + kerberosSpnegoTokenValidity +
+                ", kerberosSpnegoPrefetch=" + kerberosSpnegoPrefetch +
+                ", headersRequestRemove='" + headersRequestRemove + '\'' +
+                ", headersRequestAdd='" + headersRequestAdd + '\'' +
+                ", headersResponseRemove='" + headersResponseRemove + '\'' +
+                ", headersResponseAdd='" + headersResponseAdd + '\'' +
+                ", blacklistProbeInitialDelay=" + blacklistProbeInitialDelay +
+                ", blacklistProbeMaxDelay=" + blacklistProbeMaxDelay +
+                ", blacklistProbeTimeout=" + blacklistProbeTimeout +
+                ", blacklistProbeHealthInterval=" + blacklistProbeHealthInterval +
+                ", pacProxyLatencyOrdering=" + pacProxyLatencyOrdering +
+                ", connectRacingStagger=" + connectRacingStagger +
+                ", pacProxyRacing=" + pacProxyRacing +
+                ", requestSlowThreshold=" + requestSlowThreshold +
+                ", accessLogEnabled=" + accessLogEnabled +
+                ", accessLogBufferSize=" + accessLogBufferSize +
+                ", accessLogMaxFileSize=" + accessLogMaxFileSize +
+                ", accessLogMaxFiles=" + accessLogMaxFiles +
+                ", responseCacheEnabled=" + responseCacheEnabled +
+                ", responseCacheMaxEntries=" + responseCacheMaxEntries +
+                ", responseCacheMaxObjectSize=" + responseCacheMaxObjectSize +
+                ", requestCoalescingEnabled=" + requestCoalescingEnabled +
+                ", requestCoalescingMaxBodySize=" + requestCoalescingMaxBodySize +
                 '}';
     }
 }
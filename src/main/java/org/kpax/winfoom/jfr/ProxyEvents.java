@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * The Java Flight Recorder events of the proxy's hot paths, recorded with {@code jcmd <pid> JFR.start}.
+ * <p>When no recording is running, an event is never committed and, since its fields are only filled
+ * in after {@link Event#shouldCommit()}, the cost is a couple of checks; the event instances
+ * do not escape, so they are usually scalar replaced.
+ * <p>Usage:
+ * <pre>
+ * ProxyEvents.UpstreamConnect event = new ProxyEvents.UpstreamConnect();
+ * event.begin();
+ * // connect
+ * if (event.shouldCommit()) {
+ *     event.proxy = ...;
+ *     event.commit();
+ * }
+ * </pre>
+ *
+ * @author Eugen Covaci
+ */
+public final class ProxyEvents {
+
+    private static final String CATEGORY = "Winfoom";
+
+    private ProxyEvents() {
+    }
+
+    @Name("winfoom.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({CATEGORY, "Proxy"})
+    @Description("A client connection accepted by the local proxy")
+    @StackTrace(false)
+    public static final class ConnectionAccepted extends Event {
+
+        @Label("Client Address")
+        public String clientAddress;
+    }
+
+    @Name("winfoom.RequestParsed")
+    @Label("Request Parsed")
+    @Category({CATEGORY, "Proxy"})
+    @Description("The reading and parsing of a request's head")
+    @StackTrace(false)
+    public static final class RequestParsed extends Event {
+
+        @Label("Method")
+        public String method;
+
+        @Label("URI")
+        public String uri;
+
+        @Label("Header Count")
+        public int headerCount;
+    }
+
+    @Name("winfoom.PacEvaluated")
+    @Label("PAC Evaluated")
+    @Category({CATEGORY, "PAC"})
+    @Description("A PAC script's FindProxyForURL evaluation, the script engine's borrowing included")
+    @StackTrace(false)
+    public static final class PacEvaluated extends Event {
+
+        @Label("URL")
+        public String url;
+
+        @Label("Result")
+        public String result;
+
+        @Label("Engine Borrow Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        public long engineBorrowWait;
+    }
+
+    @Name("winfoom.UpstreamConnect")
+    @Label("Upstream Connect")
+    @Category({CATEGORY, "Proxy"})
+    @Description("A connect to an upstream proxy or to a target host")
+    @StackTrace(false)
+    public static final class UpstreamConnect extends Event {
+
+        @Label("Proxy")
+        public String proxy;
+
+        @Label("Target")
+        public String target;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("winfoom.Tunnel")
+    @Label("Tunnel")
+    @Category({CATEGORY, "Proxy"})
+    @Description("A tunnel (CONNECT or SOCKS), from opening to closing, with the bytes relayed")
+    @StackTrace(false)
+    public static final class Tunnel extends Event {
+
+        @Label("Target")
+        public String target;
+
+        @Label("Bytes In")
+        @Description("The bytes received from the client")
+        @DataAmount
+        public long bytesIn;
+
+        @Label("Bytes Out")
+        @Description("The bytes sent to the client")
+        @DataAmount
+        public long bytesOut;
+    }
+
+    @Name("winfoom.KerberosLogin")
+    @Label("Kerberos Login")
+    @Category({CATEGORY, "Authentication"})
+    @StackTrace(false)
+    public static final class KerberosLogin extends Event {
+
+        @Label("Principal")
+        public String principal;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("winfoom.BlacklistTransition")
+    @Label("Blacklist Transition")
+    @Category({CATEGORY, "Proxy"})
+    @Description("A proxy's circuit state change")
+    @StackTrace(false)
+    public static final class BlacklistTransition extends Event {
+
+        @Label("Proxy")
+        public String proxy;
+
+        @Label("From")
+        public String from;
+
+        @Label("To")
+        public String to;
+    }
+
+    @Name("winfoom.SpillToDisk")
+    @Label("Spill To Disk")
+    @Category({CATEGORY, "Proxy"})
+    @Description("A request body too large for the internal buffer, cached into a temporary file")
+    @StackTrace(false)
+    public static final class SpillToDisk extends Event {
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+}
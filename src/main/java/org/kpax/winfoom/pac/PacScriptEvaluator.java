@@ -47,9 +47,13 @@ import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.MissingResourceException;
 import org.kpax.winfoom.exception.PacFileException;
 import org.kpax.winfoom.exception.PacScriptException;
+import org.kpax.winfoom.jfr.ProxyEvents;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.ProxyStats;
 import org.kpax.winfoom.proxy.listener.ProxyListener;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.slf4j.Logger;
@@ -71,7 +75,7 @@ import java.util.Objects;
 @ThreadSafe
 @Order(3)
 @Component
-public class PacScriptEvaluator implements ProxyListener {
+public class PacScriptEvaluator implements ProxyListener, ReloadListener {
 
     private final Logger logger = LoggerFactory.getLogger(PacScriptEvaluator.class);
 
@@ -102,6 +106,12 @@ public class PacScriptEvaluator implements ProxyListener {
     @Autowired
     private ProxyBlacklist proxyBlacklist;
 
+    @Autowired
+    private ProxyStats proxyStats;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     /**
      * The supplier for the sharable {@link Engine} instance.
      */
@@ -146,13 +156,14 @@ public class PacScriptEvaluator implements ProxyListener {
                         }, config);
             });
 
-    private String jsMainFunction;
+    private volatile String jsMainFunction;
 
 
     @TypeQualifier(ProxyConfig.Type.PAC)
     @Override
     public void onStart() throws Exception {
-        GraalJSScriptEngine scriptEngine = enginePoolSingletonSupplier.get().borrowObject();
+        GenericObjectPool<GraalJSScriptEngine> enginePool = enginePoolSingletonSupplier.get();
+        GraalJSScriptEngine scriptEngine = enginePool.borrowObject();
         try {
             if (isJsFunctionAvailable(scriptEngine, IPV6_AWARE_PAC_MAIN_FUNCTION)) {
                 jsMainFunction = IPV6_AWARE_PAC_MAIN_FUNCTION;
@@ -163,7 +174,7 @@ public class PacScriptEvaluator implements ProxyListener {
                         " or " + IPV6_AWARE_PAC_MAIN_FUNCTION + " not found in PAC Script.");
             }
         } finally {
-            enginePoolSingletonSupplier.get().returnObject(scriptEngine);
+            enginePool.returnObject(scriptEngine);
         }
     }
 
@@ -266,21 +277,39 @@ public class PacScriptEvaluator implements ProxyListener {
      * @throws IOException        when the PAC file cannot be loaded.
      */
     public List<ProxyInfo> findProxyForURL(URI uri) throws Exception {
-        GraalJSScriptEngine scriptEngine = enginePoolSingletonSupplier.get().borrowObject();
+        ProxyEvents.PacEvaluated event = new ProxyEvents.PacEvaluated();
+        event.begin();
+        long startTime = System.nanoTime();
+        // The pool might be replaced meanwhile by a configuration reload:
+        // the engine goes back to the pool it came from, destroyed if that one is closed
+        GenericObjectPool<GraalJSScriptEngine> enginePool = enginePoolSingletonSupplier.get();
+        String mainFunction = jsMainFunction;
+        GraalJSScriptEngine scriptEngine = enginePool.borrowObject();
+        long borrowWait = System.nanoTime() - startTime;
         try {
             Object callResult;
+            String url = HttpUtils.toStrippedURLStr(uri);
             try {
-                callResult = scriptEngine.invokeFunction(jsMainFunction,
-                        HttpUtils.toStrippedURLStr(uri), uri.getHost());
+                callResult = scriptEngine.invokeFunction(mainFunction, url, uri.getHost());
             } finally {
                 // Make sure we return the PacScriptEngine instance back to the pool
-                enginePoolSingletonSupplier.get().returnObject(scriptEngine);
+                enginePool.returnObject(scriptEngine);
+                proxyMetrics.recordPacEvaluation(System.nanoTime() - startTime);
             }
             String proxyLine = Objects.toString(callResult, null);
+            if (event.shouldCommit()) {
+                event.url = url;
+                event.result = proxyLine;
+                event.engineBorrowWait = borrowWait;
+                event.commit();
+            }
             logger.debug("Parse proxyLine [{}] for uri [{}]", proxyLine, uri);
-            return HttpUtils.parsePacProxyLine(proxyLine, proxyBlacklist::isActive);
+            return proxyStats.reorder(HttpUtils.parsePacProxyLine(proxyLine, proxyInfo -> {
+                proxyBlacklist.watch(proxyInfo);
+                return proxyBlacklist.isActive(proxyInfo);
+            }));
         } catch (Exception ex) {
-            throw new PacScriptException("Error when executing PAC script function: " + jsMainFunction, ex);
+            throw new PacScriptException("Error when executing PAC script function: " + mainFunction, ex);
         }
     }
 
@@ -291,4 +320,14 @@ public class PacScriptEvaluator implements ProxyListener {
         jsMainFunction = null;
     }
 
+    /**
+     * Drop the script engines, so the PAC file is loaded again. The main function is kept for the evaluations
+     * in progress until {@link #onStart()} sets it again.
+     */
+    @Override
+    public void onReload() {
+        logger.debug("Reset the scriptEngineSupplier for reload");
+        enginePoolSingletonSupplier.reset();
+    }
+
 }
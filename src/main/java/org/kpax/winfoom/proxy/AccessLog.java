@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.RingBuffer;
+import org.kpax.winfoom.util.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log: one JSON line per request, with the client's address, the method, the target,
+ * the chosen proxy, the status code, the bytes in/out and the duration.
+ * <p>The request threads only fill in a pre-allocated entry of a {@link RingBuffer};
+ * a single writer thread formats the entries and writes them into a rolling file
+ * ({@code logs/access.log}, archived into {@code logs/archived/access_%i.log}).
+ * When the buffer is full the entry is dropped and counted, the request is never blocked.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class AccessLog {
+
+    /**
+     * The max number of entries written between two checks of the running flag.
+     */
+    private static final int DRAIN_BATCH = 256;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final long DROP_WARNING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private RingBuffer<Entry> ringBuffer;
+
+    private Counter written;
+
+    private Counter dropped;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!systemConfig.isAccessLogEnabled()) {
+            logger.info("The access log is disabled");
+            return;
+        }
+        Path logDirPath = Paths.get(System.getProperty("user.home"), SystemConfig.APP_HOME_DIR_NAME, "logs");
+        start(new RollingFile(logDirPath,
+                systemConfig.getAccessLogMaxFileSize() * 1024L * 1024L,
+                systemConfig.getAccessLogMaxFiles()));
+    }
+
+    /**
+     * Start the writer thread.
+     *
+     * @param rollingFile the file to write into
+     */
+    void start(@NotNull final RollingFile rollingFile) {
+        ringBuffer = new RingBuffer<>(systemConfig.getAccessLogBufferSize(), Entry::new);
+        written = proxyMetrics.getRegistry().counter("winfoom_access_log_entries_total",
+                "The access log's entries, by outcome", "outcome", "written");
+        dropped = proxyMetrics.getRegistry().counter("winfoom_access_log_entries_total",
+                "The access log's entries, by outcome", "outcome", "dropped");
+        running = true;
+        writerThread = new Thread(() -> write(rollingFile), "access-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("Access log started with a buffer of {} entries", ringBuffer.capacity());
+    }
+
+    /**
+     * @return {@code true} iff the access log is enabled.
+     */
+    public boolean isEnabled() {
+        return ringBuffer != null;
+    }
+
+    /**
+     * Log a processed request, without blocking.
+     *
+     * @param clientConnection the client's connection, before being closed
+     */
+    public void log(@NotNull final ClientConnection clientConnection) {
+        if (ringBuffer == null) {
+            return;
+        }
+        long sequence = ringBuffer.tryClaim();
+        if (sequence < 0) {
+            dropped.increment();
+            return;
+        }
+        Entry entry = ringBuffer.get(sequence);
+        entry.time = System.currentTimeMillis();
+        entry.clientAddress = clientConnection.getClientAddress();
+        entry.method = clientConnection.getRequestHead().getMethod();
+        entry.target = clientConnection.getRequestHead().getUri();
+        entry.proxy = clientConnection.getProcessedProxy();
+        entry.status = clientConnection.getStatusCode();
+        entry.bytesIn = clientConnection.getBytesReceived();
+        entry.bytesOut = clientConnection.getBytesSent();
+        entry.durationNanos = clientConnection.getTiming().getElapsedNanos();
+        ringBuffer.publish(sequence);
+    }
+
+    /**
+     * @return the number of entries dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped != null ? dropped.get() : 0;
+    }
+
+    private void write(final RollingFile rollingFile) {
+        StringBuilder line = new StringBuilder(512);
+        long reportedDrops = 0;
+        long lastDropWarning = 0;
+        try {
+            while (true) {
+                boolean stopping = !running;
+                int count = ringBuffer.drain(entry -> {
+                    line.setLength(0);
+                    format(entry, line);
+                    entry.clear();
+                    try {
+                        rollingFile.write(line);
+                    } catch (IOException e) {
+                        logger.debug("Error on writing the access log", e);
+                    }
+                }, DRAIN_BATCH);
+                written.add(count);
+                if (count < DRAIN_BATCH) {
+                    rollingFile.flush();
+                    if (stopping) {
+                        break;
+                    }
+                    long drops = dropped.get();
+                    if (drops > reportedDrops
+                            && System.currentTimeMillis() - lastDropWarning > DROP_WARNING_INTERVAL_MILLIS) {
+                        logger.warn("The access log's buffer is full, {} entries dropped so far", drops);
+                        reportedDrops = drops;
+                        lastDropWarning = System.currentTimeMillis();
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("The access log writer has stopped", e);
+        } finally {
+            InputOutputs.close(rollingFile);
+        }
+    }
+
+    /**
+     * Format an entry as a JSON line.
+     *
+     * @param entry   the entry
+     * @param builder the builder to append to
+     */
+    static void format(@NotNull final Entry entry, @NotNull final StringBuilder builder) {
+        builder.append("{\"time\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(entry.time), builder);
+        builder.append("\",\"client\":");
+        appendString(builder, entry.clientAddress != null ? entry.clientAddress.getHostAddress() : null);
+        builder.append(",\"method\":");
+        appendString(builder, entry.method);
+        builder.append(",\"target\":");
+        appendString(builder, entry.target);
+        builder.append(",\"proxy\":");
+        if (entry.proxy == null) {
+            builder.append("null");
+        } else if (entry.proxy.getProxyHost() == null) {
+            appendString(builder, entry.proxy.getType().toString());
+        } else {
+            appendString(builder, entry.proxy.getType() + " " + entry.proxy.getProxyHost().toHostString());
+        }
+        builder.append(",\"status\":");
+        if (entry.status > 0) {
+            builder.append(entry.status);
+        } else {
+            builder.append("null");
+        }
+        builder.append(",\"bytesIn\":").append(entry.bytesIn).
+                append(",\"bytesOut\":").append(entry.bytesOut).
+                append(",\"durationMs\":").append(TimeUnit.NANOSECONDS.toMillis(entry.durationNanos)).
+                append("}\n");
+    }
+
+    private static void appendString(final StringBuilder builder, final String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    @PreDestroy
+    void stop() {
+        if (writerThread != null) {
+            running = false;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * An access log entry, reused once written.
+     */
+    @NotThreadSafe
+    static final class Entry {
+
+        long time;
+        InetAddress clientAddress;
+        String method;
+        String target;
+        ProxyInfo proxy;
+        int status;
+        long bytesIn;
+        long bytesOut;
+        long durationNanos;
+
+        private void clear() {
+            clientAddress = null;
+            method = null;
+            target = null;
+            proxy = null;
+        }
+    }
+
+    /**
+     * A size based rolling file, with a fixed window of archived files.
+     */
+    @NotThreadSafe
+    static final class RollingFile implements AutoCloseable {
+
+        private final Path file;
+
+        private final Path archiveDir;
+
+        private final long maxFileSize;
+
+        private final int maxArchived;
+
+        private OutputStream outputStream;
+
+        private long size;
+
+        RollingFile(@NotNull final Path logDir, final long maxFileSize, final int maxArchived) throws IOException {
+            this.file = logDir.resolve("access.log");
+            this.archiveDir = logDir.resolve("archived");
+            this.maxFileSize = maxFileSize;
+            this.maxArchived = maxArchived;
+            Files.createDirectories(logDir);
+            open();
+        }
+
+        private void open() throws IOException {
+            outputStream = new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+            size = Files.size(file);
+        }
+
+        void write(@NotNull final CharSequence line) throws IOException {
+            byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+            if (size > 0 && size + bytes.length > maxFileSize) {
+                roll();
+            }
+            outputStream.write(bytes);
+            size += bytes.length;
+        }
+
+        void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        private void roll() throws IOException {
+            outputStream.close();
+            if (maxArchived > 0) {
+                Files.createDirectories(archiveDir);
+                Files.deleteIfExists(archived(maxArchived));
+                for (int i = maxArchived - 1; i > 0; i--) {
+                    if (Files.exists(archived(i))) {
+                        Files.move(archived(i), archived(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, archived(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+            open();
+        }
+
+        private Path archived(final int index) {
+            return archiveDir.resolve("access_" + index + ".log");
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+    }
+
+}
@@ -14,9 +14,6 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
-import org.apache.http.config.MessageConstraints;
-import org.apache.http.impl.io.DefaultHttpRequestParser;
-import org.apache.http.impl.io.HttpTransportMetricsImpl;
 import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
@@ -25,9 +22,12 @@ import org.kpax.winfoom.annotation.NotThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.ProxyConnectException;
+import org.kpax.winfoom.jfr.ProxyEvents;
 import org.kpax.winfoom.pac.PacScriptEvaluator;
 import org.kpax.winfoom.proxy.processor.ClientConnectionProcessor;
 import org.kpax.winfoom.proxy.processor.ConnectionProcessorSelector;
+import org.kpax.winfoom.util.CannedResponses;
+import org.kpax.winfoom.util.ConnectRacer;
 import org.kpax.winfoom.util.CrlfConverter;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
@@ -35,13 +35,17 @@ import org.kpax.winfoom.util.StreamSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 
 /**
@@ -69,12 +73,17 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
 
     private final ConnectionProcessorSelector connectionProcessorSelector;
 
-    private final ProxyConfig proxyConfig;
+    private final HeaderPolicy headerPolicy;
+
+    /**
+     * The settings this connection is processed with.
+     */
+    private final ProxyConfig.Snapshot config;
 
     private final SystemConfig systemConfig;
 
     /**
-     * The socket's input stream.
+     * The socket's input stream, preceded by the bytes read beyond the request head.
      */
     private final InputStream inputStream;
 
@@ -84,19 +93,47 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
     private final OutputStream outputStream;
 
     /**
-     * Used for request parsing also by the {@link org.kpax.winfoom.proxy.RepeatableHttpEntity} class.
+     * Counts the bytes read from the socket, request head included.
+     */
+    private final CountingInputStream countingInputStream;
+
+    /**
+     * Counts the bytes written to the socket.
+     */
+    private final CountingOutputStream countingOutputStream;
+
+    /**
+     * The recycled parsing state, released on {@link #close()}.
+     */
+    private final ParseState parseState;
+
+    /**
+     * The parsed request head.
      */
-    private final SessionInputBufferImpl sessionInputBuffer;
+    private final HttpRequestHead requestHead;
 
     /**
-     * The parsed {@link HttpRequest}.
+     * The request's phase timing, recycled with the parsing state.
      */
-    private final HttpRequest request;
+    private final RequestTiming timing;
+
+    /**
+     * Used for reading the request's body by the {@link org.kpax.winfoom.proxy.RepeatableHttpEntity} class.
+     * <p>Lazily bound, since a CONNECT request doesn't need it.
+     */
+    private SessionInputBufferImpl sessionInputBuffer;
+
+    /**
+     * The {@link HttpRequest}, materialized from the request head.
+     * <p>Lazily created for CONNECT requests.
+     */
+    private HttpRequest request;
 
     /**
      * The request URI extracted from the request line.
+     * <p>Lazily created for CONNECT requests.
      */
-    private final URI requestUri;
+    private URI requestUri;
 
     /**
      * Whether the request method is CONNECT or not.
@@ -113,44 +150,92 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      */
     private ProxyInfo manualProxy;
 
+    /**
+     * The proxy that won the PAC proxies connect race, if any.
+     */
+    private ProxyInfo preConnectedProxy;
+
+    /**
+     * The socket connected to {@link #preConnectedProxy}, until taken over by a processor.
+     */
+    private Socket preConnectedSocket;
+
+    /**
+     * The last proxy the request has been processed with.
+     */
+    private volatile ProxyInfo processedProxy;
+
+    /**
+     * The tunnel's opening time (milliseconds since epoch), zero if there is no open tunnel.
+     */
+    private volatile long tunnelOpenedAt;
+
+    /**
+     * The upstream side of the open tunnel, closed on {@link #kill()}.
+     */
+    private volatile AutoCloseable tunnelUpstream;
+
+    /**
+     * The response's status code, zero if no response has been written yet.
+     */
+    private int statusCode;
+
+    /**
+     * Whether the parsing state has been released.
+     */
+    private boolean released;
+
     /**
      * Constructor.<br>
      * Has the responsibility of parsing the request and initiate various objects.
      * <p><b>The response should be committed before throwing any exception.</b></p>
      *
      * @param socket
-     * @param proxyConfig
+     * @param config
      * @param systemConfig
      * @param connectionProcessorSelector
+     * @param headerPolicy
      * @throws IOException
      * @throws HttpException
      */
     ClientConnection(final Socket socket,
-                     final ProxyConfig proxyConfig,
+                     final ProxyConfig.Snapshot config,
                      final SystemConfig systemConfig,
-                     final ConnectionProcessorSelector connectionProcessorSelector) throws IOException, HttpException {
+                     final ConnectionProcessorSelector connectionProcessorSelector,
+                     final HeaderPolicy headerPolicy) throws IOException, HttpException {
         this.socket = socket;
-        this.proxyConfig = proxyConfig;
+        this.config = config;
         this.systemConfig = systemConfig;
         this.connectionProcessorSelector = connectionProcessorSelector;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
+        this.headerPolicy = headerPolicy;
+        this.countingOutputStream = new CountingOutputStream(socket.getOutputStream());
+        this.outputStream = this.countingOutputStream;
+        this.countingInputStream = new CountingInputStream(socket.getInputStream());
 
         // Parse the request
+        this.parseState = ParseState.acquire();
+        this.requestHead = this.parseState.getRequestHead();
+        this.timing = this.parseState.getTiming();
+        this.timing.start();
+        ProxyEvents.RequestParsed parsedEvent = new ProxyEvents.RequestParsed();
+        parsedEvent.begin();
         try {
-            this.sessionInputBuffer = new SessionInputBufferImpl(
-                    new HttpTransportMetricsImpl(),
-                    InputOutputs.DEFAULT_BUFFER_SIZE,
-                    InputOutputs.DEFAULT_BUFFER_SIZE,
-                    MessageConstraints.DEFAULT,
-                    StandardCharsets.UTF_8.newDecoder());
-            this.sessionInputBuffer.bind(this.inputStream);
-            this.request = new DefaultHttpRequestParser(this.sessionInputBuffer).parse();
-            this.connect = HttpUtils.HTTP_CONNECT.equals(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT));
-            try {
-                this.requestUri = HttpUtils.parseRequestUri(this.connect, this.request.getRequestLine().getUri());
-            } catch (URISyntaxException e) {
-                throw new HttpException("Invalid request uri", e);
+            InputStream socketInputStream = this.countingInputStream;
+            this.requestHead.parse(socketInputStream);
+
+            // Hand off the bytes read beyond the head (a body's prefix or
+            // the data sent ahead by a tunnel's client) to whoever reads next
+            this.inputStream = this.requestHead.prependRemaining(socketInputStream);
+            this.connect = this.requestHead.isConnect();
+            if (!this.connect) {
+                // The CONNECT's authority has already been validated by the parser,
+                // the rest of the requests need the full treatment
+                this.request = this.requestHead.toHttpRequest();
+                try {
+                    this.requestUri = HttpUtils.parseRequestUri(false, this.requestHead.getUri());
+                } catch (URISyntaxException e) {
+                    throw new HttpException("Invalid request uri", e);
+                }
             }
         } catch (Exception e) {
             if (e instanceof HttpException) {
@@ -160,12 +245,20 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
             } else {
                 writeErrorResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
             }
+            this.parseState.release();
             throw e;
         }
+        this.timing.stamp(RequestTiming.Phase.PARSE);
+        if (parsedEvent.shouldCommit()) {
+            parsedEvent.method = requestHead.getMethod();
+            parsedEvent.uri = requestHead.getUri();
+            parsedEvent.headerCount = requestHead.getHeaderCount();
+            parsedEvent.commit();
+        }
 
         if (logger.isDebugEnabled()) {
-            for (Header header : request.getAllHeaders()) {
-                logger.debug("<<< Request header: {}", header);
+            for (int i = 0; i < requestHead.getHeaderCount(); i++) {
+                logger.debug("<<< Request header: {}: {}", requestHead.getHeaderName(i), requestHead.getHeaderValue(i));
             }
         }
     }
@@ -174,19 +267,21 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      * Constructor for manual proxy case.
      *
      * @param socket
-     * @param proxyConfig
+     * @param config
      * @param systemConfig
      * @param connectionProcessorSelector
+     * @param headerPolicy
      * @param manualProxy
      * @throws IOException
      * @throws HttpException
      */
     ClientConnection(final Socket socket,
-                     final ProxyConfig proxyConfig,
+                     final ProxyConfig.Snapshot config,
                      final SystemConfig systemConfig,
                      final ConnectionProcessorSelector connectionProcessorSelector,
+                     final HeaderPolicy headerPolicy,
                      final ProxyInfo manualProxy) throws IOException, HttpException {
-        this(socket, proxyConfig, systemConfig, connectionProcessorSelector);
+        this(socket, config, systemConfig, connectionProcessorSelector, headerPolicy);
         this.manualProxy = manualProxy;
     }
 
@@ -194,40 +289,105 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      * Constructor for PAC case.<br>
      *
      * @param socket
-     * @param proxyConfig
+     * @param config
      * @param systemConfig
      * @param connectionProcessorSelector
+     * @param headerPolicy
      * @param pacScriptEvaluator
      * @throws IOException
      * @throws HttpException
      */
     ClientConnection(final Socket socket,
-                     final ProxyConfig proxyConfig,
+                     final ProxyConfig.Snapshot config,
                      final SystemConfig systemConfig,
                      final ConnectionProcessorSelector connectionProcessorSelector,
+                     final HeaderPolicy headerPolicy,
                      final PacScriptEvaluator pacScriptEvaluator)
             throws Exception {
-        this(socket, proxyConfig, systemConfig, connectionProcessorSelector);
+        this(socket, config, systemConfig, connectionProcessorSelector, headerPolicy);
         URI requestUri = getRequestUri();
         logger.debug("Extracted URI from request {}", requestUri);
         try {
             List<ProxyInfo> activeProxies = pacScriptEvaluator.findProxyForURL(requestUri);
             logger.debug("activeProxies: {}", activeProxies);
+            if (systemConfig.isPacProxyRacing() && systemConfig.getConnectRacingStagger() > 0) {
+                activeProxies = raceProxies(activeProxies);
+            }
             this.proxyInfoIterator = activeProxies.iterator();
+            this.timing.stamp(RequestTiming.Phase.PAC);
         } catch (Exception e) {
             writeErrorResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, HttpUtils.reasonPhraseForPac(e));
+            close();
             throw e;
         }
         if (!this.proxyInfoIterator.hasNext()) {
             writeErrorResponse(
                     HttpStatus.SC_BAD_GATEWAY,
                     "Proxy Auto Config error: no available proxy server");
+            close();
             throw new IllegalStateException("All proxy servers are blacklisted!");
         }
     }
 
     /**
-     * @return the input stream of the client's socket
+     * Race the connects to the proxies (except DIRECT), the first one to connect
+     * is moved in front of the list, its connection being kept for processing the request.
+     *
+     * @param proxies the PAC proxies
+     * @return the reordered proxies.
+     * @see #takePreConnectedSocket(ProxyInfo)
+     */
+    private List<ProxyInfo> raceProxies(final List<ProxyInfo> proxies) {
+        List<ProxyInfo> candidates = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ProxyInfo proxyInfo : proxies) {
+            if (!proxyInfo.getType().isDirect()) {
+                candidates.add(proxyInfo);
+                addresses.add(new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                        proxyInfo.getProxyHost().getPort()));
+            }
+        }
+        if (candidates.size() < 2) {
+            return proxies;
+        }
+        try {
+            ConnectRacer.Winner winner = ConnectRacer.race(addresses,
+                    systemConfig.getConnectRacingStagger(),
+                    systemConfig.getSocketConnectTimeout() * 1000);
+            ProxyInfo fastest = candidates.get(winner.getIndex());
+            logger.debug("Proxy {} won the connect race", fastest);
+            preConnectedProxy = fastest;
+            preConnectedSocket = winner.getChannel().socket();
+            systemConfig.configureSocket(preConnectedSocket);
+            List<ProxyInfo> reordered = new ArrayList<>(proxies.size());
+            reordered.add(fastest);
+            proxies.stream().filter(proxyInfo -> !proxyInfo.equals(fastest)).forEach(reordered::add);
+            return reordered;
+        } catch (IOException e) {
+            logger.debug("Connect race failed, keep the proxies order", e);
+            return proxies;
+        }
+    }
+
+    /**
+     * Take over the socket connected to the proxy while racing the PAC proxies.
+     * <p>The socket is handed over at most once, the caller being responsible for closing it.
+     *
+     * @param proxyInfo the proxy the request is processed with
+     * @return the connected socket, {@code null} if the proxy did not win the race
+     * or its socket has already been taken over.
+     */
+    public Socket takePreConnectedSocket(@NotNull final ProxyInfo proxyInfo) {
+        if (preConnectedSocket == null || !proxyInfo.equals(preConnectedProxy)) {
+            return null;
+        }
+        Socket connectedSocket = preConnectedSocket;
+        preConnectedSocket = null;
+        return connectedSocket;
+    }
+
+    /**
+     * @return the input stream of the client's socket, starting with the bytes read beyond the request head
      */
     @NotNull
     @Override
@@ -245,10 +405,23 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
     }
 
     /**
-     * @return the session input buffer used to parse the request into a {@link HttpRequest} instance
+     * @return the client's socket channel, if the client's socket has been accepted by a
+     * {@link java.nio.channels.ServerSocketChannel}, and there is no byte read beyond the request head
+     * (otherwise those bytes would be skipped, so the input stream must be used instead).
+     */
+    @Override
+    public SocketChannel getChannel() {
+        return requestHead.getRemaining() > 0 ? null : socket.getChannel();
+    }
+
+    /**
+     * @return the session input buffer used to read the request's body
      */
     @NotNull
     public SessionInputBufferImpl getSessionInputBuffer() {
+        if (sessionInputBuffer == null) {
+            sessionInputBuffer = parseState.getSessionInputBuffer(inputStream);
+        }
         return sessionInputBuffer;
     }
 
@@ -257,6 +430,14 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      */
     @NotNull
     public HttpRequest getRequest() {
+        if (request == null) {
+            try {
+                request = requestHead.toHttpRequest();
+            } catch (MethodNotSupportedException e) {
+                // Cannot happen for CONNECT
+                throw new IllegalStateException(e);
+            }
+        }
         return request;
     }
 
@@ -265,9 +446,25 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      */
     @NotNull
     public URI getRequestUri() {
+        if (requestUri == null) {
+            try {
+                requestUri = HttpUtils.parseRequestUri(connect, requestHead.getUri());
+            } catch (URISyntaxException e) {
+                // Cannot happen for CONNECT, since the authority has already been validated
+                throw new IllegalStateException(e);
+            }
+        }
         return requestUri;
     }
 
+    /**
+     * @return the parsed request head
+     */
+    @NotNull
+    public HttpRequestHead getRequestHead() {
+        return requestHead;
+    }
+
     /**
      * Write an object to the output stream using CRLF format.
      *
@@ -275,6 +472,9 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      * @throws IOException
      */
     public void write(@NotNull Object obj) throws IOException {
+        if (obj instanceof StatusLine) {
+            statusCode = ((StatusLine) obj).getStatusCode();
+        }
         outputStream.write(CrlfConverter.convert(obj));
     }
 
@@ -306,11 +506,10 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
      */
     public void writeErrorResponse(int statusCode, String reasonPhrase) {
         logger.debug("Write error response: statusCode = {}  reasonPhrase = [{}]", statusCode, reasonPhrase);
+        this.statusCode = statusCode;
         try {
-            write(HttpUtils.toStatusLine(request != null ? request.getProtocolVersion() : HttpVersion.HTTP_1_1,
+            outputStream.write(CannedResponses.response(getResponseProtocolVersion(),
                     statusCode, HttpUtils.replaceCRAndLF(reasonPhrase, StringUtils.SPACE)));
-            write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER, HttpUtils.getCurrentDate()));
-            writeln();
         } catch (Exception ex) {
             logger.debug("Error on writing error response", ex);
         }
@@ -318,26 +517,26 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
 
     public void writeProxyAuthRequiredErrorResponse() {
         logger.debug("Write error response: statusCode = {}", HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED);
-        String body = "<!DOCTYPE HTML \"-//IETF//DTD HTML 2.0//EN\">\n"
-                + "<html><head>\n"
-                + "<title>" + "Proxy authentication failed" + "</title>\n"
-                + "</head><body>\n"
-                + "Winfoom failed to login to the remote proxy with the provided credentials"
-                + "</body></html>\n";
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        statusCode = HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED;
         try {
-            write(HttpUtils.toStatusLine(request != null ? request.getProtocolVersion() : HttpVersion.HTTP_1_1,
-                    HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED));
-            write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER, HttpUtils.getCurrentDate()));
-            write(HttpUtils.createHttpHeader(HttpHeaders.CONTENT_LENGTH, "" + bytes.length));
-            writeln();
-            outputStream.write(bytes);
+            outputStream.write(CannedResponses.proxyAuthRequired(getResponseProtocolVersion()));
             outputStream.flush();
         } catch (Exception ex) {
             logger.debug("Error on writing proxy auth required error response", ex);
         }
     }
 
+    /**
+     * Write the {@code 200 Connection established} response of a tunnel.
+     * <p><b>This method commits the response.</b></p>
+     *
+     * @throws IOException
+     */
+    public void writeConnectionEstablished() throws IOException {
+        statusCode = HttpStatus.SC_OK;
+        outputStream.write(CannedResponses.connectionEstablished(getResponseProtocolVersion()));
+    }
+
     /**
      * Write the response to the output stream as it is.
      * <p><b>This method commits the response.</b></p>
@@ -370,6 +569,109 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
         return connect;
     }
 
+    /**
+     * @return the request's phase timing, not to be used after {@link #close()}.
+     */
+    public RequestTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * @return the client's address.
+     */
+    public InetAddress getClientAddress() {
+        return socket.getInetAddress();
+    }
+
+    /**
+     * @return the last proxy the request has been processed with, {@code null} if none.
+     */
+    public ProxyInfo getProcessedProxy() {
+        return processedProxy;
+    }
+
+    /**
+     * @return the response's status code, zero if no response has been written.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the number of bytes received from the client, request head included.
+     */
+    public long getBytesReceived() {
+        return countingInputStream.count;
+    }
+
+    /**
+     * @return the number of bytes sent to the client.
+     */
+    public long getBytesSent() {
+        return countingOutputStream.count;
+    }
+
+    /**
+     * Mark the start of the tunnel.
+     *
+     * @param upstream the tunnel's upstream side, to be closed on {@link #kill()}, may be {@code null}
+     */
+    public void onTunnelOpened(final AutoCloseable upstream) {
+        tunnelUpstream = upstream;
+        tunnelOpenedAt = System.currentTimeMillis();
+    }
+
+    public void onTunnelClosed() {
+        tunnelOpenedAt = 0;
+        tunnelUpstream = null;
+    }
+
+    /**
+     * @return the tunnel's opening time (milliseconds since epoch), zero if there is no open tunnel.
+     */
+    public long getTunnelOpenedAt() {
+        return tunnelOpenedAt;
+    }
+
+    /**
+     * Abort the connection from another thread: close the client's socket and the tunnel's upstream side, if any,
+     * so that both relay directions end right away.
+     */
+    public void kill() {
+        logger.debug("Kill the connection {}", this);
+        AutoCloseable upstream = tunnelUpstream;
+        if (upstream != null) {
+            InputOutputs.close(upstream);
+        }
+        InputOutputs.close(socket);
+    }
+
+    /**
+     * Count the bytes received through the socket's channel, bypassing the streams.
+     *
+     * @param bytes the number of bytes
+     */
+    public void addBytesReceived(final long bytes) {
+        countingInputStream.count += bytes;
+    }
+
+    /**
+     * Count the bytes sent through the socket's channel, bypassing the streams.
+     *
+     * @param bytes the number of bytes
+     */
+    public void addBytesSent(final long bytes) {
+        countingOutputStream.count += bytes;
+    }
+
+    /**
+     * @return the request's protocol version if available, otherwise HTTP/1.1
+     */
+    private ProtocolVersion getResponseProtocolVersion() {
+        ProtocolVersion protocolVersion = requestHead.getProtocolVersion();
+        return protocolVersion != null ? protocolVersion : HttpVersion.HTTP_1_1;
+    }
+
     /**
      * @return {@code true} iff the underlying socket is closed.
      */
@@ -377,11 +679,18 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
         return socket.isClosed();
     }
 
+    /**
+     * @return the settings this connection is processed with, unaffected by a configuration reload.
+     */
+    public ProxyConfig.Snapshot getConfig() {
+        return config;
+    }
+
     /**
      * @return the request's line
      */
     public RequestLine getRequestLine() {
-        return request.getRequestLine();
+        return requestHead.getRequestLine();
     }
 
     /**
@@ -423,24 +732,53 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
     private void prepareRequest() {
         logger.debug("Prepare the request for execution");
         // Prepare the request for execution:
-        // remove some headers, fix VIA header and set a proper entity
-        if (request instanceof HttpEntityEnclosingRequest) {
+        // filter the headers in one pass, fix VIA header and set a proper entity
+        boolean hasEntity = request instanceof HttpEntityEnclosingRequest;
+        RepeatableHttpEntity entity = null;
+        if (hasEntity) {
             logger.debug("Set enclosing entity");
-            RepeatableHttpEntity entity = new RepeatableHttpEntity(request,
-                    sessionInputBuffer,
-                    proxyConfig.getTempDirectory(),
+            entity = new RepeatableHttpEntity(request,
+                    getSessionInputBuffer(),
+                    config.getTempDirectory(),
                     systemConfig.getInternalBufferLength());
             registerAutoCloseable(entity);
+            ((HttpEntityEnclosingRequest) request).setEntity(entity);
+        } else {
+            logger.debug("No enclosing entity");
+        }
+
+        HeaderPolicy.Table headerTable = headerPolicy.getRequestTable(hasEntity);
+        Header viaHeader = null;
+        Header transferEncoding = null;
+        for (HeaderIterator itr = request.headerIterator(); itr.hasNext(); ) {
+            Header header = itr.nextHeader();
+            switch (headerTable.getAction(header.getName())) {
+                case DROP:
+                    itr.remove();
+                    logger.debug("Request header {} removed", header);
+                    break;
+                case REWRITE:
+                    itr.remove();
+                    if (HttpHeaders.VIA.equalsIgnoreCase(header.getName())) {
+                        if (viaHeader == null) {
+                            viaHeader = header;
+                        }
+                    } else if (transferEncoding == null) {
+                        transferEncoding = header;
+                    }
+                    break;
+                default:
+                    logger.debug("Allow request header {}", header);
+            }
+        }
 
-            Header transferEncoding = request.getFirstHeader(HTTP.TRANSFER_ENCODING);
-            if (transferEncoding != null
-                    && StringUtils.containsIgnoreCase(transferEncoding.getValue(), HTTP.CHUNK_CODING)) {
+        if (transferEncoding != null) {
+            if (StringUtils.containsIgnoreCase(transferEncoding.getValue(), HTTP.CHUNK_CODING)) {
                 logger.debug("Mark entity as chunked");
                 entity.setChunked(true);
 
                 // Apache HttpClient adds a Transfer-Encoding header's chunk directive
-                // so remove or strip the existent one from chunk directive
-                request.removeHeader(transferEncoding);
+                // so strip the existent one from chunk directive
                 String nonChunkedTransferEncoding = HttpUtils.stripChunked(transferEncoding.getValue());
                 if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
                     request.addHeader(
@@ -450,30 +788,19 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
                 } else {
                     logger.debug("Remove transfer encoding chunked request header");
                 }
-
-            }
-            ((HttpEntityEnclosingRequest) request).setEntity(entity);
-        } else {
-            logger.debug("No enclosing entity");
-        }
-
-        // Remove banned headers
-        List<String> bannedHeaders = request instanceof HttpEntityEnclosingRequest ?
-                HttpUtils.ENTITY_BANNED_HEADERS : HttpUtils.DEFAULT_BANNED_HEADERS;
-        for (Header header : request.getAllHeaders()) {
-            if (bannedHeaders.contains(header.getName())) {
-                request.removeHeader(header);
-                logger.debug("Request header {} removed", header);
             } else {
-                logger.debug("Allow request header {}", header);
+                request.addHeader(transferEncoding);
             }
         }
 
-        // Add a Via header and remove the existent one(s)
-        Header viaHeader = request.getFirstHeader(HttpHeaders.VIA);
-        request.removeHeaders(HttpHeaders.VIA);
-        request.setHeader(HttpUtils.createViaHeader(request.getRequestLine().getProtocolVersion(),
+        // Add a Via header in place of the existent one(s)
+        request.addHeader(HttpUtils.createViaHeader(request.getRequestLine().getProtocolVersion(),
                 viaHeader));
+
+        for (Header header : headerPolicy.getRequestAddedHeaders()) {
+            request.addHeader(header);
+            logger.debug("Request header {} added", header);
+        }
     }
 
     /**
@@ -488,6 +815,7 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
         ClientConnectionProcessor connectionProcessor = connectionProcessorSelector.selectConnectionProcessor(
                 connect, proxy);
         logger.debug("Process connection for proxy {} using connectionProcessor: {}", proxy, connectionProcessor);
+        processedProxy = proxy;
         try {
             connectionProcessor.process(this, proxy);
             return true;
@@ -507,14 +835,89 @@ public final class ClientConnection implements StreamSource, AutoCloseable {
 
     @Override
     public void close() {
-        autoCloseables.forEach(InputOutputs::close);
+        if (!released) {
+            released = true;
+            autoCloseables.forEach(InputOutputs::close);
+            if (preConnectedSocket != null) {
+                // Not taken over by the processors
+                InputOutputs.close(preConnectedSocket);
+                preConnectedSocket = null;
+            }
+
+            // Recycle the parsing state
+            parseState.release();
+        }
     }
 
     @Override
     public String toString() {
         return "ClientConnection{" +
-                "requestUri=" + requestUri +
+                "requestUri=" + (requestUri != null ? requestUri : requestHead.getUri()) +
                 '}';
     }
 
+    /**
+     * Counts the bytes read. The count is written by a single thread at a time:
+     * the one reading the request, then the one relaying the client's bytes,
+     * and it may be read by any thread.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private volatile long count;
+
+        private CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Counts the bytes written. The count is written by a single thread at a time
+     * and it may be read by any thread.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private volatile long count;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
 }
@@ -20,29 +20,25 @@ import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.pac.PacScriptEvaluator;
-import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.proxy.processor.ConnectionProcessorSelector;
 import org.kpax.winfoom.util.InputOutputs;
-import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Responsible for handling client's connection.
  */
 @ThreadSafe
 @Component
-public class ClientConnectionHandler implements StopListener {
+public class ClientConnectionHandler {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    @Autowired
-    private ProxyConfig proxyConfig;
-
     @Autowired
     private SystemConfig systemConfig;
 
@@ -52,14 +48,20 @@ public class ClientConnectionHandler implements StopListener {
     @Autowired
     private ConnectionProcessorSelector connectionProcessorSelector;
 
-    /**
-     * Supplier for ProxyInfo, manual case.
-     */
-    private final SingletonSupplier<ProxyInfo> proxyInfoSupplier = new SingletonSupplier<>(() -> {
-        HttpHost proxyHost = proxyConfig.getProxyType().isDirect() ? null :
-                new HttpHost(proxyConfig.getProxyHost(), proxyConfig.getProxyPort());
-        return new ProxyInfo(proxyConfig.getProxyType(), proxyHost);
-    });
+    @Autowired
+    private HeaderPolicy headerPolicy;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private AccessLog accessLog;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
+    @Autowired
+    private ProxyController proxyController;
 
     /**
      * Create a {@link ClientConnection} instance then process it.
@@ -68,26 +70,40 @@ public class ClientConnectionHandler implements StopListener {
      * @throws Exception
      */
     public void handleConnection(@NotNull final Socket socket) throws Exception {
+        // The connection keeps these settings, even if the configuration is reloaded meanwhile
+        ProxyConfig.Snapshot config = proxyController.getConfigSnapshot();
         final ClientConnection clientConnection;
-        if (proxyConfig.isAutoConfig()) {
-            clientConnection = new ClientConnection(socket, proxyConfig, systemConfig,
-                    connectionProcessorSelector, pacScriptEvaluator);
+        if (config.isAutoConfig()) {
+            clientConnection = new ClientConnection(socket, config, systemConfig,
+                    connectionProcessorSelector, headerPolicy, pacScriptEvaluator);
         } else {
-            clientConnection = new ClientConnection(socket, proxyConfig, systemConfig,
-                    connectionProcessorSelector, proxyInfoSupplier.get());
+            HttpHost proxyHost = config.getProxyType().isDirect() ? null :
+                    new HttpHost(config.getProxyHost(), config.getProxyPort());
+            clientConnection = new ClientConnection(socket, config, systemConfig,
+                    connectionProcessorSelector, headerPolicy, new ProxyInfo(config.getProxyType(), proxyHost));
         }
+        ConnectionRegistry.Entry registryEntry = connectionRegistry.register(clientConnection,
+                config.getGeneration());
         try {
             RequestLine requestLine = clientConnection.getRequestLine();
             logger.debug("Handle request: {}", requestLine);
             clientConnection.process();
             logger.debug("Done handling request: {}", requestLine);
+            recordTiming(requestLine, clientConnection.getTiming());
         } finally {
+            connectionRegistry.unregister(registryEntry);
+            accessLog.log(clientConnection);
             InputOutputs.close(clientConnection);
         }
     }
 
-    @Override
-    public void onStop() {
-        proxyInfoSupplier.reset();
+    private void recordTiming(final RequestLine requestLine, final RequestTiming timing) {
+        proxyMetrics.recordTiming(timing);
+        int slowThreshold = systemConfig.getRequestSlowThreshold();
+        if (slowThreshold > 0 && timing.getResponseNanos() >= TimeUnit.MILLISECONDS.toNanos(slowThreshold)) {
+            proxyMetrics.onSlowRequest();
+            logger.info("Slow request {}: {}", requestLine, timing);
+        }
     }
+
 }
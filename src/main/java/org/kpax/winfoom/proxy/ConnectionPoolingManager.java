@@ -14,33 +14,61 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.TimerWheel;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * It manages the HTTP connection pooling mechanism.
  * <p>Only used for non-CONNECT HTTP requests.
+ * <p>The idle/expired connections are evicted exactly when they expire, by a {@link TimerWheel}
+ * turned every {@value #EVICTION_TICK_MILLIS} milliseconds, while the connections idle for longer
+ * than {@code connectionManager.validateAfterInactivity} are checked for staleness when leased.
+ * <p>On configuration reload, the active connection managers are retired: the new requests get new ones,
+ * while a retired manager is shut down once it has had no leased connection
+ * for {@value #RETIRED_IDLE_TICKS} consecutive eviction ticks.
  */
 @ThreadSafe
 @Order(1)
 @Component
-class ConnectionPoolingManager implements StopListener {
+class ConnectionPoolingManager implements StopListener, ReloadListener {
+
+    /**
+     * The resolution of the eviction.
+     */
+    static final long EVICTION_TICK_MILLIS = 1000;
+
+    /**
+     * The number of consecutive idle ticks after which a retired connection manager is shut down.
+     * It gives the requests that got the manager right before the reload the time to lease their connection.
+     */
+    static final int RETIRED_IDLE_TICKS = 3;
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -50,6 +78,9 @@ class ConnectionPoolingManager implements StopListener {
     @Autowired
     private ProxyController proxyController;
 
+    @Autowired
+    private HttpConnectionSocketFactory httpConnectionSocketFactory;
+
     @Autowired
     private SocksConnectionSocketFactory socksConnectionSocketFactory;
 
@@ -59,28 +90,61 @@ class ConnectionPoolingManager implements StopListener {
     /**
      * For HTTP proxy type
      */
-    private final SingletonSupplier<PoolingHttpClientConnectionManager> httpSupplier =
-            new SingletonSupplier<>(() -> createConnectionManager(null));
+    private final SingletonSupplier<ShardedConnectionManager> httpSupplier =
+            new SingletonSupplier<>(() -> createConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", httpConnectionSocketFactory)
+                    .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                    .build(), null));
 
     /**
      * For SOCKS5 proxy type
      */
-    private final SingletonSupplier<PoolingHttpClientConnectionManager> socks5Supplier =
+    private final SingletonSupplier<ShardedConnectionManager> socks5Supplier =
             new SingletonSupplier<>(() -> createSocksConnectionManager(false));
 
     /**
      * For SOCKS4 proxy type
      */
-    private final SingletonSupplier<PoolingHttpClientConnectionManager> socks4Supplier =
+    private final SingletonSupplier<ShardedConnectionManager> socks4Supplier =
             new SingletonSupplier<>(() -> createSocksConnectionManager(true));
 
-    private final List<SingletonSupplier<PoolingHttpClientConnectionManager>> poolingHttpSuppliers =
+    /**
+     * The thread turning the eviction wheel.
+     */
+    private final SingletonSupplier<ScheduledExecutorService> evictionTickerSupplier =
+            new SingletonSupplier<>(() -> new ScheduledThreadPoolExecutor(1, new ProxyExecutorService.DefaultThreadFactory()));
+
+    /**
+     * Shared by all the connection managers.
+     */
+    private final SingletonSupplier<TimerWheel> evictionWheelSupplier =
+            new SingletonSupplier<>(() -> {
+                TimerWheel evictionWheel = new TimerWheel(EVICTION_TICK_MILLIS, TimeUnit.MILLISECONDS);
+                evictionTickerSupplier.get().scheduleWithFixedDelay(() -> {
+                            evictionWheel.advance();
+                            releaseIdleRetired();
+                        },
+                        EVICTION_TICK_MILLIS, EVICTION_TICK_MILLIS, TimeUnit.MILLISECONDS);
+                return evictionWheel;
+            });
+
+    private final List<SingletonSupplier<ShardedConnectionManager>> poolingHttpSuppliers =
             Arrays.asList(httpSupplier, socks5Supplier, socks4Supplier);
 
+    /**
+     * The names of the {@link #poolingHttpSuppliers} values, in the same order.
+     */
+    private static final String[] MANAGER_NAMES = {"http", "socks5", "socks4"};
+
+    /**
+     * The connection managers of the previous configuration generations, still in use.
+     */
+    private final Queue<Retired> retiredManagers = new ConcurrentLinkedQueue<>();
+
     /**
      * Lazy getter for HTTP proxy.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link ShardedConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getHttpConnectionManager() {
         return httpSupplier.get();
@@ -89,7 +153,7 @@ class ConnectionPoolingManager implements StopListener {
     /**
      * Lazy getter for SOCKS5 proxy.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link ShardedConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getSocks5ConnectionManager() {
         return socks5Supplier.get();
@@ -99,7 +163,7 @@ class ConnectionPoolingManager implements StopListener {
      * Lazy getter for SOCKS proxy.
      *
      * @param isSocks4 {@code true} iff the proxy type is SOCKS v4
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link ShardedConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getSocksConnectionManager(boolean isSocks4) {
         return isSocks4 ? socks4Supplier.get() : socks5Supplier.get();
@@ -108,80 +172,168 @@ class ConnectionPoolingManager implements StopListener {
     /**
      * Lazy getter for SOCKS4 proxy.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link ShardedConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getSocks4ConnectionManager() {
         return socks4Supplier.get();
     }
 
     /**
-     * A job that closes the idle/expired HTTP connections.
-     */
-    @Scheduled(fixedRateString = "#{systemConfig.connectionManagerCleanInterval * 1000}")
-    void cleanUpConnectionManager() {
-        if (proxyController.isRunning()) {
-            logger.debug("Execute connection manager pool clean up task");
-            poolingHttpSuppliers.stream().filter(SingletonSupplier::hasValue).forEach((connectionManagerSupplier) -> {
-                try {
-                    PoolingHttpClientConnectionManager connectionManager = connectionManagerSupplier.get();
-                    connectionManager.closeExpiredConnections();
-                    connectionManager.closeIdleConnections(systemConfig.getConnectionManagerIdleTimeout(),
-                            TimeUnit.SECONDS);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("PoolingHttpClientConnectionManager statistics {}",
-                                connectionManager.getTotalStats());
-                    }
-                } catch (Exception e) {
-                    logger.debug("Error on cleaning connection pool", e);
-                }
-            });
+     * @return the statistics of each shard, for each active connection manager (HTTP, SOCKS5, SOCKS4).
+     */
+    Map<String, List<PoolStats>> getShardStats() {
+        Map<String, List<PoolStats>> stats = new LinkedHashMap<>();
+        getActiveConnectionManagers().forEach((name, manager) -> stats.put(name, manager.getShardStats()));
+        return stats;
+    }
+
+    /**
+     * @return the statistics summed over all shards of all active connection managers.
+     */
+    PoolStats getTotalStats() {
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (List<PoolStats> shardStats : getShardStats().values()) {
+            for (PoolStats stats : shardStats) {
+                leased += stats.getLeased();
+                pending += stats.getPending();
+                available += stats.getAvailable();
+                max += stats.getMax();
+            }
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    /**
+     * @return the connection managers created so far, by name (http, socks5, socks4).
+     */
+    Map<String, ShardedConnectionManager> getActiveConnectionManagers() {
+        Map<String, ShardedConnectionManager> managers = new LinkedHashMap<>();
+        for (int i = 0; i < poolingHttpSuppliers.size(); i++) {
+            if (poolingHttpSuppliers.get(i).hasValue()) {
+                managers.put(MANAGER_NAMES[i], poolingHttpSuppliers.get(i).get());
+            }
         }
+        return managers;
     }
 
     /**
-     * Create a generic {@link PoolingHttpClientConnectionManager}
+     * @return the number of retired connection managers not shut down yet.
+     */
+    int getRetiredCount() {
+        return retiredManagers.size();
+    }
+
+    /**
+     * Shut down the retired connection managers idle for long enough.
+     * <p>Only called by the eviction ticker.
+     */
+    void releaseIdleRetired() {
+        for (Retired retired : retiredManagers) {
+            PoolStats stats = retired.manager.getTotalStats();
+            if (stats.getLeased() > 0 || stats.getPending() > 0) {
+                retired.idleTicks = 0;
+            } else if (++retired.idleTicks >= RETIRED_IDLE_TICKS) {
+                logger.debug("Shut down the idle retired connection manager {}", retired.name);
+                retiredManagers.remove(retired);
+                retired.manager.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Create a generic {@link ShardedConnectionManager}
      *
-     * @param socketFactoryRegistry the {@link Registry} instance used to configure the
+     * @param socketFactoryRegistry the {@link Registry} instance used to configure each shard's
      *                              {@link PoolingHttpClientConnectionManager}.
-     * @return the new {@link PoolingHttpClientConnectionManager} instance.
+     * @param dnsResolver           the {@link DnsResolver}, {@code null} for the default one.
+     * @return the new {@link ShardedConnectionManager} instance.
      * @throws IllegalStateException when the proxy is not started.
      */
-    private PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+    private ShardedConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                                             DnsResolver dnsResolver) {
         Assert.state(proxyController.isRunning(), "Cannot create connectionManagers: ConnectionPoolingManager is not started");
-        PoolingHttpClientConnectionManager connectionManager = socketFactoryRegistry != null
-                ? new PoolingHttpClientConnectionManager(socketFactoryRegistry) :
-                new PoolingHttpClientConnectionManager();
-        logger.info("Configure connection manager");
-        if (systemConfig.getMaxConnections() != null) {
+        int shardCount = systemConfig.getConnectionManagerShards() > 0 ?
+                systemConfig.getConnectionManagerShards() : ShardedConnectionManager.defaultShardCount();
+        logger.info("Configure connection manager with {} shards", shardCount);
+        return new ShardedConnectionManager(shardCount, systemConfig.getMaxConnections(), () -> {
+            PoolingHttpClientConnectionManager connectionManager =
+                    new PoolingHttpClientConnectionManager(socketFactoryRegistry, dnsResolver);
+
+            // The global max total is enforced by the sharded manager
             connectionManager.setMaxTotal(systemConfig.getMaxConnections());
-        }
-        if (systemConfig.getMaxConnectionsPerRoute() != null) {
-            connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
-        }
-        return connectionManager;
+            if (systemConfig.getMaxConnectionsPerRoute() != null) {
+                connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
+            }
+
+            // Only the connections idle for a while get the (lightweight) stale check on lease
+            connectionManager.setValidateAfterInactivity(
+                    (int) TimeUnit.SECONDS.toMillis(systemConfig.getConnectionManagerValidateAfterInactivity()));
+            return connectionManager;
+        }, evictionWheelSupplier.get(), TimeUnit.SECONDS.toMillis(systemConfig.getConnectionManagerIdleTimeout()));
     }
 
     /**
-     * Create a SOCKS {@link PoolingHttpClientConnectionManager}
+     * Create a SOCKS {@link ShardedConnectionManager}
      *
      * @param isSocks4 whether the SOCKS version is {@code 4} or not.
      * @return the new {@link PoolingHttpClientConnectionManager} instance.
      * @throws IllegalStateException when the proxy is not started.
      */
-    private PoolingHttpClientConnectionManager createSocksConnectionManager(boolean isSocks4) {
+    private ShardedConnectionManager createSocksConnectionManager(boolean isSocks4) {
         ConnectionSocketFactory connectionSocketFactory = isSocks4
                 ? socks4ConnectionSocketFactory : socksConnectionSocketFactory;
         Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
                 .register("http", connectionSocketFactory)
                 .register("https", connectionSocketFactory)
                 .build();
-        return createConnectionManager(socketFactoryRegistry);
+        // The target is resolved by the SOCKS proxy
+        return createConnectionManager(socketFactoryRegistry, SocksConnectionSocketFactory.REMOTE_DNS_RESOLVER);
     }
 
     @Override
     public void onStop() {
         logger.debug("Close all active connection managers and reset the suppliers");
         poolingHttpSuppliers.stream().filter(SingletonSupplier::hasValue).
-                forEach(SingletonSupplier::reset);
+                forEach(supplier -> supplier.reset(ShardedConnectionManager::shutdown));
+        Retired retired;
+        while ((retired = retiredManagers.poll()) != null) {
+            retired.manager.shutdown();
+        }
+        evictionWheelSupplier.reset();
+        evictionTickerSupplier.reset(ExecutorService::shutdownNow);
+    }
+
+    /**
+     * Retire the active connection managers, keeping the eviction wheel turning for them.
+     */
+    @Override
+    public void onReload() {
+        for (int i = 0; i < poolingHttpSuppliers.size(); i++) {
+            String name = MANAGER_NAMES[i];
+            poolingHttpSuppliers.get(i).reset(manager -> {
+                logger.debug("Retire the connection manager {}", name);
+                retiredManagers.add(new Retired(name, manager));
+            });
+        }
+    }
+
+    /**
+     * A connection manager of a previous configuration generation.
+     */
+    private static final class Retired {
+
+        private final String name;
+
+        private final ShardedConnectionManager manager;
+
+        /**
+         * Only accessed by the eviction ticker.
+         */
+        private int idleTicks;
+
+        private Retired(final String name, final ShardedConnectionManager manager) {
+            this.name = name;
+            this.manager = manager;
+        }
     }
 }
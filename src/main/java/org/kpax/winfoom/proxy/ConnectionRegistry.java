@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonView;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.api.json.Views;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of the active client connections and their tunnels, for the {@code /connections} API.
+ * <p>The request threads only put and remove an entry; everything else (the addresses, the throughput)
+ * is computed when the connections are listed.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class ConnectionRegistry {
+
+    /**
+     * The min interval between two throughput samples of a connection (milliseconds).
+     * Listing the connections more often reuses the last computed throughput.
+     */
+    private static final long MIN_SAMPLE_INTERVAL = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AtomicLong idSequence = new AtomicLong();
+
+    /**
+     * Key = the connection's id<br>
+     * Value = the registry's entry
+     */
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Register a connection, once its request has been parsed.
+     *
+     * @param clientConnection the client's connection
+     * @param generation       the configuration's generation the connection is handled with
+     * @return the registry's entry, to be passed to {@link #unregister(Entry)}.
+     */
+    @NotNull
+    Entry register(@NotNull final ClientConnection clientConnection, final int generation) {
+        Entry entry = new Entry(idSequence.incrementAndGet(), clientConnection, generation);
+        entries.put(entry.id, entry);
+        return entry;
+    }
+
+    /**
+     * @param entry the entry returned by {@link #register(ClientConnection, int)}
+     */
+    void unregister(@NotNull final Entry entry) {
+        entries.remove(entry.id);
+    }
+
+    /**
+     * @return the active connections, the oldest first.
+     */
+    @NotNull
+    public List<ConnectionInfo> getConnections() {
+        long now = System.currentTimeMillis();
+        return entries.values().stream().
+                map(entry -> entry.snapshot(now)).
+                sorted(Comparator.comparingLong(ConnectionInfo::getId)).
+                collect(Collectors.toList());
+    }
+
+    /**
+     * @param limit the max number of tunnels
+     * @return the open tunnels with the highest throughput, both directions.
+     */
+    @NotNull
+    public List<ConnectionInfo> getTopTunnels(final int limit) {
+        long now = System.currentTimeMillis();
+        List<ConnectionInfo> tunnels = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.clientConnection.getTunnelOpenedAt() > 0) {
+                tunnels.add(entry.snapshot(now));
+            }
+        }
+        tunnels.sort(Comparator.comparingLong(
+                (ConnectionInfo info) -> info.getBytesInPerSecond() + info.getBytesOutPerSecond()).reversed());
+        return tunnels.size() > limit ? tunnels.subList(0, limit) : tunnels;
+    }
+
+    /**
+     * Kill a connection, closing its tunnel if any.
+     *
+     * @param id the connection's id
+     * @return {@code true} iff the connection was found.
+     */
+    public boolean kill(final long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return false;
+        }
+        logger.info("Kill connection {} to {}", id, entry.target);
+        entry.clientConnection.kill();
+        return true;
+    }
+
+    /**
+     * @return the number of active connections.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param generation the current configuration's generation
+     * @return the number of active connections still handled with a previous generation.
+     */
+    public int countOlderThan(final int generation) {
+        return (int) entries.values().stream().filter(entry -> entry.generation < generation).count();
+    }
+
+    static final class Entry {
+
+        private final long id;
+
+        private final ClientConnection clientConnection;
+
+        private final int generation;
+
+        private final long startTime = System.currentTimeMillis();
+
+        /**
+         * Captured on registration, since the request head is recycled once the connection is closed.
+         */
+        private final String method;
+
+        private final String target;
+
+        private long sampleTime;
+
+        private long sampleBytesIn;
+
+        private long sampleBytesOut;
+
+        private long bytesInPerSecond;
+
+        private long bytesOutPerSecond;
+
+        private Entry(final long id, final ClientConnection clientConnection, final int generation) {
+            this.id = id;
+            this.clientConnection = clientConnection;
+            this.generation = generation;
+            this.method = clientConnection.getRequestHead().getMethod();
+            this.target = clientConnection.getRequestHead().getUri();
+            this.sampleTime = startTime;
+        }
+
+        private synchronized ConnectionInfo snapshot(final long now) {
+            long bytesIn = clientConnection.getBytesReceived();
+            long bytesOut = clientConnection.getBytesSent();
+            long elapsed = now - sampleTime;
+            if (elapsed >= MIN_SAMPLE_INTERVAL) {
+                bytesInPerSecond = (bytesIn - sampleBytesIn) * 1000 / elapsed;
+                bytesOutPerSecond = (bytesOut - sampleBytesOut) * 1000 / elapsed;
+                sampleTime = now;
+                sampleBytesIn = bytesIn;
+                sampleBytesOut = bytesOut;
+            }
+            ProxyInfo proxy = clientConnection.getProcessedProxy();
+            return new ConnectionInfo(id,
+                    clientConnection.getClientAddress().getHostAddress(),
+                    method,
+                    target,
+                    proxy != null ? proxy.toString() : null,
+                    generation,
+                    startTime,
+                    now - startTime,
+                    clientConnection.getTunnelOpenedAt(),
+                    bytesIn,
+                    bytesOut,
+                    bytesInPerSecond,
+                    bytesOutPerSecond);
+        }
+    }
+
+    /**
+     * An active connection's snapshot.
+     */
+    @JsonPropertyOrder({"id", "client", "method", "target", "proxy", "generation", "startTime", "durationSeconds",
+            "tunnel", "bytesIn", "bytesOut", "bytesInPerSecond", "bytesOutPerSecond"})
+    public static final class ConnectionInfo {
+
+        private final long id;
+        private final String client;
+        private final String method;
+        private final String target;
+        private final String proxy;
+        private final int generation;
+        private final long startTime;
+        private final long duration;
+        private final long tunnelOpenedAt;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long bytesInPerSecond;
+        private final long bytesOutPerSecond;
+
+        ConnectionInfo(long id, String client, String method, String target, String proxy, int generation,
+                       long startTime, long duration, long tunnelOpenedAt,
+                       long bytesIn, long bytesOut, long bytesInPerSecond, long bytesOutPerSecond) {
+            this.id = id;
+            this.client = client;
+            this.method = method;
+            this.target = target;
+            this.proxy = proxy;
+            this.generation = generation;
+            this.startTime = startTime;
+            this.duration = duration;
+            this.tunnelOpenedAt = tunnelOpenedAt;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.bytesInPerSecond = bytesInPerSecond;
+            this.bytesOutPerSecond = bytesOutPerSecond;
+        }
+
+        @JsonView(Views.Connection.class)
+        public long getId() {
+            return id;
+        }
+
+        @JsonView(Views.Connection.class)
+        public String getClient() {
+            return client;
+        }
+
+        @JsonView(Views.ConnectionDetails.class)
+        public String getMethod() {
+            return method;
+        }
+
+        @JsonView(Views.Connection.class)
+        public String getTarget() {
+            return target;
+        }
+
+        @JsonView(Views.Connection.class)
+        public String getProxy() {
+            return proxy;
+        }
+
+        /**
+         * @return the configuration's generation the connection is handled with.
+         */
+        @JsonView(Views.ConnectionDetails.class)
+        public int getGeneration() {
+            return generation;
+        }
+
+        @JsonView(Views.ConnectionDetails.class)
+        public String getStartTime() {
+            return Instant.ofEpochMilli(startTime).toString();
+        }
+
+        @JsonView(Views.ConnectionDetails.class)
+        public long getDurationSeconds() {
+            return TimeUnit.MILLISECONDS.toSeconds(duration);
+        }
+
+        /**
+         * @return {@code true} iff a tunnel is open.
+         */
+        @JsonView(Views.ConnectionDetails.class)
+        public boolean isTunnel() {
+            return tunnelOpenedAt > 0;
+        }
+
+        @JsonView(Views.Connection.class)
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        @JsonView(Views.Connection.class)
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * @return the bytes received from the client per second, since the previous sample.
+         */
+        @JsonView(Views.Connection.class)
+        public long getBytesInPerSecond() {
+            return bytesInPerSecond;
+        }
+
+        /**
+         * @return the bytes sent to the client per second, since the previous sample.
+         */
+        @JsonView(Views.Connection.class)
+        public long getBytesOutPerSecond() {
+            return bytesOutPerSecond;
+        }
+    }
+
+}
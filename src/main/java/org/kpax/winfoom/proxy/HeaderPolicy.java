@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.message.BasicHeader;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+/**
+ * The compiled policy for the headers exchanged between the client and the remote server.
+ * <p>Each direction has its own {@link Table}, mapping a header's name (case insensitive) to an {@link Action},
+ * so the headers are filtered in a single pass. The built-in rules are:
+ * <ul>
+ * <li>request: drop {@code Proxy-Authorization}, and also {@code Content-Length}, {@code Content-Type},
+ * {@code Content-Encoding} when there is an enclosing entity (they are set from the entity);
+ * rewrite {@code Via} and {@code Transfer-Encoding}</li>
+ * <li>response: drop {@code Proxy-Authenticate}; rewrite {@code Via} and {@code Transfer-Encoding}</li>
+ * </ul>
+ * <p>On top of these, the system settings can drop more headers or add custom ones
+ * (an added header replaces any header with the same name).
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class HeaderPolicy {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private Table requestTable;
+
+    private Table entityRequestTable;
+
+    private Table responseTable;
+
+    private List<Header> requestAddedHeaders;
+
+    private List<Header> responseAddedHeaders;
+
+    @PostConstruct
+    void init() {
+        requestAddedHeaders = parseAddedHeaders(systemConfig.getHeadersRequestAdd());
+        responseAddedHeaders = parseAddedHeaders(systemConfig.getHeadersResponseAdd());
+        List<String> requestRemoved = parseNames(systemConfig.getHeadersRequestRemove());
+        List<String> responseRemoved = parseNames(systemConfig.getHeadersResponseRemove());
+
+        Map<String, Action> requestRules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        addRules(requestRules, requestRemoved, requestAddedHeaders);
+        putBuiltIn(requestRules, HttpUtils.DEFAULT_BANNED_HEADERS, Action.DROP);
+        requestRules.put(HttpHeaders.VIA, Action.REWRITE);
+        requestTable = Table.compile(requestRules);
+
+        Map<String, Action> entityRequestRules = new TreeMap<>(requestRules);
+        putBuiltIn(entityRequestRules, HttpUtils.ENTITY_BANNED_HEADERS, Action.DROP);
+        entityRequestRules.put(HttpHeaders.TRANSFER_ENCODING, Action.REWRITE);
+        entityRequestTable = Table.compile(entityRequestRules);
+
+        Map<String, Action> responseRules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        addRules(responseRules, responseRemoved, responseAddedHeaders);
+        responseRules.put(HttpHeaders.PROXY_AUTHENTICATE, Action.DROP);
+        responseRules.put(HttpHeaders.VIA, Action.REWRITE);
+        responseRules.put(HttpHeaders.TRANSFER_ENCODING, Action.REWRITE);
+        responseTable = Table.compile(responseRules);
+
+        logger.info("Header policy: request {}, entity request {}, response {}",
+                requestRules, entityRequestRules, responseRules);
+    }
+
+    private void addRules(Map<String, Action> rules, List<String> removed, List<Header> added) {
+        removed.forEach(name -> rules.put(name, Action.DROP));
+        added.forEach(header -> rules.put(header.getName(), Action.DROP));
+    }
+
+    private void putBuiltIn(Map<String, Action> rules, List<String> names, Action action) {
+        names.forEach(name -> rules.put(name, action));
+    }
+
+    private List<String> parseNames(String value) {
+        List<String> names = new ArrayList<>();
+        for (String name : StringUtils.split(StringUtils.defaultString(value), ',')) {
+            name = name.trim();
+            if (isBuiltInRewrite(name)) {
+                logger.warn("Header {} is handled internally, ignore it", name);
+            } else if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private List<Header> parseAddedHeaders(String value) {
+        List<Header> headers = new ArrayList<>();
+        for (String entry : StringUtils.split(StringUtils.defaultString(value), '|')) {
+            int index = entry.indexOf(':');
+            String name = index > 0 ? entry.substring(0, index).trim() : null;
+            if (StringUtils.isEmpty(name) || StringUtils.containsWhitespace(name) || isBuiltInRewrite(name)) {
+                logger.warn("Invalid added header [{}], ignore it", entry);
+            } else {
+                headers.add(new BasicHeader(name, entry.substring(index + 1).trim()));
+            }
+        }
+        return Collections.unmodifiableList(headers);
+    }
+
+    private boolean isBuiltInRewrite(String name) {
+        return HttpHeaders.VIA.equalsIgnoreCase(name) || HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name);
+    }
+
+    /**
+     * @param hasEntity whether the request has an enclosing entity
+     * @return the request's table.
+     */
+    @NotNull
+    public Table getRequestTable(boolean hasEntity) {
+        return hasEntity ? entityRequestTable : requestTable;
+    }
+
+    @NotNull
+    public Table getResponseTable() {
+        return responseTable;
+    }
+
+    /**
+     * @return the headers to be added to the request, after filtering.
+     */
+    @NotNull
+    public List<Header> getRequestAddedHeaders() {
+        return requestAddedHeaders;
+    }
+
+    /**
+     * @return the headers to be added to the response, after filtering.
+     */
+    @NotNull
+    public List<Header> getResponseAddedHeaders() {
+        return responseAddedHeaders;
+    }
+
+    /**
+     * What to do with a header.
+     */
+    public enum Action {
+        /**
+         * Forward the header as it is.
+         */
+        PASS,
+        /**
+         * Do not forward the header.
+         */
+        DROP,
+        /**
+         * The header's value needs to be changed before forwarding.
+         */
+        REWRITE
+    }
+
+    /**
+     * An immutable, case insensitive, perfect hash table: every header name has its own slot,
+     * so a lookup costs one hash computation and at most one comparison, without any allocation.
+     */
+    @ThreadSafe
+    public static final class Table {
+
+        /**
+         * The number of hash seeds to try before doubling the table.
+         */
+        private static final int MAX_SEEDS = 64;
+
+        private final String[] names;
+        private final Action[] actions;
+        private final int mask;
+        private final int seed;
+
+        private Table(String[] names, Action[] actions, int seed) {
+            this.names = names;
+            this.actions = actions;
+            this.mask = names.length - 1;
+            this.seed = seed;
+        }
+
+        /**
+         * Build the table, searching for a size and a seed without collisions.
+         *
+         * @param rules the header names (that must be unique, case insensitive) and their actions
+         * @return the compiled table
+         */
+        public static Table compile(@NotNull final Map<String, Action> rules) {
+            Assert.notNull(rules, "rules cannot be null");
+            int size = Integer.highestOneBit(Math.max(rules.size(), 1)) << 2;
+            while (true) {
+                for (int seed = 0; seed < MAX_SEEDS; seed++) {
+                    String[] names = new String[size];
+                    Action[] actions = new Action[size];
+                    boolean collision = false;
+                    for (Map.Entry<String, Action> entry : rules.entrySet()) {
+                        int slot = hash(entry.getKey(), seed) & (size - 1);
+                        if (names[slot] != null) {
+                            collision = true;
+                            break;
+                        }
+                        names[slot] = entry.getKey();
+                        actions[slot] = entry.getValue();
+                    }
+                    if (!collision) {
+                        return new Table(names, actions, seed);
+                    }
+                }
+                size <<= 1;
+            }
+        }
+
+        private static int hash(final String name, final int seed) {
+            int hash = 0x811c9dc5 ^ seed;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                hash = (hash ^ c) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * @param name the header's name
+         * @return the header's action, {@link Action#PASS} if there is no rule for it.
+         */
+        @NotNull
+        public Action getAction(@NotNull final String name) {
+            int slot = hash(name, seed) & mask;
+            String candidate = names[slot];
+            return candidate != null && candidate.equalsIgnoreCase(name) ? actions[slot] : Action.PASS;
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.HttpUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keep track of the most used non-CONNECT routes and pre-warm their pooled connections when the proxy starts,
+ * so the first requests after a start (or a resume from sleep) don't all pay the TCP connect.
+ * <p>The hottest routes are persisted in the temp directory when the proxy stops,
+ * together with the proxy type they were recorded for. On start, the routes recorded for
+ * the same proxy type (and, for a manual proxy, the same proxy) are connected in background.
+ * <p>The previous session's usage counts are carried over halved, so the old routes fade out.
+ * On reload, the usage counts of the routes still configured are kept and their connections pre-warmed again.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class HotRoutes implements StopListener, ReloadListener {
+
+    static final String FILENAME = "hot-routes.txt";
+
+    /**
+     * The max number of routes tracked in memory.
+     */
+    static final int MAX_TRACKED = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    /**
+     * Key = the route<br>
+     * Value = its usage count
+     */
+    private final Map<Route, LongAdder> usage = new ConcurrentHashMap<>();
+
+    /**
+     * Record the usage of a route. Only plain HTTP targets are recorded.
+     *
+     * @param proxyInfo the upstream proxy
+     * @param target    the target host
+     */
+    public void record(@NotNull final ProxyInfo proxyInfo, @NotNull final HttpHost target) {
+        if (systemConfig.getConnectionManagerPrewarmRoutes() <= 0
+                || !"http".equalsIgnoreCase(target.getSchemeName())) {
+            return;
+        }
+        Route route = new Route(Route.kindOf(proxyInfo.getType()), proxyInfo.getProxyHost(),
+                target.getHostName(), target.getPort() > 0 ? target.getPort() : 80);
+        LongAdder counter = usage.get(route);
+        if (counter == null) {
+            if (usage.size() >= MAX_TRACKED) {
+                return;
+            }
+            counter = usage.computeIfAbsent(route, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Load the persisted routes (or, after a reload, take the hottest ones in memory)
+     * and open, in background, the configured number of connections to each of them.
+     * <p>Must be called after the proxy is started.
+     */
+    void warmUp() {
+        if (systemConfig.getConnectionManagerPrewarmRoutes() <= 0) {
+            return;
+        }
+        List<Route> routes = usage.isEmpty() ? load() : hottest().
+                map(Map.Entry::getKey).collect(Collectors.toList());
+        if (systemConfig.getConnectionManagerPrewarmConnections() > 0) {
+            logger.info("Pre-warm the connections for {} routes", routes.size());
+            for (Route route : routes) {
+                executorService.execute(() -> warmUp(route, systemConfig.getConnectionManagerPrewarmConnections()));
+            }
+        }
+    }
+
+    private void warmUp(final Route route, final int connectionCount) {
+        HttpClientConnectionManager connectionManager = route.kind.equals(Route.SOCKS4) ?
+                connectionPoolingManager.getSocks4ConnectionManager() : route.kind.equals(Route.SOCKS5) ?
+                connectionPoolingManager.getSocks5ConnectionManager() : connectionPoolingManager.getHttpConnectionManager();
+        HttpRoute httpRoute = route.toHttpRoute();
+        HttpClientContext context = HttpClientContext.create();
+        if (route.proxy != null && !route.kind.equals(Route.HTTP)) {
+            context.setAttribute(HttpUtils.SOCKS_ADDRESS,
+                    new InetSocketAddress(route.proxy.getHostName(), route.proxy.getPort()));
+        }
+        int connectTimeout = (int) TimeUnit.SECONDS.toMillis(systemConfig.getSocketConnectTimeout());
+        List<HttpClientConnection> connections = new ArrayList<>(connectionCount);
+        try {
+            for (int i = 0; i < connectionCount; i++) {
+                HttpClientConnection connection = connectionManager.requestConnection(httpRoute, null).
+                        get(connectTimeout, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    connectionManager.connect(connection, httpRoute, connectTimeout, context);
+                    connectionManager.routeComplete(connection, httpRoute, context);
+                }
+            }
+            logger.debug("Pre-warmed {} connections for {}", connections.size(), httpRoute);
+        } catch (Exception e) {
+            logger.debug("Cannot pre-warm the connections for " + httpRoute, e);
+        } finally {
+            for (HttpClientConnection connection : connections) {
+                connectionManager.releaseConnection(connection, null,
+                        systemConfig.getConnectionManagerIdleTimeout(), TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Load the persisted routes matching the current proxy and seed the usage counts with them.
+     *
+     * @return the persisted routes matching the current proxy, the hottest first.
+     */
+    List<Route> load() {
+        Path path = getPath();
+        if (path == null || !Files.exists(path)) {
+            return Collections.emptyList();
+        }
+        List<Route> routes = new ArrayList<>();
+        try {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals("# " + proxyConfig.getProxyType())) {
+                logger.debug("The hot routes were recorded for another proxy type, ignore them");
+                return routes;
+            }
+            Route manualRoute = manualRoute();
+            for (String line : lines.subList(1, lines.size())) {
+                String[] split = line.split(" ");
+                if (split.length != 3) {
+                    continue;
+                }
+                try {
+                    long count = Long.parseLong(split[0]);
+                    Route route = Route.parse(split[1], split[2]);
+                    if (manualRoute == null || manualRoute.sameProxy(route)) {
+                        routes.add(route);
+                        usage.computeIfAbsent(route, r -> new LongAdder()).add(count / 2);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Ignore invalid hot route line: " + line, e);
+                }
+                if (routes.size() >= systemConfig.getConnectionManagerPrewarmRoutes()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read the hot routes file " + path, e);
+        }
+        return routes;
+    }
+
+    /**
+     * Persist the hottest routes, then clear the usage counts.
+     */
+    @PreDestroy
+    void save() {
+        if (usage.isEmpty()) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("# " + proxyConfig.getProxyType());
+        hottest().map(e -> e.getValue().sum() + " " + e.getKey()).
+                collect(Collectors.toCollection(() -> lines));
+        usage.clear();
+        Path path = getPath();
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.write(path, lines, StandardCharsets.UTF_8);
+            logger.debug("Saved {} hot routes to {}", lines.size() - 1, path);
+        } catch (IOException e) {
+            logger.warn("Cannot write the hot routes file " + path, e);
+        }
+    }
+
+    /**
+     * @return the used routes, the hottest first, limited to the configured number of routes.
+     */
+    private Stream<Map.Entry<Route, LongAdder>> hottest() {
+        return usage.entrySet().stream().
+                filter(e -> e.getValue().sum() > 0).
+                sorted(Comparator.comparingLong((Map.Entry<Route, LongAdder> e) -> e.getValue().sum()).reversed()).
+                limit(systemConfig.getConnectionManagerPrewarmRoutes());
+    }
+
+    /**
+     * @return a route holding the manual proxy, {@code null} if the proxy is PAC.
+     */
+    private Route manualRoute() {
+        return proxyConfig.getProxyType().isPac() ? null : new Route(
+                Route.kindOf(proxyConfig.getProxyType()), proxyConfig.getProxyType().isDirect() ? null :
+                new HttpHost(proxyConfig.getProxyHost(), proxyConfig.getProxyPort()), null, 0);
+    }
+
+    private Path getPath() {
+        Path tempDirectory = proxyConfig.getTempDirectory();
+        return tempDirectory != null ? tempDirectory.resolve(FILENAME) : null;
+    }
+
+    @Override
+    public void onStop() {
+        save();
+    }
+
+    /**
+     * Keep the usage counts of the routes going through the manual proxy, drop the others.
+     * For a PAC proxy, all the routes are kept: any of them might still be returned by the script.
+     */
+    @Override
+    public void onReload() {
+        Route manualRoute = manualRoute();
+        if (manualRoute != null) {
+            usage.keySet().removeIf(route -> !manualRoute.sameProxy(route));
+        }
+    }
+
+    /**
+     * A pooled route: the connection manager kind, the upstream proxy (if any) and the target.
+     */
+    static final class Route {
+
+        static final String HTTP = "http";
+        static final String SOCKS4 = "socks4";
+        static final String SOCKS5 = "socks5";
+        static final String DIRECT = "direct";
+
+        private final String kind;
+
+        private final HttpHost proxy;
+
+        private final String targetHost;
+
+        private final int targetPort;
+
+        Route(final String kind, final HttpHost proxy, final String targetHost, final int targetPort) {
+            this.kind = kind;
+            this.proxy = proxy;
+            this.targetHost = targetHost;
+            this.targetPort = targetPort;
+        }
+
+        static String kindOf(final ProxyType proxyType) {
+            return proxyType.isHttp() ? HTTP : proxyType.isSocks4() ? SOCKS4 : proxyType.isSocks5() ? SOCKS5 : DIRECT;
+        }
+
+        static Route parse(final String kindAndProxy, final String target) {
+            int index = kindAndProxy.indexOf('@');
+            String kind = index < 0 ? kindAndProxy : kindAndProxy.substring(0, index);
+            if (!Arrays.asList(HTTP, SOCKS4, SOCKS5, DIRECT).contains(kind)
+                    || (index < 0) != kind.equals(DIRECT)) {
+                throw new IllegalArgumentException("Invalid route kind: " + kindAndProxy);
+            }
+            HttpHost targetHost = HttpHost.create(target);
+            return new Route(kind, index < 0 ? null : HttpHost.create(kindAndProxy.substring(index + 1)),
+                    targetHost.getHostName(), targetHost.getPort() > 0 ? targetHost.getPort() : 80);
+        }
+
+        /**
+         * Build the route exactly as the HttpClient's route planner would, so the pre-warmed connections get reused.
+         *
+         * @return the {@link HttpRoute}.
+         */
+        HttpRoute toHttpRoute() {
+            HttpHost target = new HttpHost(targetHost, targetPort, "http");
+            if (kind.equals(HTTP)) {
+                return new HttpRoute(target, null, new HttpHost(proxy.getHostName(), proxy.getPort()), false);
+            }
+            return new HttpRoute(target, null, false);
+        }
+
+        boolean sameProxy(final Route other) {
+            return kind.equals(other.kind) && Objects.equals(
+                    proxy != null ? proxy.toHostString() : null,
+                    other.proxy != null ? other.proxy.toHostString() : null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Route route = (Route) o;
+            return targetPort == route.targetPort &&
+                    sameProxy(route) &&
+                    targetHost.equalsIgnoreCase(route.targetHost);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, proxy != null ? proxy.toHostString() : null,
+                    targetHost.toLowerCase(Locale.ROOT), targetPort);
+        }
+
+        @Override
+        public String toString() {
+            return (proxy != null ? kind + "@" + proxy.toHostString() : kind) + " " + targetHost + ":" + targetPort;
+        }
+    }
+
+}
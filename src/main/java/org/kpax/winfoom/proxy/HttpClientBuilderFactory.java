@@ -49,6 +49,9 @@ public class HttpClientBuilderFactory {
     @Autowired
     private ConnectionPoolingManager connectionPoolingManager;
 
+    @Autowired
+    private ResponseCache responseCache;
+
     /**
      * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
      *
@@ -65,6 +68,13 @@ public class HttpClientBuilderFactory {
         }
     }
 
+    /**
+     * @return a caching {@link HttpClientBuilder} when the response cache is enabled, a plain one otherwise.
+     */
+    private HttpClientBuilder newClientBuilder() {
+        return responseCache.isEnabled() ? responseCache.createClientBuilder() : HttpClients.custom();
+    }
+
     /**
      * For HTTP proxies.
      *
@@ -76,7 +86,7 @@ public class HttpClientBuilderFactory {
                 setProxy(new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort())).
                 setCircularRedirectsAllowed(true).
                 build();
-        return HttpClients.custom().
+        return newClientBuilder().
                 setDefaultCredentialsProvider(credentialsProviderSupplier.get()).
                 setDefaultAuthSchemeRegistry(authSchemeRegistrySupplier.get()).
                 setConnectionManager(connectionPoolingManager.getHttpConnectionManager()).
@@ -85,7 +95,8 @@ public class HttpClientBuilderFactory {
                 setRoutePlanner(new DefaultProxyRoutePlanner(requestConfig.getProxy())).
                 disableAutomaticRetries().
                 disableRedirectHandling().
-                disableCookieManagement();
+                disableCookieManagement().
+                setRequestExecutor(RequestTiming.TimingRequestExecutor.INSTANCE);
     }
 
     /**
@@ -94,7 +105,7 @@ public class HttpClientBuilderFactory {
      * @return a pre-configured {@link HttpClientBuilder} instance for direct connections (no proxy).
      */
     private HttpClientBuilder createDirectClientBuilder() {
-        return HttpClients.custom()
+        return newClientBuilder()
                 .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
                 .setConnectionManagerShared(true)
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
@@ -102,7 +113,8 @@ public class HttpClientBuilderFactory {
                         .build())
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
-                .disableCookieManagement();
+                .disableCookieManagement()
+                .setRequestExecutor(RequestTiming.TimingRequestExecutor.INSTANCE);
     }
 
     /**
@@ -112,7 +124,7 @@ public class HttpClientBuilderFactory {
      * @return a pre-configured {@link HttpClientBuilder} instance for SOCKS proxies.
      */
     private HttpClientBuilder createSocksClientBuilder(boolean isSocks4) {
-        return HttpClients.custom()
+        return newClientBuilder()
                 .setConnectionManager(connectionPoolingManager.getSocksConnectionManager(isSocks4))
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
@@ -120,7 +132,8 @@ public class HttpClientBuilderFactory {
                 .setConnectionManagerShared(true)
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
-                .disableCookieManagement();
+                .disableCookieManagement()
+                .setRequestExecutor(RequestTiming.TimingRequestExecutor.INSTANCE);
     }
 
 
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A {@link ConnectionSocketFactory} implementation for HTTP proxy.
+ * <p>It hands over the socket already connected to the proxy, if any (see {@link HttpUtils#PRE_CONNECTED_SOCKET}),
+ * otherwise it connects a plain socket.
+ */
+@ThreadSafe
+@Component
+class HttpConnectionSocketFactory implements ConnectionSocketFactory {
+
+    private final ConnectionSocketFactory plainSocketFactory = PlainConnectionSocketFactory.getSocketFactory();
+
+    @Override
+    public Socket createSocket(final HttpContext context) throws IOException {
+        return plainSocketFactory.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(
+            final int connectTimeout,
+            final Socket socket,
+            final HttpHost host,
+            final InetSocketAddress remoteAddress,
+            final InetSocketAddress localAddress,
+            final HttpContext context) throws IOException {
+        Socket connectedSocket = (Socket) context.removeAttribute(HttpUtils.PRE_CONNECTED_SOCKET);
+        if (connectedSocket == null) {
+            return plainSocketFactory.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+        if (socket != null) {
+            // Keep the socket options set by the connection operator
+            connectedSocket.setTcpNoDelay(socket.getTcpNoDelay());
+            connectedSocket.setKeepAlive(socket.getKeepAlive());
+            InputOutputs.close((AutoCloseable) socket);
+        }
+        return connectedSocket;
+    }
+
+}
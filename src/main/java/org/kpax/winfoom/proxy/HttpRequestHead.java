@@ -0,0 +1,621 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.*;
+import org.apache.http.impl.DefaultHttpRequestFactory;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicRequestLine;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable parser of the HTTP request head (the request line and the headers),
+ * working directly on the bytes read from the client's socket.
+ * <p>Nothing is decoded while parsing: the request line's parts and the headers are kept as offsets
+ * into the head's buffer and turned into strings only when asked for.
+ * The CONNECT method and its authority form ({@code host:port}) are recognized on the raw bytes,
+ * so a tunnel request needs neither a {@link HttpRequest} nor a {@link java.net.URI}.
+ * <p>The parsing is strict: the head cannot be longer than {@link #MAX_HEAD_LENGTH} bytes
+ * nor have more than {@link #MAX_HEADER_COUNT} headers, the obsolete line folding is rejected
+ * and so are the control characters within the request line or the header values.
+ * <p>The bytes read beyond the head (a body's prefix or pipelined data)
+ * are kept in the buffer and can be retrieved with {@link #prependRemaining(InputStream)}.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+public final class HttpRequestHead {
+
+    /**
+     * The max length of the request head, in bytes.
+     */
+    public static final int MAX_HEAD_LENGTH = 65536;
+
+    /**
+     * The max number of request headers.
+     */
+    public static final int MAX_HEADER_COUNT = 256;
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /**
+     * The max number of empty lines tolerated before the request line (see RFC 7230, section 3.5).
+     */
+    private static final int MAX_LEADING_EMPTY_LINES = 8;
+
+    private static final byte[] CONNECT = {'C', 'O', 'N', 'N', 'E', 'C', 'T'};
+
+    private static final byte[] HTTP_PREFIX = {'H', 'T', 'T', 'P', '/'};
+
+    private static final String[] COMMON_METHODS = {"GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH",
+            "CONNECT", "TRACE"};
+
+    /**
+     * Offsets per header: name start, name end, value start, value end.
+     */
+    private final int[] headerOffsets = new int[MAX_HEADER_COUNT * 4];
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    private final RemainingInputStream remainingInputStream = new RemainingInputStream();
+
+    /**
+     * The number of bytes read into the buffer.
+     */
+    private int filled;
+
+    /**
+     * The length of the head, including the ending empty line.
+     */
+    private int headLength;
+
+    private int methodStart;
+    private int methodEnd;
+    private int uriStart;
+    private int uriEnd;
+    private int headerCount;
+    private boolean connect;
+    private int hostStart;
+    private int hostEnd;
+    private int port;
+    private ProtocolVersion protocolVersion;
+
+    // Lazily materialized
+    private String method;
+    private String uri;
+    private RequestLine requestLine;
+
+    /**
+     * Read and parse the request head.
+     * <p>Any previous state is discarded.
+     *
+     * @param inputStream the client's input stream
+     * @throws ConnectionClosedException if the stream ends before the head is complete
+     * @throws HttpException             if the head is malformed or it exceeds the limits
+     * @throws IOException               if an I/O error occurs
+     */
+    public void parse(@NotNull final InputStream inputStream) throws IOException, HttpException {
+        Assert.notNull(inputStream, "inputStream cannot be null");
+        reset();
+        byte[] bytes = buffer.array();
+        int lineStart = 0;
+        int scan = 0;
+        int emptyLines = 0;
+        boolean requestLineParsed = false;
+        while (true) {
+            while (scan < filled) {
+                if (bytes[scan] == '\n') {
+                    int lineEnd = scan > lineStart && bytes[scan - 1] == '\r' ? scan - 1 : scan;
+                    if (lineEnd == lineStart) {
+                        if (requestLineParsed) {
+                            headLength = scan + 1;
+                            return;
+                        }
+                        if (++emptyLines > MAX_LEADING_EMPTY_LINES) {
+                            throw new HttpException("Too many empty lines before the request line");
+                        }
+                    } else if (requestLineParsed) {
+                        parseHeader(bytes, lineStart, lineEnd);
+                    } else {
+                        parseRequestLine(bytes, lineStart, lineEnd);
+                        requestLineParsed = true;
+                    }
+                    lineStart = scan + 1;
+                }
+                scan++;
+            }
+            if (filled == bytes.length) {
+                if (bytes.length >= MAX_HEAD_LENGTH) {
+                    throw new HttpException("Request head exceeds " + MAX_HEAD_LENGTH + " bytes");
+                }
+                buffer = ByteBuffer.allocate(Math.min(bytes.length * 2, MAX_HEAD_LENGTH)).put(bytes);
+                bytes = buffer.array();
+            }
+            int read = inputStream.read(bytes, filled, bytes.length - filled);
+            if (read == -1) {
+                throw new ConnectionClosedException(requestLineParsed || filled > 0 ?
+                        "Client closed connection before the end of the request head" :
+                        "Client closed connection");
+            }
+            filled += read;
+        }
+    }
+
+    private void parseRequestLine(final byte[] bytes, final int start, final int end) throws HttpException {
+        int i = start;
+        while (i < end && isTokenChar(bytes[i])) {
+            i++;
+        }
+        if (i == start || i == end || bytes[i] != ' ') {
+            throw new HttpException("Invalid request line: malformed method");
+        }
+        methodStart = start;
+        methodEnd = i;
+        connect = equalsIgnoreCase(bytes, methodStart, methodEnd, CONNECT);
+
+        while (i < end && bytes[i] == ' ') {
+            i++;
+        }
+        uriStart = i;
+        while (i < end && bytes[i] != ' ') {
+            if (isControl(bytes[i])) {
+                throw new HttpException("Invalid request line: illegal character within the request uri");
+            }
+            i++;
+        }
+        uriEnd = i;
+        if (uriStart == uriEnd || i == end) {
+            throw new HttpException("Invalid request line: missing request uri or protocol version");
+        }
+
+        while (i < end && bytes[i] == ' ') {
+            i++;
+        }
+        protocolVersion = parseProtocolVersion(bytes, i, end);
+
+        if (connect) {
+            parseAuthority(bytes, uriStart, uriEnd);
+        }
+    }
+
+    private ProtocolVersion parseProtocolVersion(final byte[] bytes, final int start, final int end)
+            throws HttpException {
+        int i = start;
+        if (end - i < HTTP_PREFIX.length + 3) {
+            throw new HttpException("Invalid request line: malformed protocol version");
+        }
+        for (byte b : HTTP_PREFIX) {
+            if (bytes[i++] != b) {
+                throw new HttpException("Invalid request line: malformed protocol version");
+            }
+        }
+        int major = 0;
+        int digits = 0;
+        while (i < end && isDigit(bytes[i]) && digits++ < 3) {
+            major = major * 10 + (bytes[i++] - '0');
+        }
+        if (digits == 0 || i == end || bytes[i++] != '.') {
+            throw new HttpException("Invalid request line: malformed protocol version");
+        }
+        int minor = 0;
+        digits = 0;
+        while (i < end && isDigit(bytes[i]) && digits++ < 3) {
+            minor = minor * 10 + (bytes[i++] - '0');
+        }
+        if (digits == 0 || i != end) {
+            throw new HttpException("Invalid request line: malformed protocol version");
+        }
+        return HttpVersion.HTTP_1_1.forVersion(major, minor);
+    }
+
+    /**
+     * Parse the CONNECT's request target, which must be {@code host:port},
+     * where host is a registered name, an IPv4 address or a bracketed IPv6 address.
+     */
+    private void parseAuthority(final byte[] bytes, final int start, final int end) throws HttpException {
+        int i = start;
+        if (bytes[i] == '[') {
+            i++;
+            while (i < end && (isHexDigit(bytes[i]) || bytes[i] == ':' || bytes[i] == '.')) {
+                i++;
+            }
+            if (i == end || bytes[i] != ']' || i == start + 1) {
+                throw new HttpException("Invalid request uri: malformed IPv6 address");
+            }
+            i++;
+        } else {
+            while (i < end && isHostChar(bytes[i])) {
+                i++;
+            }
+            if (i == start) {
+                throw new HttpException("Invalid request uri: missing host");
+            }
+        }
+        hostStart = start;
+        hostEnd = i;
+        if (i == end || bytes[i] != ':') {
+            throw new HttpException("Invalid request uri: missing port");
+        }
+        i++;
+        int value = 0;
+        int digits = 0;
+        while (i < end && isDigit(bytes[i]) && digits++ < 5) {
+            value = value * 10 + (bytes[i++] - '0');
+        }
+        if (digits == 0 || i != end || value == 0 || value > 65535) {
+            throw new HttpException("Invalid request uri: malformed port");
+        }
+        port = value;
+    }
+
+    private void parseHeader(final byte[] bytes, final int start, final int end) throws HttpException {
+        if (headerCount == MAX_HEADER_COUNT) {
+            throw new HttpException("Too many request headers, the limit is " + MAX_HEADER_COUNT);
+        }
+        if (bytes[start] == ' ' || bytes[start] == '\t') {
+            throw new HttpException("Invalid request header: obsolete line folding not allowed");
+        }
+        int i = start;
+        while (i < end && isTokenChar(bytes[i])) {
+            i++;
+        }
+        if (i == start || i == end || bytes[i] != ':') {
+            throw new HttpException("Invalid request header: malformed header name");
+        }
+        int nameEnd = i++;
+        while (i < end && (bytes[i] == ' ' || bytes[i] == '\t')) {
+            i++;
+        }
+        int valueStart = i;
+        int valueEnd = valueStart;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == ' ' || b == '\t') {
+                continue;
+            }
+            if (isControl(b)) {
+                throw new HttpException("Invalid request header: illegal character within the header value");
+            }
+            valueEnd = i + 1;
+        }
+        int offset = headerCount++ * 4;
+        headerOffsets[offset] = start;
+        headerOffsets[offset + 1] = nameEnd;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+    }
+
+    /**
+     * @return {@code true} iff the request method is CONNECT (case insensitive).
+     */
+    public boolean isConnect() {
+        return connect;
+    }
+
+    /**
+     * @return the request method or {@code null} if nothing has been parsed yet.
+     */
+    public String getMethod() {
+        if (method == null && protocolVersion != null) {
+            byte[] bytes = buffer.array();
+            for (String commonMethod : COMMON_METHODS) {
+                if (equals(bytes, methodStart, methodEnd, commonMethod)) {
+                    method = commonMethod;
+                    return method;
+                }
+            }
+            method = new String(bytes, methodStart, methodEnd - methodStart, StandardCharsets.US_ASCII);
+        }
+        return method;
+    }
+
+    /**
+     * @return the request URI, as it appears in the request line,
+     * or {@code null} if nothing has been parsed yet.
+     */
+    public String getUri() {
+        if (uri == null && protocolVersion != null) {
+            uri = new String(buffer.array(), uriStart, uriEnd - uriStart, StandardCharsets.UTF_8);
+        }
+        return uri;
+    }
+
+    /**
+     * @return the request's protocol version or {@code null} if nothing has been parsed yet.
+     */
+    public ProtocolVersion getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the request line or {@code null} if nothing has been parsed yet.
+     */
+    public RequestLine getRequestLine() {
+        if (requestLine == null && protocolVersion != null) {
+            requestLine = new BasicRequestLine(getMethod(), getUri(), protocolVersion);
+        }
+        return requestLine;
+    }
+
+    /**
+     * @return the host part of a CONNECT's authority (IPv6 addresses keep their brackets).
+     */
+    public String getConnectHost() {
+        Assert.state(connect, "Not a CONNECT request");
+        return new String(buffer.array(), hostStart, hostEnd - hostStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the port of a CONNECT's authority.
+     */
+    public int getConnectPort() {
+        Assert.state(connect, "Not a CONNECT request");
+        return port;
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * @param index the header's index, in the order of appearance
+     * @return the header's name
+     */
+    public String getHeaderName(int index) {
+        Assert.isTrue(index >= 0 && index < headerCount, "Invalid header index");
+        int offset = index * 4;
+        return new String(buffer.array(), headerOffsets[offset],
+                headerOffsets[offset + 1] - headerOffsets[offset], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param index the header's index, in the order of appearance
+     * @return the header's value, without the surrounding whitespaces
+     */
+    public String getHeaderValue(int index) {
+        Assert.isTrue(index >= 0 && index < headerCount, "Invalid header index");
+        int offset = index * 4;
+        return new String(buffer.array(), headerOffsets[offset + 2],
+                headerOffsets[offset + 3] - headerOffsets[offset + 2], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the first header having a certain name, without materializing the other headers.
+     *
+     * @param name the header's name (case insensitive)
+     * @return the first header's value or {@code null} if there is no such header
+     */
+    public String getFirstHeaderValue(@NotNull final String name) {
+        byte[] bytes = buffer.array();
+        for (int i = 0; i < headerCount; i++) {
+            int offset = i * 4;
+            if (equalsIgnoreCase(bytes, headerOffsets[offset], headerOffsets[offset + 1], name)) {
+                return getHeaderValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Materialize the parsed head into a {@link HttpRequest}.
+     * <p>Entity enclosing methods result in a {@link HttpEntityEnclosingRequest}.
+     *
+     * @return a new {@link HttpRequest} instance
+     * @throws MethodNotSupportedException if the request method is not supported
+     */
+    public HttpRequest toHttpRequest() throws MethodNotSupportedException {
+        Assert.state(protocolVersion != null, "Nothing parsed");
+        HttpRequest request = DefaultHttpRequestFactory.INSTANCE.newHttpRequest(getRequestLine());
+        for (int i = 0; i < headerCount; i++) {
+            request.addHeader(new BasicHeader(getHeaderName(i), getHeaderValue(i)));
+        }
+        return request;
+    }
+
+    /**
+     * @return the number of bytes read beyond the request head.
+     */
+    public int getRemaining() {
+        return filled - headLength;
+    }
+
+    /**
+     * Get an {@link InputStream} that gives the bytes read beyond the request head,
+     * then continues with the provided stream.
+     * <p>The bytes are not copied and the returned stream is recycled,
+     * therefore it should not be used once this head is reset.
+     * This method must be called at most once per parsing.
+     *
+     * @param inputStream the stream the head has been read from
+     * @return the continuation stream, or the provided one if there is no remaining byte.
+     */
+    public InputStream prependRemaining(@NotNull final InputStream inputStream) {
+        if (getRemaining() == 0) {
+            return inputStream;
+        }
+        remainingInputStream.init(buffer.array(), headLength, filled, inputStream);
+        return remainingInputStream;
+    }
+
+    /**
+     * Discard the parsed state, keeping the allocated buffer.
+     */
+    public void reset() {
+        filled = 0;
+        headLength = 0;
+        methodStart = 0;
+        methodEnd = 0;
+        uriStart = 0;
+        uriEnd = 0;
+        headerCount = 0;
+        connect = false;
+        hostStart = 0;
+        hostEnd = 0;
+        port = 0;
+        protocolVersion = null;
+        method = null;
+        uri = null;
+        requestLine = null;
+        remainingInputStream.init(null, 0, 0, null);
+    }
+
+    /**
+     * Give up the buffer if it has grown beyond the initial capacity, so a large head doesn't pin memory.
+     * <p>It should be called only after {@link #reset()}.
+     */
+    public void trim() {
+        if (buffer.capacity() > INITIAL_CAPACITY) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isHexDigit(byte b) {
+        return isDigit(b) || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+
+    private static boolean isAlpha(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isControl(byte b) {
+        return (b >= 0 && b < 0x20 && b != '\t') || b == 0x7f;
+    }
+
+    /**
+     * See RFC 7230, section 3.2.6
+     */
+    private static boolean isTokenChar(byte b) {
+        if (isAlpha(b) || isDigit(b)) {
+            return true;
+        }
+        switch (b) {
+            case '!':
+            case '#':
+            case '$':
+            case '%':
+            case '&':
+            case '\'':
+            case '*':
+            case '+':
+            case '-':
+            case '.':
+            case '^':
+            case '_':
+            case '`':
+            case '|':
+            case '~':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isHostChar(byte b) {
+        return isAlpha(b) || isDigit(b) || b == '-' || b == '.' || b == '_' || b == '~';
+    }
+
+    private static boolean equalsIgnoreCase(final byte[] bytes, final int start, final int end, final byte[] upper) {
+        if (end - start != upper.length) {
+            return false;
+        }
+        for (int i = 0; i < upper.length; i++) {
+            byte b = bytes[start + i];
+            if (b != upper[i] && b - ('a' - 'A') != upper[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(final byte[] bytes, final int start, final int end, final String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.toLowerCase((char) bytes[start + i]) != Character.toLowerCase(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(final byte[] bytes, final int start, final int end, final String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (bytes[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class RemainingInputStream extends InputStream {
+        private byte[] bytes;
+        private int end;
+        private InputStream inputStream;
+        private int position;
+
+        private void init(byte[] bytes, int start, int end, InputStream inputStream) {
+            this.bytes = bytes;
+            this.position = start;
+            this.end = end;
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position < end) {
+                return bytes[position++] & 0xff;
+            }
+            return inputStream.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position < end) {
+                int length = Math.min(len, end - position);
+                System.arraycopy(bytes, position, b, off, length);
+                position += length;
+                return length;
+            }
+            return inputStream.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return position < end ? end - position : inputStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+}
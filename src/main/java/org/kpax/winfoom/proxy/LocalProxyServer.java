@@ -15,8 +15,10 @@ package org.kpax.winfoom.proxy;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.config.SystemContext;
+import org.kpax.winfoom.jfr.ProxyEvents;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
-import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,9 +28,11 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * The local proxy server.
@@ -39,7 +43,7 @@ import java.net.SocketException;
 @ThreadSafe
 @Order(0)
 @Component
-class LocalProxyServer implements StopListener {
+class LocalProxyServer implements StopListener, ReloadListener {
 
     private final Logger logger = LoggerFactory.getLogger(LocalProxyServer.class);
 
@@ -55,13 +59,22 @@ class LocalProxyServer implements StopListener {
     @Autowired
     private ClientConnectionHandler clientConnectionHandler;
 
-    private ServerSocket serverSocket;
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private ServerSocketChannel serverSocketChannel;
+
+    /**
+     * The local port the server socket is bound to.
+     */
+    private int boundPort;
 
     /**
      * Start the local proxy server.
      * <p>This means:
      * <ul>
-     * <li>Opens a {@link ServerSocket} on a local port, then listen for connections</li>
+     * <li>Opens a {@link ServerSocketChannel} on a local port, then listen for connections.
+     * The accepted sockets are channel backed, so they can take part in direct buffer transfers</li>
      * <li>When a connection arrives, it delegates the handling to the {@link ClientConnectionHandler}, on a new
      * thread.</li>
      * </ul>
@@ -69,16 +82,28 @@ class LocalProxyServer implements StopListener {
      * @throws Exception
      */
     synchronized void start() throws IOException {
-        Assert.isTrue(serverSocket == null || serverSocket.isClosed(),
-                "There is an active ServerSocket instance that needs to be closed before creating another one");
+        Assert.isTrue(serverSocketChannel == null || !serverSocketChannel.isOpen(),
+                "There is an active ServerSocketChannel instance that needs to be closed before creating another one");
         logger.info("Start local proxy server with userConfig {}", proxyConfig);
         try {
-            serverSocket = new ServerSocket(proxyConfig.getLocalPort(),
+            serverSocketChannel = ServerSocketChannel.open();
+            if (!SystemContext.IS_OS_WINDOWS) {
+                // Same as java.net.ServerSocket does
+                serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            boundPort = proxyConfig.getLocalPort();
+            serverSocketChannel.bind(new InetSocketAddress(boundPort),
                     systemConfig.getServerSocketBacklog());
             executorService.submit(() -> {
                 while (true) {
                     try {
-                        Socket socket = serverSocket.accept();
+                        Socket socket = serverSocketChannel.accept().socket();
+                        proxyMetrics.onConnectionAccepted();
+                        ProxyEvents.ConnectionAccepted acceptedEvent = new ProxyEvents.ConnectionAccepted();
+                        if (acceptedEvent.shouldCommit()) {
+                            acceptedEvent.clientAddress = socket.getInetAddress().getHostAddress();
+                            acceptedEvent.commit();
+                        }
                         systemConfig.configureSocket(socket);
                         executorService.submit(() -> {
                             try {
@@ -89,23 +114,15 @@ class LocalProxyServer implements StopListener {
                                 InputOutputs.close(socket);
                             }
                         });
-                    } catch (SocketException e) {
-                        // The ServerSocket has been closed, exit the while loop
-                        if (HttpUtils.isSocketClosed(e)) {
-                            break;
-                        }
-
-                        // Get connection interrupted error whenever stop the server socket,
-                        // there is no reason to debug it
-                        if (!HttpUtils.isConnectionInterrupted(e)) {
-                            logger.debug("Socket error on getting connection", e);
-                        }
+                    } catch (ClosedChannelException e) {
+                        // The ServerSocketChannel has been closed, exit the while loop
+                        break;
                     } catch (Exception e) {
                         logger.debug("Generic error on getting connection", e);
                     }
                 }
             });
-            logger.info("Server started, listening on port: " + proxyConfig.getLocalPort());
+            logger.info("Server started, listening on port: " + boundPort);
         } catch (Exception e) {
             // Cleanup on exception
             close();
@@ -113,10 +130,28 @@ class LocalProxyServer implements StopListener {
         }
     }
 
+    /**
+     * @return {@code true} iff the server socket is open.
+     */
+    synchronized boolean isListening() {
+        return serverSocketChannel != null && serverSocketChannel.isOpen();
+    }
+
     @Override
     public synchronized void onStop() {
         logger.info("Close the local proxy server");
-        InputOutputs.close(serverSocket);
+        InputOutputs.close(serverSocketChannel);
+    }
+
+    /**
+     * Keep listening, unless the local port has changed. Either way, the accepted connections are not affected.
+     */
+    @Override
+    public synchronized void onReload() {
+        if (proxyConfig.getLocalPort() != boundPort) {
+            logger.info("The local port has changed from {} to {}", boundPort, proxyConfig.getLocalPort());
+            onStop();
+        }
     }
 
 }
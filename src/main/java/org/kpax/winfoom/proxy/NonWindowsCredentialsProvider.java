@@ -19,18 +19,27 @@ import org.apache.http.auth.NTCredentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 
 import java.security.Principal;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@link CredentialsProvider} for non Windows systems.
+ * <p>On reload, the credentials are kept for {@link #RETIRE_DELAY} seconds, for the requests in progress,
+ * while the new requests get a new provider.
  */
-public class NonWindowsCredentialsProvider implements CredentialsProvider, StopListener {
+public class NonWindowsCredentialsProvider implements CredentialsProvider, StopListener, ReloadListener {
 
     private ProxyConfig proxyConfig;
 
+    /**
+     * The time the credentials are dropped after a reload (milliseconds since epoch), zero if not reloaded.
+     */
+    private volatile long retireTime;
+
     private final SingletonSupplier<Credentials> credentialsSupplier = new SingletonSupplier<>(() -> {
         if (proxyConfig.isKerberos()) {
             return new NoCredentials();
@@ -58,6 +67,11 @@ public class NonWindowsCredentialsProvider implements CredentialsProvider, StopL
 
     @Override
     public Credentials getCredentials(AuthScope authscope) {
+        if (retireTime > 0 && System.currentTimeMillis() >= retireTime) {
+            // Retired, the configuration has changed meanwhile
+            clear();
+            return null;
+        }
         return credentialsSupplier.get();
     }
 
@@ -71,6 +85,14 @@ public class NonWindowsCredentialsProvider implements CredentialsProvider, StopL
         clear();
     }
 
+    @Override
+    public void onReload() {
+        // The configuration has already changed: without credentials
+        // yet, there is nothing to keep for the requests in progress
+        retireTime = credentialsSupplier.hasValue() ?
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RETIRE_DELAY) : System.currentTimeMillis();
+    }
+
     private static class NoCredentials implements Credentials {
 
         @Override
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.config.MessageConstraints;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.util.CharArrayBuffer;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The state needed for parsing a client's request: the {@link HttpRequestHead} and
+ * the {@link SessionInputBufferImpl} (with its buffers, metrics and decoder), plus the request's {@link RequestTiming}.
+ * <p>The state is recycled per thread: the connection handling threads are pooled, and a thread
+ * handles one connection at a time, so accepting a connection allocates nearly nothing.
+ * A nested use on the same thread gets a fresh, not recycled instance.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+final class ParseState {
+
+    private static final ThreadLocal<ParseState> THREAD_STATE = ThreadLocal.withInitial(ParseState::new);
+
+    private final HttpRequestHead requestHead = new HttpRequestHead();
+
+    private final HttpTransportMetricsImpl metrics = new HttpTransportMetricsImpl();
+
+    private final RequestTiming timing = new RequestTiming();
+
+    private RecyclableSessionInputBuffer sessionInputBuffer;
+
+    private boolean acquired;
+
+    private ParseState() {
+    }
+
+    /**
+     * @return the current thread's state if not already in use, otherwise a new instance.
+     */
+    static ParseState acquire() {
+        ParseState state = THREAD_STATE.get();
+        if (state.acquired) {
+            state = new ParseState();
+        }
+        state.acquired = true;
+        return state;
+    }
+
+    @NotNull
+    HttpRequestHead getRequestHead() {
+        return requestHead;
+    }
+
+    @NotNull
+    RequestTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Get the session input buffer, bound to the provided stream.
+     *
+     * @param inputStream the stream to read from
+     * @return the bound session input buffer.
+     */
+    @NotNull
+    SessionInputBufferImpl getSessionInputBuffer(@NotNull final InputStream inputStream) {
+        if (sessionInputBuffer == null) {
+            sessionInputBuffer = new RecyclableSessionInputBuffer(metrics);
+        }
+        sessionInputBuffer.bind(inputStream);
+        return sessionInputBuffer;
+    }
+
+    /**
+     * Clear the state and make it available for the next connection handled by the current thread.
+     * <p>The returned objects must not be used after this call.
+     */
+    void release() {
+        requestHead.reset();
+        requestHead.trim();
+        if (sessionInputBuffer != null) {
+            if (sessionInputBuffer.partialLine) {
+                // The internal line buffer may contain
+                // stale bytes, so don't reuse it
+                sessionInputBuffer = null;
+            } else {
+                sessionInputBuffer.clear();
+                sessionInputBuffer.bind(null);
+            }
+            metrics.reset();
+        }
+        acquired = false;
+    }
+
+    /**
+     * A {@link SessionInputBufferImpl} that knows whether a line reading has been interrupted.
+     */
+    private static class RecyclableSessionInputBuffer extends SessionInputBufferImpl {
+
+        private boolean partialLine;
+
+        private RecyclableSessionInputBuffer(final HttpTransportMetricsImpl metrics) {
+            super(metrics,
+                    InputOutputs.DEFAULT_BUFFER_SIZE,
+                    InputOutputs.DEFAULT_BUFFER_SIZE,
+                    MessageConstraints.DEFAULT,
+                    StandardCharsets.UTF_8.newDecoder());
+        }
+
+        @Override
+        public int readLine(final CharArrayBuffer charbuffer) throws IOException {
+            partialLine = true;
+            int length = super.readLine(charbuffer);
+            partialLine = false;
+            return length;
+        }
+    }
+
+}
@@ -12,38 +12,56 @@
 
 package org.kpax.winfoom.proxy;
 
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
 import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.jfr.ProxyEvents;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.SocksHandshake;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 /**
- * It implements the proxy blacklisting mechanism.
+ * It implements the proxy blacklisting mechanism, as a circuit breaker per proxy.
  * <p>If a proxy doesn't respond to a connect attempt, it can be blacklisted
- * which means it will not be used again until the blacklist timeout happens.
+ * which means its circuit is open: it will not be used again until the blacklist timeout happens.
+ * <p>Meanwhile, the proxy is probed in background, with exponential backoff. A probe is a real CONNECT
+ * through the proxy (a tunnel for an HTTP proxy, a handshake for a SOCKS proxy) to the test URL's host,
+ * authenticated like the clients' requests, so a proxy that accepts connections but fails to serve them
+ * stays blacklisted. When a probe succeeds, the circuit becomes half-open: the proxy is used again, the next request
+ * either closing the circuit (on success) or opening it again (on failure), with a longer backoff.
+ * <p>When {@code blacklist.probe.healthInterval} is positive, the PAC proxies are also probed periodically
+ * from the moment they are first returned by the PAC script, and blacklisted on failure,
+ * so the clients' requests don't have to find out a proxy is down.
  */
 @ThreadSafe
 @Component
-public class ProxyBlacklist implements StopListener {
+public class ProxyBlacklist implements StopListener, ReloadListener {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     /**
      * Key = the blacklisted ProxyInfo<br>
-     * Value = the blacklist timeout Instant
+     * Value = the proxy's circuit
      */
-    private final Map<ProxyInfo, Instant> blacklistMap = new ConcurrentHashMap<>();
+    private final Map<ProxyInfo, Circuit> circuitMap = new ConcurrentHashMap<>();
 
     /**
      * The temporal unit for measuring the timeout period.
@@ -53,9 +71,39 @@ public class ProxyBlacklist implements StopListener {
     @Autowired
     private ProxyConfig proxyConfig;
 
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    @Autowired
+    private TunnelConnection tunnelConnection;
+
+    /**
+     * Key = the proxy under health check<br>
+     * Value = its periodic health check
+     */
+    private final Map<ProxyInfo, ScheduledFuture<?>> healthCheckMap = new ConcurrentHashMap<>();
+
+    /**
+     * Triggers the probes, which are executed by the {@link ProxyExecutorService}.
+     */
+    private final SingletonSupplier<ScheduledExecutorService> probeSchedulerSupplier =
+            new SingletonSupplier<>(() -> {
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                        new ProxyExecutorService.DefaultThreadFactory());
+                scheduler.setRemoveOnCancelPolicy(true);
+                return scheduler;
+            });
+
     /**
      * Attempt to blacklist a proxy. Does nothing if the blacklisting is disabled.<br>
      * If the proxy is already blacklisted, it keeps the existent timeout.
+     * If the proxy is half-open, it is blacklisted again and probed with a longer backoff.
      *
      * @param proxyInfo the proxy to be blacklisted.
      * @return the blacklist timeout {@link Instant} iff the blacklisting is enabled, {@code null} otherwise.
@@ -66,18 +114,51 @@ public class ProxyBlacklist implements StopListener {
             logger.debug("Blacklisting is disabled, nothing to do");
             return null;
         }
-        return blacklistMap.compute(proxyInfo, (key, value) -> {
+        Circuit circuit = circuitMap.compute(proxyInfo, (key, value) -> {
             Instant now = Instant.now();
-            if (value == null || value.isBefore(now)) {
-                Instant timeoutInstant = now.plus(proxyConfig.getBlacklistTimeout(),
-                        TEMPORAL_UNIT);
-                logger.debug("Blacklisted until {}", timeoutInstant);
-                return timeoutInstant;
+            if (value == null || value.timeout.isBefore(now)) {
+                if (value != null) {
+                    value.cancelProbe();
+                }
+                Circuit newCircuit = new Circuit(now.plus(proxyConfig.getBlacklistTimeout(), TEMPORAL_UNIT));
+                logger.debug("Blacklisted until {}", newCircuit.timeout);
+                proxyMetrics.onBlacklisted();
+                emitTransition(key, State.CLOSED, State.OPEN);
+                scheduleProbe(key, newCircuit);
+                return newCircuit;
+            } else if (value.state == State.HALF_OPEN) {
+                value.state = State.OPEN;
+                value.probeFailures++;
+                logger.debug("Half-open proxy failed, blacklisted again until {}", value.timeout);
+                proxyMetrics.onBlacklisted();
+                emitTransition(key, State.HALF_OPEN, State.OPEN);
+                scheduleProbe(key, value);
+                return value;
             } else {
-                logger.debug("Already blacklisted until {}", value);
+                logger.debug("Already blacklisted until {}", value.timeout);
                 return value;
             }
         });
+        return circuit.timeout;
+    }
+
+    /**
+     * Record a successful use of a proxy: if the proxy is half-open, its circuit gets closed.
+     *
+     * @param proxyInfo the proxy
+     */
+    public void onSuccess(@NotNull final ProxyInfo proxyInfo) {
+        if (!circuitMap.isEmpty()) {
+            circuitMap.computeIfPresent(proxyInfo, (key, value) -> {
+                if (value.state == State.HALF_OPEN) {
+                    logger.debug("Half-open proxy {} succeeded, remove it from blacklist", key);
+                    proxyMetrics.onCircuitClosed();
+                    emitTransition(key, State.HALF_OPEN, State.CLOSED);
+                    return null;
+                }
+                return value;
+            });
+        }
     }
 
     /**
@@ -91,28 +172,47 @@ public class ProxyBlacklist implements StopListener {
         if (proxyConfig.getBlacklistTimeout() < 1) {
             return false;
         }
-        Instant timeoutInstant = blacklistMap.computeIfPresent(
-                proxyInfo, (key, value) -> value.isBefore(Instant.now()) ? null : value);
-        return timeoutInstant != null;
+        Circuit circuit = circuitMap.computeIfPresent(
+                proxyInfo, (key, value) -> {
+                    if (value.timeout.isBefore(Instant.now())) {
+                        value.cancelProbe();
+                        return null;
+                    }
+                    return value;
+                });
+        return circuit != null && circuit.state == State.OPEN;
     }
 
     public boolean isActive(@NotNull final ProxyInfo proxyInfo) {
         return !isBlacklisted(proxyInfo);
     }
 
+    /**
+     * @param proxyInfo the proxy
+     * @return the proxy's circuit state.
+     */
+    @NotNull
+    public State getState(@NotNull final ProxyInfo proxyInfo) {
+        Circuit circuit = circuitMap.get(proxyInfo);
+        return circuit != null && !circuit.timeout.isBefore(Instant.now()) ? circuit.state : State.CLOSED;
+    }
+
     /**
      * Clear the blacklist map.
      *
      * @return the number of currently blacklisted proxies.
      */
     public int clear() {
-        long count = blacklistMap.keySet().stream().filter(this::isBlacklisted).count();
-        blacklistMap.clear();
+        long count = circuitMap.keySet().stream().filter(this::isBlacklisted).count();
+        circuitMap.values().forEach(Circuit::cancelProbe);
+        circuitMap.clear();
         return (int) count;
     }
 
     public Map<ProxyInfo, Instant> getBlacklistMap() {
-        return Collections.unmodifiableMap(blacklistMap);
+        return Collections.unmodifiableMap(
+                circuitMap.entrySet().stream().
+                        collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().timeout)));
     }
 
     public boolean isBlacklistingEnabled() {
@@ -125,14 +225,219 @@ public class ProxyBlacklist implements StopListener {
     public Map<ProxyInfo, Instant> getActiveBlacklistMap() {
         Instant now = Instant.now();
         return Collections.unmodifiableMap(
-                blacklistMap.entrySet().stream().
-                        filter(e -> !e.getValue().isBefore(now)).
-                        collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+                circuitMap.entrySet().stream().
+                        filter(e -> e.getValue().state == State.OPEN && !e.getValue().timeout.isBefore(now)).
+                        collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().timeout)));
+    }
+
+    /**
+     * Schedule the next probe of a blacklisted proxy, unless the proxy cannot be probed
+     * (is DIRECT) or the probing is disabled.
+     * <p>Must be called while holding the circuit's map entry.</p>
+     *
+     * @param proxyInfo the blacklisted proxy
+     * @param circuit   its circuit
+     */
+    private void scheduleProbe(final ProxyInfo proxyInfo, final Circuit circuit) {
+        int initialDelay = systemConfig.getBlacklistProbeInitialDelay();
+        if (initialDelay < 1 || proxyInfo.getType().isDirect() || proxyInfo.getProxyHost() == null) {
+            return;
+        }
+        long delay = Math.min((long) initialDelay << Math.min(circuit.probeFailures, 20),
+                systemConfig.getBlacklistProbeMaxDelay());
+        logger.debug("Probe proxy {} in {} seconds", proxyInfo, delay);
+        circuit.cancelProbe();
+        circuit.probe = probeSchedulerSupplier.get().schedule(
+                () -> executorService.execute(() -> probe(proxyInfo, circuit)), delay, TimeUnit.SECONDS);
+    }
+
+    private void probe(final ProxyInfo proxyInfo, final Circuit circuit) {
+        final boolean success = isServing(proxyInfo);
+        circuitMap.computeIfPresent(proxyInfo, (key, value) -> {
+            if (value != circuit || value.state != State.OPEN || value.timeout.isBefore(Instant.now())) {
+                // Stale probe
+                return value;
+            }
+            if (success) {
+                logger.info("Proxy {} is reachable again, reinstate it", key);
+                value.state = State.HALF_OPEN;
+                value.probeFailures = 0;
+                proxyMetrics.onReinstated();
+                emitTransition(key, State.OPEN, State.HALF_OPEN);
+            } else {
+                value.probeFailures++;
+                proxyMetrics.onProbeFailed();
+                scheduleProbe(key, value);
+            }
+            return value;
+        });
+    }
+
+    /**
+     * Connect through the proxy to the probe's target.
+     *
+     * @param proxyInfo the proxy
+     * @return {@code true} iff the proxy established the connection.
+     */
+    private boolean isServing(final ProxyInfo proxyInfo) {
+        HttpHost proxyHost = proxyInfo.getProxyHost();
+        int timeout = systemConfig.getBlacklistProbeTimeout() * 1000;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(proxyHost.getHostName(), proxyHost.getPort()), timeout);
+            socket.setSoTimeout(timeout);
+            HttpHost target = getProbeTarget();
+            if (target == null) {
+                logger.debug("No valid test URL, probe proxy {} for TCP connect only", proxyInfo);
+            } else if (proxyInfo.getType().isSocks()) {
+                boolean socks5 = proxyInfo.getType().isSocks5();
+                SocksHandshake.connect(socket, proxyInfo.getType().isSocks4(),
+                        target.getHostName(), target.getPort(),
+                        socks5 ? proxyConfig.getProxySocks5Username() : null,
+                        socks5 ? proxyConfig.getProxySocks5Password() : null);
+            } else {
+                tunnelConnection.open(proxyHost, target, HttpVersion.HTTP_1_1, null, socket).close();
+            }
+            return true;
+        } catch (Exception e) {
+            logger.debug("Probe failed for proxy {}: {}", proxyInfo, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the test URL's host, on its explicit port or else on 443,
+     * the port any proxy allows to CONNECT to, {@code null} if the test URL is not valid.
+     */
+    private HttpHost getProbeTarget() {
+        try {
+            URI uri = new URI(proxyConfig.getProxyTestUrl());
+            return uri.getHost() != null ?
+                    new HttpHost(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 443) : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start the periodic health check of a PAC proxy, if not already started.
+     * Does nothing if the health checks or the blacklisting are disabled, or the proxy is DIRECT.
+     *
+     * @param proxyInfo the proxy returned by the PAC script
+     */
+    public void watch(@NotNull final ProxyInfo proxyInfo) {
+        int interval = systemConfig.getBlacklistProbeHealthInterval();
+        if (interval < 1 || healthCheckMap.containsKey(proxyInfo)
+                || proxyConfig.getBlacklistTimeout() < 1
+                || proxyInfo.getType().isDirect() || proxyInfo.getProxyHost() == null) {
+            return;
+        }
+        healthCheckMap.computeIfAbsent(proxyInfo, key -> {
+            logger.debug("Health check proxy {} every {} seconds", key, interval);
+            return probeSchedulerSupplier.get().scheduleWithFixedDelay(
+                    () -> executorService.execute(() -> healthCheck(key)), 0, interval, TimeUnit.SECONDS);
+        });
+    }
+
+    /**
+     * Probe a proxy whose circuit is closed, blacklist it on failure.
+     * The blacklisted proxies have their own probes.
+     */
+    private void healthCheck(final ProxyInfo proxyInfo) {
+        if (getState(proxyInfo) == State.CLOSED && !isServing(proxyInfo)) {
+            logger.info("Proxy {} failed the health check, blacklist it", proxyInfo);
+            blacklist(proxyInfo);
+        }
+    }
+
+    private static void emitTransition(final ProxyInfo proxyInfo, final State from, final State to) {
+        ProxyEvents.BlacklistTransition event = new ProxyEvents.BlacklistTransition();
+        if (event.shouldCommit()) {
+            event.proxy = proxyInfo.toString();
+            event.from = from.name();
+            event.to = to.name();
+            event.commit();
+        }
     }
 
     @Override
     public void onStop() {
         logger.debug("Clear the blacklist");
-        blacklistMap.clear();
+        circuitMap.values().forEach(Circuit::cancelProbe);
+        circuitMap.clear();
+        healthCheckMap.clear();
+        probeSchedulerSupplier.reset(ExecutorService::shutdownNow);
+    }
+
+    /**
+     * Keep the circuits and the health checks of the proxies still configured, drop the others.
+     * If the blacklisting got disabled, all of them are dropped.
+     */
+    @Override
+    public void onReload() {
+        boolean enabled = proxyConfig.getBlacklistTimeout() > 0;
+        healthCheckMap.entrySet().removeIf(e -> {
+            if (enabled && systemConfig.getBlacklistProbeHealthInterval() > 0
+                    && proxyConfig.isConfigured(e.getKey())) {
+                return false;
+            }
+            e.getValue().cancel(false);
+            return true;
+        });
+        for (ProxyInfo proxyInfo : circuitMap.keySet()) {
+            circuitMap.computeIfPresent(proxyInfo, (key, value) -> {
+                if (enabled && proxyConfig.isConfigured(key)) {
+                    return value;
+                }
+                logger.debug("Proxy {} is no longer configured, remove it from blacklist", key);
+                value.cancelProbe();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * The state of a proxy's circuit.
+     */
+    public enum State {
+        /**
+         * The proxy is not blacklisted.
+         */
+        CLOSED,
+        /**
+         * The proxy is blacklisted and being probed.
+         */
+        OPEN,
+        /**
+         * A probe succeeded, the proxy is on trial.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * A proxy's circuit, always changed under its map entry's lock.
+     */
+    private static final class Circuit {
+
+        /**
+         * The blacklist timeout, the circuit is discarded beyond it no matter the state.
+         */
+        private final Instant timeout;
+
+        private volatile State state = State.OPEN;
+
+        private int probeFailures;
+
+        private ScheduledFuture<?> probe;
+
+        private Circuit(Instant timeout) {
+            this.timeout = timeout;
+        }
+
+        private void cancelProbe() {
+            if (probe != null) {
+                probe.cancel(false);
+                probe = null;
+            }
+        }
     }
 }
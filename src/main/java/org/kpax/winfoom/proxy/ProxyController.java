@@ -16,6 +16,7 @@ import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.annotation.TypeQualifier;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.pac.net.IpAddresses;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StartListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
 import org.slf4j.Logger;
@@ -26,8 +27,6 @@ import org.springframework.core.annotation.AnnotationAwareOrderComparator;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -53,11 +52,24 @@ public class ProxyController {
     @Autowired
     private LocalProxyServer localProxyServer;
 
+    @Autowired
+    private HotRoutes hotRoutes;
+
     /**
      * Whether the proxy session is started or not.
      */
     private volatile boolean started;
 
+    /**
+     * The configuration's generation, incremented on each start or reload.
+     */
+    private int generation;
+
+    /**
+     * The settings the new connections are processed with, taken on each start or reload.
+     */
+    private volatile ProxyConfig.Snapshot configSnapshot;
+
     /**
      * Begin a proxy session.
      *
@@ -66,35 +78,74 @@ public class ProxyController {
     public synchronized void start() throws Exception {
         Assert.state(!started, "Already started");
         logger.debug("Attempting to start local proxy facade with: {}", proxyConfig);
-        List<StartListener> startListeners = Stream.of(applicationContext.getBeanNamesForType(StartListener.class)).
-                map(applicationContext.getBeanFactory()::getSingleton).
-                filter(Objects::nonNull).map(b -> (StartListener) b).collect(Collectors.toList());
+        configSnapshot = new ProxyConfig.Snapshot(proxyConfig, ++generation);
         try {
-            for (StartListener startListener : startListeners) {
-                TypeQualifier typeQualifier = startListener.getClass().getMethod("onStart").
-                        getDeclaredAnnotation(TypeQualifier.class);
-                if (typeQualifier == null || typeQualifier.value() == proxyConfig.getProxyType()) {
-                    logger.debug("Call onBeforeStart for: {}", startListener.getClass());
-                    startListener.onStart();
-                } else {
-                    logger.debug("onBeforeStart ignored for {}", startListener.getClass());
-                }
-            }
+            callStartListeners();
         } catch (Exception e) {
             resetState();
             throw e;
         }
-        if (proxyConfig.getProxyType().isSocks5()) {
-            Authenticator.setDefault(new Authenticator() {
-                public PasswordAuthentication getPasswordAuthentication() {
-                    String proxyPassword = proxyConfig.getProxySocks5Password();
-                    return (new PasswordAuthentication(proxyConfig.getProxySocks5Username(),
-                            proxyPassword != null ? proxyPassword.toCharArray() : new char[0]));
-                }
-            });
-        }
         localProxyServer.start();
         started = true;
+
+        // The connection pools are available only after start
+        hotRoutes.warmUp();
+    }
+
+    /**
+     * Apply the current configuration without stopping the proxy session.
+     * <p>The {@link StopListener}s implementing {@link ReloadListener} are reloaded, the others are stopped,
+     * then the {@link StartListener}s are called again: the new connections use the new configuration,
+     * while the connections in progress (the open tunnels included) keep going on the previous generation's
+     * settings (see {@link #getConfigSnapshot()}) and state, released once they are done. The local server keeps listening, unless the local port has changed.
+     * <p>On failure, the proxy session is ended.
+     *
+     * @throws Exception
+     */
+    public synchronized void reload() throws Exception {
+        Assert.state(started, "Not started");
+        logger.info("Reload the local proxy facade with: {}", proxyConfig);
+        try {
+            Stream.of(applicationContext.getBeanNamesForType(StopListener.class)).
+                    map(applicationContext.getBeanFactory()::getSingleton).
+                    filter(Objects::nonNull).sorted(AnnotationAwareOrderComparator.INSTANCE).
+                    forEach(b -> {
+                        if (b instanceof ReloadListener) {
+                            logger.debug("Call onReload for: {}", b.getClass());
+                            ((ReloadListener) b).onReload();
+                        } else {
+                            ((StopListener) b).onStop();
+                        }
+                    });
+            IpAddresses.allPrimaryAddresses.reset();
+            IpAddresses.primaryIPv4Address.reset();
+            configSnapshot = new ProxyConfig.Snapshot(proxyConfig, ++generation);
+            callStartListeners();
+            if (!localProxyServer.isListening()) {
+                localProxyServer.start();
+            }
+        } catch (Exception e) {
+            stop();
+            throw e;
+        }
+        hotRoutes.warmUp();
+        logger.info("Reloaded, configuration generation: {}", generation);
+    }
+
+    private void callStartListeners() throws Exception {
+        List<StartListener> startListeners = Stream.of(applicationContext.getBeanNamesForType(StartListener.class)).
+                map(applicationContext.getBeanFactory()::getSingleton).
+                filter(Objects::nonNull).map(b -> (StartListener) b).collect(Collectors.toList());
+        for (StartListener startListener : startListeners) {
+            TypeQualifier typeQualifier = startListener.getClass().getMethod("onStart").
+                    getDeclaredAnnotation(TypeQualifier.class);
+            if (typeQualifier == null || typeQualifier.value() == proxyConfig.getProxyType()) {
+                logger.debug("Call onBeforeStart for: {}", startListener.getClass());
+                startListener.onStart();
+            } else {
+                logger.debug("onBeforeStart ignored for {}", startListener.getClass());
+            }
+        }
     }
 
     /**
@@ -111,7 +162,6 @@ public class ProxyController {
 
     /**
      * Reset the Spring beans state.
-     * <p>Also, it removes the {@link Authenticator}, if any.
      */
     private void resetState() {
         callStopListeners();
@@ -121,11 +171,6 @@ public class ProxyController {
         // Though unlikely, we take no chances.
         IpAddresses.allPrimaryAddresses.reset();
         IpAddresses.primaryIPv4Address.reset();
-
-        // Remove auth for SOCKS proxy
-        if (proxyConfig.getProxyType().isSocks5()) {
-            Authenticator.setDefault(null);
-        }
     }
 
     void callStopListeners() {
@@ -145,6 +190,21 @@ public class ProxyController {
         return started;
     }
 
+    /**
+     * @return the configuration's generation the new connections are handled with.
+     */
+    public int getGeneration() {
+        ProxyConfig.Snapshot snapshot = configSnapshot;
+        return snapshot != null ? snapshot.getGeneration() : 0;
+    }
+
+    /**
+     * @return the settings the new connections are processed with, {@code null} if never started.
+     */
+    public ProxyConfig.Snapshot getConfigSnapshot() {
+        return configSnapshot;
+    }
+
 
     public boolean isStopped() {
         return !started;
@@ -12,6 +12,7 @@
 
 package org.kpax.winfoom.proxy;
 
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.slf4j.Logger;
@@ -30,7 +31,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 @Order(2)
 @Component
-public class ProxyExecutorService implements ExecutorService, StopListener {
+public class ProxyExecutorService implements ExecutorService, StopListener, ReloadListener {
 
     private final Logger logger = LoggerFactory.getLogger(ProxyExecutorService.class);
 
@@ -110,6 +111,13 @@ public class ProxyExecutorService implements ExecutorService, StopListener {
         threadPoolSupplier.reset(ExecutorService::shutdownNow);
     }
 
+    /**
+     * Nothing to do: the threads of the connections in progress must keep running.
+     */
+    @Override
+    public void onReload() {
+    }
+
     public static class DefaultThreadFactory implements ThreadFactory {
         private static final AtomicInteger poolNumber = new AtomicInteger(1);
         private final ThreadGroup group;
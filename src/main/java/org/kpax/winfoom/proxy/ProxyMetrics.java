@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.pool.PoolStats;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.proxy.auth.SpnegoTokenCache;
+import org.kpax.winfoom.util.metrics.Counter;
+import org.kpax.winfoom.util.metrics.LatencyHistogram;
+import org.kpax.winfoom.util.metrics.MetricsRegistry;
+import org.kpax.winfoom.util.metrics.PrometheusWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The local proxy's metrics, exposed by the API server in the Prometheus text format.
+ * <p>The hot path only increments {@link LongAdder} backed counters and records into lock-free histograms;
+ * the connection pools, the per proxy statistics and the SPNEGO token cache are read on scrape.
+ * <p>The metrics are kept for the application's lifetime, they are not reset when the proxy stops.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class ProxyMetrics {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private final Counter acceptedConnections = registry.counter("winfoom_connections_accepted_total",
+            "The number of accepted client connections");
+
+    private final Counter tunnels = registry.counter("winfoom_tunnels_total",
+            "The number of tunnels opened (CONNECT and SOCKS)");
+
+    private final LongAdder activeTunnels = new LongAdder();
+
+    private final Counter relayedBytes = registry.counter("winfoom_tunnel_relayed_bytes_total",
+            "The number of bytes relayed through tunnels, both directions");
+
+    private final LatencyHistogram pacEvaluations = registry.histogram("winfoom_pac_evaluation_seconds",
+            "The time to evaluate the PAC script's FindProxyForURL");
+
+    private final Counter blacklisted = blacklistEvents("blacklisted");
+
+    private final Counter probeFailures = blacklistEvents("probe_failed");
+
+    private final Counter reinstated = blacklistEvents("reinstated");
+
+    private final Counter circuitsClosed = blacklistEvents("closed");
+
+    private final LatencyHistogram[] requestPhases = new LatencyHistogram[RequestTiming.Phase.values().length];
+
+    private final Counter slowRequests = registry.counter("winfoom_requests_slow_total",
+            "The number of requests above the slow request threshold");
+
+    {
+        for (RequestTiming.Phase phase : RequestTiming.Phase.values()) {
+            requestPhases[phase.ordinal()] = registry.histogram("winfoom_request_phase_seconds",
+                    "The time spent by the requests in each phase", "phase", phase.label());
+        }
+    }
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    @Autowired
+    private ProxyStats proxyStats;
+
+    @Autowired
+    private SpnegoTokenCache spnegoTokenCache;
+
+    @PostConstruct
+    void init() {
+        registry.gauge("winfoom_tunnels_active", "The number of tunnels currently open", activeTunnels::sum);
+        registry.register(this::collectPools);
+        registry.register(this::collectProxies);
+        registry.register(this::collectSpnego);
+    }
+
+    private Counter blacklistEvents(final String event) {
+        return registry.counter("winfoom_blacklist_events_total",
+                "The proxy blacklist's events", "event", event);
+    }
+
+    public void onConnectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    public void onTunnelOpened() {
+        tunnels.increment();
+        activeTunnels.increment();
+    }
+
+    public void onTunnelClosed() {
+        activeTunnels.decrement();
+    }
+
+    /**
+     * @param bytes the number of bytes relayed through a tunnel
+     */
+    public void addRelayedBytes(final long bytes) {
+        relayedBytes.add(bytes);
+    }
+
+    /**
+     * @param elapsedNanos the PAC script evaluation time
+     */
+    public void recordPacEvaluation(final long elapsedNanos) {
+        pacEvaluations.record(elapsedNanos);
+    }
+
+    /**
+     * Record the phases reached by a request.
+     *
+     * @param timing the request's timing
+     */
+    public void recordTiming(@NotNull final RequestTiming timing) {
+        for (RequestTiming.Phase phase : RequestTiming.Phase.values()) {
+            if (timing.isReached(phase)) {
+                requestPhases[phase.ordinal()].record(timing.getNanos(phase));
+            }
+        }
+    }
+
+    public void onSlowRequest() {
+        slowRequests.increment();
+    }
+
+    public void onBlacklisted() {
+        blacklisted.increment();
+    }
+
+    public void onProbeFailed() {
+        probeFailures.increment();
+    }
+
+    public void onReinstated() {
+        reinstated.increment();
+    }
+
+    public void onCircuitClosed() {
+        circuitsClosed.increment();
+    }
+
+    /**
+     * @return the registry, for plugging in more metrics.
+     */
+    @NotNull
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text format.
+     */
+    @NotNull
+    public String scrape() {
+        return registry.scrape();
+    }
+
+    private void collectPools(final PrometheusWriter writer) {
+        Map<String, ShardedConnectionManager> managers = connectionPoolingManager.getActiveConnectionManagers();
+        if (managers.isEmpty()) {
+            return;
+        }
+        writer.header("winfoom_pool_leases_total", "The number of pooled connections leased", "counter");
+        managers.forEach((pool, manager) ->
+                writer.sample("winfoom_pool_leases_total", manager.getLeaseCount(), "pool", pool));
+        writer.header("winfoom_pool_waits_total",
+                "The number of leases that waited for the max connections to free up", "counter");
+        managers.forEach((pool, manager) ->
+                writer.sample("winfoom_pool_waits_total", manager.getWaitCount(), "pool", pool));
+        writer.header("winfoom_pool_lease_seconds", "The time to lease a pooled connection", "summary");
+        managers.forEach((pool, manager) ->
+                writer.summary("winfoom_pool_lease_seconds", manager.getLeaseTimes().snapshot(), "pool", pool));
+        writer.header("winfoom_pool_connections", "The pooled connections, by state", "gauge");
+        managers.forEach((pool, manager) -> {
+            List<PoolStats> shardStats = manager.getShardStats();
+            writer.sample("winfoom_pool_connections",
+                    shardStats.stream().mapToInt(PoolStats::getLeased).sum(), "pool", pool, "state", "leased");
+            writer.sample("winfoom_pool_connections",
+                    shardStats.stream().mapToInt(PoolStats::getAvailable).sum(), "pool", pool, "state", "available");
+            writer.sample("winfoom_pool_connections",
+                    shardStats.stream().mapToInt(PoolStats::getPending).sum(), "pool", pool, "state", "pending");
+        });
+    }
+
+    private void collectProxies(final PrometheusWriter writer) {
+        Map<ProxyInfo, ProxyStats.Snapshot> snapshots = proxyStats.getSnapshots();
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        writer.header("winfoom_proxy_first_byte_seconds",
+                "The moving average of the upstream proxy's time to first byte", "gauge");
+        snapshots.forEach((proxyInfo, snapshot) -> {
+            if (snapshot.getFirstByteMillis() >= 0) {
+                writer.sample("winfoom_proxy_first_byte_seconds", snapshot.getFirstByteMillis() / 1000,
+                        "proxy", proxyInfo.toString());
+            }
+        });
+        writer.header("winfoom_proxy_error_rate",
+                "The moving average of the upstream proxy's connect error rate", "gauge");
+        snapshots.forEach((proxyInfo, snapshot) ->
+                writer.sample("winfoom_proxy_error_rate", snapshot.getErrorRate(), "proxy", proxyInfo.toString()));
+    }
+
+    private void collectSpnego(final PrometheusWriter writer) {
+        long hits = spnegoTokenCache.getHits();
+        long misses = spnegoTokenCache.getMisses();
+        if (hits + misses == 0) {
+            return;
+        }
+        writer.header("winfoom_spnego_tokens_total", "The SPNEGO initial tokens, by cache result", "counter");
+        writer.sample("winfoom_spnego_tokens_total", hits, "result", "hit");
+        writer.sample("winfoom_spnego_tokens_total", misses, "result", "miss");
+        writer.header("winfoom_gss_seconds_total", "The time spent generating GSS tokens", "counter");
+        writer.sample("winfoom_gss_seconds_total", spnegoTokenCache.getRequestNanos() / 1e9, "path", "request");
+        writer.sample("winfoom_gss_seconds_total", spnegoTokenCache.getBackgroundNanos() / 1e9, "path", "background");
+    }
+
+}
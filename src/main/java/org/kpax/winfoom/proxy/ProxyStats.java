@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps, for each upstream proxy, the exponentially weighted moving average (EWMA) of:
+ * <ul>
+ * <li>the connect latency (for SOCKS and DIRECT tunnels)</li>
+ * <li>the time to first byte: until the response's head is received (or the CONNECT response, for HTTP tunnels)</li>
+ * <li>the error rate: the proportion of the attempts failed with a connect error</li>
+ * </ul>
+ * <p>When the {@code pacProxy.latencyOrdering} system setting is on, it reorders the equivalent
+ * (consecutive, same type) entries of a PAC proxy line, so the fastest healthy proxy is tried first.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class ProxyStats implements StopListener, ReloadListener {
+
+    /**
+     * The weight of a new sample.
+     */
+    public static final double ALPHA = 0.3;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<ProxyInfo, Stats> statsMap = new ConcurrentHashMap<>();
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    /**
+     * @param proxyInfo    the proxy
+     * @param elapsedNanos the time it took to connect to the proxy
+     */
+    public void recordConnect(@NotNull final ProxyInfo proxyInfo, final long elapsedNanos) {
+        getOrCreate(proxyInfo).recordConnect(TimeUnit.NANOSECONDS.toMicros(elapsedNanos) / 1000.0);
+    }
+
+    /**
+     * @param proxyInfo    the proxy
+     * @param elapsedNanos the time it took to receive the response's head
+     */
+    public void recordFirstByte(@NotNull final ProxyInfo proxyInfo, final long elapsedNanos) {
+        getOrCreate(proxyInfo).recordFirstByte(TimeUnit.NANOSECONDS.toMicros(elapsedNanos) / 1000.0);
+    }
+
+    /**
+     * @param proxyInfo the proxy
+     * @param success   {@code false} iff the attempt failed with a connect error
+     */
+    public void recordOutcome(@NotNull final ProxyInfo proxyInfo, final boolean success) {
+        getOrCreate(proxyInfo).recordOutcome(success);
+    }
+
+    private Stats getOrCreate(ProxyInfo proxyInfo) {
+        return statsMap.computeIfAbsent(proxyInfo, key -> new Stats());
+    }
+
+    /**
+     * @param proxyInfo the proxy
+     * @return the proxy's statistics, {@code null} if none.
+     */
+    public Snapshot getSnapshot(@NotNull final ProxyInfo proxyInfo) {
+        Stats stats = statsMap.get(proxyInfo);
+        return stats != null ? stats.snapshot() : null;
+    }
+
+    /**
+     * @return the statistics of all the proxies used so far.
+     */
+    public Map<ProxyInfo, Snapshot> getSnapshots() {
+        Map<ProxyInfo, Snapshot> snapshots = new HashMap<>();
+        statsMap.forEach((proxyInfo, stats) -> snapshots.put(proxyInfo, stats.snapshot()));
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    /**
+     * Reorder the runs of consecutive proxies of the same type by their score, if the latency ordering is enabled.
+     * <p>The proxies without statistics come first, so they get measured; the relative order
+     * of the proxies with the same score is kept.
+     *
+     * @param proxies the proxies, in PAC order
+     * @return the reordered proxies.
+     */
+    @NotNull
+    public List<ProxyInfo> reorder(@NotNull final List<ProxyInfo> proxies) {
+        if (!systemConfig.isPacProxyLatencyOrdering() || proxies.size() < 2) {
+            return proxies;
+        }
+        List<ProxyInfo> ordered = new ArrayList<>(proxies);
+        int start = 0;
+        while (start < ordered.size()) {
+            ProxyType type = ordered.get(start).getType();
+            int end = start + 1;
+            while (end < ordered.size() && ordered.get(end).getType() == type) {
+                end++;
+            }
+            if (end - start > 1 && !type.isDirect()) {
+                ordered.subList(start, end).sort(Comparator.comparingDouble(this::score));
+            }
+            start = end;
+        }
+        if (logger.isDebugEnabled() && !ordered.equals(proxies)) {
+            logger.debug("Proxies reordered from {} to {}", proxies, ordered);
+        }
+        return ordered;
+    }
+
+    /**
+     * The expected latency, inflated by the error rate.
+     */
+    private double score(ProxyInfo proxyInfo) {
+        Stats stats = statsMap.get(proxyInfo);
+        if (stats == null) {
+            return 0;
+        }
+        Snapshot snapshot = stats.snapshot();
+        double latency = snapshot.getFirstByteMillis() > 0 ? snapshot.getFirstByteMillis() :
+                snapshot.getConnectMillis();
+        return Math.max(latency, 1) / Math.max(1 - snapshot.getErrorRate(), 0.05);
+    }
+
+    @Override
+    public void onStop() {
+        logger.debug("Clear the proxy statistics");
+        statsMap.clear();
+    }
+
+    /**
+     * Keep the statistics of the proxies still configured, drop the others.
+     */
+    @Override
+    public void onReload() {
+        statsMap.keySet().removeIf(proxyInfo -> !proxyConfig.isConfigured(proxyInfo));
+    }
+
+    private static double ewma(double average, double sample) {
+        return average < 0 ? sample : average + ALPHA * (sample - average);
+    }
+
+    private static final class Stats {
+
+        private double connectMillis = -1;
+        private double firstByteMillis = -1;
+        private double errorRate = -1;
+        private long attempts;
+
+        private synchronized void recordConnect(double millis) {
+            connectMillis = ewma(connectMillis, millis);
+        }
+
+        private synchronized void recordFirstByte(double millis) {
+            firstByteMillis = ewma(firstByteMillis, millis);
+        }
+
+        private synchronized void recordOutcome(boolean success) {
+            errorRate = ewma(errorRate, success ? 0 : 1);
+            attempts++;
+        }
+
+        private synchronized Snapshot snapshot() {
+            return new Snapshot(connectMillis, firstByteMillis, Math.max(errorRate, 0), attempts);
+        }
+    }
+
+    /**
+     * An immutable view of a proxy's statistics. A negative latency means not measured yet.
+     */
+    public static final class Snapshot {
+
+        private final double connectMillis;
+        private final double firstByteMillis;
+        private final double errorRate;
+        private final long attempts;
+
+        private Snapshot(double connectMillis, double firstByteMillis, double errorRate, long attempts) {
+            this.connectMillis = connectMillis;
+            this.firstByteMillis = firstByteMillis;
+            this.errorRate = errorRate;
+            this.attempts = attempts;
+        }
+
+        public double getConnectMillis() {
+            return connectMillis;
+        }
+
+        public double getFirstByteMillis() {
+            return firstByteMillis;
+        }
+
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "connectMillis=" + connectMillis +
+                    ", firstByteMillis=" + firstByteMillis +
+                    ", errorRate=" + errorRate +
+                    ", attempts=" + attempts +
+                    '}';
+        }
+    }
+
+}
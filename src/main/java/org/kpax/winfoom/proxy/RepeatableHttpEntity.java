@@ -18,12 +18,13 @@ import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.impl.io.ChunkedInputStream;
 import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.kpax.winfoom.jfr.ProxyEvents;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -141,6 +142,8 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
                 out.flush();
                 bufferedBytes = out.toByteArray();
             } else if (contentLength != 0) {
+                ProxyEvents.SpillToDisk event = new ProxyEvents.SpillToDisk();
+                event.begin();
                 tempFilepath = tempDirectory.resolve(InputOutputs.generateCacheFilename());
                 byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
                 try (CacheFileChannel cacheFileChannel = new CacheFileChannel(buffer)) {
@@ -191,6 +194,10 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
                         }
                     }
                 }
+                if (event.shouldCommit()) {
+                    event.bytes = Files.size(tempFilepath);
+                    event.commit();
+                }
             }
             streaming = false;
         } else {
@@ -198,9 +205,9 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
                 outStream.write(bufferedBytes);
                 outStream.flush();
             } else {
-                //read from file
-                try (InputStream inputStream = Files.newInputStream(tempFilepath)) {
-                    inputStream.transferTo(outStream);
+                // Read from file
+                try (FileChannel fileChannel = FileChannel.open(tempFilepath, StandardOpenOption.READ)) {
+                    InputOutputs.transferTo(fileChannel, outStream);
                     outStream.flush();
                 }
             }
@@ -223,20 +230,27 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
     @NotThreadSafe
     private class CacheFileChannel implements AutoCloseable {
         private final ByteBuffer byteBuffer;
-        private final AsynchronousFileChannel fileChannel;
-
-        private long position = 0;
+        private final FileChannel fileChannel;
 
         private CacheFileChannel(final byte[] buffer) throws IOException {
             this.byteBuffer = ByteBuffer.wrap(buffer);
-            this.fileChannel = AsynchronousFileChannel.open(tempFilepath,
+            this.fileChannel = FileChannel.open(tempFilepath,
                     StandardOpenOption.WRITE,
                     StandardOpenOption.CREATE);
         }
 
-        void write(int length) {
-            fileChannel.write(byteBuffer.position(0).limit(length), position);
-            position += length;
+        /**
+         * Write the first {@code length} bytes of the shared buffer.
+         * <p>The writing is synchronous, since the buffer is refilled right after this call returns.
+         *
+         * @param length the number of bytes to write
+         * @throws IOException if an I/O error occurs
+         */
+        void write(int length) throws IOException {
+            byteBuffer.position(0).limit(length);
+            while (byteBuffer.hasRemaining()) {
+                fileChannel.write(byteBuffer);
+            }
         }
 
         @Override
@@ -0,0 +1,584 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight coalescing of the concurrent identical GET/HEAD requests: the first one (the leader) makes
+ * the upstream request, the others (the followers) wait for its response, buffered in memory
+ * while streamed to the leader's client, and written to each of them: as it arrives when the body's length
+ * is known, once complete otherwise. The followers wait as long as the leader keeps receiving the body.
+ * <p>The requests are identical when they have the same method, URI, upstream proxy and content negotiation
+ * headers (see {@link #KEY_HEADERS}); the conditional and the range requests are never coalesced.
+ * A response is not shared when it varies on other headers, when it is private, sets cookies
+ * or has a body larger than {@code requestCoalescing.maxBodySize}: the followers then make their own request.
+ * <p>A flight ends with its leader's response: there is no caching, a later request makes a new flight.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class RequestCoalescer {
+
+    /**
+     * The request headers the response may vary on, part of the flight's key.
+     */
+    static final List<String> KEY_HEADERS = Arrays.asList(
+            HttpHeaders.ACCEPT,
+            HttpHeaders.ACCEPT_CHARSET,
+            HttpHeaders.ACCEPT_ENCODING,
+            HttpHeaders.ACCEPT_LANGUAGE,
+            HttpHeaders.AUTHORIZATION,
+            "Cookie");
+
+    /**
+     * The request headers making a request not coalescable.
+     */
+    private static final List<String> EXCLUDED_HEADERS = Arrays.asList(
+            HttpHeaders.RANGE,
+            HttpHeaders.IF_MATCH,
+            HttpHeaders.IF_NONE_MATCH,
+            HttpHeaders.IF_MODIFIED_SINCE,
+            HttpHeaders.IF_UNMODIFIED_SINCE,
+            HttpHeaders.IF_RANGE);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    /**
+     * Key = the flight's key<br>
+     * Value = the flight in progress
+     */
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private Counter joined;
+
+    private Counter fallbacks;
+
+    @PostConstruct
+    void init() {
+        joined = proxyMetrics.getRegistry().counter("winfoom_coalesced_requests_total",
+                "The requests joining an identical request in flight, by outcome", "outcome", "shared");
+        fallbacks = proxyMetrics.getRegistry().counter("winfoom_coalesced_requests_total",
+                "The requests joining an identical request in flight, by outcome", "outcome", "fallback");
+    }
+
+    /**
+     * @return {@code true} iff the coalescing is enabled.
+     */
+    public boolean isEnabled() {
+        return systemConfig.isRequestCoalescingEnabled();
+    }
+
+    /**
+     * Join the identical request in flight, if any, or start a new flight.
+     *
+     * @param request   the client's request
+     * @param uri       the request's URI
+     * @param proxyInfo the upstream proxy the request goes through
+     * @return the flight, {@code null} if the request cannot be coalesced.
+     */
+    public Flight join(@NotNull final HttpRequest request,
+                       @NotNull final URI uri,
+                       @NotNull final ProxyInfo proxyInfo) {
+        String key = keyOf(request, uri, proxyInfo);
+        if (key == null) {
+            return null;
+        }
+        Flight newFlight = new Flight(key);
+        Flight flight = flights.putIfAbsent(key, newFlight);
+        if (flight == null) {
+            logger.debug("Start flight for {}", uri);
+            return newFlight;
+        }
+        logger.debug("Join flight for {}", uri);
+        return flight.follower();
+    }
+
+    /**
+     * @param request   the client's request
+     * @param uri       the request's URI
+     * @param proxyInfo the upstream proxy the request goes through
+     * @return the flight's key, {@code null} if the request cannot be coalesced.
+     */
+    static String keyOf(@NotNull final HttpRequest request,
+                        @NotNull final URI uri,
+                        @NotNull final ProxyInfo proxyInfo) {
+        String method = request.getRequestLine().getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return null;
+        }
+        for (String name : EXCLUDED_HEADERS) {
+            if (request.containsHeader(name)) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder(method).append(' ').append(uri).
+                append('\n').append(proxyInfo.getType()).append(' ');
+        if (proxyInfo.getProxyHost() != null) {
+            key.append(proxyInfo.getProxyHost().toHostString());
+        }
+        for (String name : KEY_HEADERS) {
+            for (Header header : request.getHeaders(name)) {
+                key.append('\n').append(name).append(": ").append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param response the leader's response
+     * @return {@code true} iff the response can be written to the followers.
+     */
+    static boolean isShareable(@NotNull final HttpResponse response) {
+        if (response.containsHeader("Set-Cookie")) {
+            return false;
+        }
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if ("private".equalsIgnoreCase(element.getName()) || "no-store".equalsIgnoreCase(element.getName())) {
+                    return false;
+                }
+            }
+        }
+        for (Header header : response.getHeaders(HttpHeaders.VARY)) {
+            for (HeaderElement element : header.getElements()) {
+                if (KEY_HEADERS.stream().noneMatch(name -> name.equalsIgnoreCase(element.getName()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The identical requests in flight.
+     * <p>The leader must end it by reading the whole body of the response returned by {@link #share(HttpResponse)}
+     * or, on any failure, with {@link #abandon()}, otherwise the followers wait until their timeout.
+     */
+    public final class Flight {
+
+        private final String key;
+
+        private final CompletableFuture<Shared> result;
+
+        /**
+         * The number of body bytes the leader has received so far.
+         */
+        private final AtomicLong progress;
+
+        private final boolean leader;
+
+        /**
+         * The body being shared, set by the leader.
+         */
+        private volatile Body body;
+
+        private Flight(final String key) {
+            this(key, new CompletableFuture<>(), new AtomicLong(), true);
+        }
+
+        private Flight(final String key,
+                       final CompletableFuture<Shared> result,
+                       final AtomicLong progress,
+                       final boolean leader) {
+            this.key = key;
+            this.result = result;
+            this.progress = progress;
+            this.leader = leader;
+        }
+
+        private Flight follower() {
+            return new Flight(key, result, progress, false);
+        }
+
+        /**
+         * @return {@code true} iff this request makes the upstream request.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Called by the leader: make the response's body shareable with the followers, if possible.
+         * <p>The body is streamed to the leader's client, while buffered for the followers.
+         * When the body's length is known, the followers get the response right away and stream the body
+         * as it arrives; otherwise, they get it once the leader's client has read the whole body,
+         * or fall back to their own request if it goes over {@code requestCoalescing.maxBodySize}.
+         *
+         * @param response the upstream response
+         * @return the response to write to the leader's client, with the entity replaced by the buffering one.
+         * @throws IOException on getting the response's body
+         */
+        @NotNull
+        public HttpResponse share(@NotNull final HttpResponse response) throws IOException {
+            if (!isShareable(response)) {
+                abandon();
+                return response;
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                complete(new Shared(response, null));
+                return response;
+            }
+            long maxBodySize = systemConfig.getRequestCoalescingMaxBodySize() * 1024L * 1024L;
+            long contentLength = entity.getContentLength();
+            if (contentLength > maxBodySize) {
+                abandon();
+                return response;
+            }
+            Body body = new Body(contentLength);
+            this.body = body;
+            if (contentLength >= 0) {
+                // It fits, the followers can be answered right away
+                result.complete(new Shared(response, body));
+            }
+            response.setEntity(new InputStreamEntity(
+                    new SharingInputStream(entity.getContent(), response, body, maxBodySize),
+                    contentLength, null));
+            return response;
+        }
+
+        /**
+         * Called by the leader when the response cannot be shared: the followers make their own request,
+         * or fail if already streaming the body. It has no effect once the flight is completed.
+         */
+        public void abandon() {
+            if (leader) {
+                flights.remove(key, this);
+                result.complete(null);
+                Body body = this.body;
+                if (body != null) {
+                    body.fail();
+                }
+            }
+        }
+
+        private void complete(final Shared shared) {
+            if (leader) {
+                flights.remove(key, this);
+                result.complete(shared);
+            }
+        }
+
+        /**
+         * Buffer the bytes read by the leader's client, then complete the flight at the end of the stream.
+         */
+        private final class SharingInputStream extends FilterInputStream {
+
+            private final HttpResponse response;
+
+            private final long maxBodySize;
+
+            private Body body;
+
+            private SharingInputStream(final InputStream in,
+                                       final HttpResponse response,
+                                       final Body body,
+                                       final long maxBodySize) {
+                super(in);
+                this.response = response;
+                this.body = body;
+                this.maxBodySize = maxBodySize;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int length = read(b, 0, 1);
+                return length == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                int length;
+                try {
+                    length = super.read(b, off, len);
+                } catch (IOException e) {
+                    body = null;
+                    abandon();
+                    throw e;
+                }
+                if (length == -1) {
+                    onEnd();
+                } else if (body != null) {
+                    if (body.size() + length > maxBodySize) {
+                        // Too large to share, stream the rest to the leader only
+                        body = null;
+                        abandon();
+                    } else {
+                        body.append(b, off, length);
+                        progress.addAndGet(length);
+                    }
+                }
+                return length;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                // The skipped bytes cannot be shared
+                body = null;
+                abandon();
+                return super.skip(n);
+            }
+
+            /**
+             * If the followers are streaming the body, read the rest of it for them,
+             * even if the leader's client is gone.
+             */
+            @Override
+            public void close() throws IOException {
+                try {
+                    if (body != null && body.length >= 0 && !body.isEnded()) {
+                        logger.debug("Read the rest of the body for the followers of {}", key);
+                        byte[] buffer = new byte[8192];
+                        while (body != null && read(buffer, 0, buffer.length) != -1) {
+                            // Nothing else
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.debug("Cannot read the rest of the body for the followers of " + key, e);
+                } finally {
+                    super.close();
+                }
+            }
+
+            private void onEnd() {
+                if (body != null) {
+                    body.end();
+                    complete(new Shared(response, body));
+                    body = null;
+                }
+            }
+        }
+
+        /**
+         * Called by a follower: wait for the leader's response, as long as the leader receives some of the body
+         * within each timeout. Its body, if still being received, is read with the same timeout.
+         *
+         * @param timeout  the max time to wait without progress
+         * @param timeUnit the time unit
+         * @return the shared response, {@code null} if the follower must make its own request.
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public HttpResponse await(final long timeout, @NotNull final TimeUnit timeUnit) throws InterruptedException {
+            Shared shared = null;
+            long lastProgress = progress.get();
+            while (true) {
+                try {
+                    shared = result.get(timeout, timeUnit);
+                    break;
+                } catch (TimeoutException e) {
+                    long currentProgress = progress.get();
+                    if (currentProgress == lastProgress) {
+                        logger.debug("No progress of the request in flight for {}", key);
+                        break;
+                    }
+                    lastProgress = currentProgress;
+                } catch (ExecutionException e) {
+                    logger.debug("Cannot get the shared response for {}: {}", key, e.toString());
+                    break;
+                }
+            }
+            if (shared == null) {
+                fallbacks.increment();
+                return null;
+            }
+            joined.increment();
+            return shared.toResponse(timeUnit.toMillis(timeout));
+        }
+    }
+
+    /**
+     * The response shared by a flight, written to each client from the same buffer.
+     */
+    private static final class Shared {
+
+        private final HttpResponse head;
+
+        private final Body body;
+
+        private Shared(final HttpResponse response, final Body body) {
+            this.head = new BasicHttpResponse(response.getStatusLine());
+            this.head.setHeaders(response.getAllHeaders());
+            this.body = body;
+        }
+
+        private HttpResponse toResponse(final long timeoutMillis) {
+            BasicHttpResponse response = new BasicHttpResponse(head.getStatusLine());
+            response.setHeaders(head.getAllHeaders());
+            if (body != null) {
+                response.setEntity(new InputStreamEntity(body.new BodyInputStream(timeoutMillis),
+                        body.length >= 0 ? body.length : body.size(), null));
+            }
+            return response;
+        }
+    }
+
+    /**
+     * The buffered body, appended by the leader while read by the followers.
+     */
+    private static final class Body {
+
+        /**
+         * The body's length, -1 if unknown.
+         */
+        private final long length;
+
+        private byte[] buf;
+
+        private int count;
+
+        private boolean ended;
+
+        private boolean failed;
+
+        private Body(final long length) {
+            this.length = length;
+            this.buf = new byte[length >= 0 ? (int) Math.min(length, Integer.MAX_VALUE - 8) : 8192];
+        }
+
+        private synchronized void append(final byte[] b, final int off, final int len) {
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            notifyAll();
+        }
+
+        private synchronized int size() {
+            return count;
+        }
+
+        private synchronized boolean isEnded() {
+            return ended;
+        }
+
+        private synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        /**
+         * It has no effect once ended.
+         */
+        private synchronized void fail() {
+            if (!ended) {
+                failed = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Read from the given position, waiting at most the timeout for the leader to receive more bytes.
+         */
+        private synchronized int read(final int position, final byte[] b, final int off, final int len,
+                                      final long timeoutMillis) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (position >= count && !ended && !failed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Read timed out waiting for the request in flight");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the request in flight");
+                }
+            }
+            if (failed) {
+                throw new IOException("The request in flight failed");
+            }
+            if (position >= count) {
+                return -1;
+            }
+            int length = Math.min(len, count - position);
+            System.arraycopy(buf, position, b, off, length);
+            return length;
+        }
+
+        /**
+         * A follower's view of the body.
+         */
+        private final class BodyInputStream extends InputStream {
+
+            private final long timeoutMillis;
+
+            private int position;
+
+            private BodyInputStream(final long timeoutMillis) {
+                this.timeoutMillis = timeoutMillis;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int length = read(b, 0, 1);
+                return length == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int length = Body.this.read(position, b, off, len, timeoutMillis);
+                if (length > 0) {
+                    position += length;
+                }
+                return length;
+            }
+        }
+    }
+
+}
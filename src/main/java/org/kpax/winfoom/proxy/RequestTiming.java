@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The phase timing of a request, carried by the {@link ClientConnection} through the processors.
+ * <p>The phases are stamped in sequence: a stamp attributes the time elapsed since the previous one to its phase.
+ * A phase nested into another one (the connect and the authentication legs done by the HttpClient
+ * while waiting for the first byte, for example) is carved out of it.
+ * <ul>
+ * <li>{@link Phase#PARSE}: reading and parsing the request's head</li>
+ * <li>{@link Phase#PAC}: the PAC script evaluation (and the proxies connect race)</li>
+ * <li>{@link Phase#CONNECT}: resolving and connecting to the proxy or the target, SOCKS handshake included</li>
+ * <li>{@link Phase#AUTH}: the proxy authentication legs, except the last one</li>
+ * <li>{@link Phase#FIRST_BYTE}: waiting for the response's head (or the CONNECT response)</li>
+ * <li>{@link Phase#TRANSFER}: writing the response to the client, or the tunnel's lifetime</li>
+ * </ul>
+ * <p>The instances are recycled per thread together with the parsing state, so stamping allocates nothing.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+public final class RequestTiming {
+
+    /**
+     * The {@link HttpContext} attribute holding the current request's timing.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "winfoom.requestTiming";
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] nanos = new long[PHASES.length];
+
+    /**
+     * The stamped or carved phases, as a bit mask.
+     */
+    private int reached;
+
+    private long startTime;
+
+    private long mark;
+
+    /**
+     * The nanoseconds carved out since the last stamp.
+     */
+    private long carved;
+
+    /**
+     * The start of the last exchange with the remote server, zero if none.
+     */
+    private long exchangeStart;
+
+    RequestTiming() {
+    }
+
+    /**
+     * Reset and start the timing.
+     */
+    void start() {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = 0;
+        }
+        reached = 0;
+        carved = 0;
+        exchangeStart = 0;
+        startTime = mark = System.nanoTime();
+    }
+
+    /**
+     * Attribute the time elapsed since the previous stamp, less the carved out time, to a phase.
+     *
+     * @param phase the phase just ended
+     */
+    public void stamp(@NotNull final Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += Math.max(now - mark - carved, 0);
+        reached |= 1 << phase.ordinal();
+        mark = now;
+        carved = 0;
+    }
+
+    /**
+     * Attribute a duration nested into the current phase to another phase.
+     *
+     * @param phase        the nested phase
+     * @param elapsedNanos its duration
+     */
+    public void carve(@NotNull final Phase phase, final long elapsedNanos) {
+        nanos[phase.ordinal()] += elapsedNanos;
+        reached |= 1 << phase.ordinal();
+        carved += elapsedNanos;
+    }
+
+    /**
+     * Mark the start of an exchange with the remote server. Each exchange but the
+     * last one is an authentication leg, so the previous exchange is carved out as {@link Phase#AUTH}.
+     */
+    public void onExchange() {
+        long now = System.nanoTime();
+        if (exchangeStart != 0) {
+            carve(Phase.AUTH, now - exchangeStart);
+        }
+        exchangeStart = now;
+    }
+
+    /**
+     * @param phase the phase
+     * @return {@code true} iff the phase has been stamped or carved.
+     */
+    public boolean isReached(@NotNull final Phase phase) {
+        return (reached & (1 << phase.ordinal())) != 0;
+    }
+
+    /**
+     * @param phase the phase
+     * @return the phase's duration (nanoseconds).
+     */
+    public long getNanos(@NotNull final Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * @return the time until the response started (nanoseconds), that is, all the phases but {@link Phase#TRANSFER}.
+     */
+    public long getResponseNanos() {
+        long sum = 0;
+        for (Phase phase : PHASES) {
+            if (phase != Phase.TRANSFER) {
+                sum += nanos[phase.ordinal()];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the time elapsed since the start (nanoseconds).
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * @param context the HTTP context
+     * @return the context's timing, {@code null} if none.
+     */
+    public static RequestTiming from(final HttpContext context) {
+        Object timing = context != null ? context.getAttribute(CONTEXT_ATTRIBUTE) : null;
+        return timing instanceof RequestTiming ? (RequestTiming) timing : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("RequestTiming{");
+        for (Phase phase : PHASES) {
+            if (isReached(phase)) {
+                builder.append(phase.name().toLowerCase(Locale.ROOT)).append('=').
+                        append(TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()])).append("ms, ");
+            }
+        }
+        return builder.append("elapsed=").append(TimeUnit.NANOSECONDS.toMillis(getElapsedNanos())).
+                append("ms}").toString();
+    }
+
+    public enum Phase {
+        PARSE, PAC, CONNECT, AUTH, FIRST_BYTE, TRANSFER;
+
+        /**
+         * @return the metrics label.
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * A {@link HttpRequestExecutor} marking each exchange on the context's timing, if any.
+     */
+    static final class TimingRequestExecutor extends HttpRequestExecutor {
+
+        static final TimingRequestExecutor INSTANCE = new TimingRequestExecutor();
+
+        @Override
+        public HttpResponse execute(final HttpRequest request,
+                                    final HttpClientConnection conn,
+                                    final HttpContext context) throws IOException, HttpException {
+            RequestTiming timing = from(context);
+            if (timing != null) {
+                timing.onExchange();
+            }
+            return super.execute(request, conn, context);
+        }
+    }
+
+}
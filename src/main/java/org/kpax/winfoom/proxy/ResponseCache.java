@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.client.cache.FileResourceFactory;
+import org.apache.http.impl.client.cache.ManagedHttpCacheStorage;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.kpax.winfoom.util.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An optional RFC 7234 shared cache for the responses to the non-CONNECT requests,
+ * built on the HttpClient's caching module.
+ * <p>The freshness is given by {@code Cache-Control} and {@code Expires}, the variants by {@code Vary};
+ * a stale entry having an {@code ETag} or a {@code Last-Modified} is revalidated upstream with a conditional request.
+ * A fresh hit is served without any upstream connection.
+ * <p>A bounded, least recently used index of the entries is kept in memory, while the bodies are stored
+ * into files of the {@value #CACHE_DIR_NAME} directory, under the temp directory.
+ * The cache lives as long as the proxy is started, a configuration reload keeps it.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class ResponseCache implements StopListener, ReloadListener {
+
+    static final String CACHE_DIR_NAME = "http-cache";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
+    private final SingletonSupplier<Store> storeSupplier = new SingletonSupplier<>(this::createStore);
+
+    /**
+     * Indexed by {@link CacheResponseStatus#ordinal()}.
+     */
+    private final Counter[] responses = new Counter[CacheResponseStatus.values().length];
+
+    @PostConstruct
+    void init() {
+        for (CacheResponseStatus status : CacheResponseStatus.values()) {
+            responses[status.ordinal()] = proxyMetrics.getRegistry().counter("winfoom_response_cache_total",
+                    "The responses to the non-CONNECT requests, by cache status",
+                    "status", status.name().toLowerCase());
+        }
+    }
+
+    /**
+     * @return {@code true} iff the responses are cached.
+     */
+    public boolean isEnabled() {
+        return systemConfig.isResponseCacheEnabled();
+    }
+
+    /**
+     * Create a caching {@link HttpClientBuilder}, sharing this cache's storage.
+     *
+     * @return a new {@link CachingHttpClientBuilder} instance.
+     */
+    @NotNull
+    public HttpClientBuilder createClientBuilder() {
+        Store store = storeSupplier.get();
+        return CachingHttpClientBuilder.create().
+                setCacheConfig(store.cacheConfig).
+                setHttpCacheStorage(store.storage).
+                setResourceFactory(store.resourceFactory);
+    }
+
+    /**
+     * Count the response's cache status and dispose the bodies of the evicted entries.
+     *
+     * @param context the request's context, after execution
+     * @return {@code true} iff the response was served without any upstream request.
+     */
+    public boolean onResponse(@NotNull final HttpContext context) {
+        if (storeSupplier.hasValue()) {
+            storeSupplier.get().storage.cleanResources();
+        }
+        CacheResponseStatus status = HttpCacheContext.adapt(context).getCacheResponseStatus();
+        if (status == null) {
+            return false;
+        }
+        logger.debug("Cache response status: {}", status);
+        responses[status.ordinal()].increment();
+        return status == CacheResponseStatus.CACHE_HIT || status == CacheResponseStatus.CACHE_MODULE_RESPONSE;
+    }
+
+    private Store createStore() {
+        Path cacheDir = proxyConfig.getTempDirectory().resolve(CACHE_DIR_NAME);
+        try {
+            Files.createDirectories(cacheDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the response cache directory " + cacheDir, e);
+        }
+        CacheConfig cacheConfig = CacheConfig.custom().
+                setSharedCache(true).
+                setMaxCacheEntries(systemConfig.getResponseCacheMaxEntries()).
+                setMaxObjectSize(systemConfig.getResponseCacheMaxObjectSize() * 1024L * 1024L).
+                setHeuristicCachingEnabled(false).
+                // No background revalidation: a client is built for each request
+                setAsynchronousWorkersMax(0).
+                build();
+        logger.info("Create response cache in {} with max {} entries", cacheDir, cacheConfig.getMaxCacheEntries());
+        return new Store(cacheConfig, new ManagedHttpCacheStorage(cacheConfig), new FileResourceFactory(cacheDir.toFile()));
+    }
+
+    @Override
+    public void onStop() {
+        logger.debug("Drop the response cache");
+        storeSupplier.reset(store -> store.storage.shutdown());
+    }
+
+    /**
+     * Keep the cached entries: the responses do not depend on the upstream proxy.
+     */
+    @Override
+    public void onReload() {
+    }
+
+    private static final class Store {
+
+        private final CacheConfig cacheConfig;
+
+        /**
+         * Disposes the files of the evicted entries, all of them on shutdown.
+         */
+        private final ManagedHttpCacheStorage storage;
+
+        private final FileResourceFactory resourceFactory;
+
+        private Store(final CacheConfig cacheConfig,
+                      final ManagedHttpCacheStorage storage,
+                      final FileResourceFactory resourceFactory) {
+            this.cacheConfig = cacheConfig;
+            this.storage = storage;
+            this.resourceFactory = resourceFactory;
+        }
+    }
+
+}
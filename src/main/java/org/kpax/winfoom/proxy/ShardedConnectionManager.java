@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.jfr.ProxyEvents;
+import org.kpax.winfoom.util.TimerWheel;
+import org.kpax.winfoom.util.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A {@link HttpClientConnectionManager} that partitions the routes across several independent
+ * {@link PoolingHttpClientConnectionManager} shards, by route hash, so that concurrent leases and releases
+ * on different routes don't contend on a single pool lock.
+ * <p>A route always maps to the same shard, so the max connections per route is enforced by the shard.
+ * The max total of the leased connections is enforced globally by a lock-free counter;
+ * a lease only waits on a monitor when the limit is reached.
+ * The idle connections are not counted, they are trimmed by the eviction.
+ * <p>The eviction is event driven: on release, the shard is scheduled on a {@link TimerWheel} for the moment
+ * the connection becomes idle for too long or its keep-alive expires, whichever comes first.
+ * Releases expiring on the same tick share a single eviction of their shard.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+final class ShardedConnectionManager implements HttpClientConnectionManager {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final PoolingHttpClientConnectionManager[] shards;
+
+    private final int mask;
+
+    private final int maxTotal;
+
+    private final AtomicInteger leased = new AtomicInteger();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Object saturationMonitor = new Object();
+
+    private final LongAdder leaseCount = new LongAdder();
+
+    /**
+     * The number of leases that had to wait for the max total to free up.
+     */
+    private final LongAdder waitCount = new LongAdder();
+
+    /**
+     * The time to lease a connection, waits included.
+     */
+    private final LatencyHistogram leaseTimes = new LatencyHistogram();
+
+    /**
+     * Key = the leased connection<br>
+     * Value = its shard's index
+     */
+    private final Map<HttpClientConnection, Integer> leasedConnections = new ConcurrentHashMap<>();
+
+    private final TimerWheel evictionWheel;
+
+    private final long idleTimeoutMillis;
+
+    /**
+     * The last tick an eviction was scheduled on, per shard: the idle ones on even, the keep-alive ones on odd indexes.
+     */
+    private final AtomicLongArray scheduledTicks;
+
+    /**
+     * Constructor.
+     *
+     * @param shardCount   the number of shards, rounded up to a power of two
+     * @param maxTotal     the max total of leased connections
+     * @param shardFactory      creates a shard
+     * @param evictionWheel     the wheel scheduling the evictions, {@code null} to disable the eviction
+     * @param idleTimeoutMillis the time after which an idle connection is evicted
+     */
+    ShardedConnectionManager(final int shardCount,
+                             final int maxTotal,
+                             @NotNull final Supplier<PoolingHttpClientConnectionManager> shardFactory,
+                             final TimerWheel evictionWheel,
+                             final long idleTimeoutMillis) {
+        Assert.isTrue(shardCount > 0, "shardCount must be positive");
+        Assert.isTrue(maxTotal > 0, "maxTotal must be positive");
+        int size = Integer.highestOneBit(shardCount);
+        if (size < shardCount) {
+            size <<= 1;
+        }
+        this.shards = new PoolingHttpClientConnectionManager[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = shardFactory.get();
+        }
+        this.mask = size - 1;
+        this.maxTotal = maxTotal;
+        this.evictionWheel = evictionWheel;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.scheduledTicks = new AtomicLongArray(size * 2);
+    }
+
+    /**
+     * @return the number of shards, default is the number of available processors.
+     */
+    static int defaultShardCount() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), 16);
+    }
+
+    private int shardIndex(final HttpRoute route) {
+        int hash = route.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private PoolingHttpClientConnectionManager shardFor(final HttpRoute route) {
+        return shards[shardIndex(route)];
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        final int shardIndex = shardIndex(route);
+        final ConnectionRequest shardRequest = shards[shardIndex].requestConnection(route, state);
+        return new ConnectionRequest() {
+
+            @Override
+            public HttpClientConnection get(final long timeout, final TimeUnit timeUnit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long startTime = System.nanoTime();
+                long deadline = timeout > 0 ? startTime + timeUnit.toNanos(timeout) : 0;
+                acquirePermit(deadline);
+                boolean leasedOk = false;
+                try {
+                    long remaining = deadline != 0 ? Math.max(deadline - System.nanoTime(), 1) : 0;
+                    HttpClientConnection connection = shardRequest.get(remaining, TimeUnit.NANOSECONDS);
+                    leasedConnections.put(connection, shardIndex);
+                    leasedOk = true;
+                    leaseCount.increment();
+                    leaseTimes.record(System.nanoTime() - startTime);
+                    return connection;
+                } finally {
+                    if (!leasedOk) {
+                        releasePermit();
+                    }
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return shardRequest.cancel();
+            }
+        };
+    }
+
+    private void acquirePermit(final long deadline)
+            throws InterruptedException, ConnectionPoolTimeoutException {
+        boolean waited = false;
+        while (true) {
+            int current = leased.get();
+            if (current < maxTotal) {
+                if (leased.compareAndSet(current, current + 1)) {
+                    return;
+                }
+                continue;
+            }
+
+            // Saturated, wait for a release
+            if (!waited) {
+                waited = true;
+                waitCount.increment();
+            }
+            waiting.incrementAndGet();
+            try {
+                synchronized (saturationMonitor) {
+                    if (leased.get() >= maxTotal) {
+                        if (deadline == 0) {
+                            saturationMonitor.wait();
+                        } else {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                throw new ConnectionPoolTimeoutException("Timeout waiting for connection");
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(saturationMonitor, remaining);
+                        }
+                    }
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+
+    private void releasePermit() {
+        leased.decrementAndGet();
+        if (waiting.get() > 0) {
+            synchronized (saturationMonitor) {
+                saturationMonitor.notify();
+            }
+        }
+    }
+
+    @Override
+    public void releaseConnection(final HttpClientConnection connection,
+                                  final Object newState,
+                                  final long validDuration,
+                                  final TimeUnit timeUnit) {
+        Integer shardIndex = leasedConnections.remove(connection);
+        if (shardIndex == null) {
+            // Already released
+            return;
+        }
+        // Once released, the connection is detached from its pool entry
+        boolean reusable = connection.isOpen();
+        try {
+            shards[shardIndex].releaseConnection(connection, newState, validDuration, timeUnit);
+        } finally {
+            releasePermit();
+        }
+        if (reusable && evictionWheel != null) {
+            scheduleEviction(shardIndex * 2, idleTimeoutMillis);
+            if (validDuration > 0) {
+                long keepAliveMillis = timeUnit != null ? timeUnit.toMillis(validDuration) : validDuration;
+                if (keepAliveMillis < idleTimeoutMillis) {
+                    scheduleEviction(shardIndex * 2 + 1, keepAliveMillis);
+                }
+            }
+        }
+    }
+
+    private void scheduleEviction(final int tickIndex, final long delayMillis) {
+        long tick = evictionWheel.tickFor(delayMillis, TimeUnit.MILLISECONDS);
+        if (scheduledTicks.get(tickIndex) != tick && scheduledTicks.getAndSet(tickIndex, tick) != tick) {
+            evictionWheel.scheduleAt(tick, () -> evict(tickIndex / 2));
+        }
+    }
+
+    /**
+     * Close the expired and the too long idle connections of a shard.
+     *
+     * @param shardIndex the shard's index
+     */
+    void evict(final int shardIndex) {
+        logger.debug("Evict idle/expired connections of shard #{}", shardIndex);
+        PoolingHttpClientConnectionManager shard = shards[shardIndex];
+        shard.closeExpiredConnections();
+        shard.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void connect(final HttpClientConnection connection,
+                        final HttpRoute route,
+                        final int connectTimeout,
+                        final HttpContext context) throws IOException {
+        ProxyEvents.UpstreamConnect event = new ProxyEvents.UpstreamConnect();
+        event.begin();
+        long startTime = System.nanoTime();
+        try {
+            shardFor(route).connect(connection, route, connectTimeout, context);
+            event.success = true;
+        } finally {
+            if (event.shouldCommit()) {
+                event.proxy = route.getProxyHost() != null ? route.getProxyHost().toHostString() : null;
+                event.target = route.getTargetHost().toHostString();
+                event.commit();
+            }
+        }
+        RequestTiming timing = RequestTiming.from(context);
+        if (timing != null) {
+            timing.carve(RequestTiming.Phase.CONNECT, System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public void upgrade(final HttpClientConnection connection,
+                        final HttpRoute route,
+                        final HttpContext context) throws IOException {
+        shardFor(route).upgrade(connection, route, context);
+    }
+
+    @Override
+    public void routeComplete(final HttpClientConnection connection,
+                              final HttpRoute route,
+                              final HttpContext context) throws IOException {
+        shardFor(route).routeComplete(connection, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(final long idleTime, final TimeUnit timeUnit) {
+        for (PoolingHttpClientConnectionManager shard : shards) {
+            shard.closeIdleConnections(idleTime, timeUnit);
+        }
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        for (PoolingHttpClientConnectionManager shard : shards) {
+            shard.closeExpiredConnections();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (PoolingHttpClientConnectionManager shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of currently leased connections, across all shards.
+     */
+    int getLeased() {
+        return leased.get();
+    }
+
+    int getMaxTotal() {
+        return maxTotal;
+    }
+
+    long getLeaseCount() {
+        return leaseCount.sum();
+    }
+
+    long getWaitCount() {
+        return waitCount.sum();
+    }
+
+    LatencyHistogram getLeaseTimes() {
+        return leaseTimes;
+    }
+
+    /**
+     * @return the statistics of each shard.
+     */
+    List<PoolStats> getShardStats() {
+        List<PoolStats> stats = new ArrayList<>(shards.length);
+        for (PoolingHttpClientConnectionManager shard : shards) {
+            stats.add(shard.getTotalStats());
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    /**
+     * @return the sum of the shards' statistics, with the global max total.
+     */
+    PoolStats getTotalStats() {
+        int leasedCount = 0;
+        int pending = 0;
+        int available = 0;
+        for (PoolingHttpClientConnectionManager shard : shards) {
+            PoolStats stats = shard.getTotalStats();
+            leasedCount += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+        }
+        return new PoolStats(leasedCount, pending, available, maxTotal);
+    }
+
+}
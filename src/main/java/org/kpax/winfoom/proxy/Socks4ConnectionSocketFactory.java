@@ -14,7 +14,7 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.annotation.ThreadSafe;
-import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.SocksHandshake;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
@@ -28,14 +28,9 @@ import java.net.Socket;
 class Socks4ConnectionSocketFactory extends SocksConnectionSocketFactory {
 
     @Override
-    public Socket createSocket(final HttpContext context) throws IOException {
-        Socket socket = super.createSocket(context);
-        try {
-            HttpUtils.setSocks4(socket);
-        } catch (UnsupportedOperationException e) {
-            throw new IOException(e);
-        }
-        return socket;
+    void handshake(final Socket socket, final String host, final int port,
+                   final HttpContext context) throws IOException {
+        SocksHandshake.connect(socket, true, host, port, null, null);
     }
 
-}
\ No newline at end of file
+}
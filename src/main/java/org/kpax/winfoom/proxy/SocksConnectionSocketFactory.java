@@ -14,32 +14,47 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.http.HttpHost;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.SocksHandshake;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 /**
  * A {@link ConnectionSocketFactory} implementation for SOCKS proxy.
+ * <p>It connects a {@link SocketChannel} backed socket to the SOCKS proxy, unless already connected
+ * (see {@link HttpUtils#PRE_CONNECTED_SOCKET}), then performs the in-house SOCKS handshake,
+ * the target's host name being resolved by the proxy.
  */
 @ThreadSafe
 @Component
 class SocksConnectionSocketFactory implements ConnectionSocketFactory {
 
+    /**
+     * A {@link DnsResolver} that does no local lookup, since the target is resolved by the SOCKS proxy.
+     */
+    static final DnsResolver REMOTE_DNS_RESOLVER = host -> new InetAddress[]{
+            InetAddress.getByAddress(host, new byte[]{0, 0, 0, 0})};
+
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private ProxyConfig proxyConfig;
+
     @Override
     public Socket createSocket(final HttpContext context) throws IOException {
-        InetSocketAddress socketAddress = (InetSocketAddress) context.getAttribute(HttpUtils.SOCKS_ADDRESS);
-        Proxy proxy = new Proxy(Proxy.Type.SOCKS, socketAddress);
-        return systemConfig.configureSocket(new Socket(proxy));
+        return systemConfig.configureSocket(SocketChannel.open().socket());
     }
 
     @Override
@@ -50,24 +65,62 @@ class SocksConnectionSocketFactory implements ConnectionSocketFactory {
             final InetSocketAddress remoteAddress,
             final InetSocketAddress localAddress,
             final HttpContext context) throws IOException {
-        Socket currentSocket = socket != null ? socket : createSocket(context);
-        if (localAddress != null) {
-            currentSocket.bind(localAddress);
+        Socket currentSocket = (Socket) context.removeAttribute(HttpUtils.PRE_CONNECTED_SOCKET);
+        if (currentSocket != null) {
+            // Already connected to the SOCKS proxy
+            if (socket != null) {
+                InputOutputs.close((AutoCloseable) socket);
+            }
+        } else {
+            InetSocketAddress proxyAddress = (InetSocketAddress) context.getAttribute(HttpUtils.SOCKS_ADDRESS);
+            currentSocket = socket != null ? socket : createSocket(context);
+            if (localAddress != null) {
+                currentSocket.bind(localAddress);
+            }
+            try {
+                currentSocket.connect(proxyAddress, connectTimeout);
+            } catch (SocketTimeoutException e) {
+                throw new ConnectTimeoutException(e, host, remoteAddress.getAddress());
+            } catch (SocketException e) {
+                // Remap some exceptions to
+                // single out the connection failed case.
+                if (HttpUtils.isConnectionRefused(e)
+                        || HttpUtils.isConnectionTimeout(e)) {
+                    throw new ConnectException(e.getMessage());
+                }
+                throw e;
+            }
         }
         try {
-            currentSocket.connect(remoteAddress, connectTimeout);
-        } catch (SocketTimeoutException e) {
-            throw new ConnectTimeoutException(e, host, remoteAddress.getAddress());
-        } catch (SocketException e) {
-            // Remap some exceptions to
-            // single out the connection failed case.
-            if (HttpUtils.isConnectionRefused(e)
-                    || HttpUtils.isConnectionTimeout(e)) {
-                throw new ConnectException(e.getMessage());
-            }
+            handshake(currentSocket, host.getHostName(), remoteAddress.getPort(), context);
+        } catch (IOException e) {
+            InputOutputs.close(currentSocket);
             throw e;
         }
         return currentSocket;
     }
 
-}
\ No newline at end of file
+    /**
+     * Perform the SOCKS5 handshake, the SOCKS4 one being done by {@link Socks4ConnectionSocketFactory}.
+     * <p>The credentials are the client connection's ones (see {@link HttpUtils#CONFIG_SNAPSHOT}),
+     * or the current ones when pre-warming the connections.
+     *
+     * @param socket  the socket connected to the SOCKS proxy
+     * @param host    the target's host name
+     * @param port    the target's port
+     * @param context the connect's context
+     * @throws IOException on handshake failure
+     */
+    void handshake(final Socket socket, final String host, final int port,
+                   final HttpContext context) throws IOException {
+        ProxyConfig.Snapshot config = (ProxyConfig.Snapshot) context.getAttribute(HttpUtils.CONFIG_SNAPSHOT);
+        if (config != null) {
+            SocksHandshake.connect(socket, false, host, port,
+                    config.getProxySocks5Username(), config.getProxySocks5Password());
+        } else {
+            SocksHandshake.connect(socket, false, host, port,
+                    proxyConfig.getProxySocks5Username(), proxyConfig.getProxySocks5Password());
+        }
+    }
+
+}
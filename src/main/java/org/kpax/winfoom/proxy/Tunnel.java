@@ -24,6 +24,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 
 /**
  * Encapsulate the response of a {@link TunnelConnection}.
@@ -63,6 +64,11 @@ public final class Tunnel implements StreamSource, Closeable {
         return this.outputStream;
     }
 
+    @Override
+    public SocketChannel getChannel() {
+        return connection.getSocket().getChannel();
+    }
+
     public HttpResponse getResponse() {
         return response;
     }
@@ -38,6 +38,8 @@ import org.apache.http.util.Args;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.jfr.ProxyEvents;
+import org.kpax.winfoom.util.ConnectRacer;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.functional.ProxySingletonSupplier;
@@ -80,7 +82,7 @@ public class TunnelConnection {
     void init() {
         this.httpProcessor = new ImmutableHttpProcessor(new RequestTargetHost(),
                 new RequestClientConnControl(), new RequestUserAgent());
-        this.requestExec = new HttpRequestExecutor();
+        this.requestExec = RequestTiming.TimingRequestExecutor.INSTANCE;
         this.proxyAuthStrategy = new ProxyAuthenticationStrategy();
         this.authenticator = new HttpAuthenticator();
     }
@@ -88,6 +90,33 @@ public class TunnelConnection {
     public Tunnel open(final HttpHost proxy, final HttpHost target,
                        final ProtocolVersion protocolVersion)
             throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, null);
+    }
+
+    public Tunnel open(final HttpHost proxy, final HttpHost target,
+                       final ProtocolVersion protocolVersion,
+                       final RequestTiming timing)
+            throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, timing, null);
+    }
+
+    /**
+     * Open a tunnel through the proxy, recording the connect and the authentication legs on the request's timing.
+     *
+     * @param proxy           the proxy
+     * @param target          the tunnel's target
+     * @param protocolVersion the CONNECT request's protocol version
+     * @param timing          the request's timing, may be {@code null}
+     * @param connectedSocket a socket already connected to the proxy, used for the first CONNECT, may be {@code null}
+     * @return the tunnel.
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Tunnel open(final HttpHost proxy, final HttpHost target,
+                       final ProtocolVersion protocolVersion,
+                       final RequestTiming timing,
+                       final Socket connectedSocket)
+            throws IOException, HttpException {
         Args.notNull(proxy, "Proxy host");
         Args.notNull(target, "Target host");
 
@@ -101,6 +130,9 @@ public class TunnelConnection {
                 proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
         final ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route,
                 ConnectionConfig.DEFAULT);
+        if (connectedSocket != null) {
+            connection.bind(connectedSocket);
+        }
         final HttpContext context = new BasicHttpContext();
         final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
 
@@ -113,15 +145,31 @@ public class TunnelConnection {
         context.setAttribute(HttpClientContext.CREDS_PROVIDER, credentialsProviderSupplier.get());
         context.setAttribute(HttpClientContext.REQUEST_CONFIG, RequestConfig.DEFAULT);
         context.setAttribute(HttpClientContext.AUTHSCHEME_REGISTRY, authSchemeRegistrySupplier.get());
+        if (timing != null) {
+            context.setAttribute(RequestTiming.CONTEXT_ATTRIBUTE, timing);
+        }
 
         requestExec.preProcess(connect, httpProcessor, context);
 
         HttpResponse response;
         while (true) {
             if (!connection.isOpen()) {
-                Socket socket = new Socket(proxy.getHostName(), proxy.getPort());
-                systemConfig.configureSocket(socket);
-                connection.bind(socket);
+                ProxyEvents.UpstreamConnect connectEvent = new ProxyEvents.UpstreamConnect();
+                connectEvent.begin();
+                long connectStart = System.nanoTime();
+                try {
+                    connection.bind(ConnectRacer.connect(proxy.getHostName(), proxy.getPort(), systemConfig));
+                    connectEvent.success = true;
+                } finally {
+                    if (connectEvent.shouldCommit()) {
+                        connectEvent.proxy = proxy.toHostString();
+                        connectEvent.target = target.toHostString();
+                        connectEvent.commit();
+                    }
+                }
+                if (timing != null) {
+                    timing.carve(RequestTiming.Phase.CONNECT, System.nanoTime() - connectStart);
+                }
             }
 
             authenticator.generateAuthResponse(connect, proxyAuthState, context);
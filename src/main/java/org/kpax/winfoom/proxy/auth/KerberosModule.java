@@ -3,7 +3,10 @@ package org.kpax.winfoom.proxy.auth;
 import com.sun.security.auth.module.Krb5LoginModule;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.jfr.ProxyEvents;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
 import org.kpax.winfoom.proxy.listener.ProxyListener;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.util.DateUtils;
 import org.kpax.winfoom.util.functional.PrivilegedActionWrapper;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
@@ -23,12 +26,14 @@ import javax.security.auth.login.LoginException;
 import java.security.PrivilegedActionException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Responsible for Kerberos authentication, authorization.
  */
 @Component
-public class KerberosModule implements ProxyListener {
+public class KerberosModule implements ProxyListener, ReloadListener {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -48,6 +53,17 @@ public class KerberosModule implements ProxyListener {
                 return new Krb5JaasAuth();
             });
 
+    /**
+     * Runs the proactive ticket renewal and retires the replaced logins.
+     */
+    private final SingletonSupplier<ScheduledExecutorService> renewalSchedulerSupplier =
+            new SingletonSupplier<>(() -> {
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                        new ProxyExecutorService.DefaultThreadFactory());
+                scheduler.setRemoveOnCancelPolicy(true);
+                return scheduler;
+            });
+
     public void authenticate() throws LoginException {
         kerberosAuthenticatorSupplier.get().authenticate();
     }
@@ -65,65 +81,144 @@ public class KerberosModule implements ProxyListener {
 
     @Override
     public void onStop() {
-        if (proxyConfig.isKerberos()) {
-            kerberosAuthenticatorSupplier.reset();
+        // The configuration might have changed since start
+        boolean kerberos = kerberosAuthenticatorSupplier.hasValue() || renewalSchedulerSupplier.hasValue();
+        kerberosAuthenticatorSupplier.reset(Krb5JaasAuth::close);
+        // Log out the retired logins now, instead of dropping them
+        renewalSchedulerSupplier.reset(scheduler -> scheduler.shutdownNow().forEach(Runnable::run));
+        if (kerberos) {
             System.clearProperty("java.security.krb5.conf");
         }
     }
 
+    /**
+     * The new requests get a new login, if still configured for Kerberos, while the current one
+     * is logged out after {@link #RETIRE_DELAY} seconds, the requests in progress might still use it.
+     */
+    @Override
+    public void onReload() {
+        kerberosAuthenticatorSupplier.reset(Krb5JaasAuth::retire);
+    }
+
+    /**
+     * Holds the current {@link Login}, replaced atomically on each new login,
+     * so the request threads only read a volatile field and never wait behind a lock.
+     * <p>A login is never modified once done: a ticket is renewed by a new login, which replaces the current one.
+     * The concurrent logins (the proxy's 407 responses, the proactive renewal) share the one in progress.
+     * <p>When {@code kerberos.renewal.margin} is positive, a new login is done in background
+     * that many seconds before the ticket's end time. The replaced login is logged out after
+     * a grace period, so the requests still using it are not disturbed.
+     */
     private class Krb5JaasAuth implements AutoCloseable {
 
-        volatile Krb5LoginModule loginContext;
+        /**
+         * The min delay between two renewals (seconds).
+         */
+        private static final int MIN_RENEWAL_DELAY = 10;
 
-        volatile Subject subject;
+        private volatile Login current;
 
-        volatile KerberosTicket kerberosTicket;
+        /**
+         * The login in progress, if any.
+         */
+        private final AtomicReference<CompletableFuture<Login>> loginInProgress = new AtomicReference<>();
 
-        private synchronized void authenticate() throws LoginException {
-            logger.debug("Attempting Kerberos authentication");
+        private ScheduledFuture<?> renewal;
 
-            if (kerberosTicket != null) {
+        private boolean closed;
 
-                // Enforcing the minimum login gap policy.
-                // This is necessary to avoid useless multiple logins
-                // in simultaneous access cases.
-                if (kerberosTicket.isCurrent() &&
-                        kerberosTicket.getAuthTime() != null &&
-                        DateUtils.secondsFromCurrent(kerberosTicket.getAuthTime()) < systemConfig.getKerberosLoginMinInterval()) {
-                    logger.debug("Already authenticated, nothing to do");
-                    return;
-                }
+        private void authenticate() throws LoginException {
+            logger.debug("Attempting Kerberos authentication");
+            Login login = current;
+            KerberosTicket kerberosTicket = login != null ? login.kerberosTicket : null;
+
+            // Enforcing the minimum login gap policy.
+            // This is necessary to avoid useless multiple logins
+            // in simultaneous access cases.
+            if (kerberosTicket != null &&
+                    kerberosTicket.isCurrent() &&
+                    kerberosTicket.getAuthTime() != null &&
+                    DateUtils.secondsFromCurrent(kerberosTicket.getAuthTime()) < systemConfig.getKerberosLoginMinInterval()) {
+                logger.debug("Already authenticated, nothing to do");
+                return;
+            }
 
-                if (kerberosTicket.isRenewable()) {
-                    try {
-                        // Try to renew the ticket
-                        kerberosTicket.refresh();
-                        logger.debug("Ticket refresh succeeded");
-                        return;
-                    } catch (Exception e) {
-                        logger.debug("Ticket refresh failed", e);
+            sharedLogin();
+        }
+
+        /**
+         * Login in background and replace the current login.
+         */
+        private void renew() {
+            if (current == null) {
+                // Closed meanwhile
+                return;
+            }
+            try {
+                logger.debug("Proactive Kerberos ticket renewal");
+                sharedLogin();
+            } catch (Exception e) {
+                logger.warn("Proactive Kerberos ticket renewal failed: {}", e.getMessage());
+                KerberosTicket kerberosTicket = current != null ? current.kerberosTicket : null;
+                if (kerberosTicket != null && kerberosTicket.isCurrent()) {
+                    // Retry later, while the ticket is still valid
+                    synchronized (this) {
+                        if (!closed) {
+                            renewal = renewalSchedulerSupplier.get().schedule(this::renew,
+                                    MIN_RENEWAL_DELAY, TimeUnit.SECONDS);
+                        }
                     }
                 }
-
             }
+        }
 
-            if (loginContext != null) {
+        /**
+         * Login and replace the current login, or wait for the login already in progress.
+         *
+         * @return the new login.
+         * @throws LoginException on login failure
+         */
+        private Login sharedLogin() throws LoginException {
+            CompletableFuture<Login> future = new CompletableFuture<>();
+            CompletableFuture<Login> inProgress = loginInProgress.compareAndExchange(null, future);
+            if (inProgress != null) {
+                logger.debug("Wait for the Kerberos login in progress");
                 try {
-                    logger.debug("Existent LoginContext found, try logout");
-                    loginContext.logout();
-                } catch (Exception e) {
-                    logger.warn("Cannot logout the former LoginContext: {}", e.getMessage());
+                    return inProgress.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LoginException("Interrupted while waiting for the Kerberos login");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof LoginException) {
+                        throw (LoginException) e.getCause();
+                    }
+                    throw (RuntimeException) e.getCause();
                 }
             }
+            try {
+                Login login = login();
+                swap(login);
+                future.complete(login);
+                return login;
+            } catch (LoginException | RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                loginInProgress.set(null);
+            }
+        }
 
+        private Login login() throws LoginException {
+            ProxyEvents.KerberosLogin event = new ProxyEvents.KerberosLogin();
+            event.begin();
+            Krb5LoginModule loginContext = new Krb5LoginModule();
+            Subject subject = new Subject();
             try {
-                loginContext = new Krb5LoginModule();
                 Map<String, String> map = new HashMap<>();
                 map.put("storeKey", "true");
                 if (logger.isDebugEnabled()) {
                     map.put("debug", "true");
                 }
-                subject = new Subject();
 
                 loginContext.initialize(subject, callbacks -> {
                     for (Callback callback : callbacks) {
@@ -140,12 +235,15 @@ public class KerberosModule implements ProxyListener {
                 loginContext.commit();
             } catch (Exception e) {
                 // Cleanup on exception
-                logout();
+                new Login(loginContext, subject, null).logout();
+                commitLoginEvent(event, false);
                 throw e;
             }
+            commitLoginEvent(event, true);
 
             // Retrieve the Kerberos credentials
             // Get Kerberos ticket
+            KerberosTicket kerberosTicket = null;
             for (Object o : subject.getPrivateCredentials()) {
                 if (o instanceof KerberosTicket) {
                     kerberosTicket = ((javax.security.auth.kerberos.KerberosTicket) o);
@@ -153,33 +251,116 @@ public class KerberosModule implements ProxyListener {
             }
 
             logger.debug("kerberosTicket {}", kerberosTicket);
+            return new Login(loginContext, subject, kerberosTicket);
         }
 
-        void logout() {
-            if (loginContext != null) {
-                try {
-                    loginContext.abort();
-                    loginContext = null;
-                } catch (Exception e) {
-                    logger.debug("Error on Kerberos logout: {}", e.getMessage());
-                }
+        private void commitLoginEvent(final ProxyEvents.KerberosLogin event, final boolean success) {
+            if (event.shouldCommit()) {
+                event.principal = proxyConfig.getProxyKrbPrincipal();
+                event.success = success;
+                event.commit();
             }
-            subject = null;
-            kerberosTicket = null;
+        }
+
+        private synchronized void swap(final Login login) {
+            if (closed) {
+                // Closed while logging in
+                login.logout();
+                return;
+            }
+            Login previous = current;
+            current = login;
+            if (previous != null) {
+                logger.debug("Existent login found, logout after {} seconds", RETIRE_DELAY);
+                renewalSchedulerSupplier.get().schedule(previous::logout, RETIRE_DELAY, TimeUnit.SECONDS);
+            }
+            scheduleRenewal(login.kerberosTicket);
+        }
+
+        private void scheduleRenewal(final KerberosTicket kerberosTicket) {
+            if (renewal != null) {
+                renewal.cancel(false);
+                renewal = null;
+            }
+            if (systemConfig.getKerberosRenewalMargin() <= 0
+                    || kerberosTicket == null || kerberosTicket.getEndTime() == null) {
+                return;
+            }
+            long lifetime = kerberosTicket.getEndTime().getTime() - System.currentTimeMillis();
+            long delay = lifetime - TimeUnit.SECONDS.toMillis(systemConfig.getKerberosRenewalMargin());
+            if (delay < lifetime / 2) {
+                // Short lived ticket, renew it halfway
+                delay = lifetime / 2;
+            }
+            delay = Math.max(delay, TimeUnit.SECONDS.toMillis(MIN_RENEWAL_DELAY));
+            logger.debug("Schedule the Kerberos ticket renewal in {} seconds", TimeUnit.MILLISECONDS.toSeconds(delay));
+            renewal = renewalSchedulerSupplier.get().schedule(this::renew, delay, TimeUnit.MILLISECONDS);
         }
 
         void execute(PrivilegedActionWrapper action) throws PrivilegedActionException {
-            if (subject != null) {
-                Subject.doAs(subject, action);
+            Login login = current;
+            if (login != null) {
+                Subject.doAs(login.subject, action);
             } else {
                 throw new SecurityException("Kerberos authentication not found, you need to login first");
             }
         }
 
+        /**
+         * Stop renewing the current login, then log it out after {@link #RETIRE_DELAY} seconds.
+         */
+        private synchronized void retire() {
+            closed = true;
+            if (renewal != null) {
+                renewal.cancel(false);
+                renewal = null;
+            }
+            renewalSchedulerSupplier.get().schedule(() -> {
+                close();
+                if (!proxyConfig.isKerberos() && !kerberosAuthenticatorSupplier.hasValue()) {
+                    System.clearProperty("java.security.krb5.conf");
+                }
+            }, RETIRE_DELAY, TimeUnit.SECONDS);
+        }
 
         @Override
-        public void close() {
-            logout();
+        public synchronized void close() {
+            closed = true;
+            if (renewal != null) {
+                renewal.cancel(false);
+                renewal = null;
+            }
+            Login login = current;
+            current = null;
+            if (login != null) {
+                login.logout();
+            }
+        }
+    }
+
+    /**
+     * An immutable login: the login module, the authenticated subject and its ticket.
+     */
+    private class Login {
+
+        private final Krb5LoginModule loginContext;
+
+        private final Subject subject;
+
+        private final KerberosTicket kerberosTicket;
+
+        private Login(Krb5LoginModule loginContext, Subject subject, KerberosTicket kerberosTicket) {
+            this.loginContext = loginContext;
+            this.subject = subject;
+            this.kerberosTicket = kerberosTicket;
+        }
+
+        void logout() {
+            try {
+                loginContext.abort();
+            } catch (Exception e) {
+                logger.debug("Error on Kerberos logout: {}", e.getMessage());
+            }
         }
     }
 
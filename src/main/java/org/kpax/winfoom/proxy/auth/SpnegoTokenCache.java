@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.auth;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.auth.AuthSchemeProvider;
+import org.apache.http.auth.Credentials;
+import org.apache.http.impl.auth.SPNegoScheme;
+import org.ietf.jgss.GSSException;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.listener.ReloadListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A per proxy SPN cache of pre-generated SPNEGO initial tokens.
+ * <p>An initial token carries a fresh Kerberos authenticator, so it is used only once (the proxy may have
+ * a replay cache) and only within {@code kerberos.spnego.tokenValidity} seconds from its creation
+ * (well within the Kerberos clock skew). The tokens are generated in background, within the Kerberos
+ * authenticated context, so a request only pays the GSS context setup when the cache is empty.
+ * The service tickets themselves are cached by JGSS in the authenticated subject.
+ * <p>On reload, the tokens are kept as long as the proxy and the Kerberos principal are the same.
+ * <p>The time spent in GSS is measured both in total and per request thread.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+@Component
+public class SpnegoTokenCache implements StopListener, ReloadListener {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The GSS time of the current request (nanoseconds).
+     */
+    private static final ThreadLocal<long[]> requestGssNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private KerberosModule kerberosModule;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    /**
+     * Key = the SPN's host<br>
+     * Value = the ready to use tokens, the oldest first
+     */
+    private final Map<String, Queue<Token>> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * The SPN hosts being refilled.
+     */
+    private final Set<String> refilling = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The Kerberos principal the cached tokens are generated for.
+     */
+    private volatile String principal;
+
+    /**
+     * The configured proxy host the cached tokens are generated for
+     * (the SPN's host might be its canonical name).
+     */
+    private volatile String proxyHost;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder requestNanos = new LongAdder();
+
+    private final LongAdder backgroundNanos = new LongAdder();
+
+    /**
+     * @return a SPNEGO {@link AuthSchemeProvider} whose schemes take their initial tokens from this cache.
+     */
+    @NotNull
+    public AuthSchemeProvider schemeProvider() {
+        return context -> new CachingSPNegoScheme();
+    }
+
+    /**
+     * Take a fresh token, or generate one if none is available, then trigger the refill.
+     *
+     * @param authServer the SPN's host
+     * @param generator  generates a new token, must be called within the Kerberos authenticated context
+     * @return the token.
+     * @throws GSSException on token generation failure
+     */
+    byte[] take(@NotNull final String authServer, @NotNull final TokenGenerator generator) throws GSSException {
+        long validity = TimeUnit.SECONDS.toNanos(systemConfig.getKerberosSpnegoTokenValidity());
+        if (validity <= 0) {
+            return timed(generator, true);
+        }
+        Queue<Token> queue = tokens.computeIfAbsent(authServer, k -> new ConcurrentLinkedQueue<>());
+        byte[] value = null;
+        for (Token token; (token = queue.poll()) != null; ) {
+            if (System.nanoTime() - token.createdNanos < validity) {
+                value = token.value;
+                break;
+            }
+            logger.debug("Discard stale SPNEGO token for {}", authServer);
+        }
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            value = timed(generator, true);
+        }
+        refill(authServer, queue, generator);
+        return value;
+    }
+
+    private void refill(final String authServer, final Queue<Token> queue, final TokenGenerator generator) {
+        if (queue.size() >= systemConfig.getKerberosSpnegoPrefetch() || !refilling.add(authServer)) {
+            return;
+        }
+        executorService.execute(() -> {
+            try {
+                principal = proxyConfig.getProxyKrbPrincipal();
+                proxyHost = proxyConfig.getProxyHost();
+                kerberosModule.execute(() -> {
+                    while (queue.size() < systemConfig.getKerberosSpnegoPrefetch()) {
+                        queue.add(new Token(timed(generator, false)));
+                    }
+                });
+                logger.debug("SPNEGO tokens refilled for {}", authServer);
+            } catch (Exception e) {
+                logger.debug("Cannot pre-generate SPNEGO tokens for " + authServer, e);
+            } finally {
+                refilling.remove(authServer);
+            }
+        });
+    }
+
+    private byte[] timed(final TokenGenerator generator, final boolean onRequest) throws GSSException {
+        long startTime = System.nanoTime();
+        try {
+            return generator.generate();
+        } finally {
+            long elapsed = System.nanoTime() - startTime;
+            if (onRequest) {
+                requestNanos.add(elapsed);
+                requestGssNanos.get()[0] += elapsed;
+            } else {
+                backgroundNanos.add(elapsed);
+            }
+        }
+    }
+
+    /**
+     * Reset the current thread's GSS time, to be called when a request starts.
+     */
+    public void startRequest() {
+        requestGssNanos.get()[0] = 0;
+    }
+
+    /**
+     * @return the time the current request's thread spent in GSS since {@link #startRequest()} (nanoseconds).
+     */
+    public long getRequestGssNanos() {
+        return requestGssNanos.get()[0];
+    }
+
+    /**
+     * Drop all the cached tokens, for example when the proxy rejects one.
+     */
+    public void clear() {
+        tokens.clear();
+    }
+
+    /**
+     * @return the number of tokens taken from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of tokens generated on the request path.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the total time spent in GSS on the request path (nanoseconds).
+     */
+    public long getRequestNanos() {
+        return requestNanos.sum();
+    }
+
+    /**
+     * @return the total time spent in GSS pre-generating tokens (nanoseconds).
+     */
+    public long getBackgroundNanos() {
+        return backgroundNanos.sum();
+    }
+
+    @Override
+    public void onStop() {
+        clear();
+    }
+
+    @Override
+    public void onReload() {
+        if (!proxyConfig.isKerberos()
+                || !Objects.equals(principal, proxyConfig.getProxyKrbPrincipal())
+                || !StringUtils.equalsIgnoreCase(proxyHost, proxyConfig.getProxyHost())) {
+            logger.debug("Kerberos configuration changed, clear the SPNEGO tokens");
+            clear();
+        }
+    }
+
+    @FunctionalInterface
+    interface TokenGenerator {
+        byte[] generate() throws GSSException;
+    }
+
+    private static final class Token {
+
+        private final byte[] value;
+
+        private final long createdNanos = System.nanoTime();
+
+        private Token(final byte[] value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * A {@link SPNegoScheme} taking its initial tokens from the cache.
+     * The continuation tokens, if any, are generated as usual.
+     */
+    private class CachingSPNegoScheme extends SPNegoScheme {
+
+        @Override
+        protected byte[] generateToken(final byte[] input,
+                                       final String authServer,
+                                       final Credentials credentials) throws GSSException {
+            if (input != null && input.length > 0) {
+                return timed(() -> super.generateToken(input, authServer, credentials), true);
+            }
+            return take(authServer, () -> CachingSPNegoScheme.super.generateToken(null, authServer, credentials));
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.kpax.winfoom.proxy.listener;
+
+/**
+ * If a {@link StopListener} implements this, the method {@link #onReload()} is called
+ * instead of {@link StopListener#onStop()} when the configuration is reloaded while the proxy is running.
+ * <p>The implementation must drop the state depending on the old configuration, for the new connections,
+ * while keeping whatever the connections in progress still use.
+ *
+ * @see org.kpax.winfoom.proxy.ProxyController#reload()
+ */
+@FunctionalInterface
+public interface ReloadListener {
+
+    /**
+     * The grace period before releasing the state replaced by a reload,
+     * that the connections in progress might still use (seconds).
+     */
+    int RETIRE_DELAY = 60;
+
+    void onReload();
+}
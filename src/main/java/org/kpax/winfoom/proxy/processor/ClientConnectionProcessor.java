@@ -15,13 +15,17 @@ package org.kpax.winfoom.proxy.processor;
 import org.apache.http.HttpException;
 import org.apache.http.HttpStatus;
 import org.kpax.winfoom.annotation.NotNull;
-import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.exception.ProxyAuthorizationException;
 import org.kpax.winfoom.exception.ProxyConnectException;
+import org.kpax.winfoom.jfr.ProxyEvents;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyMetrics;
+import org.kpax.winfoom.proxy.ProxyStats;
 import org.kpax.winfoom.proxy.auth.KerberosModule;
+import org.kpax.winfoom.proxy.auth.SpnegoTokenCache;
+import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.StreamSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,11 +35,13 @@ import javax.security.auth.login.LoginException;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.security.PrivilegedActionException;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Process a {@link ClientConnection} with a certain {@link ProxyInfo}.
@@ -51,14 +57,20 @@ public abstract class ClientConnectionProcessor {
     private ExecutorService executorService;
 
     @Autowired
-    private ProxyConfig proxyConfig;
+    private ProxyBlacklist proxyBlacklist;
 
     @Autowired
-    private ProxyBlacklist proxyBlacklist;
+    private ProxyStats proxyStats;
 
     @Autowired
     private KerberosModule kerberosModule;
 
+    @Autowired
+    private SpnegoTokenCache spnegoTokenCache;
+
+    @Autowired
+    private ProxyMetrics proxyMetrics;
+
     /**
      * Process the client's connection. That is:<br>
      * <ul>
@@ -105,6 +117,7 @@ public abstract class ClientConnectionProcessor {
     private void handleKerberosRequest(@NotNull final ClientConnection clientConnection,
                                        @NotNull final ProxyInfo proxyInfo)
             throws IOException, HttpException, ProxyAuthorizationException, PrivilegedActionException {
+        spnegoTokenCache.startRequest();
         try {
             kerberosModule.execute(() -> handleRequest(clientConnection, proxyInfo));
         } catch (PrivilegedActionException e) {
@@ -123,52 +136,118 @@ public abstract class ClientConnectionProcessor {
                 throw (RuntimeException) actualException;
             }
             throw e;
+        } finally {
+            logger.debug("GSS time for this request: {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(spnegoTokenCache.getRequestGssNanos()));
         }
     }
 
     /**
-     * Simultaneously transfer bytes between two sources in a mutually independent manner.
+     * Simultaneously transfer bytes between a source and the client in a mutually independent manner.
+     * <p>When both sources are backed by socket channels, the bytes are relayed through direct buffers,
+     * otherwise the streams are used.
      *
      * @param firstSource  The first source.
-     * @param secondSource The second source.
+     * @param secondSource The client.
      */
     void duplex(@NotNull final StreamSource firstSource,
-                @NotNull final StreamSource secondSource) {
+                @NotNull final ClientConnection secondSource) {
         logger.debug("Start full duplex communication");
-        Future<?> secondToFirst = executorService.submit(
-                () -> {
-                    try {
-                        secondSource.getInputStream().transferTo(firstSource.getOutputStream());
-                    } catch (SocketTimeoutException e) {
-                        logger.debug("Timeout exception on executing second to first transfer: {}", e.getMessage());
-                    } catch (SocketException e) {
-                        logger.debug("Socket exception on executing second to first transfer: {}", e.getMessage());
-                    } catch (Exception e) {
-                        logger.debug("Error on executing second to first transfer", e);
-                    }
-                });
+        ProxyEvents.Tunnel event = new ProxyEvents.Tunnel();
+        event.begin();
+        long bytesReceived = secondSource.getBytesReceived();
+        long bytesSent = secondSource.getBytesSent();
+        SocketChannel firstChannel = firstSource.getChannel();
+        SocketChannel secondChannel = secondSource.getChannel();
+        Transfer firstToSecond;
+        Transfer secondToFirst;
+        if (firstChannel != null && secondChannel != null) {
+            int firstTimeout;
+            int secondTimeout;
+            try {
+                firstTimeout = firstChannel.socket().getSoTimeout();
+                secondTimeout = secondChannel.socket().getSoTimeout();
+                firstChannel.configureBlocking(false);
+                secondChannel.configureBlocking(false);
+            } catch (IOException e) {
+                logger.debug("Cannot switch channels to non-blocking mode", e);
+                restoreBlocking(firstChannel);
+                restoreBlocking(secondChannel);
+                return;
+            }
+            // The channels bypass the client's counting streams
+            firstToSecond = () -> InputOutputs.transfer(firstChannel, secondChannel, firstTimeout,
+                    bytes -> {
+                        proxyMetrics.addRelayedBytes(bytes);
+                        secondSource.addBytesSent(bytes);
+                    });
+            secondToFirst = () -> InputOutputs.transfer(secondChannel, firstChannel, secondTimeout,
+                    bytes -> {
+                        proxyMetrics.addRelayedBytes(bytes);
+                        secondSource.addBytesReceived(bytes);
+                    });
+        } else {
+            firstToSecond = () -> InputOutputs.transfer(firstSource.getInputStream(),
+                    secondSource.getOutputStream(), proxyMetrics::addRelayedBytes);
+            secondToFirst = () -> InputOutputs.transfer(secondSource.getInputStream(),
+                    firstSource.getOutputStream(), proxyMetrics::addRelayedBytes);
+        }
+        proxyMetrics.onTunnelOpened();
+        secondSource.onTunnelOpened(firstSource instanceof AutoCloseable ? (AutoCloseable) firstSource : null);
+        try {
+            Future<?> secondToFirstFuture = executorService.submit(
+                    () -> transfer(secondToFirst, "second to first"));
+            transfer(firstToSecond, "first to second");
+            if (!secondToFirstFuture.isDone()) {
+                // Wait for the async transfer to finish
+                try {
+                    secondToFirstFuture.get();
+                } catch (ExecutionException e) {// Normally, we shouldn't get here
+                    logger.debug("Error on executing second to first transfer", e.getCause());
+                } catch (InterruptedException e) {
+                    logger.debug("Transfer from second to first interrupted: {}", e.getMessage());
+                } catch (CancellationException e) {
+                    logger.debug("Transfer from second to first cancelled: {}", e.getMessage());
+                }
+            }
+        } finally {
+            if (firstChannel != null && secondChannel != null) {
+                // Leave the channels the way we found them
+                restoreBlocking(firstChannel);
+                restoreBlocking(secondChannel);
+            }
+            proxyMetrics.onTunnelClosed();
+            secondSource.onTunnelClosed();
+        }
+        if (event.shouldCommit()) {
+            event.target = secondSource.getRequestLine().getUri();
+            event.bytesIn = secondSource.getBytesReceived() - bytesReceived;
+            event.bytesOut = secondSource.getBytesSent() - bytesSent;
+            event.commit();
+        }
+        logger.debug("End full duplex communication");
+    }
+
+    private void transfer(@NotNull final Transfer transfer, @NotNull final String direction) {
         try {
-            firstSource.getInputStream().transferTo(secondSource.getOutputStream());
+            transfer.execute();
         } catch (SocketTimeoutException e) {
-            logger.debug("Timeout exception on executing first to second transfer: {}", e.getMessage());
+            logger.debug("Timeout exception on executing {} transfer: {}", direction, e.getMessage());
         } catch (SocketException e) {
-            logger.debug("Socket exception on executing first to second transfer: {}", e.getMessage());
+            logger.debug("Socket exception on executing {} transfer: {}", direction, e.getMessage());
         } catch (Exception e) {
-            logger.debug("Error on executing first to second transfer", e);
+            logger.debug("Error on executing " + direction + " transfer", e);
         }
-        if (!secondToFirst.isDone()) {
-            // Wait for the async transfer to finish
+    }
+
+    private void restoreBlocking(@NotNull final SocketChannel channel) {
+        if (channel.isOpen()) {
             try {
-                secondToFirst.get();
-            } catch (ExecutionException e) {// Normally, we shouldn't get here
-                logger.debug("Error on executing second to first transfer", e.getCause());
-            } catch (InterruptedException e) {
-                logger.debug("Transfer from second to first interrupted: {}", e.getMessage());
-            } catch (CancellationException e) {
-                logger.debug("Transfer from second to first cancelled: {}", e.getMessage());
+                channel.configureBlocking(true);
+            } catch (Exception e) {
+                logger.debug("Cannot switch channel back to blocking mode", e);
             }
         }
-        logger.debug("End full duplex communication");
     }
 
     /**
@@ -198,7 +277,9 @@ public abstract class ClientConnectionProcessor {
                 // The Kerberos proxy rejected the request.
                 // Normally this happens when the ticket is expired
                 // so we re-login to get a new valid ticket
+                // and drop the tokens made with the old one
                 kerberosModule.authenticate();
+                spnegoTokenCache.clear();
 
                 logger.debug("Second attempt to handle request within Kerberos auth context");
 
@@ -219,7 +300,8 @@ public abstract class ClientConnectionProcessor {
      * Call the {@link #handleRequest(ClientConnection, ProxyInfo)} method
      * then {@link #handleError(ClientConnection, ProxyInfo, Exception)} method
      * if an exception occurs.
-     * Also, blacklist the autoconfig proxy on {@link ProxyConnectException}.
+     * Also, blacklist the autoconfig proxy on {@link ProxyConnectException},
+     * or notify the blacklist on success.
      * <p>If it returns normally, the response will be considered committed.</p>
      *
      * @param clientConnection the {@link ClientConnection} instance.
@@ -231,7 +313,7 @@ public abstract class ClientConnectionProcessor {
             throws ProxyConnectException {
         logger.debug("Process {} for {}", clientConnection, proxyInfo);
         try {
-            if (proxyConfig.isKerberos()) {
+            if (clientConnection.getConfig().isKerberos()) {
                 try {
                     processKerberos(clientConnection, proxyInfo);
                 } catch (PrivilegedActionException e) {
@@ -242,12 +324,17 @@ public abstract class ClientConnectionProcessor {
             } else {
                 handleRequest(clientConnection, proxyInfo);
             }
+            proxyStats.recordOutcome(proxyInfo, true);
+            if (clientConnection.getConfig().isAutoConfig()) {
+                proxyBlacklist.onSuccess(proxyInfo);
+            }
         } catch (Exception e) {
             logger.debug("Error on handling request", e);
             try {
                 handleError(clientConnection, proxyInfo, e);
             } catch (ProxyConnectException pce) {
-                if (proxyConfig.isAutoConfig()) {
+                proxyStats.recordOutcome(proxyInfo, false);
+                if (clientConnection.getConfig().isAutoConfig()) {
                     proxyBlacklist.blacklist(proxyInfo);
                 }
                 throw pce;
@@ -255,4 +342,11 @@ public abstract class ClientConnectionProcessor {
         }
     }
 
+    /**
+     * One direction of a full duplex communication.
+     */
+    @FunctionalInterface
+    private interface Transfer {
+        void execute() throws IOException;
+    }
 }
@@ -15,11 +15,12 @@ package org.kpax.winfoom.proxy.processor;
 import org.apache.http.*;
 import org.apache.http.impl.execchain.TunnelRefusedException;
 import org.kpax.winfoom.annotation.ThreadSafe;
-import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.exception.ProxyAuthorizationException;
 import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyStats;
+import org.kpax.winfoom.proxy.RequestTiming;
 import org.kpax.winfoom.proxy.Tunnel;
 import org.kpax.winfoom.proxy.TunnelConnection;
 import org.kpax.winfoom.util.HttpUtils;
@@ -48,7 +49,7 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
     private TunnelConnection tunnelConnection;
 
     @Autowired
-    private ProxyConfig proxyConfig;
+    private ProxyStats proxyStats;
 
     @Override
     void handleRequest(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
@@ -56,7 +57,12 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
         RequestLine requestLine = clientConnection.getRequestLine();
         HttpHost target = HttpHost.create(requestLine.getUri());
         HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort());
-        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion())) {
+        RequestTiming timing = clientConnection.getTiming();
+        long startTime = System.nanoTime();
+        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(), timing,
+                clientConnection.takePreConnectedSocket(proxyInfo))) {
+            proxyStats.recordFirstByte(proxyInfo, System.nanoTime() - startTime);
+            timing.stamp(RequestTiming.Phase.FIRST_BYTE);
             try {
                 // Handle the tunnel response
                 logger.debug("Write status line {}", tunnel.getStatusLine());
@@ -76,11 +82,13 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
                 duplex(tunnel, clientConnection);
             } catch (Exception e) {
                 logger.debug("Error on handling CONNECT response", e);
+            } finally {
+                timing.stamp(RequestTiming.Phase.TRANSFER);
             }
         } catch (TunnelRefusedException tre) {
             logger.debug("The tunnel request was rejected by the proxy host", tre);
             if (tre.getResponse().getStatusLine().getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED &&
-                    proxyConfig.isKerberos()) {
+                    clientConnection.getConfig().isKerberos()) {
                 throw new ProxyAuthorizationException(tre.getResponse());
             }
             try {
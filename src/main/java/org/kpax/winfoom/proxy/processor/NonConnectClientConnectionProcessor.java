@@ -22,24 +22,33 @@ import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.annotation.ThreadSafe;
-import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.ProxyAuthorizationException;
 import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
+import org.kpax.winfoom.proxy.HeaderPolicy;
+import org.kpax.winfoom.proxy.HotRoutes;
 import org.kpax.winfoom.proxy.HttpClientBuilderFactory;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyStats;
+import org.kpax.winfoom.proxy.RequestCoalescer;
+import org.kpax.winfoom.proxy.RequestTiming;
+import org.kpax.winfoom.proxy.ResponseCache;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Process any type of non-CONNECT request for any type of proxy.
@@ -57,10 +66,22 @@ class NonConnectClientConnectionProcessor extends ClientConnectionProcessor {
     private SystemConfig systemConfig;
 
     @Autowired
-    private ProxyConfig proxyConfig;
+    private HttpClientBuilderFactory clientBuilderFactory;
 
     @Autowired
-    private HttpClientBuilderFactory clientBuilderFactory;
+    private HeaderPolicy headerPolicy;
+
+    @Autowired
+    private ProxyStats proxyStats;
+
+    @Autowired
+    private HotRoutes hotRoutes;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private RequestCoalescer requestCoalescer;
 
     @Override
     void handleRequest(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
@@ -70,36 +91,106 @@ class NonConnectClientConnectionProcessor extends ClientConnectionProcessor {
             HttpHost target = new HttpHost(uri.getHost(),
                     uri.getPort(),
                     uri.getScheme());
+            hotRoutes.record(proxyInfo, target);
+            RequestTiming timing = clientConnection.getTiming();
             HttpClientContext context = HttpClientContext.create();
+            context.setAttribute(RequestTiming.CONTEXT_ATTRIBUTE, timing);
             if (proxyInfo.getType().isSocks()) {
                 InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
                         proxyInfo.getProxyHost().getPort());
                 context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+                context.setAttribute(HttpUtils.CONFIG_SNAPSHOT, clientConnection.getConfig());
+            }
+
+            RequestCoalescer.Flight flight = requestCoalescer.isEnabled() ?
+                    requestCoalescer.join(clientConnection.getRequest(), uri, proxyInfo) : null;
+            if (flight != null && !flight.isLeader()) {
+                // Wait for the identical request in flight
+                HttpResponse sharedResponse;
+                try {
+                    sharedResponse = flight.await(systemConfig.getSocketSoTimeout(), TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the request in flight");
+                }
+                if (sharedResponse != null) {
+                    timing.stamp(RequestTiming.Phase.FIRST_BYTE);
+                    writeResponse(clientConnection, sharedResponse, timing);
+                    return;
+                }
+                logger.debug("Cannot share the response of the request in flight, execute the request");
+                flight = null;
+            }
+
+            // Already connected when the proxy won the PAC proxies connect race,
+            // handed over by the connection socket factory
+            Socket connectedSocket = clientConnection.takePreConnectedSocket(proxyInfo);
+            if (connectedSocket != null) {
+                context.setAttribute(HttpUtils.PRE_CONNECTED_SOCKET, connectedSocket);
             }
 
             // Execute the request
+            long startTime = System.nanoTime();
             try (CloseableHttpResponse response = httpClient.execute(target, clientConnection.getRequest(), context)) {
+                // A response served by the cache says nothing about the upstream proxy
+                if (!responseCache.isEnabled() || !responseCache.onResponse(context)) {
+                    proxyStats.recordFirstByte(proxyInfo, System.nanoTime() - startTime);
+                }
+                timing.stamp(RequestTiming.Phase.FIRST_BYTE);
                 StatusLine statusLine = response.getStatusLine();
                 if (statusLine.getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED &&
-                        proxyConfig.isKerberos()) {
+                        clientConnection.getConfig().isKerberos()) {
                     if (response.getEntity() != null) {
                         response.setEntity(new BufferedHttpEntity(response.getEntity()));
                     }
                     throw new ProxyAuthorizationException(response);
                 }
-                try {
-                    logger.debug("Write status line: {}", statusLine);
-                    clientConnection.write(statusLine);
-                    clientConnection.write(HttpUtils.createViaHeader(
-                            clientConnection.getRequestLine().getProtocolVersion(),
-                            response.getFirstHeader(HttpHeaders.VIA)));
-
-                    response.removeHeaders(HttpHeaders.VIA);
-                    response.removeHeaders(HttpHeaders.PROXY_AUTHENTICATE);
+                writeResponse(clientConnection, flight != null ? flight.share(response) : response, timing);
+            } finally {
+                if (flight != null) {
+                    // The followers make their own request, unless already shared
+                    flight.abandon();
+                }
+                // Not handed over when a pooled connection has been leased
+                Socket unusedSocket = (Socket) context.removeAttribute(HttpUtils.PRE_CONNECTED_SOCKET);
+                if (unusedSocket != null) {
+                    InputOutputs.close(unusedSocket);
+                }
+            }
+        }
+    }
 
-                    for (Header header : response.getAllHeaders()) {
-                        if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
+    /**
+     * Write the response to the client, filtering its headers.
+     * <p>An error is only logged, since the response is already committed.
+     *
+     * @param clientConnection the {@link ClientConnection} instance.
+     * @param response         the upstream or the shared response.
+     * @param timing           the request's timing.
+     */
+    private void writeResponse(final ClientConnection clientConnection,
+                               final HttpResponse response,
+                               final RequestTiming timing) {
+        try {
+            StatusLine statusLine = response.getStatusLine();
+            logger.debug("Write status line: {}", statusLine);
+            clientConnection.write(statusLine);
 
+            // Filter the headers in one pass
+            HeaderPolicy.Table headerTable = headerPolicy.getResponseTable();
+            Header viaHeader = null;
+            for (HeaderIterator itr = response.headerIterator(); itr.hasNext(); ) {
+                Header header = itr.nextHeader();
+                switch (headerTable.getAction(header.getName())) {
+                    case DROP:
+                        logger.debug("Remove response header: {}", header);
+                        break;
+                    case REWRITE:
+                        if (HttpHeaders.VIA.equalsIgnoreCase(header.getName())) {
+                            if (viaHeader == null) {
+                                viaHeader = header;
+                            }
+                        } else {
                             // Strip 'chunked' from Transfer-Encoding header's value
                             // since the response is not chunked
                             String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
@@ -111,31 +202,39 @@ class NonConnectClientConnectionProcessor extends ClientConnectionProcessor {
                             } else {
                                 logger.debug("Remove transfer encoding chunked header response");
                             }
-                        } else {
-                            logger.debug("Write response header: {}", header);
-                            clientConnection.write(header);
                         }
-                    }
-
-                    // Empty line marking the end
-                    // of header's section
-                    clientConnection.writeln();
+                        break;
+                    default:
+                        logger.debug("Write response header: {}", header);
+                        clientConnection.write(header);
+                }
+            }
+            clientConnection.write(HttpUtils.createViaHeader(
+                    clientConnection.getRequestLine().getProtocolVersion(), viaHeader));
+            for (Header header : headerPolicy.getResponseAddedHeaders()) {
+                logger.debug("Add response header: {}", header);
+                clientConnection.write(header);
+            }
 
-                    // Now write the request body, if any
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        logger.debug("Start writing entity content");
-                        entity.writeTo(clientConnection.getOutputStream());
-                        logger.debug("End writing entity content");
+            // Empty line marking the end
+            // of header's section
+            clientConnection.writeln();
 
-                        // Make sure the entity is fully consumed
-                        EntityUtils.consume(entity);
-                    }
+            // Now write the request body, if any
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                logger.debug("Start writing entity content");
+                entity.writeTo(clientConnection.getOutputStream());
+                logger.debug("End writing entity content");
 
-                } catch (Exception e) {
-                    logger.debug("Error on handling non CONNECT response", e);
-                }
+                // Make sure the entity is fully consumed
+                EntityUtils.consume(entity);
             }
+
+        } catch (Exception e) {
+            logger.debug("Error on handling non CONNECT response", e);
+        } finally {
+            timing.stamp(RequestTiming.Phase.TRANSFER);
         }
     }
 
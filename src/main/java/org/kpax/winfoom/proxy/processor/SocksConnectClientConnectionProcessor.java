@@ -15,13 +15,16 @@ package org.kpax.winfoom.proxy.processor;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
-import org.apache.http.protocol.HTTP;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.ProxyStats;
+import org.kpax.winfoom.proxy.RequestTiming;
+import org.kpax.winfoom.util.ConnectRacer;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.SocksHandshake;
 import org.kpax.winfoom.util.StreamSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,37 +49,39 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private ProxyStats proxyStats;
+
     @Override
     void handleRequest(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
         RequestLine requestLine = clientConnection.getRequestLine();
         HttpHost target = HttpHost.create(requestLine.getUri());
-        Proxy proxy;
-        if (proxyInfo.getType().isSocks()) {
-            proxy = new Proxy(Proxy.Type.SOCKS,
-                    new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                            proxyInfo.getProxyHost().getPort()));
-        } else {
-            proxy = Proxy.NO_PROXY;
+        // The SOCKS proxy for SOCKS, the target itself for DIRECT
+        HttpHost endpoint = proxyInfo.getType().isSocks() ? proxyInfo.getProxyHost() : target;
+        long startTime = System.nanoTime();
+        // Already connected when the proxy won the PAC proxies connect race
+        Socket connectedSocket = clientConnection.takePreConnectedSocket(proxyInfo);
+        if (connectedSocket == null) {
+            logger.debug("Open connection to {}", endpoint);
+            connectedSocket = ConnectRacer.connect(endpoint.getHostName(), endpoint.getPort(), systemConfig);
         }
-
-        try (Socket socket = new Socket(proxy)) {
-            systemConfig.configureSocket(socket);
-            if (proxyInfo.getType().isSocks4()) {
-                HttpUtils.setSocks4(socket);
+        try (Socket socket = connectedSocket) {
+            if (proxyInfo.getType().isSocks()) {
+                // The SOCKS handshake is done in-house, the target's host name being resolved by the SOCKS proxy
+                boolean socks5 = proxyInfo.getType().isSocks5();
+                SocksHandshake.connect(socket, proxyInfo.getType().isSocks4(),
+                        target.getHostName(), target.getPort(),
+                        socks5 ? clientConnection.getConfig().getProxySocks5Username() : null,
+                        socks5 ? clientConnection.getConfig().getProxySocks5Password() : null);
             }
-            logger.debug("Open connection");
-            socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
-                    systemConfig.getSocketConnectTimeout() * 1000);
+            proxyStats.recordConnect(proxyInfo, System.nanoTime() - startTime);
+            clientConnection.getTiming().stamp(RequestTiming.Phase.CONNECT);
 
             logger.debug("Connected to {}", target);
 
             // Respond with 200 code
-            clientConnection.write(String.format("%s 200 Connection established",
-                    requestLine.getProtocolVersion()));
-            clientConnection.write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER,
-                    HttpUtils.getCurrentDate()));
-            clientConnection.writeln();
+            clientConnection.writeConnectionEstablished();
 
             try {
                 // The proxy facade mediates the full duplex communication
@@ -85,6 +90,8 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
                 duplex(StreamSource.from(socket), clientConnection);
             } catch (Exception e) {
                 logger.error("Error on full duplex", e);
+            } finally {
+                clientConnection.getTiming().stamp(RequestTiming.Phase.TRANSFER);
             }
 
         }
@@ -95,7 +102,11 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
                      ProxyInfo proxyInfo, Exception e) throws ProxyConnectException {
         if (e instanceof UnknownHostException) {
             clientConnection.writeErrorResponse(HttpStatus.SC_NOT_FOUND, e.getMessage());
+        } else if (e instanceof ConnectException) {
+            // Refused or timed out, including the racing of the endpoint's addresses
+            throw new ProxyConnectException(e.getMessage(), e);
         } else if (e instanceof SocketTimeoutException) {
+            // Read timeout, once connected
             clientConnection.writeErrorResponse(HttpStatus.SC_GATEWAY_TIMEOUT, e.getMessage());
         } else if (e instanceof SocketException) {
             if (HttpUtils.isConnectionRefused((SocketException) e)
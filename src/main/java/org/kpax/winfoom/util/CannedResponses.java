@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The responses generated by Winfoom itself, pre-encoded.
+ * <p>For the common statuses, the status lines (HTTP/1.0 and HTTP/1.1) and the rest of the
+ * response following the {@code Date} header are serialized once, so that answering
+ * is reduced to copying a few arrays and one socket write, even when the reason phrase is custom.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class CannedResponses {
+
+    /**
+     * The reason phrase of a successful CONNECT.
+     */
+    public static final String CONNECTION_ESTABLISHED = "Connection established";
+
+    private static final byte[] CRLF = CrlfConverter.CRLF.getBytes(StandardCharsets.US_ASCII);
+
+    private static final String PROXY_AUTH_FAILED_BODY = "<!DOCTYPE HTML \"-//IETF//DTD HTML 2.0//EN\">\n"
+            + "<html><head>\n"
+            + "<title>" + "Proxy authentication failed" + "</title>\n"
+            + "</head><body>\n"
+            + "Winfoom failed to login to the remote proxy with the provided credentials"
+            + "</body></html>\n";
+
+    private static final Map<Integer, Canned> CANNED = Stream.of(
+            new Canned(HttpStatus.SC_OK, CONNECTION_ESTABLISHED, null),
+            new Canned(HttpStatus.SC_BAD_REQUEST, null, null),
+            new Canned(HttpStatus.SC_NOT_FOUND, null, null),
+            new Canned(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, null, PROXY_AUTH_FAILED_BODY),
+            new Canned(HttpStatus.SC_INTERNAL_SERVER_ERROR, null, null),
+            new Canned(HttpStatus.SC_BAD_GATEWAY, null, null),
+            new Canned(HttpStatus.SC_SERVICE_UNAVAILABLE, null, null),
+            new Canned(HttpStatus.SC_GATEWAY_TIMEOUT, null, null)
+    ).collect(Collectors.toUnmodifiableMap(canned -> canned.statusCode, Function.identity()));
+
+    private CannedResponses() {
+    }
+
+    /**
+     * @param protocolVersion the response's protocol version
+     * @return the complete response to a successful CONNECT.
+     */
+    @NotNull
+    public static byte[] connectionEstablished(@NotNull final ProtocolVersion protocolVersion) {
+        return response(protocolVersion, HttpStatus.SC_OK, null);
+    }
+
+    /**
+     * @param protocolVersion the response's protocol version
+     * @return the complete response for a failed authentication to the remote proxy.
+     */
+    @NotNull
+    public static byte[] proxyAuthRequired(@NotNull final ProtocolVersion protocolVersion) {
+        return response(protocolVersion, HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, null);
+    }
+
+    /**
+     * Build a complete response: the status line, the current {@code Date} header and,
+     * for the canned statuses that have one, a body.
+     *
+     * @param protocolVersion the response's protocol version
+     * @param statusCode      the status code
+     * @param reasonPhrase    the reason phrase, if empty the default one is used
+     * @return the response's bytes.
+     */
+    @NotNull
+    public static byte[] response(@NotNull final ProtocolVersion protocolVersion,
+                                  final int statusCode,
+                                  final String reasonPhrase) {
+        Assert.notNull(protocolVersion, "protocolVersion cannot be null");
+        Canned canned = CANNED.get(statusCode);
+        int version = versionIndex(protocolVersion);
+        byte[] statusLine;
+        if (canned != null && version >= 0 && StringUtils.isEmpty(reasonPhrase)) {
+            statusLine = canned.statusLines[version];
+        } else if (canned != null && version >= 0) {
+            statusLine = concat(canned.statusLinePrefixes[version],
+                    reasonPhrase.getBytes(StandardCharsets.UTF_8), CRLF);
+        } else {
+            statusLine = CrlfConverter.convert(
+                    HttpUtils.toStatusLine(protocolVersion, statusCode, reasonPhrase));
+        }
+        return concat(statusLine, HttpDate.currentHeader(), canned != null ? canned.tail : CRLF);
+    }
+
+    private static int versionIndex(final ProtocolVersion protocolVersion) {
+        if (HttpVersion.HTTP_1_1.equals(protocolVersion)) {
+            return 1;
+        } else if (HttpVersion.HTTP_1_0.equals(protocolVersion)) {
+            return 0;
+        }
+        return -1;
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static final class Canned {
+
+        private final int statusCode;
+
+        /**
+         * Indexed by the minor version: HTTP/1.0, HTTP/1.1
+         */
+        private final byte[][] statusLinePrefixes = new byte[2][];
+
+        private final byte[][] statusLines = new byte[2][];
+
+        /**
+         * What follows the {@code Date} header, up to the end of the response.
+         */
+        private final byte[] tail;
+
+        private Canned(final int statusCode, final String reasonPhrase, final String body) {
+            this.statusCode = statusCode;
+            String reason = reasonPhrase != null ? reasonPhrase :
+                    EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ENGLISH);
+            for (int minor = 0; minor < 2; minor++) {
+                String prefix = "HTTP/1." + minor + " " + statusCode + " ";
+                statusLinePrefixes[minor] = prefix.getBytes(StandardCharsets.US_ASCII);
+                statusLines[minor] = (prefix + reason + CrlfConverter.CRLF).getBytes(StandardCharsets.US_ASCII);
+            }
+            if (body != null) {
+                byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+                tail = concat((HttpHeaders.CONTENT_LENGTH + ": " + bodyBytes.length + CrlfConverter.CRLF
+                        + CrlfConverter.CRLF).getBytes(StandardCharsets.US_ASCII), bodyBytes);
+            } else {
+                tail = CRLF;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staggered connect racing ("happy eyeballs", RFC 8305).
+ * <p>A connect is started to the first address, then, after a stagger delay (or as soon as
+ * the previous attempt fails), to the next one and so on. The first established connection wins,
+ * all the others are closed. Everything runs on the calling thread, over a single {@link Selector}.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class ConnectRacer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectRacer.class);
+
+    private ConnectRacer() {
+    }
+
+    /**
+     * Race the connects to the provided addresses.
+     *
+     * @param addresses     the addresses, in the order of preference
+     * @param staggerMillis the delay between starting two consecutive attempts
+     * @param timeoutMillis the overall timeout
+     * @return the winner, holding a connected, blocking {@link SocketChannel}.
+     * @throws SocketTimeoutException when no attempt succeeds in time
+     * @throws IOException            the last failure, when all attempts fail
+     */
+    @NotNull
+    public static Winner race(@NotNull final List<InetSocketAddress> addresses,
+                              final long staggerMillis,
+                              final long timeoutMillis) throws IOException {
+        Assert.notEmpty(addresses, "addresses cannot be empty");
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long stagger = TimeUnit.MILLISECONDS.toNanos(staggerMillis);
+        Map<SocketChannel, Integer> pending = new HashMap<>();
+        SocketChannel winnerChannel = null;
+        int winnerIndex = -1;
+        IOException lastFailure = null;
+        try (Selector selector = Selector.open()) {
+            int started = 0;
+            long nextStart = startTime;
+            while (winnerChannel == null) {
+                long now = System.nanoTime();
+                if (started < addresses.size() && (now - nextStart >= 0 || pending.isEmpty())) {
+                    int index = started++;
+                    nextStart = now + stagger;
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        logger.debug("Start connect #{} to {}", index, addresses.get(index));
+                        if (channel.connect(addresses.get(index))) {
+                            winnerChannel = channel;
+                            winnerIndex = index;
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT);
+                            pending.put(channel, index);
+                        }
+                    } catch (IOException | UnresolvedAddressException e) {
+                        logger.debug("Connect #{} failed: {}", index, e.getMessage());
+                        lastFailure = toIOException(e, addresses.get(index));
+                        InputOutputs.close(channel);
+                    }
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    throw lastFailure != null ? lastFailure : new ConnectException("No connect attempt");
+                }
+                if (now - deadline >= 0) {
+                    throw new SocketTimeoutException("connect timed out");
+                }
+                long wait = deadline - now;
+                if (started < addresses.size()) {
+                    wait = Math.min(wait, nextStart - now);
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Connect racing interrupted");
+                }
+                for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    int index = pending.get(channel);
+                    try {
+                        if (channel.finishConnect()) {
+                            key.cancel();
+                            pending.remove(channel);
+                            if (winnerChannel == null) {
+                                winnerChannel = channel;
+                                winnerIndex = index;
+                            } else {
+                                InputOutputs.close(channel);
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Connect #{} failed: {}", index, e.getMessage());
+                        lastFailure = e;
+                        key.cancel();
+                        pending.remove(channel);
+                        InputOutputs.close(channel);
+                    }
+                }
+            }
+        } finally {
+            // Cancel the losers
+            pending.keySet().forEach(InputOutputs::close);
+            if (lastFailure != null && winnerChannel == null) {
+                logger.debug("Connect racing failed", lastFailure);
+            }
+        }
+
+        // The selector is closed now, so the winner is deregistered
+        try {
+            winnerChannel.configureBlocking(true);
+        } catch (IOException e) {
+            InputOutputs.close(winnerChannel);
+            throw e;
+        }
+        logger.debug("Connect #{} to {} won", winnerIndex, addresses.get(winnerIndex));
+        return new Winner(winnerIndex, winnerChannel);
+    }
+
+    /**
+     * Resolve a host and order its addresses by alternating the address families,
+     * starting with the preferred one.
+     *
+     * @param host       the host name
+     * @param port       the port
+     * @param preferIPv6 whether IPv6 addresses come first
+     * @return the resolved, interleaved addresses.
+     * @throws UnknownHostException when the host cannot be resolved
+     */
+    @NotNull
+    public static List<InetSocketAddress> resolve(@NotNull final String host,
+                                                  final int port,
+                                                  final boolean preferIPv6) throws UnknownHostException {
+        Deque<InetAddress> preferred = new ArrayDeque<>();
+        Deque<InetAddress> other = new ArrayDeque<>();
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+            ((address instanceof Inet6Address) == preferIPv6 ? preferred : other).add(address);
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>(preferred.size() + other.size());
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+            if (!preferred.isEmpty()) {
+                addresses.add(new InetSocketAddress(preferred.poll(), port));
+            }
+            if (!other.isEmpty()) {
+                addresses.add(new InetSocketAddress(other.poll(), port));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Connect to an endpoint, racing its addresses when enabled.
+     * <p>A connect that does not complete in time is reported as a {@link ConnectException},
+     * so that it is not taken for a read timeout on an established connection.
+     *
+     * @param host         the endpoint's host name
+     * @param port         the endpoint's port
+     * @param systemConfig the system configuration
+     * @return a connected, channel backed socket, so the caller can relay through direct buffers.
+     * @throws ConnectException     when the connect is refused or times out
+     * @throws UnknownHostException when the host cannot be resolved
+     * @throws IOException          any other connect failure
+     */
+    @NotNull
+    public static Socket connect(@NotNull final String host,
+                                 final int port,
+                                 @NotNull final SystemConfig systemConfig) throws IOException {
+        int timeoutMillis = systemConfig.getSocketConnectTimeout() * 1000;
+        Socket socket = null;
+        try {
+            if (systemConfig.getConnectRacingStagger() > 0) {
+                socket = race(resolve(host, port, systemConfig.isPreferIPv6Addresses()),
+                        systemConfig.getConnectRacingStagger(), timeoutMillis).getChannel().socket();
+                systemConfig.configureSocket(socket);
+            } else {
+                socket = systemConfig.configureSocket(SocketChannel.open().socket());
+                socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            }
+            return socket;
+        } catch (SocketTimeoutException e) {
+            InputOutputs.close((AutoCloseable) socket);
+            ConnectException connectException = new ConnectException(
+                    "Connection timed out: " + host + ":" + port);
+            connectException.initCause(e);
+            throw connectException;
+        } catch (IOException | RuntimeException e) {
+            InputOutputs.close((AutoCloseable) socket);
+            throw e;
+        }
+    }
+
+    private static IOException toIOException(Exception e, InetSocketAddress address) {
+        if (e instanceof UnresolvedAddressException) {
+            return new UnknownHostException(address.getHostString());
+        }
+        return (IOException) e;
+    }
+
+    /**
+     * The result of a race.
+     */
+    public static final class Winner {
+
+        private final int index;
+
+        private final SocketChannel channel;
+
+        private Winner(int index, SocketChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+
+        /**
+         * @return the index of the winning address
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the connected channel, in blocking mode
+         */
+        public SocketChannel getChannel() {
+            return channel;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.http.protocol.HTTP;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The current date in RFC 1123 format, cached with one second resolution (the format's own resolution).
+ * <p>The cache is refreshed by the first caller within a new second, so formatting
+ * happens at most once per second no matter how many responses are written.
+ * Besides the text, the complete {@code Date} header line is kept encoded, ready to be written.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class HttpDate {
+
+    /**
+     * The RFC 1123 formatter, always in GMT.
+     */
+    public static final DateTimeFormatter RFC1123_FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile Tick tick = new Tick(Instant.now().getEpochSecond());
+
+    private HttpDate() {
+    }
+
+    /**
+     * @return the current date in RFC 1123 format.
+     */
+    @NotNull
+    public static String current() {
+        return currentTick().date;
+    }
+
+    /**
+     * <p><b>The returned array must not be modified.</b></p>
+     *
+     * @return the current {@code Date} header line, CRLF included, as bytes.
+     */
+    @NotNull
+    public static byte[] currentHeader() {
+        return currentTick().header;
+    }
+
+    private static Tick currentTick() {
+        long epochSecond = Instant.now().getEpochSecond();
+        Tick current = tick;
+        if (current.epochSecond != epochSecond) {
+            // Racing threads may format the same second twice, which is harmless
+            current = new Tick(epochSecond);
+            tick = current;
+        }
+        return current;
+    }
+
+    private static final class Tick {
+
+        private final long epochSecond;
+
+        private final String date;
+
+        private final byte[] header;
+
+        private Tick(final long epochSecond) {
+            this.epochSecond = epochSecond;
+            this.date = RFC1123_FORMATTER.format(Instant.ofEpochSecond(epochSecond));
+            this.header = (HTTP.DATE_HEADER + ": " + date + CrlfConverter.CRLF).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+}
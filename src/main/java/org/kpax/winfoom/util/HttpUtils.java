@@ -31,12 +31,8 @@ import org.springframework.util.Assert;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -59,6 +55,16 @@ public final class HttpUtils {
      */
     public static final String SOCKS_ADDRESS = "socks.address";
 
+    /**
+     * The context's key for the socket already connected to the proxy, handed over by the connection socket factories.
+     */
+    public static final String PRE_CONNECTED_SOCKET = "preConnected.socket";
+
+    /**
+     * The context's key for the settings the client connection is processed with.
+     */
+    public static final String CONFIG_SNAPSHOT = "config.snapshot";
+
     /**
      * The maximum value of a success HTTP code.
      */
@@ -323,27 +329,6 @@ public final class HttpUtils {
         return "<html>" + text + "</html>";
     }
 
-    /**
-     * Quite a dirty hack.<br>
-     * Using Java Reflection, call the {@code java.net.SocksSocketImpl#setV4()} method.
-     *
-     * @param socket the SOCKS socket to be marked as version 4.
-     * @throws UnsupportedOperationException
-     */
-    public static void setSocks4(@NotNull final Socket socket) throws UnsupportedOperationException {
-        try {
-            Field implField = Socket.class.getDeclaredField("impl");
-            implField.setAccessible(true);
-            Object impl = implField.get(socket);
-            Class<?> implType = impl.getClass();
-            Method setV4 = implType.getDeclaredMethod("setV4");
-            setV4.setAccessible(true);
-            setV4.invoke(impl);
-        } catch (Exception e) {
-            throw new UnsupportedOperationException("SOCKS 4 not supported by the JVM", e);
-        }
-    }
-
     /**
      * Parse the proxy line returned by PAC proxy script.
      *
@@ -403,7 +388,7 @@ public final class HttpUtils {
     }
 
     public static boolean isSOCKSAuthenticationFailed(@NotNull final SocketException e) {
-        return StringUtils.equalsIgnoreCase(e.getMessage(), "SOCKS : authentication failed");
+        return StringUtils.equalsIgnoreCase(e.getMessage(), SocksHandshake.AUTHENTICATION_FAILED);
     }
 
     /**
@@ -454,9 +439,7 @@ public final class HttpUtils {
      * @return the current date in RFC 1123 format.
      */
     public static String getCurrentDate() {
-        DateFormat dateformat = new SimpleDateFormat(PATTERN_RFC1123, Locale.US);
-        dateformat.setTimeZone(GMT);
-        return dateformat.format(new Date());
+        return HttpDate.current();
     }
 
     /**
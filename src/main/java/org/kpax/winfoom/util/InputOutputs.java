@@ -21,13 +21,20 @@ import org.springframework.util.Assert;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.CopyOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.function.LongConsumer;
 
 /**
  * @author Eugen Covaci
@@ -38,6 +45,12 @@ public final class InputOutputs {
 
     private static final Logger logger = LoggerFactory.getLogger(InputOutputs.class);
 
+    /**
+     * The direct buffer used by {@link #transfer(SocketChannel, SocketChannel, int)}, one per thread.
+     */
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE));
+
     private InputOutputs() {
     }
 
@@ -90,6 +103,139 @@ public final class InputOutputs {
         }
     }
 
+    /**
+     * Copy the whole content of a {@link FileChannel} to an {@link OutputStream}, through a heap buffer.
+     * <p>The output stream being usually the HTTP message's framing stream, not the socket's channel,
+     * the bytes cannot be transferred directly, so it is a plain stream copy.
+     *
+     * @param fileChannel  the source file channel
+     * @param outputStream the target output stream
+     * @return the number of transferred bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public static long transferTo(@NotNull final FileChannel fileChannel,
+                                  @NotNull final OutputStream outputStream) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        long count = 0;
+        int length;
+        while ((length = fileChannel.read(buffer)) != -1) {
+            outputStream.write(buffer.array(), 0, length);
+            buffer.clear();
+            count += length;
+        }
+        return count;
+    }
+
+    /**
+     * Transfer bytes from a socket channel to another one, until the source channel reaches the end of stream.
+     * <p>The bytes are relayed through a direct buffer, so they are never copied into the Java heap.
+     * <p>Both channels must be in non-blocking mode, since they may be concurrently
+     * used by the opposite transfer. The waiting for readiness is bounded by {@code timeout},
+     * to mimic the socket's read timeout ignored by the non-blocking channels.
+     *
+     * @param source  the non-blocking source channel
+     * @param target  the non-blocking target channel
+     * @param timeout the max milliseconds to wait for a channel to become ready, {@code 0} means infinite
+     * @return the number of transferred bytes
+     * @throws SocketTimeoutException if a channel is not ready within {@code timeout} milliseconds
+     * @throws IOException            if an I/O error occurs
+     */
+    public static long transfer(@NotNull final SocketChannel source,
+                                @NotNull final SocketChannel target,
+                                final int timeout) throws IOException {
+        return transfer(source, target, timeout, bytes -> {
+        });
+    }
+
+    /**
+     * Same as {@link #transfer(SocketChannel, SocketChannel, int)}, reporting the progress as it goes,
+     * so the bytes relayed before a timeout or an error get accounted too.
+     *
+     * @param source        the non-blocking source channel
+     * @param target        the non-blocking target channel
+     * @param timeout       the max milliseconds to wait for a channel to become ready, {@code 0} means infinite
+     * @param onTransferred receives the number of bytes of each relayed chunk
+     * @return the number of transferred bytes
+     * @throws SocketTimeoutException if a channel is not ready within {@code timeout} milliseconds
+     * @throws IOException            if an I/O error occurs
+     */
+    public static long transfer(@NotNull final SocketChannel source,
+                                @NotNull final SocketChannel target,
+                                final int timeout,
+                                @NotNull final LongConsumer onTransferred) throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFER.get();
+        buffer.clear();
+        long transferred = 0;
+        try (Selector selector = Selector.open()) {
+            SelectionKey readKey = source.register(selector, 0);
+            SelectionKey writeKey = target.register(selector, 0);
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                if (read == 0) {
+                    awaitReady(selector, readKey, SelectionKey.OP_READ, timeout);
+                    continue;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (target.write(buffer) == 0) {
+                        awaitReady(selector, writeKey, SelectionKey.OP_WRITE, timeout);
+                    }
+                }
+                buffer.clear();
+                transferred += read;
+                onTransferred.accept(read);
+            }
+        }
+        return transferred;
+    }
+
+    private static void awaitReady(final Selector selector,
+                                   final SelectionKey key,
+                                   final int ops,
+                                   final int timeout) throws IOException {
+        key.interestOps(ops);
+        try {
+            if (selector.select(timeout) == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Transfer interrupted");
+                }
+                if (!key.isValid()) {
+                    throw new ClosedChannelException();
+                }
+                throw new SocketTimeoutException(ops == SelectionKey.OP_READ ? "Read timed out" : "Write timed out");
+            }
+        } finally {
+            selector.selectedKeys().clear();
+            if (key.isValid()) {
+                key.interestOps(0);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link InputStream#transferTo(OutputStream)}, reporting the progress as it goes,
+     * so the bytes relayed before a timeout or an error get accounted too.
+     *
+     * @param source        the source stream
+     * @param target        the target stream
+     * @param onTransferred receives the number of bytes of each relayed chunk
+     * @return the number of transferred bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public static long transfer(@NotNull final InputStream source,
+                                @NotNull final OutputStream target,
+                                @NotNull final LongConsumer onTransferred) throws IOException {
+        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        long transferred = 0;
+        int read;
+        while ((read = source.read(buffer)) >= 0) {
+            target.write(buffer, 0, read);
+            transferred += read;
+            onTransferred.accept(read);
+        }
+        return transferred;
+    }
+
     public static String generateCacheFilename() {
         return System.nanoTime() +
                 "-" +
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded lock-free ring buffer of pre-allocated, reusable entries, for many producers and a single consumer.
+ * <p>A producer claims a slot, fills in its entry then publishes it; the consumer handles
+ * the published entries in order and hands the slots back. Each slot carries a sequence number
+ * telling whether it is free, published or still being filled in, so no lock is needed
+ * and a full buffer is detected without waiting.
+ * <p>Usage on the producer side:
+ * <pre>
+ * long sequence = ringBuffer.tryClaim();
+ * if (sequence >= 0) {
+ *     Entry entry = ringBuffer.get(sequence);
+ *     // fill in the entry
+ *     ringBuffer.publish(sequence);
+ * }
+ * </pre>
+ *
+ * @param <E> the entry's type
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class RingBuffer<E> {
+
+    private final Object[] entries;
+
+    /**
+     * A slot is free for the claim sequence {@code s} when its sequence is {@code s},
+     * and published when its sequence is {@code s + 1}.
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Only accessed by the consumer thread.
+     */
+    private long head;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of entries, rounded up to a power of two
+     * @param factory  creates the entries
+     */
+    public RingBuffer(final int capacity, @NotNull final Supplier<E> factory) {
+        Assert.isTrue(capacity > 0 && capacity <= 1 << 30, "capacity must be between 1 and 2^30");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = factory.get();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Claim a slot, without waiting.
+     *
+     * @return the claimed sequence or {@code -1} if the buffer is full.
+     */
+    public long tryClaim() {
+        long sequence = tail.get();
+        while (true) {
+            long difference = sequences.get((int) sequence & mask) - sequence;
+            if (difference == 0) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    return sequence;
+                }
+                sequence = tail.get();
+            } else if (difference < 0) {
+                return -1;
+            } else {
+                sequence = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @param sequence a claimed sequence
+     * @return the claimed slot's entry, to be filled in before publishing.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(final long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * Make the claimed slot's entry visible to the consumer.
+     *
+     * @param sequence a claimed sequence
+     */
+    public void publish(final long sequence) {
+        sequences.lazySet((int) sequence & mask, sequence + 1);
+    }
+
+    /**
+     * Handle the published entries in order, then free their slots.
+     * <p>Must be called by a single consumer thread. The consumer must not keep references to the entries.
+     *
+     * @param consumer the entries' consumer
+     * @param limit    the max number of entries to handle
+     * @return the number of entries handled.
+     */
+    public int drain(@NotNull final Consumer<E> consumer, final int limit) {
+        int count = 0;
+        while (count < limit) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            try {
+                consumer.accept(get(head));
+            } finally {
+                sequences.lazySet(index, head + entries.length);
+                head++;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int capacity() {
+        return entries.length;
+    }
+
+}
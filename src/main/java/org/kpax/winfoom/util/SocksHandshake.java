@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.http.conn.util.InetAddressUtils;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The client side of the SOCKS4, SOCKS4a and SOCKS5 (RFC 1928, RFC 1929) CONNECT handshake,
+ * performed over an already connected socket, usually a {@link java.nio.channels.SocketChannel} backed one.
+ * <p>The target's host name is always sent to the SOCKS server to be resolved there (SOCKS4a, SOCKS5 domain name),
+ * only the IP literals are sent as addresses. The credentials are per connection.
+ * <p>The error messages are the ones of the JDK's own SOCKS implementation, so the existent error handling still applies.
+ * The reads are bounded by the socket's timeout.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class SocksHandshake {
+
+    /**
+     * The message of the {@link SocketException} thrown when the SOCKS server rejects the credentials.
+     *
+     * @see HttpUtils#isSOCKSAuthenticationFailed(SocketException)
+     */
+    public static final String AUTHENTICATION_FAILED = "SOCKS : authentication failed";
+
+    private static final Logger logger = LoggerFactory.getLogger(SocksHandshake.class);
+
+    private static final int SOCKS4_VERSION = 4;
+    private static final int SOCKS5_VERSION = 5;
+    private static final int CONNECT = 1;
+
+    private static final int NO_AUTH = 0;
+    private static final int USER_PASSWORD = 2;
+    private static final int NO_ACCEPTABLE_METHODS = 0xFF;
+
+    private static final int ATYP_IPV4 = 1;
+    private static final int ATYP_DOMAIN_NAME = 3;
+    private static final int ATYP_IPV6 = 4;
+
+    private SocksHandshake() {
+    }
+
+    /**
+     * Perform the handshake.
+     *
+     * @param socket   the socket, connected to the SOCKS server
+     * @param socks4   {@code true} for SOCKS4/4a, {@code false} for SOCKS5
+     * @param host     the target's host name or IP literal
+     * @param port     the target's port
+     * @param username the username, used as SOCKS4 user id or for the SOCKS5 username/password authentication
+     * @param password the SOCKS5 password
+     * @throws IOException on handshake failure
+     */
+    public static void connect(@NotNull final Socket socket,
+                               final boolean socks4,
+                               @NotNull final String host,
+                               final int port,
+                               final String username,
+                               final String password) throws IOException {
+        if (socks4) {
+            socks4(socket, host, port, username);
+        } else {
+            socks5(socket, host, port, username, password);
+        }
+    }
+
+    /**
+     * SOCKS4 for IPv4 literals, SOCKS4a otherwise.
+     */
+    static void socks4(@NotNull final Socket socket,
+                       @NotNull final String host,
+                       final int port,
+                       final String userId) throws IOException {
+        logger.debug("SOCKS4 connect to {}:{}", host, port);
+        boolean ipv4Literal = InetAddressUtils.isIPv4Address(host);
+        if (!ipv4Literal && isIPv6Literal(host)) {
+            throw new SocketException("SOCKS4 does not support IPv6 addresses");
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream(64);
+        request.write(SOCKS4_VERSION);
+        request.write(CONNECT);
+        writePort(request, port);
+        if (ipv4Literal) {
+            request.write(InetAddress.getByName(host).getAddress());
+        } else {
+            // SOCKS4a: an invalid 0.0.0.x address means the host name follows the user id
+            request.write(new byte[]{0, 0, 0, 1});
+        }
+        request.write((userId != null ? userId : System.getProperty("user.name", "")).getBytes(StandardCharsets.ISO_8859_1));
+        request.write(0);
+        if (!ipv4Literal) {
+            request.write(host.getBytes(StandardCharsets.ISO_8859_1));
+            request.write(0);
+        }
+        OutputStream outputStream = socket.getOutputStream();
+        request.writeTo(outputStream);
+        outputStream.flush();
+
+        byte[] reply = readFully(socket.getInputStream(), 8);
+        if (reply[0] != 0 && reply[0] != SOCKS4_VERSION) {
+            throw new SocketException("Reply from SOCKS server has bad version");
+        }
+        switch (reply[1]) {
+            case 90:
+                return;
+            case 91:
+                throw new SocketException("SOCKS request rejected");
+            case 92:
+                throw new SocketException("SOCKS server couldn't reach destination");
+            case 93:
+                throw new SocketException(AUTHENTICATION_FAILED);
+            default:
+                throw new SocketException("Reply from SOCKS server contains bad status");
+        }
+    }
+
+    static void socks5(@NotNull final Socket socket,
+                       @NotNull final String host,
+                       final int port,
+                       final String username,
+                       final String password) throws IOException {
+        logger.debug("SOCKS5 connect to {}:{}", host, port);
+        OutputStream outputStream = socket.getOutputStream();
+        InputStream inputStream = socket.getInputStream();
+
+        // Method selection
+        if (username != null) {
+            outputStream.write(new byte[]{SOCKS5_VERSION, 2, NO_AUTH, USER_PASSWORD});
+        } else {
+            outputStream.write(new byte[]{SOCKS5_VERSION, 1, NO_AUTH});
+        }
+        outputStream.flush();
+        byte[] methodReply = readFully(inputStream, 2);
+        if (methodReply[0] != SOCKS5_VERSION) {
+            throw new SocketException("Reply from SOCKS server has bad version");
+        }
+        int method = methodReply[1] & 0xFF;
+        if (method == USER_PASSWORD && username != null) {
+            authenticate(outputStream, inputStream, username, password);
+        } else if (method == NO_ACCEPTABLE_METHODS) {
+            throw new SocketException("SOCKS : No acceptable methods");
+        } else if (method != NO_AUTH) {
+            throw new SocketException(AUTHENTICATION_FAILED);
+        }
+
+        // The CONNECT request
+        ByteArrayOutputStream request = new ByteArrayOutputStream(64);
+        request.write(SOCKS5_VERSION);
+        request.write(CONNECT);
+        request.write(0);
+        if (InetAddressUtils.isIPv4Address(host)) {
+            request.write(ATYP_IPV4);
+            request.write(InetAddress.getByName(host).getAddress());
+        } else if (isIPv6Literal(host)) {
+            request.write(ATYP_IPV6);
+            request.write(InetAddress.getByName(host).getAddress());
+        } else {
+            byte[] hostBytes = host.getBytes(StandardCharsets.ISO_8859_1);
+            if (hostBytes.length > 255) {
+                throw new SocketException("SOCKS : host name too long");
+            }
+            request.write(ATYP_DOMAIN_NAME);
+            request.write(hostBytes.length);
+            request.write(hostBytes);
+        }
+        writePort(request, port);
+        request.writeTo(outputStream);
+        outputStream.flush();
+
+        byte[] reply = readFully(inputStream, 4);
+        if (reply[0] != SOCKS5_VERSION) {
+            throw new SocketException("Reply from SOCKS server has bad version");
+        }
+        switch (reply[1]) {
+            case 0:
+                break;
+            case 1:
+                throw new SocketException("SOCKS server general failure");
+            case 2:
+                throw new SocketException("SOCKS: Connection not allowed by ruleset");
+            case 3:
+                throw new SocketException("SOCKS: Network unreachable");
+            case 4:
+                throw new SocketException("SOCKS: Host unreachable");
+            case 5:
+                throw new SocketException("SOCKS: Connection refused");
+            case 6:
+                throw new SocketException("SOCKS: TTL expired");
+            case 7:
+                throw new SocketException("SOCKS: Command not supported");
+            case 8:
+                throw new SocketException("SOCKS: address type not supported");
+            default:
+                throw new SocketException("Reply from SOCKS server contains bad status");
+        }
+
+        // Skip the bound address and port
+        switch (reply[3]) {
+            case ATYP_IPV4:
+                readFully(inputStream, 4 + 2);
+                break;
+            case ATYP_DOMAIN_NAME:
+                readFully(inputStream, (readFully(inputStream, 1)[0] & 0xFF) + 2);
+                break;
+            case ATYP_IPV6:
+                readFully(inputStream, 16 + 2);
+                break;
+            default:
+                throw new SocketException("Reply from SOCKS server contains wrong code");
+        }
+    }
+
+    private static void authenticate(final OutputStream outputStream,
+                                     final InputStream inputStream,
+                                     final String username,
+                                     final String password) throws IOException {
+        byte[] usernameBytes = username.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] passwordBytes = (password != null ? password : "").getBytes(StandardCharsets.ISO_8859_1);
+        if (usernameBytes.length > 255 || passwordBytes.length > 255) {
+            throw new SocketException(AUTHENTICATION_FAILED);
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream(3 + usernameBytes.length + passwordBytes.length);
+        request.write(1);
+        request.write(usernameBytes.length);
+        request.write(usernameBytes);
+        request.write(passwordBytes.length);
+        request.write(passwordBytes);
+        request.writeTo(outputStream);
+        outputStream.flush();
+        byte[] reply = readFully(inputStream, 2);
+        if (reply[1] != 0) {
+            throw new SocketException(AUTHENTICATION_FAILED);
+        }
+    }
+
+    private static boolean isIPv6Literal(final String host) {
+        return InetAddressUtils.isIPv6Address(host.startsWith("[") && host.endsWith("]") ?
+                host.substring(1, host.length() - 1) : host);
+    }
+
+    private static void writePort(final ByteArrayOutputStream request, final int port) {
+        request.write((port >> 8) & 0xFF);
+        request.write(port & 0xFF);
+    }
+
+    private static byte[] readFully(final InputStream inputStream, final int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = inputStream.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new SocketException("Connection closed by the SOCKS server");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 @ThreadSafe
 public interface StreamSource {
@@ -30,23 +31,43 @@ public interface StreamSource {
     @NotNull
     OutputStream getOutputStream();
 
+    /**
+     * @return the {@link SocketChannel} behind the streams, or {@code null} if the streams are not backed by a
+     * socket channel.
+     */
+    default SocketChannel getChannel() {
+        return null;
+    }
+
     static StreamSource from(@NotNull final InputStream inputStream, @NotNull final OutputStream outputStream) {
-        return new DefaultStreamSource(inputStream, outputStream);
+        return new DefaultStreamSource(inputStream, outputStream, null, null);
     }
 
+    /**
+     * @param socket the socket
+     * @return a source backed by the socket's streams and channel, closing the socket when closed.
+     * @throws IOException
+     */
     static StreamSource from(@NotNull final Socket socket) throws IOException {
-        return new DefaultStreamSource(socket.getInputStream(), socket.getOutputStream());
+        return new DefaultStreamSource(socket.getInputStream(), socket.getOutputStream(), socket.getChannel(), socket);
     }
 
-    class DefaultStreamSource implements StreamSource {
+    class DefaultStreamSource implements StreamSource, AutoCloseable {
         private final InputStream inputStream;
         private final OutputStream outputStream;
+        private final SocketChannel channel;
+        private final Socket socket;
 
-        private DefaultStreamSource(@NotNull final InputStream inputStream, @NotNull final OutputStream outputStream) {
+        private DefaultStreamSource(@NotNull final InputStream inputStream,
+                                    @NotNull final OutputStream outputStream,
+                                    final SocketChannel channel,
+                                    final Socket socket) {
             Assert.notNull(inputStream, "inputStream cannot be null");
             Assert.notNull(outputStream, "outputStream cannot be null");
             this.inputStream = inputStream;
             this.outputStream = outputStream;
+            this.channel = channel;
+            this.socket = socket;
         }
 
         @NotNull
@@ -58,5 +79,17 @@ public interface StreamSource {
         public OutputStream getOutputStream() {
             return outputStream;
         }
+
+        @Override
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void close() {
+            if (socket != null) {
+                InputOutputs.close(socket);
+            }
+        }
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical hashed timer wheel.
+ * <p>There are three levels of 64 slots each: the first one covers 64 ticks, the second one 64<sup>2</sup>
+ * and the third one 64<sup>3</sup> ticks. A task is placed in the lowest level that covers its deadline and
+ * cascades down to the lower levels as the wheel turns, so scheduling and expiring are both O(1).
+ * Deadlines beyond the last level are parked in its farthest slot and re-placed on each cascade.
+ * <p>The wheel is passive: {@link #schedule(long, TimeUnit, Runnable)} can be called from any thread,
+ * while {@link #advance()} must be called periodically by a single driver thread,
+ * which is also the one running the expired tasks.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class TimerWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    private static final int SLOT_BITS = 6;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final int LEVELS = 3;
+
+    private static final long MAX_DELTA = 1L << (SLOT_BITS * LEVELS);
+
+    private final long tickNanos;
+
+    private final long startTime;
+
+    /**
+     * The tasks scheduled since the last advance, to be placed by the driver thread.
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Only accessed by the driver thread.
+     */
+    private final ArrayDeque<Timeout>[][] wheel;
+
+    /**
+     * The last processed tick, only accessed by the driver thread.
+     */
+    private long currentTick;
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration the duration of a tick
+     * @param unit         the unit of the tick duration
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(final long tickDuration, @NotNull final TimeUnit unit) {
+        Assert.isTrue(tickDuration > 0, "tickDuration must be positive");
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.startTime = System.nanoTime();
+        this.wheel = new ArrayDeque[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                this.wheel[level][slot] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /**
+     * Compute the tick a task scheduled now with the provided delay would expire on.
+     * <p>Tasks expire on the first tick after their deadline, so two delays falling on the same tick expire together.
+     *
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the expiry tick.
+     */
+    public long tickFor(final long delay, @NotNull final TimeUnit unit) {
+        long elapsed = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        return (elapsed + tickNanos - 1) / tickNanos;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @param task  the task to be run by the driver thread once the delay is elapsed
+     * @return the expiry tick.
+     */
+    public long schedule(final long delay, @NotNull final TimeUnit unit, @NotNull final Runnable task) {
+        long deadlineTick = tickFor(delay, unit);
+        scheduleAt(deadlineTick, task);
+        return deadlineTick;
+    }
+
+    /**
+     * Schedule a task on a given tick, as returned by {@link #tickFor(long, TimeUnit)}.
+     *
+     * @param deadlineTick the tick to expire on
+     * @param task         the task to be run by the driver thread once the tick is reached
+     */
+    public void scheduleAt(final long deadlineTick, @NotNull final Runnable task) {
+        pending.add(new Timeout(deadlineTick, task));
+    }
+
+    /**
+     * Turn the wheel up to the current time and run the expired tasks.
+     * <p>Must be called by a single thread.
+     */
+    public void advance() {
+        long targetTick = (System.nanoTime() - startTime) / tickNanos;
+        for (Timeout timeout; (timeout = pending.poll()) != null; ) {
+            place(timeout);
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(wheel[level][(int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK]);
+                }
+            }
+            ArrayDeque<Timeout> slot = wheel[0][(int) currentTick & SLOT_MASK];
+            for (int i = slot.size(); i > 0; i--) {
+                Timeout timeout = slot.poll();
+                if (timeout.deadlineTick <= currentTick) {
+                    run(timeout);
+                } else {
+                    slot.add(timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Must be called by the driver thread.
+     *
+     * @return the number of tasks not yet run.
+     */
+    public int size() {
+        int size = pending.size();
+        for (ArrayDeque<Timeout>[] level : wheel) {
+            for (ArrayDeque<Timeout> slot : level) {
+                size += slot.size();
+            }
+        }
+        return size;
+    }
+
+    private void cascade(final ArrayDeque<Timeout> slot) {
+        for (int i = slot.size(); i > 0; i--) {
+            place(slot.poll());
+        }
+    }
+
+    private void place(final Timeout timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        if (delta <= 0) {
+            run(timeout);
+            return;
+        }
+        long tick = delta < MAX_DELTA ? timeout.deadlineTick : currentTick + MAX_DELTA - 1;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1)) || level == LEVELS - 1) {
+                wheel[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK].add(timeout);
+                return;
+            }
+        }
+    }
+
+    private void run(final Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (Exception e) {
+            logger.debug("Error on running timer task", e);
+        }
+    }
+
+    private static final class Timeout {
+
+        private final long deadlineTick;
+
+        private final Runnable task;
+
+        private Timeout(final long deadlineTick, final Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+    }
+
+}
@@ -1,8 +1,9 @@
 package org.kpax.winfoom.util.functional;
 
+import org.kpax.winfoom.proxy.listener.ReloadListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
 
-public class ProxySingletonSupplier<T> extends SingletonSupplier<T> implements StopListener {
+public class ProxySingletonSupplier<T> extends SingletonSupplier<T> implements StopListener, ReloadListener {
     /**
      * Constructor.
      *
@@ -14,6 +15,22 @@ public class ProxySingletonSupplier<T> extends SingletonSupplier<T> implements S
 
     @Override
     public void onStop() {
-        reset();
+        reset(value -> {
+            if (value instanceof StopListener) {
+                ((StopListener) value).onStop();
+            }
+        });
+    }
+
+    /**
+     * Drop the value, so the new requests get a new one, while the requests in progress keep using the current one.
+     */
+    @Override
+    public void onReload() {
+        reset(value -> {
+            if (value instanceof ReloadListener) {
+                ((ReloadListener) value).onReload();
+            }
+        });
     }
 }
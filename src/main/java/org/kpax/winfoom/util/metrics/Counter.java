@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.metrics;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter, backed by a {@link LongAdder} so the concurrent increments don't contend.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class Counter {
+
+    private final LongAdder adder = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        adder.increment();
+    }
+
+    /**
+     * @param amount the amount to add, must not be negative
+     */
+    public void add(final long amount) {
+        adder.add(amount);
+    }
+
+    /**
+     * @return the current value.
+     */
+    public long get() {
+        return adder.sum();
+    }
+
+}
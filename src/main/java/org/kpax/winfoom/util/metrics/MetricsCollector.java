@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.metrics;
+
+import org.kpax.winfoom.annotation.NotNull;
+
+/**
+ * Contributes metrics computed on scrape, for the statistics kept elsewhere
+ * (the connection pools, for example).
+ *
+ * @author Eugen Covaci
+ */
+@FunctionalInterface
+public interface MetricsCollector {
+
+    /**
+     * @param writer where to write the metrics
+     */
+    void collect(@NotNull PrometheusWriter writer);
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.metrics;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named metrics: counters, gauges and latency histograms, each optionally labelled.
+ * <p>The metrics are created once, usually on startup, and kept by their owners, so the hot path
+ * only touches a {@link Counter} or a {@link LatencyHistogram}, never the registry.
+ * Other statistics are plugged in through {@link MetricsCollector}s, called on each scrape.
+ *
+ * @author Eugen Covaci
+ */
+@ThreadSafe
+public final class MetricsRegistry {
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String SUMMARY = "summary";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Key = the metric's name<br>
+     * Value = the metric's family (all the label sets)
+     */
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private final List<MetricsCollector> collectors = new CopyOnWriteArrayList<>();
+
+    /**
+     * Get or create a counter.
+     *
+     * @param name   the metric's name, conventionally ending with {@code _total}
+     * @param help   the metric's description
+     * @param labels the label names and values, alternating
+     * @return the counter.
+     */
+    public Counter counter(@NotNull final String name, @NotNull final String help, @NotNull final String... labels) {
+        return (Counter) register(name, help, COUNTER, labels, Counter::new);
+    }
+
+    /**
+     * Get or create a latency histogram, exposed as a summary in seconds.
+     *
+     * @param name   the metric's name, conventionally ending with {@code _seconds}
+     * @param help   the metric's description
+     * @param labels the label names and values, alternating
+     * @return the histogram.
+     */
+    public LatencyHistogram histogram(@NotNull final String name, @NotNull final String help, @NotNull final String... labels) {
+        return (LatencyHistogram) register(name, help, SUMMARY, labels, LatencyHistogram::new);
+    }
+
+    /**
+     * Register a gauge, read on each scrape. A second registration with the same labels is ignored.
+     *
+     * @param name     the metric's name
+     * @param help     the metric's description
+     * @param supplier supplies the gauge's value
+     * @param labels   the label names and values, alternating
+     */
+    public void gauge(@NotNull final String name,
+                      @NotNull final String help,
+                      @NotNull final DoubleSupplier supplier,
+                      @NotNull final String... labels) {
+        register(name, help, GAUGE, labels, () -> supplier);
+    }
+
+    /**
+     * @param collector the collector to be called on each scrape
+     */
+    public void register(@NotNull final MetricsCollector collector) {
+        collectors.add(collector);
+    }
+
+    private synchronized Object register(final String name,
+                                         final String help,
+                                         final String type,
+                                         final String[] labels,
+                                         final Supplier<Object> factory) {
+        Assert.isTrue(labels.length % 2 == 0, "The labels must be name and value pairs");
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        Assert.isTrue(family.type.equals(type), "The metric " + name + " is already registered as " + family.type);
+        return family.children.computeIfAbsent(Arrays.asList(labels), key -> factory.get());
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text format.
+     */
+    public String scrape() {
+        PrometheusWriter writer = new PrometheusWriter();
+        List<Map.Entry<String, Family>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>();
+            for (Map.Entry<String, Family> entry : families.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().copy()));
+            }
+        }
+        for (Map.Entry<String, Family> entry : entries) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            writer.header(name, family.help, family.type);
+            family.children.forEach((labels, metric) -> {
+                String[] labelArray = labels.toArray(new String[0]);
+                if (metric instanceof Counter) {
+                    writer.sample(name, ((Counter) metric).get(), labelArray);
+                } else if (metric instanceof LatencyHistogram) {
+                    writer.summary(name, ((LatencyHistogram) metric).snapshot(), labelArray);
+                } else {
+                    writer.sample(name, ((DoubleSupplier) metric).getAsDouble(), labelArray);
+                }
+            });
+        }
+        for (MetricsCollector collector : collectors) {
+            try {
+                collector.collect(writer);
+            } catch (Exception e) {
+                logger.debug("Error on collecting metrics", e);
+            }
+        }
+        return writer.toString();
+    }
+
+    private static final class Family {
+
+        private final String help;
+
+        private final String type;
+
+        /**
+         * Key = the label names and values<br>
+         * Value = the metric
+         */
+        private final Map<List<String>, Object> children = new LinkedHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        private Family copy() {
+            Family copy = new Family(help, type);
+            copy.children.putAll(children);
+            return copy;
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.metrics;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+
+/**
+ * Write metrics in the Prometheus text exposition format (version 0.0.4).
+ * <p>The latency histograms are written as summaries, in seconds.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The quantiles written for each summary.
+     */
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder builder = new StringBuilder(4096);
+
+    PrometheusWriter() {
+    }
+
+    /**
+     * Write the metric's {@code HELP} and {@code TYPE} lines, once before its samples.
+     *
+     * @param name the metric's name
+     * @param help the metric's description
+     * @param type the metric's type: {@code counter}, {@code gauge} or {@code summary}
+     * @return this writer.
+     */
+    public PrometheusWriter header(@NotNull final String name, @NotNull final String help, @NotNull final String type) {
+        builder.append("# HELP ").append(name).append(' ').
+                append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Write a sample.
+     *
+     * @param name   the metric's name
+     * @param value  the sample's value
+     * @param labels the label names and values, alternating
+     * @return this writer.
+     */
+    public PrometheusWriter sample(@NotNull final String name, final double value, @NotNull final String... labels) {
+        builder.append(name);
+        appendLabels(labels, null);
+        builder.append(' ');
+        appendValue(value);
+        builder.append('\n');
+        return this;
+    }
+
+    /**
+     * Write a latency histogram's samples as a summary in seconds.
+     *
+     * @param name     the metric's name
+     * @param snapshot the histogram's snapshot
+     * @param labels   the label names and values, alternating
+     * @return this writer.
+     */
+    public PrometheusWriter summary(@NotNull final String name,
+                                    @NotNull final LatencyHistogram.Snapshot snapshot,
+                                    @NotNull final String... labels) {
+        for (double quantile : QUANTILES) {
+            builder.append(name);
+            appendLabels(labels, Double.toString(quantile));
+            builder.append(' ');
+            appendValue(snapshot.getValueAtQuantile(quantile) / 1e6);
+            builder.append('\n');
+        }
+        sample(name + "_sum", snapshot.getSumNanos() / 1e9, labels);
+        sample(name + "_count", snapshot.getCount(), labels);
+        return this;
+    }
+
+    private void appendLabels(final String[] labels, final String quantile) {
+        if (labels.length == 0 && quantile == null) {
+            return;
+        }
+        builder.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"");
+            String value = labels[i + 1] != null ? labels[i + 1] : "";
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    builder.append('\\').append(c);
+                } else if (c == '\n') {
+                    builder.append("\\n");
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+        if (quantile != null) {
+            if (labels.length > 1) {
+                builder.append(',');
+            }
+            builder.append("quantile=\"").append(quantile).append('"');
+        }
+        builder.append('}');
+    }
+
+    private void appendValue(final double value) {
+        if (Double.isNaN(value)) {
+            builder.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            builder.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            builder.append((long) value);
+        } else {
+            builder.append(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+
+}
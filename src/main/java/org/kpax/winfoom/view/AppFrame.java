@@ -53,7 +53,16 @@ public class AppFrame extends JFrame {
     @Autowired
     private ConfigurableApplicationContext applicationContext;
 
+    /**
+     * The configuration the proxy runs with.
+     */
     @Autowired
+    private ProxyConfig appliedConfig;
+
+    /**
+     * The configuration being edited: the applied one while the proxy is stopped,
+     * a copy of it while the proxy is running, until applied.
+     */
     private ProxyConfig proxyConfig;
 
     @Autowired
@@ -71,6 +80,7 @@ public class AppFrame extends JFrame {
     private JSpinner localPortJSpinner;
 
     private JButton btnStart;
+    private JButton btnApply;
     private JButton btnStop;
     private JButton btnTest;
     private JButton btnCancelBlacklist;
@@ -98,6 +108,7 @@ public class AppFrame extends JFrame {
      */
     @PostConstruct
     void init() {
+        proxyConfig = appliedConfig;
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         setResizable(false);
         setMinimumSize(new Dimension(250, 150));
@@ -393,6 +404,19 @@ public class AppFrame extends JFrame {
         return btnStart;
     }
 
+    private JButton getBtnApply() {
+        if (btnApply == null) {
+            btnApply = new JButton("Apply");
+            btnApply.setMargin(new Insets(2, 6, 2, 6));
+            btnApply.setIcon(new TunedImageIcon("preferences-system.png"));
+            btnApply.addActionListener(e -> applyChanges());
+            btnApply.setEnabled(false);
+            btnApply.setToolTipText(HttpUtils.toHtml("Apply the changed settings to the running proxy facade," +
+                    "<br>the connections in progress keep the previous ones"));
+        }
+        return btnApply;
+    }
+
     private JButton getBtnStop() {
         if (btnStop == null) {
             btnStop = new JButton("Stop");
@@ -439,6 +463,7 @@ public class AppFrame extends JFrame {
                     String testURL = JOptionPane.showInputDialog(AppFrame.this, "Test URL*:", proxyConfig.getProxyTestUrl());
                     if (StringUtils.isNotBlank(testURL)) {
                         proxyConfig.setProxyTestUrl(testURL);
+                        appliedConfig.setProxyTestUrl(testURL);
                         proxyValidator.testProxy();
                         SwingUtils.showInfoMessage(AppFrame.this, "Success!");
                     } else if (testURL != null) {
@@ -616,6 +641,7 @@ public class AppFrame extends JFrame {
         if (btnPanel == null) {
             btnPanel = new JPanel();
             btnPanel.add(getBtnStart());
+            btnPanel.add(getBtnApply());
             btnPanel.add(getBtnAutoDetect());
             btnPanel.add(getBtnTest());
             btnPanel.add(getBtnCancelBlacklist());
@@ -669,7 +695,10 @@ public class AppFrame extends JFrame {
             autoStartMenuItem.setSelected(proxyConfig.isAutostart());
             autoStartMenuItem.setToolTipText(HttpUtils.toHtml("When checked, next time you start the application " +
                     "<br>it will automatically start the proxy and minimize the window to tray."));
-            autoStartMenuItem.addActionListener((event -> proxyConfig.setAutostart(autoStartMenuItem.isSelected())));
+            autoStartMenuItem.addActionListener((event -> {
+                proxyConfig.setAutostart(autoStartMenuItem.isSelected());
+                appliedConfig.setAutostart(autoStartMenuItem.isSelected());
+            }));
         }
         return autoStartMenuItem;
     }
@@ -682,7 +711,10 @@ public class AppFrame extends JFrame {
                     "<br>will automatically detect the proxy settings " +
                     "<br>by interrogating Internet Explorer network settings on each startup." +
                     "<br><b>WARNING: The existent settings will be overwritten!</b>"));
-            autoDetectMenuItem.addActionListener((event -> proxyConfig.setAutodetect(autoDetectMenuItem.isSelected())));
+            autoDetectMenuItem.addActionListener((event -> {
+                proxyConfig.setAutodetect(autoDetectMenuItem.isSelected());
+                appliedConfig.setAutodetect(autoDetectMenuItem.isSelected());
+            }));
         }
         return autoDetectMenuItem;
     }
@@ -794,11 +826,9 @@ public class AppFrame extends JFrame {
             setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
             try {
                 proxyController.start();
-                getBtnTest().setEnabled(true);
-                getBtnStop().setEnabled(true);
-                if (proxyConfig.isAutoConfig()) {
-                    getBtnCancelBlacklist().setEnabled(true);
-                }
+                // From now on, the changes are applied through reload
+                proxyConfig = appliedConfig.copy();
+                enableRunningInput();
                 return true;
             } catch (Exception e) {
                 logger.error("Error on starting proxy server", e);
@@ -814,11 +844,52 @@ public class AppFrame extends JFrame {
         return false;
     }
 
+    /**
+     * Apply the changed settings to the running proxy, keeping the connections in progress.
+     */
+    private void applyChanges() {
+        if (!isValidInput()) {
+            return;
+        }
+        try {
+            proxyConfig.validate();
+        } catch (InvalidProxySettingsException e) {
+            SwingUtils.showErrorMessage(this, e.getMessage());
+            return;
+        }
+        disableAll();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        try {
+            appliedConfig.apply(proxyConfig);
+            proxyController.reload();
+            enableRunningInput();
+            SwingUtils.showInfoMessage(this, "Proxy configuration changed and reloaded");
+        } catch (Exception e) {
+            logger.error("Error on reloading proxy configuration", e);
+            if (proxyController.isRunning()) {
+                enableRunningInput();
+                SwingUtils.showErrorMessage(AppFrame.this,
+                        "Error on reloading proxy configuration.<br>See the application's log for details.");
+            } else {
+                proxyConfig = appliedConfig;
+                enableInput();
+                SwingUtils.showErrorMessage(AppFrame.this,
+                        "Error on reloading proxy configuration, the proxy facade has been stopped." +
+                                "<br>See the application's log for details.");
+            }
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+
     private void stopServer() {
         if (proxyController.isRunning() && JOptionPane.showConfirmDialog(this,
                 "The local proxy facade is started. \nDo you like to stop the proxy facade?",
                 "Warning", JOptionPane.OK_CANCEL_OPTION) == JOptionPane.YES_OPTION) {
             proxyController.stop();
+            // The pending changes are kept for the next start
+            appliedConfig.apply(proxyConfig);
+            proxyConfig = appliedConfig;
             enableInput();
         }
     }
@@ -827,6 +898,16 @@ public class AppFrame extends JFrame {
         SwingUtils.setEnabled(getContentPane(), true, JLabel.class);
         getBtnStop().setEnabled(false);
         getBtnTest().setEnabled(false);
+        getBtnApply().setEnabled(false);
+    }
+
+    /**
+     * While running, the settings stay editable, the changes being applied with the Apply button.
+     */
+    private void enableRunningInput() {
+        SwingUtils.setEnabled(getContentPane(), true, JLabel.class);
+        getBtnStart().setEnabled(false);
+        getBtnCancelBlacklist().setEnabled(appliedConfig.isAutoConfig());
     }
 
 
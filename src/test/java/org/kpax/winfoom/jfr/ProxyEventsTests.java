@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.http.HttpHeaders;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.proxy.RepeatableHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class ProxyEventsTests {
+
+    @Test
+    void spillToDisk_LargeBody_EventRecorded(@TempDir Path tempDir) throws Exception {
+        byte[] body = new byte[10_000];
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/");
+        request.addHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length));
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 1024);
+        inputBuffer.bind(new ByteArrayInputStream(body));
+
+        Path recordingFile = tempDir.resolve("test.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("winfoom.SpillToDisk");
+            recording.start();
+            try (RepeatableHttpEntity entity = new RepeatableHttpEntity(request, inputBuffer, tempDir, 1024)) {
+                entity.writeTo(new ByteArrayOutputStream());
+            }
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile).stream().
+                filter(event -> event.getEventType().getName().equals("winfoom.SpillToDisk")).
+                collect(Collectors.toList());
+        assertEquals(1, events.size());
+        assertEquals(body.length, events.get(0).getLong("bytes"));
+    }
+
+    @Test
+    void spillToDisk_NotRecording_NotCommitted() {
+        ProxyEvents.SpillToDisk event = new ProxyEvents.SpillToDisk();
+        event.begin();
+        assertFalse(event.shouldCommit());
+    }
+
+}
@@ -39,6 +39,11 @@ import java.util.*;
 
 public class KerberosHttpProxyMock implements AutoCloseable {
 
+    /**
+     * The keytab exported on each start, under the build directory.
+     */
+    public static final File KEYTAB_FILE = new File("target/test.keytab");
+
     private final int proxyPort;
 
     private final String domain;
@@ -74,7 +79,7 @@ public class KerberosHttpProxyMock implements AutoCloseable {
 
         this.ticketValidator = new SunJaasKerberosTicketValidator();
         this.ticketValidator.setServicePrincipal("HTTP/" + domain + "@EXAMPLE.COM");
-        this.ticketValidator.setKeyTabLocation(new FileSystemResource(new File("src/test/resources/test.keytab")));
+        this.ticketValidator.setKeyTabLocation(new FileSystemResource(KEYTAB_FILE));
         this.ticketValidator.setDebug(true);
     }
 
@@ -101,7 +106,10 @@ public class KerberosHttpProxyMock implements AutoCloseable {
         }
         System.out.println("KDC server started and listening on port: " + simpleKdcServer.getKdcPort());
         System.out.println("Export credentials");
-        simpleKdcServer.exportPrincipals(new File("src/test/resources/test.keytab"));
+        // Export in a fresh file, rather than appending to the previous run's one
+        KEYTAB_FILE.getParentFile().mkdirs();
+        KEYTAB_FILE.delete();
+        simpleKdcServer.exportPrincipals(KEYTAB_FILE);
 
     }
 
@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.load;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drive concurrent clients through the local proxy, each client looping over a mix of
+ * CONNECT tunnels (with a GET inside), plain GETs and POSTs until the run's deadline.
+ * <p>While running, the process' thread count, RSS and GC pauses are sampled.
+ * <p>For soak runs, {@link #withFaults(double, HttpHost, long)} mixes in randomized faults:
+ * client aborts, half-closed tunnels, upstream resets and bodies large enough to be spilled to disk.
+ *
+ * @author Eugen Covaci
+ */
+public class LoadGenerator {
+
+    /**
+     * The operations a client loops over: 4 CONNECT, 4 GET, 2 POST.
+     */
+    private static final Operation[] MIX = {
+            Operation.CONNECT, Operation.GET, Operation.CONNECT, Operation.POST, Operation.GET,
+            Operation.CONNECT, Operation.GET, Operation.POST, Operation.CONNECT, Operation.GET};
+
+    private static final int SOCKET_TIMEOUT = 10_000;
+
+    private static final Pattern CONTENT_LENGTH = Pattern.compile("(?i)\r\nContent-Length:\\s*(\\d+)");
+
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HttpHost localProxy;
+
+    private final HttpHost target;
+
+    private final int clients;
+
+    private final byte[] postBody = new byte[4096];
+
+    private final byte[] largePostBody = new byte[1024 * 1024];
+
+    private final AtomicInteger clientIndex = new AtomicInteger();
+
+    private double faultRatio;
+
+    private HttpHost resetTarget;
+
+    private long seed;
+
+    /**
+     * @param localProxyPort the winfoom's port
+     * @param target         the target server, reached through winfoom
+     * @param clients        the number of concurrent clients
+     */
+    public LoadGenerator(final int localProxyPort, final HttpHost target, final int clients) {
+        this.localProxy = new HttpHost("localhost", localProxyPort, "http");
+        this.target = target;
+        this.clients = clients;
+    }
+
+    /**
+     * Replace a ratio of the operations with randomized faults.
+     *
+     * @param faultRatio  the ratio of faulty operations, between 0 and 1
+     * @param resetTarget a server resetting every connection
+     * @param seed        the random seed, the client's index is added to it
+     * @return this instance
+     */
+    public LoadGenerator withFaults(final double faultRatio, final HttpHost resetTarget, final long seed) {
+        this.faultRatio = faultRatio;
+        this.resetTarget = resetTarget;
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Run the load.
+     *
+     * @param scenario the scenario's name, for the report
+     * @param duration the run's duration
+     * @return the report
+     * @throws Exception
+     */
+    public LoadReport run(final String scenario, final Duration duration) throws Exception {
+        ProcessSampler sampler = new ProcessSampler();
+        ExecutorService executorService = Executors.newFixedThreadPool(clients);
+        try {
+            long deadline = System.nanoTime() + duration.toNanos();
+            Callable<Client> task = () -> new Client(new Random(seed + clientIndex.getAndIncrement())).run(deadline);
+            long startTime = System.nanoTime();
+            List<Future<Client>> futures = executorService.invokeAll(Collections.nCopies(clients, task));
+            long elapsed = System.nanoTime() - startTime;
+
+            long[] latencies = new long[0];
+            long errors = 0;
+            long faults = 0;
+            for (Future<Client> future : futures) {
+                Client client = future.get();
+                long[] clientLatencies = Arrays.copyOf(client.latencies, client.count);
+                long[] merged = Arrays.copyOf(latencies, latencies.length + clientLatencies.length);
+                System.arraycopy(clientLatencies, 0, merged, latencies.length, clientLatencies.length);
+                latencies = merged;
+                errors += client.errors;
+                faults += client.faults;
+            }
+            Arrays.sort(latencies);
+
+            Properties properties = new Properties();
+            properties.setProperty("scenario", scenario);
+            properties.setProperty("clients", String.valueOf(clients));
+            properties.setProperty("duration.s", String.valueOf(duration.getSeconds()));
+            properties.setProperty("requests", String.valueOf(latencies.length));
+            properties.setProperty("errors", String.valueOf(errors));
+            properties.setProperty("faults", String.valueOf(faults));
+            properties.setProperty("throughput", String.valueOf(latencies.length * 1e9 / elapsed));
+            properties.setProperty("latency.p50.ms", String.valueOf(percentileMillis(latencies, 0.5)));
+            properties.setProperty("latency.p99.ms", String.valueOf(percentileMillis(latencies, 0.99)));
+            properties.setProperty("latency.p999.ms", String.valueOf(percentileMillis(latencies, 0.999)));
+            sampler.stop(properties);
+            return new LoadReport(properties);
+        } finally {
+            executorService.shutdownNow();
+            sampler.close();
+        }
+    }
+
+    static double percentileMillis(final long[] sortedLatencies, final double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(index, 0)] / 1e6;
+    }
+
+    private enum Operation {
+        CONNECT, GET, POST
+    }
+
+    private enum Fault {
+        /**
+         * Reset the client's connection in the middle of a large request body.
+         */
+        ABORT_BODY,
+        /**
+         * Send a request body large enough to be spilled into a temporary file.
+         */
+        LARGE_BODY,
+        /**
+         * Reset the client's connection in the middle of the request sent through a tunnel.
+         */
+        ABORT_TUNNEL,
+        /**
+         * Shut down the client's output after the request sent through a tunnel.
+         */
+        HALF_CLOSE_TUNNEL,
+        /**
+         * A request to a server resetting the connection.
+         */
+        UPSTREAM_RESET,
+        /**
+         * A tunnel to a server resetting the connection.
+         */
+        UPSTREAM_RESET_TUNNEL
+    }
+
+    /**
+     * A client looping over the {@link #MIX} with its own {@link CloseableHttpClient}.
+     */
+    private final class Client {
+
+        private final Random random;
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        private long errors;
+
+        private long faults;
+
+        private Client(final Random random) {
+            this.random = random;
+        }
+
+        private Client run(final long deadline) throws IOException {
+            RequestConfig requestConfig = RequestConfig.custom().
+                    setProxy(localProxy).
+                    setSocketTimeout(SOCKET_TIMEOUT).
+                    build();
+            // Winfoom closes the client's connection after each response
+            try (CloseableHttpClient httpClient = HttpClientBuilder.create().
+                    setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE).
+                    disableAutomaticRetries().
+                    setDefaultRequestConfig(requestConfig).
+                    build()) {
+                for (int i = 0; System.nanoTime() < deadline; i++) {
+                    if (faultRatio > 0 && random.nextDouble() < faultRatio) {
+                        Fault fault = Fault.values()[random.nextInt(Fault.values().length)];
+                        try {
+                            fault(httpClient, fault);
+                        } catch (Exception e) {
+                            logger.debug("Fault {} ended with {}", fault, e.toString());
+                        }
+                        faults++;
+                        continue;
+                    }
+                    Operation operation = MIX[i % MIX.length];
+                    long startTime = System.nanoTime();
+                    boolean success;
+                    try {
+                        success = operation == Operation.CONNECT ? tunnel() : execute(httpClient, operation);
+                    } catch (Exception e) {
+                        logger.debug("Load request failed", e);
+                        success = false;
+                    }
+                    if (success) {
+                        record(System.nanoTime() - startTime);
+                    } else {
+                        errors++;
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void fault(final CloseableHttpClient httpClient, final Fault fault) throws IOException {
+            switch (fault) {
+                case ABORT_BODY:
+                    try (Socket socket = openSocket()) {
+                        write(socket, "POST " + target.toURI() + "/post HTTP/1.1\r\nHost: " + target.toHostString() +
+                                "\r\nContent-Length: " + largePostBody.length + "\r\n\r\n");
+                        socket.getOutputStream().write(largePostBody, 0, random.nextInt(largePostBody.length));
+                        reset(socket);
+                    }
+                    break;
+                case LARGE_BODY:
+                    HttpPost post = new HttpPost("/post");
+                    post.setEntity(new ByteArrayEntity(largePostBody));
+                    try (CloseableHttpResponse response = httpClient.execute(target, post)) {
+                        EntityUtils.consume(response.getEntity());
+                    }
+                    break;
+                case ABORT_TUNNEL:
+                    try (Socket socket = openSocket()) {
+                        if (connect(socket, target)) {
+                            write(socket, "GET /get HTTP/1.1\r\nHo");
+                        }
+                        reset(socket);
+                    }
+                    break;
+                case HALF_CLOSE_TUNNEL:
+                    try (Socket socket = openSocket()) {
+                        if (connect(socket, target)) {
+                            write(socket, "GET /get HTTP/1.1\r\nHost: " + target.toHostString() +
+                                    "\r\nConnection: close\r\n\r\n");
+                            socket.shutdownOutput();
+                            // Both sides are done, so the tunnel must end
+                            socket.getInputStream().transferTo(OutputStream.nullOutputStream());
+                        }
+                    }
+                    break;
+                case UPSTREAM_RESET:
+                    try (Socket socket = openSocket()) {
+                        write(socket, "GET " + resetTarget.toURI() + "/ HTTP/1.1\r\nHost: " +
+                                resetTarget.toHostString() + "\r\n\r\n");
+                        readHead(socket.getInputStream());
+                    }
+                    break;
+                case UPSTREAM_RESET_TUNNEL:
+                    try (Socket socket = openSocket()) {
+                        if (connect(socket, resetTarget)) {
+                            write(socket, "GET / HTTP/1.1\r\nHost: " + resetTarget.toHostString() + "\r\n\r\n");
+                            socket.getInputStream().transferTo(OutputStream.nullOutputStream());
+                        }
+                    }
+                    break;
+            }
+        }
+
+        private Socket openSocket() throws IOException {
+            Socket socket = new Socket(localProxy.getHostName(), localProxy.getPort());
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            return socket;
+        }
+
+        private void write(final Socket socket, final String text) throws IOException {
+            socket.getOutputStream().write(text.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * @return {@code true} iff the tunnel has been established.
+         */
+        private boolean connect(final Socket socket, final HttpHost host) throws IOException {
+            String authority = host.toHostString();
+            write(socket, "CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n");
+            return readHead(socket.getInputStream()).startsWith("HTTP/1.1 200");
+        }
+
+        /**
+         * Close the socket with a TCP RST instead of a FIN.
+         */
+        private void reset(final Socket socket) throws IOException {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        }
+
+        private boolean execute(final CloseableHttpClient httpClient, final Operation operation) throws IOException {
+            HttpRequestBase request;
+            if (operation == Operation.POST) {
+                HttpPost post = new HttpPost("/post");
+                post.setEntity(new ByteArrayEntity(postBody));
+                request = post;
+            } else {
+                request = new HttpGet("/get");
+            }
+            try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                EntityUtils.consume(response.getEntity());
+                return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+            }
+        }
+
+        /**
+         * Open a tunnel to the target and send a GET through it.
+         */
+        private boolean tunnel() throws IOException {
+            try (Socket socket = openSocket()) {
+                if (!connect(socket, target)) {
+                    return false;
+                }
+                write(socket, "GET /get HTTP/1.1\r\nHost: " + target.toHostString() + "\r\n\r\n");
+                InputStream inputStream = socket.getInputStream();
+                String head = readHead(inputStream);
+                // The tunnel stays open until both sides close, so do not wait for the end of stream
+                Matcher matcher = CONTENT_LENGTH.matcher(head);
+                if (!head.startsWith("HTTP/1.1 200") || !matcher.find()) {
+                    return false;
+                }
+                int contentLength = Integer.parseInt(matcher.group(1));
+                return inputStream.readNBytes(contentLength).length == contentLength;
+            }
+        }
+
+        private String readHead(final InputStream inputStream) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+            // The last 4 bytes read, the head ends with CRLF CRLF
+            int window = 0;
+            int b;
+            while (window != 0x0D0A0D0A && (b = inputStream.read()) != -1) {
+                head.write(b);
+                window = (window << 8) | b;
+            }
+            return head.toString(StandardCharsets.US_ASCII);
+        }
+
+        private void record(final long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+    }
+
+    /**
+     * Sample the thread count and the RSS every 100 ms, and listen for the GC pauses.
+     */
+    private static final class ProcessSampler implements NotificationListener, AutoCloseable {
+
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "load-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+
+        private final long gcCountBefore = gcBeans.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+
+        private final long gcTimeBefore = gcBeans.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+
+        private final AtomicLong maxThreads = new AtomicLong();
+
+        private final AtomicLong maxRssKb = new AtomicLong(-1);
+
+        private final AtomicLong maxGcPause = new AtomicLong();
+
+        private ProcessSampler() {
+            for (GarbageCollectorMXBean gcBean : gcBeans) {
+                if (gcBean instanceof NotificationEmitter) {
+                    ((NotificationEmitter) gcBean).addNotificationListener(this, null, null);
+                }
+            }
+            scheduler.scheduleAtFixedRate(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+        }
+
+        private void sample() {
+            maxThreads.accumulateAndGet(ManagementFactory.getThreadMXBean().getThreadCount(), Math::max);
+            maxRssKb.accumulateAndGet(readRssKb(), Math::max);
+        }
+
+        /**
+         * @return the resident set size (kB), -1 when there is no {@code /proc} (Windows).
+         */
+        private static long readRssKb() {
+            if (!Files.isReadable(PROC_STATUS)) {
+                return -1;
+            }
+            try {
+                return Files.readAllLines(PROC_STATUS).stream().
+                        filter(line -> line.startsWith("VmRSS:")).
+                        map(line -> Long.parseLong(line.replaceAll("\\D", ""))).
+                        findFirst().orElse(-1L);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void handleNotification(final Notification notification, final Object handback) {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // The concurrent cycles do not stop the application
+                if (!info.getGcName().contains("Concurrent")) {
+                    maxGcPause.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+                }
+            }
+        }
+
+        private void stop(final Properties properties) {
+            sample();
+            properties.setProperty("threads.max", String.valueOf(maxThreads.get()));
+            properties.setProperty("rss.max.kb", String.valueOf(maxRssKb.get()));
+            properties.setProperty("gc.count", String.valueOf(
+                    gcBeans.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum() - gcCountBefore));
+            properties.setProperty("gc.time.ms", String.valueOf(
+                    gcBeans.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum() - gcTimeBefore));
+            properties.setProperty("gc.pause.max.ms", String.valueOf(maxGcPause.get()));
+        }
+
+        @Override
+        public void close() {
+            scheduler.shutdownNow();
+            for (GarbageCollectorMXBean gcBean : gcBeans) {
+                if (gcBean instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) gcBean).removeNotificationListener(this);
+                    } catch (Exception e) {
+                        // Not registered
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.load;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The outcome of a load run, storable as a properties file so that a later run can be compared against it.
+ *
+ * @author Eugen Covaci
+ */
+public class LoadReport {
+
+    private final Properties properties;
+
+    LoadReport(final Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Load a report stored with {@link #store(Path)}.
+     *
+     * @param file the properties file
+     * @return the report
+     * @throws IOException
+     */
+    public static LoadReport load(final Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return new LoadReport(properties);
+    }
+
+    public void store(final Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            properties.store(writer, "winfoom load test: " + getScenario());
+        }
+    }
+
+    public String getScenario() {
+        return properties.getProperty("scenario");
+    }
+
+    public long getRequests() {
+        return getLong("requests");
+    }
+
+    public long getErrors() {
+        return getLong("errors");
+    }
+
+    /**
+     * @return the randomized faults injected, see {@link LoadGenerator#withFaults(double, org.apache.http.HttpHost, long)}.
+     */
+    public long getFaults() {
+        return getLong("faults");
+    }
+
+    /**
+     * @return the completed requests per second.
+     */
+    public double getThroughput() {
+        return getDouble("throughput");
+    }
+
+    public double getP50Millis() {
+        return getDouble("latency.p50.ms");
+    }
+
+    public double getP99Millis() {
+        return getDouble("latency.p99.ms");
+    }
+
+    public double getP999Millis() {
+        return getDouble("latency.p999.ms");
+    }
+
+    public long getMaxThreads() {
+        return getLong("threads.max");
+    }
+
+    /**
+     * @return the max resident set size (kB), -1 if the OS does not expose it.
+     */
+    public long getMaxRssKb() {
+        return getLong("rss.max.kb");
+    }
+
+    public long getGcCount() {
+        return getLong("gc.count");
+    }
+
+    public long getGcTimeMillis() {
+        return getLong("gc.time.ms");
+    }
+
+    public long getGcMaxPauseMillis() {
+        return getLong("gc.pause.max.ms");
+    }
+
+    /**
+     * Compare this report against a baseline.
+     * <p>Throughput, p99 latency and thread count are compared since they are stable enough
+     * between runs on the same machine; the rest is informative.
+     *
+     * @param baseline  the baseline report
+     * @param tolerance the accepted degradation, as a ratio (0.2 means 20%)
+     * @return the regressions found, empty if none.
+     */
+    public List<String> compareTo(final LoadReport baseline, final double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        if (getThroughput() < baseline.getThroughput() * (1 - tolerance)) {
+            regressions.add(String.format("throughput dropped from %.1f to %.1f req/s",
+                    baseline.getThroughput(), getThroughput()));
+        }
+        if (getP99Millis() > baseline.getP99Millis() * (1 + tolerance)) {
+            regressions.add(String.format("p99 latency grew from %.2f to %.2f ms",
+                    baseline.getP99Millis(), getP99Millis()));
+        }
+        if (getMaxThreads() > baseline.getMaxThreads() * (1 + tolerance)) {
+            regressions.add(String.format("max thread count grew from %d to %d",
+                    baseline.getMaxThreads(), getMaxThreads()));
+        }
+        return regressions;
+    }
+
+    private long getLong(final String key) {
+        return Long.parseLong(properties.getProperty(key, "-1"));
+    }
+
+    private double getDouble(final String key) {
+        return Double.parseDouble(properties.getProperty(key, "-1"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d requests (%d errors, %d faults), %.1f req/s, latency p50=%.2f ms p99=%.2f ms p999=%.2f ms, " +
+                        "max threads=%d, max RSS=%d kB, GC count=%d time=%d ms max pause=%d ms",
+                getScenario(), getRequests(), getErrors(), getFaults(), getThroughput(),
+                getP50Millis(), getP99Millis(), getP999Millis(),
+                getMaxThreads(), getMaxRssKb(), getGcCount(), getGcTimeMillis(), getGcMaxPauseMillis());
+    }
+}
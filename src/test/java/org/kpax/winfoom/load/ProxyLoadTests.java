@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.load;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.ProxyController;
+import org.kpax.winfoom.util.InMemoryURLFactory;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.ProxyAuthenticator;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.kpax.winfoom.TestConstants.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load winfoom in-process against local upstream proxies: an authenticated HTTP proxy (Basic),
+ * a SOCKS5 proxy and a PAC script pointing to the HTTP proxy.
+ * <p>Excluded from the default build, run it with {@code mvn -Pload test}. The system properties:
+ * <ul>
+ * <li>{@code load.clients} - the concurrent clients (default 16)</li>
+ * <li>{@code load.duration} - the measured seconds per scenario (default 20), after {@code load.warmup} (default 5)</li>
+ * <li>{@code load.baseline} - the baseline directory (default {@code src/test/load-baseline})</li>
+ * <li>{@code load.tolerance} - the accepted degradation against the baseline (default 0.2)</li>
+ * <li>{@code load.updateBaseline} - store this run as the baseline (default false)</li>
+ * </ul>
+ * Each report is written into {@code target/load}. The baseline is machine dependent,
+ * so record it on the machine the runs are compared on.
+ *
+ * @author Eugen Covaci
+ */
+@Tag("load")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ProxyLoadTests {
+
+    private static final int SOCKS_PROXY_PORT = PROXY_PORT + 1;
+
+    private static final double MAX_ERROR_RATIO = 0.01;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int clients = Integer.getInteger("load.clients", 16);
+
+    private final Duration duration = Duration.ofSeconds(Integer.getInteger("load.duration", 20));
+
+    private final Duration warmup = Duration.ofSeconds(Integer.getInteger("load.warmup", 5));
+
+    private final Path baselineDirectory = Paths.get(System.getProperty("load.baseline", "src/test/load-baseline"));
+
+    private final double tolerance = Double.parseDouble(System.getProperty("load.tolerance", "0.2"));
+
+    private final boolean updateBaseline = Boolean.getBoolean("load.updateBaseline");
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    private HttpServer remoteServer;
+
+    private HttpProxyServer httpProxyServer;
+
+    private ClientAndServer socksProxyServer;
+
+    @BeforeAll
+    void before() throws Exception {
+        byte[] body = new byte[1024];
+        remoteServer = ServerBootstrap.bootstrap().
+                registerHandler("/get", (HttpRequest request, HttpResponse response, HttpContext context) ->
+                        response.setEntity(new ByteArrayEntity(body))).
+                registerHandler("/post", (HttpRequest request, HttpResponse response, HttpContext context) -> {
+                    if (request instanceof HttpEntityEnclosingRequest) {
+                        EntityUtils.consume(((HttpEntityEnclosingRequest) request).getEntity());
+                    }
+                    response.setEntity(new StringEntity("ok"));
+                }).create();
+        remoteServer.start();
+
+        httpProxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withName("AuthenticatedUpstreamProxy")
+                .withProxyAuthenticator(new ProxyAuthenticator() {
+                    public boolean authenticate(String userName, String password) {
+                        return userName.equals(USERNAME) && password.equals(PASSWORD);
+                    }
+
+                    @Override
+                    public String getRealm() {
+                        return null;
+                    }
+                })
+                .start();
+
+        socksProxyServer = ClientAndServer.startClientAndServer(SOCKS_PROXY_PORT);
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+    }
+
+    @Test
+    void httpProxy_BasicAuthMixedLoad_NoRegression() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        runScenario("basic");
+    }
+
+    @Test
+    void socks5Proxy_MixedLoad_NoRegression() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS5);
+        when(proxyConfig.getProxyPort()).thenReturn(SOCKS_PROXY_PORT);
+        runScenario("socks5");
+    }
+
+    @Test
+    void pacProxy_MixedLoad_NoRegression() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.PAC);
+        when(proxyConfig.isAutoConfig()).thenReturn(true);
+        String content = String.format("function FindProxyForURL(url, host) {return \"PROXY localhost:%d\";}",
+                PROXY_PORT);
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(InMemoryURLFactory.getInstance().build("/load/pac/file", content));
+        runScenario("pac");
+    }
+
+    private void runScenario(final String scenario) throws Exception {
+        proxyController.stop();
+        proxyController.start();
+        HttpHost target = new HttpHost("localhost", remoteServer.getLocalPort());
+        LoadGenerator loadGenerator = new LoadGenerator(LOCAL_PROXY_PORT, target, clients);
+        if (!warmup.isZero()) {
+            logger.info("Warm up {} for {}", scenario, warmup);
+            loadGenerator.run(scenario, warmup);
+        }
+        logger.info("Run {} with {} clients for {}", scenario, clients, duration);
+        LoadReport report = loadGenerator.run(scenario, duration);
+        logger.info("{}", report);
+        report.store(Paths.get("target", "load", scenario + ".properties"));
+
+        assertTrue(report.getErrors() <= report.getRequests() * MAX_ERROR_RATIO,
+                "Too many errors: " + report.getErrors() + " out of " + report.getRequests());
+
+        Path baselineFile = baselineDirectory.resolve(scenario + ".properties");
+        if (updateBaseline) {
+            report.store(baselineFile);
+            logger.info("Baseline stored into {}", baselineFile);
+        } else if (Files.exists(baselineFile)) {
+            List<String> regressions = report.compareTo(LoadReport.load(baselineFile), tolerance);
+            assertTrue(regressions.isEmpty(), scenario + " regressed: " + regressions);
+        } else {
+            logger.warn("No baseline found at {}, run with -Dload.updateBaseline=true to record one", baselineFile);
+        }
+    }
+
+    @AfterAll
+    void after() {
+        proxyController.stop();
+        remoteServer.stop();
+        httpProxyServer.abort();
+        socksProxyServer.stop();
+    }
+
+}
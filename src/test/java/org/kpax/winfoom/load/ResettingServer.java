@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.load;
+
+import org.apache.http.HttpHost;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A server resetting (TCP RST) every connection after reading the first bytes sent, to play a failing upstream.
+ *
+ * @author Eugen Covaci
+ */
+public class ResettingServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+
+    public ResettingServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::acceptLoop, "resetting-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public HttpHost getHost() {
+        return new HttpHost("localhost", serverSocket.getLocalPort());
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> reset(socket), "resetting-server-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void reset(final Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(1000);
+            try {
+                socket.getInputStream().read(new byte[1024]);
+            } catch (IOException e) {
+                // Nothing received, reset anyway
+            }
+            socket.setSoLinger(true, 0);
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
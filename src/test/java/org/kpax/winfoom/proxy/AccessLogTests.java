@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class AccessLogTests {
+
+    @Test
+    void format_FullEntry_JsonLine() throws Exception {
+        AccessLog.Entry entry = new AccessLog.Entry();
+        entry.time = 0;
+        entry.clientAddress = InetAddress.getByName("127.0.0.1");
+        entry.method = "GET";
+        entry.target = "http://example.com/a\"b";
+        entry.proxy = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", 3128));
+        entry.status = 200;
+        entry.bytesIn = 100;
+        entry.bytesOut = 2000;
+        entry.durationNanos = TimeUnit.MILLISECONDS.toNanos(15);
+        StringBuilder builder = new StringBuilder();
+        AccessLog.format(entry, builder);
+        assertEquals("{\"time\":\"1970-01-01T00:00:00Z\",\"client\":\"127.0.0.1\",\"method\":\"GET\"," +
+                        "\"target\":\"http://example.com/a\\\"b\",\"proxy\":\"PROXY localhost:3128\",\"status\":200," +
+                        "\"bytesIn\":100,\"bytesOut\":2000,\"durationMs\":15}\n",
+                builder.toString());
+    }
+
+    @Test
+    void format_NoResponse_Nulls() {
+        AccessLog.Entry entry = new AccessLog.Entry();
+        StringBuilder builder = new StringBuilder();
+        AccessLog.format(entry, builder);
+        assertTrue(builder.toString().contains("\"proxy\":null,\"status\":null"));
+    }
+
+    @Test
+    void rollingFile_MaxSizeExceeded_Rolled(@TempDir Path logDir) throws Exception {
+        try (AccessLog.RollingFile rollingFile = new AccessLog.RollingFile(logDir, 10, 2)) {
+            rollingFile.write("first-line\n");
+            rollingFile.write("second-line\n");
+            rollingFile.write("third-line\n");
+            rollingFile.write("fourth-line\n");
+        }
+        assertEquals("fourth-line\n", Files.readString(logDir.resolve("access.log"), StandardCharsets.UTF_8));
+        assertEquals("third-line\n", Files.readString(logDir.resolve("archived/access_1.log")));
+        assertEquals("second-line\n", Files.readString(logDir.resolve("archived/access_2.log")));
+        assertFalse(Files.exists(logDir.resolve("archived/access_3.log")));
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class ConnectionRegistryTests {
+
+    private ServerSocket serverSocket;
+
+    private Socket client;
+
+    private Socket accepted;
+
+    @BeforeEach
+    void before() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.getOutputStream().write("CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\n".
+                getBytes(StandardCharsets.US_ASCII));
+        accepted = serverSocket.accept();
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        client.close();
+        accepted.close();
+        serverSocket.close();
+    }
+
+    @Test
+    void getConnections_Registered_Listed() throws Exception {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        ClientConnection clientConnection = new ClientConnection(accepted, null, null, null, null);
+        ConnectionRegistry.Entry entry = registry.register(clientConnection, 1);
+
+        List<ConnectionRegistry.ConnectionInfo> connections = registry.getConnections();
+        assertEquals(1, connections.size());
+        ConnectionRegistry.ConnectionInfo info = connections.get(0);
+        assertEquals("CONNECT", info.getMethod());
+        assertEquals("example.com:443", info.getTarget());
+        assertEquals("127.0.0.1", info.getClient());
+        assertEquals(1, info.getGeneration());
+        assertFalse(info.isTunnel());
+        assertTrue(info.getBytesIn() > 0);
+        assertTrue(registry.getTopTunnels(10).isEmpty());
+        assertEquals(0, registry.countOlderThan(1));
+        assertEquals(1, registry.countOlderThan(2));
+
+        registry.unregister(entry);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    void kill_OpenTunnel_BothSidesClosed() throws Exception {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        ClientConnection clientConnection = new ClientConnection(accepted, null, null, null, null);
+        registry.register(clientConnection, 1);
+        long id = registry.getConnections().get(0).getId();
+        AtomicBoolean upstreamClosed = new AtomicBoolean();
+        clientConnection.onTunnelOpened(() -> upstreamClosed.set(true));
+
+        assertEquals(1, registry.getTopTunnels(10).size());
+        assertTrue(registry.getConnections().get(0).isTunnel());
+
+        assertTrue(registry.kill(id));
+        assertTrue(upstreamClosed.get());
+        assertTrue(accepted.isClosed());
+        assertFalse(registry.kill(id + 1));
+    }
+
+}
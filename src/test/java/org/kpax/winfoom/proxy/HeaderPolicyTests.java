@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+class HeaderPolicyTests {
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @InjectMocks
+    private HeaderPolicy headerPolicy;
+
+    @BeforeEach
+    void before() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    void compile_ManyNames_EachNameFound() {
+        Map<String, HeaderPolicy.Action> rules = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            rules.put("X-Header-" + i, i % 2 == 0 ? HeaderPolicy.Action.DROP : HeaderPolicy.Action.REWRITE);
+        }
+        HeaderPolicy.Table table = HeaderPolicy.Table.compile(rules);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(rules.get("X-Header-" + i), table.getAction("x-header-" + i));
+        }
+        assertEquals(HeaderPolicy.Action.PASS, table.getAction("X-Header-100"));
+    }
+
+    @Test
+    void init_DefaultSettings_BuiltInRules() {
+        when(systemConfig.getHeadersRequestRemove()).thenReturn("Proxy-Connection");
+        headerPolicy.init();
+
+        HeaderPolicy.Table requestTable = headerPolicy.getRequestTable(false);
+        assertEquals(HeaderPolicy.Action.DROP, requestTable.getAction("proxy-authorization"));
+        assertEquals(HeaderPolicy.Action.DROP, requestTable.getAction("PROXY-CONNECTION"));
+        assertEquals(HeaderPolicy.Action.REWRITE, requestTable.getAction(HttpHeaders.VIA));
+        assertEquals(HeaderPolicy.Action.PASS, requestTable.getAction(HttpHeaders.CONTENT_TYPE));
+        assertEquals(HeaderPolicy.Action.PASS, requestTable.getAction(HttpHeaders.TRANSFER_ENCODING));
+
+        HeaderPolicy.Table entityRequestTable = headerPolicy.getRequestTable(true);
+        assertEquals(HeaderPolicy.Action.DROP, entityRequestTable.getAction("content-length"));
+        assertEquals(HeaderPolicy.Action.DROP, entityRequestTable.getAction("Proxy-Connection"));
+        assertEquals(HeaderPolicy.Action.REWRITE, entityRequestTable.getAction("transfer-encoding"));
+        assertEquals(HeaderPolicy.Action.PASS, entityRequestTable.getAction(HttpHeaders.ACCEPT));
+
+        HeaderPolicy.Table responseTable = headerPolicy.getResponseTable();
+        assertEquals(HeaderPolicy.Action.DROP, responseTable.getAction("Proxy-Authenticate"));
+        assertEquals(HeaderPolicy.Action.REWRITE, responseTable.getAction("via"));
+        assertEquals(HeaderPolicy.Action.PASS, responseTable.getAction("Proxy-Connection"));
+    }
+
+    @Test
+    void init_AddedHeaders_OriginalsDropped() {
+        when(systemConfig.getHeadersRequestAdd()).thenReturn("X-Forwarded-By: winfoom | Via: ignored | invalid");
+        when(systemConfig.getHeadersResponseAdd()).thenReturn("X-Frame-Options:DENY");
+        when(systemConfig.getHeadersResponseRemove()).thenReturn("Server, ,transfer-encoding");
+        headerPolicy.init();
+
+        List<Header> requestAddedHeaders = headerPolicy.getRequestAddedHeaders();
+        assertEquals(1, requestAddedHeaders.size());
+        assertEquals("X-Forwarded-By", requestAddedHeaders.get(0).getName());
+        assertEquals("winfoom", requestAddedHeaders.get(0).getValue());
+        assertEquals(HeaderPolicy.Action.DROP, headerPolicy.getRequestTable(true).getAction("x-forwarded-by"));
+
+        assertEquals("DENY", headerPolicy.getResponseAddedHeaders().get(0).getValue());
+        HeaderPolicy.Table responseTable = headerPolicy.getResponseTable();
+        assertEquals(HeaderPolicy.Action.DROP, responseTable.getAction("X-Frame-Options"));
+        assertEquals(HeaderPolicy.Action.DROP, responseTable.getAction("server"));
+        assertEquals(HeaderPolicy.Action.REWRITE, responseTable.getAction(HttpHeaders.TRANSFER_ENCODING));
+    }
+
+}
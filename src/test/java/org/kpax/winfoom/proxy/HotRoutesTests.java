@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+class HotRoutesTests {
+
+    private static final ProxyInfo PROXY = new ProxyInfo(ProxyInfo.PacType.PROXY, HttpHost.create("proxy:3128"));
+
+    @TempDir
+    Path tempDirectory;
+
+    @Mock
+    private ProxyConfig proxyConfig;
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @InjectMocks
+    private HotRoutes hotRoutes;
+
+    @BeforeEach
+    void before() {
+        MockitoAnnotations.initMocks(this);
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.PAC);
+        when(systemConfig.getConnectionManagerPrewarmRoutes()).thenReturn(2);
+    }
+
+    @Test
+    void save_SeveralRoutes_HottestLoadedFirst() {
+        hotRoutes.record(PROXY, HttpHost.create("http://cold.example.com"));
+        for (int i = 0; i < 3; i++) {
+            hotRoutes.record(PROXY, HttpHost.create("http://hot.example.com:8080"));
+        }
+        hotRoutes.record(new ProxyInfo(ProxyInfo.PacType.DIRECT), HttpHost.create("http://direct.example.com"));
+        hotRoutes.record(new ProxyInfo(ProxyInfo.PacType.DIRECT), HttpHost.create("http://direct.example.com"));
+        // Not poolable as plain HTTP
+        hotRoutes.record(PROXY, HttpHost.create("https://secure.example.com"));
+        hotRoutes.save();
+
+        List<HotRoutes.Route> routes = hotRoutes.load();
+        assertEquals(2, routes.size());
+        assertEquals(new HttpRoute(new HttpHost("hot.example.com", 8080, "http"), null,
+                new HttpHost("proxy", 3128), false), routes.get(0).toHttpRoute());
+        assertEquals(new HttpRoute(new HttpHost("direct.example.com", 80, "http"), null, false),
+                routes.get(1).toHttpRoute());
+    }
+
+    @Test
+    void load_OtherProxyType_Ignored() {
+        hotRoutes.record(PROXY, HttpHost.create("http://hot.example.com"));
+        hotRoutes.save();
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        assertTrue(hotRoutes.load().isEmpty());
+    }
+
+    @Test
+    void load_ManualProxyChanged_Ignored() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        hotRoutes.record(new ProxyInfo(ProxyConfig.Type.HTTP, HttpHost.create("old:3128")),
+                HttpHost.create("http://hot.example.com"));
+        hotRoutes.save();
+        when(proxyConfig.getProxyHost()).thenReturn("new");
+        when(proxyConfig.getProxyPort()).thenReturn(3128);
+        assertTrue(hotRoutes.load().isEmpty());
+        when(proxyConfig.getProxyHost()).thenReturn("old");
+        assertEquals(1, hotRoutes.load().size());
+    }
+
+    @Test
+    void onReload_ManualProxyChanged_OtherRoutesDropped() {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        when(proxyConfig.getProxyHost()).thenReturn("new");
+        when(proxyConfig.getProxyPort()).thenReturn(3128);
+        hotRoutes.record(new ProxyInfo(ProxyConfig.Type.HTTP, HttpHost.create("old:3128")),
+                HttpHost.create("http://old.example.com"));
+        hotRoutes.record(new ProxyInfo(ProxyConfig.Type.HTTP, HttpHost.create("new:3128")),
+                HttpHost.create("http://new.example.com"));
+
+        hotRoutes.onReload();
+        hotRoutes.save();
+        List<HotRoutes.Route> routes = hotRoutes.load();
+        assertEquals(1, routes.size());
+        assertEquals(new HttpRoute(new HttpHost("new.example.com", 80, "http"), null,
+                new HttpHost("new", 3128), false), routes.get(0).toHttpRoute());
+    }
+
+    @Test
+    void onReload_Pac_RoutesKept() {
+        hotRoutes.record(PROXY, HttpHost.create("http://hot.example.com"));
+        hotRoutes.onReload();
+        hotRoutes.save();
+        assertEquals(1, hotRoutes.load().size());
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class HttpRequestHeadTests {
+
+    private static InputStream toStream(String head) {
+        return new ByteArrayInputStream(head.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parse_Connect_AuthorityRecognized() throws Exception {
+        HttpRequestHead head = new HttpRequestHead();
+        head.parse(toStream("CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\n"));
+        assertTrue(head.isConnect());
+        assertEquals("example.com", head.getConnectHost());
+        assertEquals(443, head.getConnectPort());
+        assertEquals(HttpVersion.HTTP_1_1, head.getProtocolVersion());
+        assertEquals("CONNECT", head.getMethod());
+        assertEquals("example.com:443", head.getUri());
+        assertEquals(1, head.getHeaderCount());
+    }
+
+    @Test
+    void parse_ConnectIPv6_AuthorityRecognized() throws Exception {
+        HttpRequestHead head = new HttpRequestHead();
+        head.parse(toStream("CONNECT [::1]:8443 HTTP/1.0\r\n\r\n"));
+        assertTrue(head.isConnect());
+        assertEquals("[::1]", head.getConnectHost());
+        assertEquals(8443, head.getConnectPort());
+        assertEquals(HttpVersion.HTTP_1_0, head.getProtocolVersion());
+    }
+
+    @Test
+    void parse_ConnectNoPort_HttpException() {
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(HttpException.class,
+                () -> head.parse(toStream("CONNECT example.com HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    void parse_Get_HeadersMaterializedLazily() throws Exception {
+        HttpRequestHead head = new HttpRequestHead();
+        head.parse(toStream("GET http://example.com/path?q=1 HTTP/1.1\r\n" +
+                "Host: example.com\r\n" +
+                "Accept:   text/html  \r\n" +
+                "X-Empty:\r\n" +
+                "\r\n"));
+        assertFalse(head.isConnect());
+        assertEquals("GET", head.getMethod());
+        assertEquals("http://example.com/path?q=1", head.getUri());
+        assertEquals(3, head.getHeaderCount());
+        assertEquals("text/html", head.getFirstHeaderValue("accept"));
+        assertEquals("", head.getFirstHeaderValue("X-Empty"));
+        assertNull(head.getFirstHeaderValue("Content-Length"));
+
+        HttpRequest request = head.toHttpRequest();
+        assertFalse(request instanceof HttpEntityEnclosingRequest);
+        assertEquals("example.com", request.getFirstHeader(HttpHeaders.HOST).getValue());
+        assertEquals(3, request.getAllHeaders().length);
+    }
+
+    @Test
+    void parse_PostWithBodyPrefix_RemainingAvailable() throws Exception {
+        HttpRequestHead head = new HttpRequestHead();
+        InputStream inputStream = toStream("POST http://example.com/ HTTP/1.1\n" +
+                "Content-Length: 4\n" +
+                "\n" +
+                "body");
+        head.parse(inputStream);
+        assertTrue(head.toHttpRequest() instanceof HttpEntityEnclosingRequest);
+        assertEquals(4, head.getRemaining());
+        assertEquals("body", new String(head.prependRemaining(inputStream).readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parse_LeadingEmptyLine_Ignored() throws Exception {
+        HttpRequestHead head = new HttpRequestHead();
+        head.parse(toStream("\r\nGET / HTTP/1.1\r\n\r\n"));
+        assertEquals("/", head.getUri());
+    }
+
+    @Test
+    void parse_ObsoleteLineFolding_HttpException() {
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(HttpException.class,
+                () -> head.parse(toStream("GET / HTTP/1.1\r\nX-Folded: a\r\n b\r\n\r\n")));
+    }
+
+    @Test
+    void parse_ControlCharInHeaderValue_HttpException() {
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(HttpException.class,
+                () -> head.parse(toStream("GET / HTTP/1.1\r\nX-Bad: a\rb\r\n\r\n")));
+    }
+
+    @Test
+    void parse_WhitespaceBeforeColon_HttpException() {
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(HttpException.class,
+                () -> head.parse(toStream("GET / HTTP/1.1\r\nHost : example.com\r\n\r\n")));
+    }
+
+    @Test
+    void parse_MalformedVersion_HttpException() {
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(HttpException.class,
+                () -> head.parse(toStream("GET / HTTP/x.1\r\n\r\n")));
+    }
+
+    @Test
+    void parse_TooManyHeaders_HttpException() {
+        StringBuilder builder = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= HttpRequestHead.MAX_HEADER_COUNT; i++) {
+            builder.append("X-Header-").append(i).append(": value\r\n");
+        }
+        builder.append("\r\n");
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(HttpException.class, () -> head.parse(toStream(builder.toString())));
+    }
+
+    @Test
+    void parse_HeadTooLarge_HttpException() {
+        String head = "GET / HTTP/1.1\r\nX-Large: " + "a".repeat(HttpRequestHead.MAX_HEAD_LENGTH) + "\r\n\r\n";
+        assertThrows(HttpException.class, () -> new HttpRequestHead().parse(toStream(head)));
+    }
+
+    @Test
+    void parse_IncompleteHead_ConnectionClosedException() {
+        HttpRequestHead head = new HttpRequestHead();
+        assertThrows(ConnectionClosedException.class,
+                () -> head.parse(toStream("GET / HTTP/1.1\r\nHost: example.com\r\n")));
+    }
+
+    @Test
+    void parse_Reused_PreviousStateDiscarded() throws Exception {
+        HttpRequestHead head = new HttpRequestHead();
+        head.parse(toStream("CONNECT example.com:443 HTTP/1.1\r\n\r\n"));
+        head.parse(toStream("GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n"));
+        assertFalse(head.isConnect());
+        assertEquals("GET", head.getMethod());
+        assertEquals("http://example.com/", head.getUri());
+        assertEquals(1, head.getHeaderCount());
+        assertEquals(0, head.getRemaining());
+    }
+
+    @Test
+    void toHttpRequest_UnknownMethod_MethodNotSupportedException() throws IOException, HttpException {
+        HttpRequestHead head = new HttpRequestHead();
+        head.parse(toStream("FOO / HTTP/1.1\r\n\r\n"));
+        assertThrows(MethodNotSupportedException.class, head::toHttpRequest);
+    }
+}
@@ -34,7 +34,8 @@ import static org.mockito.Mockito.*;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
 @ExtendWith(SpringExtension.class)
 @ActiveProfiles("test")
-@SpringBootTest(classes = KerberosApplicationTest.class)
+// The upstream proxy is restarted between tests: no pre-warmed pooled connections to it
+@SpringBootTest(classes = KerberosApplicationTest.class, properties = "connectionManager.prewarm.routes=0")
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 @Timeout(10)
@@ -124,6 +125,14 @@ public class KerberosTests {
 
     @Test
     @Order(3)
+    void httpProxy_Reload_200OK() throws Exception {
+        proxyController.reload();
+        httpProxy_NonConnect_200OK();
+        httpProxy_Connect_200OK();
+    }
+
+    @Test
+    @Order(4)
     void httpProxy_NonConnectWrongCredentials_407() throws IOException, KrbException {
         try {
             kerberosHttpProxyMock.stop();
@@ -154,7 +163,7 @@ public class KerberosTests {
     }
 
     @Test
-    @Order(4)
+    @Order(5)
     void httpProxy_ConnectWrongCredentials_407() throws IOException, KrbException {
         try {
             kerberosHttpProxyMock.stop();
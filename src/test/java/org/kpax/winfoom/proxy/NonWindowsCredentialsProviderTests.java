@@ -60,4 +60,45 @@ public class NonWindowsCredentialsProviderTests {
         assertEquals("Incorrect password", "randomPassword", credentials.getPassword());
     }
 
+    @Test
+    public void onReload_Credentials_KeptForRequestsInProgress() {
+        when(proxyConfig.getProxyHttpUsername()).thenReturn("oldUser");
+        when(proxyConfig.getProxyHttpPassword()).thenReturn("randomPassword");
+        when(proxyConfig.isNtlm()).thenReturn(false);
+
+        NonWindowsCredentialsProvider nonWindowsCredentialsProvider = new NonWindowsCredentialsProvider(proxyConfig);
+        Credentials credentials = nonWindowsCredentialsProvider.getCredentials(null);
+        when(proxyConfig.getProxyHttpUsername()).thenReturn("newUser");
+        nonWindowsCredentialsProvider.onReload();
+
+        assertSame("Credentials not kept", credentials, nonWindowsCredentialsProvider.getCredentials(null));
+    }
+
+    @Test
+    public void onReload_NoCredentialsYet_Null() {
+        when(proxyConfig.getProxyHttpUsername()).thenReturn("newUser");
+        when(proxyConfig.getProxyHttpPassword()).thenReturn("randomPassword");
+        when(proxyConfig.isNtlm()).thenReturn(false);
+
+        NonWindowsCredentialsProvider nonWindowsCredentialsProvider = new NonWindowsCredentialsProvider(proxyConfig);
+        nonWindowsCredentialsProvider.onReload();
+
+        assertNull("Credentials of the new configuration", nonWindowsCredentialsProvider.getCredentials(null));
+    }
+
+    @Test
+    public void onStop_Credentials_Cleared() {
+        when(proxyConfig.getProxyHttpUsername()).thenReturn("oldUser");
+        when(proxyConfig.getProxyHttpPassword()).thenReturn("randomPassword");
+        when(proxyConfig.isNtlm()).thenReturn(false);
+
+        NonWindowsCredentialsProvider nonWindowsCredentialsProvider = new NonWindowsCredentialsProvider(proxyConfig);
+        nonWindowsCredentialsProvider.getCredentials(null);
+        when(proxyConfig.getProxyHttpUsername()).thenReturn("newUser");
+        nonWindowsCredentialsProvider.onStop();
+
+        assertEquals("Incorrect principal", "newUser",
+                nonWindowsCredentialsProvider.getCredentials(null).getUserPrincipal().getName());
+    }
+
 }
@@ -47,6 +47,7 @@ import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.URL;
 import java.time.Instant;
 import java.util.Map;
@@ -430,6 +431,102 @@ public class PacProxyClientConnectionTests {
         }
     }
 
+    @Order(9)
+    @Test
+    void multipleProxiesRacing_HttpConnectAndNonConnect_CorrectResponse() throws Exception {
+        ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        ReflectionTestUtils.setField(systemConfig, "pacProxyRacing", true);
+        try {
+            // The first proxy refuses the connection, the second one wins the race
+            String content = String.format(
+                    "function FindProxyForURL(url, host) {return \"SOCKS5 localhost:%s;HTTP localhost:%s\";}",
+                    closedPort, proxyServer.getLocalPort());
+            logger.debug("content {}", content);
+            URL pacFileUrl = InMemoryURLFactory.getInstance().build("/fake/url/to/pac/file", content);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFileUrl);
+            proxyController.restart();
+            HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+            try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
+                RequestConfig config = RequestConfig.custom()
+                        .setProxy(localProxy)
+                        .build();
+                HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+                HttpGet request = new HttpGet("/get");
+                request.setConfig(config);
+
+                try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                    assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                    String responseBody = EntityUtils.toString(response.getEntity());
+                    assertEquals("12345", responseBody);
+                }
+            }
+
+            try (CloseableHttpClient httpClient = HttpClientBuilder.create()
+                    .setProxy(localProxy).build()) {
+                HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+                HttpRequest request = new BasicHttpRequest("CONNECT", "localhost:" + remoteServer.getLocalPort());
+                try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                    assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                }
+            }
+        } finally {
+            ReflectionTestUtils.setField(systemConfig, "pacProxyRacing", false);
+            proxyServer.stop();
+        }
+    }
+
+    @Order(10)
+    @Test
+    void multipleProxiesRacing_Socks5ConnectAndNonConnect_CorrectResponse() throws Exception {
+        ClientAndServer proxyServer = ClientAndServer.startClientAndServer();
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        ReflectionTestUtils.setField(systemConfig, "pacProxyRacing", true);
+        try {
+            // The first proxy refuses the connection, the second one wins the race
+            String content = String.format(
+                    "function FindProxyForURL(url, host) {return \"HTTP localhost:%s;SOCKS5 localhost:%s\";}",
+                    closedPort, proxyServer.getLocalPort());
+            logger.debug("content {}", content);
+            URL pacFileUrl = InMemoryURLFactory.getInstance().build("/fake/url/to/pac/file", content);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFileUrl);
+            proxyController.restart();
+            HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+            try (CloseableHttpClient httpClient = HttpClientBuilder.create().disableAutomaticRetries().build()) {
+                RequestConfig config = RequestConfig.custom()
+                        .setProxy(localProxy)
+                        .build();
+                HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+                HttpGet request = new HttpGet("/get");
+                request.setConfig(config);
+
+                try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                    assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                    String responseBody = EntityUtils.toString(response.getEntity());
+                    assertEquals("12345", responseBody);
+                }
+            }
+
+            try (CloseableHttpClient httpClient = HttpClientBuilder.create()
+                    .setProxy(localProxy).build()) {
+                HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+                HttpRequest request = new BasicHttpRequest("CONNECT", "localhost:" + remoteServer.getLocalPort());
+                try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                    assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                }
+            }
+        } finally {
+            ReflectionTestUtils.setField(systemConfig, "pacProxyRacing", false);
+            proxyServer.stop();
+        }
+    }
+
     @AfterAll
     void after() {
         remoteServer.shutdown(0, TimeUnit.MILLISECONDS);
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class ParseStateTests {
+
+    @Test
+    void acquire_Released_SameInstance() {
+        ParseState first = ParseState.acquire();
+        HttpRequestHead requestHead = first.getRequestHead();
+        first.release();
+        ParseState second = ParseState.acquire();
+        assertSame(first, second);
+        assertSame(requestHead, second.getRequestHead());
+        second.release();
+    }
+
+    @Test
+    void acquire_NotReleased_NewInstance() {
+        ParseState first = ParseState.acquire();
+        ParseState second = ParseState.acquire();
+        assertNotSame(first, second);
+        second.release();
+        first.release();
+    }
+
+    @Test
+    void getSessionInputBuffer_BodyPrefix_ReadFirst() throws Exception {
+        ParseState state = ParseState.acquire();
+        try {
+            InputStream inputStream = new ByteArrayInputStream(
+                    "POST / HTTP/1.1\r\nContent-Length: 8\r\n\r\nbody-end".getBytes(StandardCharsets.US_ASCII));
+            HttpRequestHead requestHead = state.getRequestHead();
+            requestHead.parse(inputStream);
+            SessionInputBufferImpl sessionInputBuffer =
+                    state.getSessionInputBuffer(requestHead.prependRemaining(inputStream));
+            byte[] body = new byte[8];
+            int length = 0;
+            int read;
+            while (length < body.length && (read = sessionInputBuffer.read(body, length, body.length - length)) > 0) {
+                length += read;
+            }
+            assertEquals("body-end", new String(body, 0, length, StandardCharsets.US_ASCII));
+        } finally {
+            state.release();
+        }
+        SessionInputBufferImpl recycled = state.getSessionInputBuffer(new ByteArrayInputStream(new byte[0]));
+        assertFalse(recycled.hasBufferedData());
+    }
+}
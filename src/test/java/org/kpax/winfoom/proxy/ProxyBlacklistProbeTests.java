@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class ProxyBlacklistProbeTests {
+
+    @Mock
+    private ProxyConfig proxyConfig;
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @Mock
+    private ProxyMetrics proxyMetrics;
+
+    @Mock
+    private TunnelConnection tunnelConnection;
+
+    @Spy
+    private ProxyExecutorService executorService = new ProxyExecutorService();
+
+    @InjectMocks
+    private ProxyBlacklist proxyBlacklist;
+
+    @BeforeEach
+    void before() {
+        MockitoAnnotations.initMocks(this);
+        when(proxyConfig.getBlacklistTimeout()).thenReturn(30);
+        when(systemConfig.getBlacklistProbeInitialDelay()).thenReturn(1);
+        when(systemConfig.getBlacklistProbeMaxDelay()).thenReturn(2);
+        when(systemConfig.getBlacklistProbeTimeout()).thenReturn(1);
+        when(proxyConfig.getProxyTestUrl()).thenReturn("http://example.com");
+    }
+
+    @AfterEach
+    void after() {
+        proxyBlacklist.onStop();
+        executorService.onStop();
+    }
+
+    /**
+     * A tunnel established over the socket passed to {@link TunnelConnection#open}.
+     */
+    private static Tunnel tunnel(InvocationOnMock invocation) throws IOException {
+        ManagedHttpClientConnection connection = mock(ManagedHttpClientConnection.class);
+        when(connection.getSocket()).thenReturn(invocation.getArgument(4));
+        return new Tunnel(connection,
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "Connection established"));
+    }
+
+    /**
+     * Accept one connection and answer a SOCKS5 no-authentication CONNECT with success.
+     */
+    private static Thread socks5Server(ServerSocket serverSocket) {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                OutputStream outputStream = socket.getOutputStream();
+                inputStream.readFully(new byte[3]);
+                outputStream.write(new byte[]{5, 0});
+                inputStream.readFully(new byte[4]);
+                inputStream.readFully(new byte[inputStream.readUnsignedByte() + 2]);
+                outputStream.write(new byte[]{5, 0, 0, 1, 0, 0, 0, 0, 0, 0});
+                outputStream.flush();
+            } catch (Exception e) {
+                // Ignore
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitState(ProxyBlacklist proxyBlacklist, ProxyInfo proxyInfo,
+                                   ProxyBlacklist.State state) throws InterruptedException {
+        for (int i = 0; i < 50 && proxyBlacklist.getState(proxyInfo) != state; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    void probe_ProxyReachable_HalfOpenThenClosed() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP,
+                    new HttpHost("localhost", serverSocket.getLocalPort()));
+            doAnswer(ProxyBlacklistProbeTests::tunnel).when(tunnelConnection).open(eq(proxyInfo.getProxyHost()),
+                    eq(new HttpHost("example.com", 443)), eq(HttpVersion.HTTP_1_1), isNull(), any(Socket.class));
+            assertNotNull(proxyBlacklist.blacklist(proxyInfo));
+            assertTrue(proxyBlacklist.isBlacklisted(proxyInfo));
+
+            awaitState(proxyBlacklist, proxyInfo, ProxyBlacklist.State.HALF_OPEN);
+            assertEquals(ProxyBlacklist.State.HALF_OPEN, proxyBlacklist.getState(proxyInfo));
+            assertFalse(proxyBlacklist.isBlacklisted(proxyInfo));
+            assertTrue(proxyBlacklist.getActiveBlacklistMap().isEmpty());
+
+            proxyBlacklist.onSuccess(proxyInfo);
+            assertEquals(ProxyBlacklist.State.CLOSED, proxyBlacklist.getState(proxyInfo));
+            assertTrue(proxyBlacklist.getBlacklistMap().isEmpty());
+        }
+    }
+
+    @Test
+    void blacklist_HalfOpenProxyFailsAgain_Open() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.SOCKS5,
+                    new HttpHost("localhost", serverSocket.getLocalPort()));
+            socks5Server(serverSocket);
+            proxyBlacklist.blacklist(proxyInfo);
+            awaitState(proxyBlacklist, proxyInfo, ProxyBlacklist.State.HALF_OPEN);
+            assertEquals(ProxyBlacklist.State.HALF_OPEN, proxyBlacklist.getState(proxyInfo));
+
+            proxyBlacklist.blacklist(proxyInfo);
+            assertEquals(ProxyBlacklist.State.OPEN, proxyBlacklist.getState(proxyInfo));
+            assertTrue(proxyBlacklist.isBlacklisted(proxyInfo));
+        }
+    }
+
+    @Test
+    void probe_ProxyUnreachable_StaysOpen() throws Exception {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("localhost", port));
+        proxyBlacklist.blacklist(proxyInfo);
+        Thread.sleep(1500);
+        assertEquals(ProxyBlacklist.State.OPEN, proxyBlacklist.getState(proxyInfo));
+        assertTrue(proxyBlacklist.isBlacklisted(proxyInfo));
+        assertEquals(1, proxyBlacklist.clear());
+    }
+
+    @Test
+    void onReload_ProxyNoLongerConfigured_OnlyConfiguredKept() {
+        ProxyInfo kept = new ProxyInfo(ProxyConfig.Type.HTTP, new HttpHost("kept", 3128));
+        ProxyInfo removed = new ProxyInfo(ProxyConfig.Type.HTTP, new HttpHost("removed", 3128));
+        proxyBlacklist.blacklist(kept);
+        proxyBlacklist.blacklist(removed);
+        when(proxyConfig.isConfigured(any(ProxyInfo.class))).
+                thenAnswer(invocation -> kept.equals(invocation.getArgument(0)));
+
+        proxyBlacklist.onReload();
+        assertTrue(proxyBlacklist.isBlacklisted(kept));
+        assertFalse(proxyBlacklist.isBlacklisted(removed));
+        assertEquals(1, proxyBlacklist.getBlacklistMap().size());
+    }
+
+    @Test
+    void onReload_BlacklistingDisabled_AllRemoved() {
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyConfig.Type.HTTP, new HttpHost("proxy", 3128));
+        proxyBlacklist.blacklist(proxyInfo);
+        when(proxyConfig.isConfigured(any(ProxyInfo.class))).thenReturn(true);
+        when(proxyConfig.getBlacklistTimeout()).thenReturn(0);
+
+        proxyBlacklist.onReload();
+        assertTrue(proxyBlacklist.getBlacklistMap().isEmpty());
+    }
+
+    @Test
+    void probe_ConnectRefused_StaysOpen() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP,
+                    new HttpHost("localhost", serverSocket.getLocalPort()));
+            doThrow(new TunnelRefusedException("CONNECT refused by proxy",
+                    new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, null))).
+                    when(tunnelConnection).open(any(), any(), any(), any(), any());
+            proxyBlacklist.blacklist(proxyInfo);
+            Thread.sleep(1500);
+            verify(tunnelConnection, atLeastOnce()).open(any(), any(), any(), any(), any());
+            assertEquals(ProxyBlacklist.State.OPEN, proxyBlacklist.getState(proxyInfo));
+        }
+    }
+
+    @Test
+    void probe_SocksProxyAcceptsTcpOnly_StaysOpen() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.SOCKS5,
+                    new HttpHost("localhost", serverSocket.getLocalPort()));
+            proxyBlacklist.blacklist(proxyInfo);
+            Thread.sleep(2500);
+            assertEquals(ProxyBlacklist.State.OPEN, proxyBlacklist.getState(proxyInfo));
+        }
+    }
+
+    @Test
+    void watch_ProxyDown_Blacklisted() throws Exception {
+        when(systemConfig.getBlacklistProbeHealthInterval()).thenReturn(1);
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("localhost", port));
+        proxyBlacklist.watch(proxyInfo);
+        awaitState(proxyBlacklist, proxyInfo, ProxyBlacklist.State.OPEN);
+        assertTrue(proxyBlacklist.isBlacklisted(proxyInfo));
+    }
+
+    @Test
+    void watch_ProxyServing_NotBlacklisted() throws Exception {
+        when(systemConfig.getBlacklistProbeHealthInterval()).thenReturn(1);
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP,
+                    new HttpHost("localhost", serverSocket.getLocalPort()));
+            doAnswer(ProxyBlacklistProbeTests::tunnel).when(tunnelConnection).open(any(), any(), any(), any(), any());
+            proxyBlacklist.watch(proxyInfo);
+            Thread.sleep(1500);
+            verify(tunnelConnection, atLeast(2)).open(any(), any(), any(), any(), any());
+            assertFalse(proxyBlacklist.isBlacklisted(proxyInfo));
+        }
+    }
+
+    @Test
+    void watch_Disabled_NotProbed() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            proxyBlacklist.watch(new ProxyInfo(ProxyInfo.PacType.HTTP,
+                    new HttpHost("localhost", serverSocket.getLocalPort())));
+            Thread.sleep(500);
+            verifyNoInteractions(tunnelConnection);
+        }
+    }
+
+    @Test
+    void blacklist_Direct_NotProbed() throws Exception {
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+        proxyBlacklist.blacklist(proxyInfo);
+        Thread.sleep(1200);
+        assertEquals(ProxyBlacklist.State.OPEN, proxyBlacklist.getState(proxyInfo));
+    }
+
+}
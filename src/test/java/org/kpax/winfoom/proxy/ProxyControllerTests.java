@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
+import static org.kpax.winfoom.TestConstants.PROXY_PORT;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Timeout(20)
+class ProxyControllerTests {
+
+    private static final int OTHER_PROXY_PORT = PROXY_PORT + 2;
+
+    private static final int OTHER_LOCAL_PROXY_PORT = LOCAL_PROXY_PORT + 2;
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    private HttpProxyServer remoteProxyServer;
+
+    private HttpProxyServer otherRemoteProxyServer;
+
+    private HttpServer remoteServer;
+
+    private ServerSocket echoServer;
+
+    @BeforeAll
+    void before() throws Exception {
+        remoteProxyServer = DefaultHttpProxyServer.bootstrap().withPort(PROXY_PORT).start();
+        otherRemoteProxyServer = DefaultHttpProxyServer.bootstrap().withPort(OTHER_PROXY_PORT).start();
+        remoteServer = ServerBootstrap.bootstrap().registerHandler("/get",
+                (request, response, context) -> response.setEntity(new StringEntity("12345"))).create();
+        remoteServer.start();
+
+        echoServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread echoThread = new Thread(() -> {
+            while (!echoServer.isClosed()) {
+                try {
+                    Socket socket = echoServer.accept();
+                    new Thread(() -> {
+                        try {
+                            socket.getInputStream().transferTo(socket.getOutputStream());
+                        } catch (IOException e) {
+                            // Closed
+                        } finally {
+                            InputOutputs.close(socket);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.HTTP);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getProxyPort()).thenReturn(PROXY_PORT);
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        proxyController.start();
+    }
+
+    @Test
+    void reload_OpenTunnel_KeptWhileNewConnectionsUseNewProxy() throws Exception {
+        int generation = proxyController.getGeneration();
+        try (Socket tunnel = openTunnel(LOCAL_PROXY_PORT)) {
+            assertEcho(tunnel, "before");
+
+            doReturn(OTHER_PROXY_PORT).when(proxyConfig).getProxyPort();
+            proxyController.reload();
+            assertEquals(generation + 1, proxyController.getGeneration());
+
+            assertEcho(tunnel, "after");
+            assertEquals(1, connectionRegistry.countOlderThan(proxyController.getGeneration()));
+
+            try (Socket newTunnel = openTunnel(LOCAL_PROXY_PORT)) {
+                assertEcho(newTunnel, "new");
+                ConnectionRegistry.ConnectionInfo info = connectionRegistry.getConnections().stream().
+                        filter(connection -> connection.getGeneration() == proxyController.getGeneration()).
+                        findFirst().orElseThrow();
+                assertTrue(info.getProxy().contains(":" + OTHER_PROXY_PORT), info.getProxy());
+            }
+        }
+    }
+
+    @Test
+    void reload_ConfigChanged_PreviousSnapshotUnchanged() throws Exception {
+        ProxyConfig.Snapshot previous = proxyController.getConfigSnapshot();
+
+        doReturn(OTHER_PROXY_PORT).when(proxyConfig).getProxyPort();
+        doReturn("user").when(proxyConfig).getProxySocks5Username();
+        proxyController.reload();
+
+        assertEquals(PROXY_PORT, previous.getProxyPort());
+        assertNull(previous.getProxySocks5Username());
+        ProxyConfig.Snapshot current = proxyController.getConfigSnapshot();
+        assertEquals(previous.getGeneration() + 1, current.getGeneration());
+        assertEquals(OTHER_PROXY_PORT, current.getProxyPort());
+        assertEquals("user", current.getProxySocks5Username());
+    }
+
+    @Test
+    void reload_LocalPortChanged_NewPortListeningTunnelKept() throws Exception {
+        try (Socket tunnel = openTunnel(LOCAL_PROXY_PORT)) {
+            doReturn(OTHER_LOCAL_PROXY_PORT).when(proxyConfig).getLocalPort();
+            proxyController.reload();
+            assertEcho(tunnel, "kept");
+            try (Socket newTunnel = openTunnel(OTHER_LOCAL_PROXY_PORT)) {
+                assertEcho(newTunnel, "moved");
+            }
+            assertThrows(IOException.class, () -> new Socket("localhost", LOCAL_PROXY_PORT).close());
+        }
+    }
+
+    @Test
+    void reload_IdleConnectionManager_RetiredThenShutDown() throws Exception {
+        assertEquals("12345", get());
+        assertEquals(1, connectionPoolingManager.getActiveConnectionManagers().size());
+
+        doReturn(OTHER_PROXY_PORT).when(proxyConfig).getProxyPort();
+        proxyController.reload();
+        assertEquals(1, connectionPoolingManager.getRetiredCount());
+        assertTrue(connectionPoolingManager.getActiveConnectionManagers().isEmpty());
+
+        assertEquals("12345", get());
+        long deadline = System.currentTimeMillis() +
+                (ConnectionPoolingManager.RETIRED_IDLE_TICKS + 3) * ConnectionPoolingManager.EVICTION_TICK_MILLIS;
+        while (connectionPoolingManager.getRetiredCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, connectionPoolingManager.getRetiredCount());
+        assertEquals(1, connectionPoolingManager.getActiveConnectionManagers().size());
+    }
+
+    private Socket openTunnel(final int localPort) throws IOException {
+        Socket socket = new Socket("localhost", localPort);
+        socket.setSoTimeout(5000);
+        String target = "localhost:" + echoServer.getLocalPort();
+        socket.getOutputStream().write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").
+                getBytes(StandardCharsets.US_ASCII));
+        // Read the head one byte at a time, so nothing of the tunnel is buffered
+        StringBuilder head = new StringBuilder();
+        while (head.indexOf("\r\n\r\n") < 0) {
+            int b = socket.getInputStream().read();
+            assertNotEquals(-1, b);
+            head.append((char) b);
+        }
+        assertTrue(head.toString().startsWith("HTTP/1.1 " + HttpStatus.SC_OK), head.toString());
+        return socket;
+    }
+
+    private static void assertEcho(final Socket tunnel, final String message) throws IOException {
+        OutputStream outputStream = tunnel.getOutputStream();
+        outputStream.write(message.getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+        byte[] echo = tunnel.getInputStream().readNBytes(message.length());
+        assertEquals(message, new String(echo, StandardCharsets.US_ASCII));
+    }
+
+    private String get() throws IOException {
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            HttpGet request = new HttpGet("/get");
+            request.setConfig(RequestConfig.custom().
+                    setProxy(new HttpHost("localhost", LOCAL_PROXY_PORT, "http")).build());
+            try (CloseableHttpResponse response = httpClient.execute(
+                    HttpHost.create("http://localhost:" + remoteServer.getLocalPort()), request)) {
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                return EntityUtils.toString(response.getEntity());
+            }
+        }
+    }
+
+    @AfterEach
+    void afterEach() {
+        proxyController.stop();
+    }
+
+    @AfterAll
+    void after() throws IOException {
+        echoServer.close();
+        remoteServer.shutdown(0, TimeUnit.MILLISECONDS);
+        remoteProxyServer.stop();
+        otherRemoteProxyServer.stop();
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.load.LoadGenerator;
+import org.kpax.winfoom.load.LoadReport;
+import org.kpax.winfoom.load.ResettingServer;
+import org.kpax.winfoom.util.InMemoryURLFactory;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.ProxyAuthenticator;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.kpax.winfoom.TestConstants.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Soak winfoom for hours with randomized faults (client aborts, half-closed tunnels, upstream resets,
+ * bodies spilled to disk) to catch the resource leaks the unit tests cannot see: a tunnel not closed
+ * on an error path, a temporary file left behind, a relay stuck forever.
+ * <p>The run is split into rounds. After each round, once the load stops:
+ * <ul>
+ * <li>there must be no live client connection and no leased pooled connection left;</li>
+ * <li>after the proxy is stopped, the open file descriptors and the live threads must return
+ * to the baseline taken after the warm up round, and no request body's cache file must be left
+ * in the temp directory.</li>
+ * </ul>
+ * It drives the {@link LoadGenerator} and lives in this package for the pool statistics.
+ * Excluded from the default build, run it with {@code mvn -Psoak test}. The system properties:
+ * <ul>
+ * <li>{@code soak.duration} - the total minutes (default 120)</li>
+ * <li>{@code soak.round} - the seconds of load per round (default 60)</li>
+ * <li>{@code soak.clients} - the concurrent clients (default 16)</li>
+ * <li>{@code soak.faults} - the ratio of faulty operations (default 0.3)</li>
+ * <li>{@code soak.seed} - the random seed, logged on start to replay a run</li>
+ * <li>{@code soak.settle} - the max seconds for the resources to return to the baseline (default 120),
+ * keep it above {@code socket.soTimeout}: an upstream proxy may never answer a request whose target reset
+ * the connection, leaving it to the read timeout</li>
+ * <li>{@code soak.proxyType} - HTTP (Basic authentication), SOCKS5 or PAC (default HTTP)</li>
+ * </ul>
+ *
+ * @author Eugen Covaci
+ */
+@Tag("soak")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ProxySoakTests {
+
+    private static final int SOCKS_PROXY_PORT = PROXY_PORT + 1;
+
+    /**
+     * The accepted extra file descriptors, for the JVM's own (class files, GC logs and alike).
+     */
+    private static final int FD_SLACK = 16;
+
+    /**
+     * The accepted extra threads, for the JVM's own (JIT compiler threads come and go).
+     */
+    private static final int THREAD_SLACK = 8;
+
+    /**
+     * The number of consecutive one second samples without a decrease for the baseline to be considered stable.
+     */
+    private static final int STABLE_SAMPLES = 10;
+
+    /**
+     * The name of the request bodies' cache files, see {@link org.kpax.winfoom.util.InputOutputs#generateCacheFilename()}.
+     */
+    private static final Pattern CACHE_FILENAME = Pattern.compile("\\d+-\\d+");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Duration duration = Duration.ofMinutes(Integer.getInteger("soak.duration", 120));
+
+    private final Duration round = Duration.ofSeconds(Integer.getInteger("soak.round", 60));
+
+    private final int clients = Integer.getInteger("soak.clients", 16);
+
+    private final double faultRatio = Double.parseDouble(System.getProperty("soak.faults", "0.3"));
+
+    private final long seed = Long.getLong("soak.seed", System.nanoTime());
+
+    private final Duration settle = Duration.ofSeconds(Integer.getInteger("soak.settle", 120));
+
+    private final ProxyConfig.Type proxyType = ProxyConfig.Type.valueOf(System.getProperty("soak.proxyType", "HTTP"));
+
+    private final Path tempDirectory = Paths.get("target", "soak", "temp");
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    @Autowired
+    private ConnectionPoolingManager connectionPoolingManager;
+
+    @Autowired
+    private ConnectionRegistry connectionRegistry;
+
+    private HttpServer remoteServer;
+
+    private HttpProxyServer httpProxyServer;
+
+    private ClientAndServer socksProxyServer;
+
+    private ResettingServer resettingServer;
+
+    @BeforeAll
+    void before() throws Exception {
+        Files.createDirectories(tempDirectory);
+        byte[] body = new byte[1024];
+        remoteServer = ServerBootstrap.bootstrap().
+                registerHandler("/get", (HttpRequest request, HttpResponse response, HttpContext context) ->
+                        response.setEntity(new ByteArrayEntity(body))).
+                registerHandler("/post", (HttpRequest request, HttpResponse response, HttpContext context) -> {
+                    if (request instanceof HttpEntityEnclosingRequest) {
+                        EntityUtils.consume(((HttpEntityEnclosingRequest) request).getEntity());
+                    }
+                    response.setEntity(new StringEntity("ok"));
+                }).create();
+        remoteServer.start();
+
+        httpProxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(PROXY_PORT)
+                .withName("AuthenticatedUpstreamProxy")
+                .withIdleConnectionTimeout(5)
+                .withProxyAuthenticator(new ProxyAuthenticator() {
+                    public boolean authenticate(String userName, String password) {
+                        return userName.equals(USERNAME) && password.equals(PASSWORD);
+                    }
+
+                    @Override
+                    public String getRealm() {
+                        return null;
+                    }
+                })
+                .start();
+
+        socksProxyServer = ClientAndServer.startClientAndServer(SOCKS_PROXY_PORT);
+        resettingServer = new ResettingServer();
+
+        when(proxyConfig.getLocalPort()).thenReturn(LOCAL_PROXY_PORT);
+        when(proxyConfig.getProxyHost()).thenReturn("localhost");
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory);
+        when(proxyConfig.getProxyType()).thenReturn(proxyType);
+        if (proxyType == ProxyConfig.Type.PAC) {
+            when(proxyConfig.isAutoConfig()).thenReturn(true);
+            String content = String.format("function FindProxyForURL(url, host) {return \"PROXY localhost:%d\";}",
+                    PROXY_PORT);
+            when(proxyConfig.getProxyPacFileLocationAsURL()).
+                    thenReturn(InMemoryURLFactory.getInstance().build("/soak/pac/file", content));
+        } else {
+            when(proxyConfig.getProxyPort()).thenReturn(proxyType.isSocks5() ? SOCKS_PROXY_PORT : PROXY_PORT);
+        }
+    }
+
+    @Test
+    void soak_RandomizedFaults_ResourcesBackToBaseline() throws Exception {
+        logger.info("Soak {} for {} in rounds of {}, {} clients, fault ratio {}, seed {}",
+                proxyType, duration, round, clients, faultRatio, seed);
+        HttpHost target = new HttpHost("localhost", remoteServer.getLocalPort());
+        LoadGenerator loadGenerator = new LoadGenerator(LOCAL_PROXY_PORT, target, clients).
+                withFaults(faultRatio, resettingServer.getHost(), seed);
+
+        // Warm up, so that the baseline includes the lazily created resources
+        runRound(loadGenerator, 0);
+        Snapshot baseline = awaitStable();
+        logger.info("Baseline: {}", baseline);
+
+        long deadline = System.nanoTime() + duration.toNanos();
+        for (int i = 1; System.nanoTime() < deadline; i++) {
+            runRound(loadGenerator, i);
+            Snapshot snapshot = await(current -> current.fileDescriptors <= baseline.fileDescriptors + FD_SLACK &&
+                    current.threads <= baseline.threads + THREAD_SLACK &&
+                    current.cacheFiles == 0);
+            if (snapshot == null) {
+                fail("Round " + i + ": the resources did not return to the baseline " + baseline +
+                        " within " + settle + ", now " + new Snapshot());
+            }
+            logger.info("Round {} back to the baseline: {}", i, snapshot);
+        }
+    }
+
+    /**
+     * Load the proxy for a round, check no connection is left behind and stop the proxy.
+     */
+    private void runRound(final LoadGenerator loadGenerator, final int index) throws Exception {
+        proxyController.start();
+        try {
+            LoadReport report = loadGenerator.run("soak-" + index, round);
+            logger.info("Round {}: {}", index, report);
+            Snapshot snapshot = await(current -> current.liveConnections == 0 && current.leasedConnections == 0);
+            if (snapshot == null) {
+                fail("Round " + index + ": the connections are still alive after " + settle + ": " + new Snapshot());
+            }
+        } finally {
+            proxyController.stop();
+        }
+    }
+
+    /**
+     * @param condition the condition to wait for
+     * @return the snapshot satisfying the condition or {@code null} on timeout.
+     */
+    private Snapshot await(final Predicate<Snapshot> condition) throws Exception {
+        long deadline = System.nanoTime() + settle.toNanos();
+        do {
+            Snapshot snapshot = new Snapshot();
+            if (condition.test(snapshot)) {
+                return snapshot;
+            }
+            Thread.sleep(1000);
+        } while (System.nanoTime() < deadline);
+        return null;
+    }
+
+    /**
+     * @return the snapshot once neither the file descriptors nor the threads have decreased
+     * for {@link #STABLE_SAMPLES} samples, or when the settle time is over.
+     */
+    private Snapshot awaitStable() throws Exception {
+        long deadline = System.nanoTime() + settle.toNanos();
+        Snapshot last = new Snapshot();
+        int stableSamples = 0;
+        while (stableSamples < STABLE_SAMPLES && System.nanoTime() < deadline) {
+            Thread.sleep(1000);
+            Snapshot snapshot = new Snapshot();
+            stableSamples = snapshot.fileDescriptors < last.fileDescriptors || snapshot.threads < last.threads ?
+                    0 : stableSamples + 1;
+            last = snapshot;
+        }
+        return last;
+    }
+
+    @AfterAll
+    void after() throws IOException {
+        proxyController.stop();
+        remoteServer.stop();
+        httpProxyServer.abort();
+        socksProxyServer.stop();
+        resettingServer.close();
+    }
+
+    private class Snapshot {
+
+        /**
+         * -1 when the OS does not expose it (Windows).
+         */
+        private final long fileDescriptors;
+
+        private final int threads;
+
+        private final long cacheFiles;
+
+        private final int liveConnections;
+
+        private final int leasedConnections;
+
+        private Snapshot() throws IOException {
+            OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+            this.fileDescriptors = osBean instanceof UnixOperatingSystemMXBean ?
+                    ((UnixOperatingSystemMXBean) osBean).getOpenFileDescriptorCount() : -1;
+            this.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            try (Stream<Path> files = Files.list(tempDirectory)) {
+                this.cacheFiles = files.filter(file -> CACHE_FILENAME.matcher(file.getFileName().toString()).matches()).
+                        count();
+            }
+            this.liveConnections = connectionRegistry.size();
+            PoolStats poolStats = connectionPoolingManager.getTotalStats();
+            this.leasedConnections = poolStats.getLeased();
+        }
+
+        @Override
+        public String toString() {
+            return "{fileDescriptors=" + fileDescriptors +
+                    ", threads=" + threads +
+                    ", cacheFiles=" + cacheFiles +
+                    ", liveConnections=" + liveConnections +
+                    ", leasedConnections=" + leasedConnections +
+                    '}';
+        }
+    }
+
+}
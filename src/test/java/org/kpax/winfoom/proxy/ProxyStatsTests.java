@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+class ProxyStatsTests {
+
+    private static final ProxyInfo EAST = new ProxyInfo(ProxyInfo.PacType.PROXY, HttpHost.create("east:3128"));
+    private static final ProxyInfo WEST = new ProxyInfo(ProxyInfo.PacType.PROXY, HttpHost.create("west:3128"));
+    private static final ProxyInfo NORTH = new ProxyInfo(ProxyInfo.PacType.PROXY, HttpHost.create("north:3128"));
+    private static final ProxyInfo SOCKS = new ProxyInfo(ProxyInfo.PacType.SOCKS, HttpHost.create("socks:1080"));
+    private static final ProxyInfo DIRECT = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    @Mock
+    private ProxyConfig proxyConfig;
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @InjectMocks
+    private ProxyStats proxyStats;
+
+    @BeforeEach
+    void before() {
+        MockitoAnnotations.initMocks(this);
+        when(systemConfig.isPacProxyLatencyOrdering()).thenReturn(true);
+    }
+
+    @Test
+    void recordFirstByte_SeveralSamples_Ewma() {
+        proxyStats.recordFirstByte(EAST, TimeUnit.MILLISECONDS.toNanos(100));
+        proxyStats.recordFirstByte(EAST, TimeUnit.MILLISECONDS.toNanos(200));
+        proxyStats.recordOutcome(EAST, true);
+        proxyStats.recordOutcome(EAST, false);
+        ProxyStats.Snapshot snapshot = proxyStats.getSnapshot(EAST);
+        assertEquals(130, snapshot.getFirstByteMillis(), 0.001);
+        assertEquals(ProxyStats.ALPHA, snapshot.getErrorRate(), 0.001);
+        assertEquals(2, snapshot.getAttempts());
+        assertTrue(snapshot.getConnectMillis() < 0);
+    }
+
+    @Test
+    void reorder_SameTypeRun_FastestHealthyFirst() {
+        proxyStats.recordFirstByte(EAST, TimeUnit.MILLISECONDS.toNanos(500));
+        proxyStats.recordFirstByte(WEST, TimeUnit.MILLISECONDS.toNanos(50));
+        proxyStats.recordFirstByte(NORTH, TimeUnit.MILLISECONDS.toNanos(20));
+        proxyStats.recordOutcome(NORTH, false);
+
+        List<ProxyInfo> ordered = proxyStats.reorder(List.of(EAST, WEST, NORTH, SOCKS, DIRECT));
+        assertEquals(List.of(WEST, NORTH, EAST, SOCKS, DIRECT), ordered);
+    }
+
+    @Test
+    void reorder_DifferentTypes_OrderKept() {
+        proxyStats.recordFirstByte(EAST, TimeUnit.MILLISECONDS.toNanos(500));
+        proxyStats.recordConnect(SOCKS, TimeUnit.MILLISECONDS.toNanos(5));
+        List<ProxyInfo> proxies = List.of(EAST, SOCKS, WEST);
+        assertEquals(proxies, proxyStats.reorder(proxies));
+    }
+
+    @Test
+    void reorder_Disabled_SameList() {
+        when(systemConfig.isPacProxyLatencyOrdering()).thenReturn(false);
+        proxyStats.recordFirstByte(EAST, TimeUnit.MILLISECONDS.toNanos(500));
+        List<ProxyInfo> proxies = List.of(EAST, WEST);
+        assertSame(proxies, proxyStats.reorder(proxies));
+    }
+
+    @Test
+    void onReload_ProxyNoLongerConfigured_StatsDropped() {
+        proxyStats.recordFirstByte(EAST, TimeUnit.MILLISECONDS.toNanos(100));
+        proxyStats.recordFirstByte(WEST, TimeUnit.MILLISECONDS.toNanos(100));
+        when(proxyConfig.isConfigured(any(ProxyInfo.class))).
+                thenAnswer(invocation -> EAST.equals(invocation.getArgument(0)));
+
+        proxyStats.onReload();
+        assertNotNull(proxyStats.getSnapshot(EAST));
+        assertNull(proxyStats.getSnapshot(WEST));
+    }
+
+}
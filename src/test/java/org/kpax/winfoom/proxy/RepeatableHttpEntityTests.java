@@ -89,7 +89,7 @@ class RepeatableHttpEntityTests {
 
                         // Handle this connection.
                         try {
-                            ClientConnection clientConnection = new ClientConnection(socket, proxyConfig, systemConfig, null);
+                            ClientConnection clientConnection = new ClientConnection(socket, new ProxyConfig.Snapshot(proxyConfig, 1), systemConfig, null, null);
                             RepeatableHttpEntity requestEntity;
                             HttpRequest request = clientConnection.getRequest();
                             try {
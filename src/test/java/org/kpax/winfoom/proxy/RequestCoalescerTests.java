@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+class RequestCoalescerTests {
+
+    private static final URI TARGET_URI = URI.create("http://example.com/artifact.jar");
+
+    private static final ProxyInfo EAST = new ProxyInfo(ProxyInfo.PacType.PROXY, HttpHost.create("east:3128"));
+
+    private static final ProxyInfo WEST = new ProxyInfo(ProxyInfo.PacType.PROXY, HttpHost.create("west:3128"));
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @Spy
+    private ProxyMetrics proxyMetrics = new ProxyMetrics();
+
+    @InjectMocks
+    private RequestCoalescer requestCoalescer;
+
+    @BeforeEach
+    void before() {
+        MockitoAnnotations.initMocks(this);
+        when(systemConfig.getRequestCoalescingMaxBodySize()).thenReturn(1);
+        requestCoalescer.init();
+    }
+
+    @Test
+    void keyOf_NegotiationHeaders_Included() {
+        BasicHttpRequest english = get();
+        english.addHeader(HttpHeaders.ACCEPT_LANGUAGE, "en");
+        english.addHeader(HttpHeaders.USER_AGENT, "curl");
+        BasicHttpRequest french = get();
+        french.addHeader(HttpHeaders.ACCEPT_LANGUAGE, "fr");
+        BasicHttpRequest englishOtherAgent = get();
+        englishOtherAgent.addHeader(HttpHeaders.ACCEPT_LANGUAGE, "en");
+        englishOtherAgent.addHeader(HttpHeaders.USER_AGENT, "wget");
+        assertNotEquals(RequestCoalescer.keyOf(english, TARGET_URI, EAST), RequestCoalescer.keyOf(french, TARGET_URI, EAST));
+        assertEquals(RequestCoalescer.keyOf(english, TARGET_URI, EAST), RequestCoalescer.keyOf(englishOtherAgent, TARGET_URI, EAST));
+    }
+
+    @Test
+    void keyOf_OtherProxy_Different() {
+        assertNotEquals(RequestCoalescer.keyOf(get(), TARGET_URI, EAST), RequestCoalescer.keyOf(get(), TARGET_URI, WEST));
+        assertNotEquals(RequestCoalescer.keyOf(get(), TARGET_URI, EAST),
+                RequestCoalescer.keyOf(get(), TARGET_URI, new ProxyInfo(ProxyInfo.PacType.DIRECT)));
+    }
+
+    @Test
+    void keyOf_UnsafeOrConditional_Null() {
+        assertNull(RequestCoalescer.keyOf(new BasicHttpRequest("POST", TARGET_URI.toString()), TARGET_URI, EAST));
+        BasicHttpRequest conditional = get();
+        conditional.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v1\"");
+        assertNull(RequestCoalescer.keyOf(conditional, TARGET_URI, EAST));
+        BasicHttpRequest range = get();
+        range.addHeader(HttpHeaders.RANGE, "bytes=0-99");
+        assertNull(RequestCoalescer.keyOf(range, TARGET_URI, EAST));
+    }
+
+    @Test
+    void isShareable_PrivateOrVaryingOnOtherHeaders_False() {
+        assertTrue(RequestCoalescer.isShareable(response(HttpHeaders.VARY, "Accept-Encoding, Accept-Language")));
+        assertFalse(RequestCoalescer.isShareable(response(HttpHeaders.VARY, "Accept-Encoding, User-Agent")));
+        assertFalse(RequestCoalescer.isShareable(response(HttpHeaders.VARY, "*")));
+        assertFalse(RequestCoalescer.isShareable(response(HttpHeaders.CACHE_CONTROL, "private, max-age=60")));
+        assertFalse(RequestCoalescer.isShareable(response("Set-Cookie", "id=1")));
+    }
+
+    @Test
+    void share_ConcurrentFollowers_SameBodyOneUpstream() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        assertTrue(leader.isLeader());
+        CompletableFuture<?>[] followers = new CompletableFuture[5];
+        for (int i = 0; i < followers.length; i++) {
+            RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+            assertFalse(follower.isLeader());
+            followers[i] = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return EntityUtils.toString(follower.await(10, TimeUnit.SECONDS).getEntity());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "text/plain");
+        upstream.setEntity(new ByteArrayEntity("content".getBytes()));
+        assertEquals("content", EntityUtils.toString(leader.share(upstream).getEntity()));
+        for (CompletableFuture<?> follower : followers) {
+            assertEquals("content", follower.get(10, TimeUnit.SECONDS));
+        }
+
+        // The flight is over
+        assertTrue(requestCoalescer.join(get(), TARGET_URI, EAST).isLeader());
+    }
+
+    @Test
+    void share_KnownLength_FollowersStreamWhileLeaderReads() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "text/plain");
+        upstream.setEntity(new ByteArrayEntity("content".getBytes()));
+        InputStream leaderContent = leader.share(upstream).getEntity().getContent();
+        assertEquals('c', leaderContent.read());
+
+        // Shared before the leader's client has read the whole body
+        HttpResponse shared = follower.await(100, TimeUnit.MILLISECONDS);
+        assertNotNull(shared);
+        assertEquals(7, shared.getEntity().getContentLength());
+        InputStream followerContent = shared.getEntity().getContent();
+        assertEquals('c', followerContent.read());
+        CompletableFuture<String> rest = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new String(followerContent.readAllBytes());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(rest.isDone());
+
+        // Still in flight while streaming
+        RequestCoalescer.Flight other = requestCoalescer.join(get(), TARGET_URI, EAST);
+        assertFalse(other.isLeader());
+        assertEquals("ontent", new String(leaderContent.readAllBytes()));
+        assertEquals("ontent", rest.get(1, TimeUnit.SECONDS));
+        assertEquals("content", EntityUtils.toString(other.await(1, TimeUnit.SECONDS).getEntity()));
+    }
+
+    @Test
+    void share_LeaderClientGone_RestReadForFollowers() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "text/plain");
+        upstream.setEntity(new ByteArrayEntity("content".getBytes()));
+        InputStream leaderContent = leader.share(upstream).getEntity().getContent();
+        assertEquals('c', leaderContent.read());
+        leaderContent.close();
+        leader.abandon();
+        assertEquals("content", EntityUtils.toString(follower.await(1, TimeUnit.SECONDS).getEntity()));
+    }
+
+    @Test
+    void abandon_WhileStreaming_FollowersFail() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "text/plain");
+        upstream.setEntity(new ByteArrayEntity("content".getBytes()));
+        leader.share(upstream).getEntity().getContent().read();
+        leader.abandon();
+        HttpResponse shared = follower.await(1, TimeUnit.SECONDS);
+        assertThrows(IOException.class, () -> EntityUtils.toString(shared.getEntity()));
+    }
+
+    @Test
+    void await_UnknownLengthLeaderProgressing_WaitsPastTimeout() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        CompletableFuture<String> shared = CompletableFuture.supplyAsync(() -> {
+            try {
+                HttpResponse response = follower.await(300, TimeUnit.MILLISECONDS);
+                return response != null ? EntityUtils.toString(response.getEntity()) : null;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "text/plain");
+        upstream.setEntity(new ByteArrayEntity("content".getBytes()) {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+        });
+        InputStream leaderContent = leader.share(upstream).getEntity().getContent();
+        // Slower than the timeout as a whole, but never stalled for that long
+        while (leaderContent.read() != -1) {
+            Thread.sleep(100);
+        }
+        assertEquals("content", shared.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void await_LeaderStalled_FollowersFallBack() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "text/plain");
+        upstream.setEntity(new ByteArrayEntity("content".getBytes()) {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+        });
+        leader.share(upstream).getEntity().getContent().read();
+        assertNull(follower.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void share_BodyTooLarge_FollowersFallBack() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        byte[] body = new byte[2 * 1024 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        HttpResponse upstream = response(HttpHeaders.CONTENT_TYPE, "application/octet-stream");
+        // Unknown length, detected while buffering
+        upstream.setEntity(new ByteArrayEntity(body) {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+        });
+        assertArrayEquals(body, EntityUtils.toByteArray(leader.share(upstream).getEntity()));
+        assertNull(follower.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void abandon_LeaderFailed_FollowersFallBack() throws Exception {
+        RequestCoalescer.Flight leader = requestCoalescer.join(get(), TARGET_URI, EAST);
+        RequestCoalescer.Flight follower = requestCoalescer.join(get(), TARGET_URI, EAST);
+        leader.abandon();
+        assertNull(follower.await(1, TimeUnit.SECONDS));
+    }
+
+    private static BasicHttpRequest get() {
+        return new BasicHttpRequest("GET", TARGET_URI.toString(), HttpVersion.HTTP_1_1);
+    }
+
+    private static HttpResponse response(final String headerName, final String headerValue) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader(headerName, headerValue);
+        return response;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class RequestTimingTests {
+
+    @Test
+    void stamp_Sequence_OnlyStampedPhasesReached() throws InterruptedException {
+        RequestTiming timing = new RequestTiming();
+        timing.start();
+        timing.stamp(RequestTiming.Phase.PARSE);
+        Thread.sleep(5);
+        timing.stamp(RequestTiming.Phase.FIRST_BYTE);
+        assertTrue(timing.isReached(RequestTiming.Phase.PARSE));
+        assertTrue(timing.isReached(RequestTiming.Phase.FIRST_BYTE));
+        assertFalse(timing.isReached(RequestTiming.Phase.PAC));
+        assertFalse(timing.isReached(RequestTiming.Phase.TRANSFER));
+        assertTrue(timing.getNanos(RequestTiming.Phase.FIRST_BYTE) >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(timing.getNanos(RequestTiming.Phase.PARSE) + timing.getNanos(RequestTiming.Phase.FIRST_BYTE),
+                timing.getResponseNanos());
+    }
+
+    @Test
+    void carve_NestedPhase_SubtractedFromNextStamp() throws InterruptedException {
+        RequestTiming timing = new RequestTiming();
+        timing.start();
+        Thread.sleep(5);
+        timing.carve(RequestTiming.Phase.CONNECT, TimeUnit.MILLISECONDS.toNanos(2));
+        timing.stamp(RequestTiming.Phase.FIRST_BYTE);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), timing.getNanos(RequestTiming.Phase.CONNECT));
+        assertTrue(timing.isReached(RequestTiming.Phase.CONNECT));
+        assertTrue(timing.getNanos(RequestTiming.Phase.FIRST_BYTE) >= TimeUnit.MILLISECONDS.toNanos(3));
+    }
+
+    @Test
+    void onExchange_Repeated_PreviousLegsAttributedToAuth() throws InterruptedException {
+        RequestTiming timing = new RequestTiming();
+        timing.start();
+        timing.onExchange();
+        assertFalse(timing.isReached(RequestTiming.Phase.AUTH));
+        Thread.sleep(5);
+        timing.onExchange();
+        timing.stamp(RequestTiming.Phase.FIRST_BYTE);
+        assertTrue(timing.getNanos(RequestTiming.Phase.AUTH) >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(timing.getNanos(RequestTiming.Phase.FIRST_BYTE) < timing.getNanos(RequestTiming.Phase.AUTH));
+    }
+
+    @Test
+    void start_Reused_Reset() {
+        RequestTiming timing = new RequestTiming();
+        timing.start();
+        timing.stamp(RequestTiming.Phase.PARSE);
+        timing.carve(RequestTiming.Phase.CONNECT, 1000);
+        timing.start();
+        for (RequestTiming.Phase phase : RequestTiming.Phase.values()) {
+            assertFalse(timing.isReached(phase));
+            assertEquals(0, timing.getNanos(phase));
+        }
+    }
+
+    @Test
+    void from_Context_TimingOrNull() {
+        RequestTiming timing = new RequestTiming();
+        HttpContext context = new BasicHttpContext();
+        assertNull(RequestTiming.from(context));
+        assertNull(RequestTiming.from(null));
+        context.setAttribute(RequestTiming.CONTEXT_ATTRIBUTE, timing);
+        assertSame(timing, RequestTiming.from(context));
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+class ResponseCacheTests {
+
+    @TempDir
+    Path tempDirectory;
+
+    @Mock
+    private ProxyConfig proxyConfig;
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @Spy
+    private ProxyMetrics proxyMetrics = new ProxyMetrics();
+
+    @InjectMocks
+    private ResponseCache responseCache;
+
+    private final AtomicInteger originRequests = new AtomicInteger();
+
+    private HttpServer originServer;
+
+    private HttpHost origin;
+
+    @BeforeEach
+    void before() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory);
+        when(systemConfig.isResponseCacheEnabled()).thenReturn(true);
+        when(systemConfig.getResponseCacheMaxEntries()).thenReturn(100);
+        when(systemConfig.getResponseCacheMaxObjectSize()).thenReturn(1);
+        responseCache.init();
+
+        originServer = ServerBootstrap.bootstrap().
+                registerHandler("/fresh", (HttpRequest request, HttpResponse response, HttpContext context) -> {
+                    originRequests.incrementAndGet();
+                    response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=60");
+                    response.setEntity(new StringEntity("fresh"));
+                }).
+                registerHandler("/etag", (HttpRequest request, HttpResponse response, HttpContext context) -> {
+                    originRequests.incrementAndGet();
+                    response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=0");
+                    response.setHeader(HttpHeaders.ETAG, "\"v1\"");
+                    if (request.containsHeader(HttpHeaders.IF_NONE_MATCH)) {
+                        response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                    } else {
+                        response.setEntity(new StringEntity("etag"));
+                    }
+                }).
+                registerHandler("/vary", (HttpRequest request, HttpResponse response, HttpContext context) -> {
+                    originRequests.incrementAndGet();
+                    response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=60");
+                    response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_LANGUAGE);
+                    response.setEntity(new StringEntity(
+                            request.getFirstHeader(HttpHeaders.ACCEPT_LANGUAGE).getValue()));
+                }).
+                registerHandler("/no-store", (HttpRequest request, HttpResponse response, HttpContext context) -> {
+                    originRequests.incrementAndGet();
+                    response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+                    response.setEntity(new StringEntity("no-store"));
+                }).create();
+        originServer.start();
+        origin = new HttpHost("localhost", originServer.getLocalPort());
+    }
+
+    @Test
+    void onResponse_FreshEntry_ServedWithoutOrigin() throws IOException {
+        assertEquals("fresh", get("/fresh", null, CacheResponseStatus.CACHE_MISS));
+        assertEquals("fresh", get("/fresh", null, CacheResponseStatus.CACHE_HIT));
+        assertEquals(1, originRequests.get());
+        assertEquals(1, countCacheFiles());
+    }
+
+    @Test
+    void onResponse_StaleWithETag_RevalidatedUpstream() throws IOException {
+        assertEquals("etag", get("/etag", null, CacheResponseStatus.CACHE_MISS));
+        assertEquals("etag", get("/etag", null, CacheResponseStatus.VALIDATED));
+        assertEquals(2, originRequests.get());
+    }
+
+    @Test
+    void onResponse_Vary_OneEntryPerVariant() throws IOException {
+        assertEquals("en", get("/vary", "en", CacheResponseStatus.CACHE_MISS));
+        assertEquals("fr", get("/vary", "fr", CacheResponseStatus.CACHE_MISS));
+        assertEquals("en", get("/vary", "en", CacheResponseStatus.CACHE_HIT));
+        assertEquals(2, originRequests.get());
+    }
+
+    @Test
+    void onResponse_NoStore_NotCached() throws IOException {
+        get("/no-store", null, CacheResponseStatus.CACHE_MISS);
+        get("/no-store", null, CacheResponseStatus.CACHE_MISS);
+        assertEquals(2, originRequests.get());
+        assertEquals(0, countCacheFiles());
+    }
+
+    @Test
+    void onStop_CachedEntries_FilesDeleted() throws IOException {
+        get("/fresh", null, CacheResponseStatus.CACHE_MISS);
+        assertEquals(1, countCacheFiles());
+        responseCache.onStop();
+        assertEquals(0, countCacheFiles());
+        get("/fresh", null, CacheResponseStatus.CACHE_MISS);
+        assertEquals(2, originRequests.get());
+    }
+
+    private String get(final String path, final String language, final CacheResponseStatus expectedStatus)
+            throws IOException {
+        HttpGet request = new HttpGet(path);
+        if (language != null) {
+            request.setHeader(HttpHeaders.ACCEPT_LANGUAGE, language);
+        }
+        HttpCacheContext context = HttpCacheContext.create();
+        try (CloseableHttpClient httpClient = responseCache.createClientBuilder().build();
+             CloseableHttpResponse response = httpClient.execute(origin, request, context)) {
+            assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+            assertEquals(expectedStatus == CacheResponseStatus.CACHE_HIT, responseCache.onResponse(context));
+            assertEquals(expectedStatus, context.getCacheResponseStatus());
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    private long countCacheFiles() throws IOException {
+        try (Stream<Path> files = Files.list(tempDirectory.resolve(ResponseCache.CACHE_DIR_NAME))) {
+            return files.count();
+        }
+    }
+
+    @AfterEach
+    void after() {
+        responseCache.onStop();
+        originServer.stop();
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class ShardedConnectionManagerTests {
+
+    private ShardedConnectionManager connectionManager;
+
+    private ShardedConnectionManager create(int shardCount, int maxTotal) {
+        connectionManager = new ShardedConnectionManager(shardCount, maxTotal, () -> {
+            PoolingHttpClientConnectionManager shard = new PoolingHttpClientConnectionManager();
+            shard.setMaxTotal(maxTotal);
+            shard.setDefaultMaxPerRoute(maxTotal);
+            return shard;
+        }, null, 0);
+        return connectionManager;
+    }
+
+    @AfterEach
+    void after() {
+        connectionManager.shutdown();
+    }
+
+    @Test
+    void constructor_ShardCount_RoundedToPowerOfTwo() {
+        assertEquals(4, create(3, 10).getShardStats().size());
+    }
+
+    @Test
+    void requestConnection_MaxTotalReached_Timeout() throws Exception {
+        create(4, 2);
+        HttpClientConnection first = connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("first.example.com")), null).get(1, TimeUnit.SECONDS);
+        HttpClientConnection second = connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("second.example.com")), null).get(1, TimeUnit.SECONDS);
+        assertEquals(2, connectionManager.getLeased());
+
+        assertThrows(ConnectionPoolTimeoutException.class, () -> connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("third.example.com")), null).get(100, TimeUnit.MILLISECONDS));
+
+        connectionManager.releaseConnection(first, null, 0, TimeUnit.SECONDS);
+        HttpClientConnection third = connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("third.example.com")), null).get(1, TimeUnit.SECONDS);
+        assertNotNull(third);
+
+        connectionManager.releaseConnection(second, null, 0, TimeUnit.SECONDS);
+        connectionManager.releaseConnection(third, null, 0, TimeUnit.SECONDS);
+        // A second release is ignored
+        connectionManager.releaseConnection(third, null, 0, TimeUnit.SECONDS);
+        assertEquals(0, connectionManager.getLeased());
+    }
+
+    @Test
+    void requestConnection_Saturated_WaiterWokenOnRelease() throws Exception {
+        create(2, 1);
+        HttpClientConnection first = connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("first.example.com")), null).get(1, TimeUnit.SECONDS);
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            connectionManager.releaseConnection(first, null, 0, TimeUnit.SECONDS);
+        });
+        releaser.start();
+        HttpClientConnection second = connectionManager.requestConnection(
+                new HttpRoute(new HttpHost("second.example.com")), null).get(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        releaser.join();
+        connectionManager.releaseConnection(second, null, 0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void getTotalStats_Leased_SumOfShards() throws Exception {
+        create(4, 10);
+        for (int i = 0; i < 5; i++) {
+            connectionManager.requestConnection(
+                    new HttpRoute(new HttpHost("host" + i + ".example.com")), null).get(1, TimeUnit.SECONDS);
+        }
+        PoolStats totalStats = connectionManager.getTotalStats();
+        assertEquals(5, totalStats.getLeased());
+        assertEquals(10, totalStats.getMax());
+        assertEquals(5, connectionManager.getShardStats().stream().mapToInt(PoolStats::getLeased).sum());
+    }
+
+}
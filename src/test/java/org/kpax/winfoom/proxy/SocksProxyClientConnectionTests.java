@@ -42,7 +42,11 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -176,6 +180,43 @@ public class SocksProxyClientConnectionTests {
         }
     }
 
+    @Test
+    @Order(4)
+    void socks5Proxy_ConnectAuthenticationRejected_407() throws Exception {
+        try (ServerSocket rejectingProxy = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<Void> served = CompletableFuture.runAsync(() -> {
+                try (Socket socket = rejectingProxy.accept()) {
+                    DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                    // Method selection: username/password
+                    inputStream.readFully(new byte[4]);
+                    socket.getOutputStream().write(new byte[]{5, 2});
+                    // Reject the credentials
+                    inputStream.readFully(new byte[11]);
+                    socket.getOutputStream().write(new byte[]{1, 1});
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS5);
+            when(proxyConfig.getProxyHost()).thenReturn("127.0.0.1");
+            when(proxyConfig.getProxyPort()).thenReturn(rejectingProxy.getLocalPort());
+            when(proxyConfig.getProxySocks5Username()).thenReturn("user");
+            when(proxyConfig.getProxySocks5Password()).thenReturn("pass");
+            proxyController.restart();
+
+            HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+            try (CloseableHttpClient httpClient = HttpClientBuilder.create()
+                    .setProxy(localProxy).build()) {
+                HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+                HttpRequest request = new BasicHttpRequest("CONNECT", "localhost:" + remoteServer.getLocalPort());
+                try (CloseableHttpResponse response = httpClient.execute(target, request)) {
+                    assertEquals(HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, response.getStatusLine().getStatusCode());
+                }
+            }
+            served.get(5, TimeUnit.SECONDS);
+        }
+    }
+
     @AfterAll
     void after() {
         socksRemoteProxyServer.stop();
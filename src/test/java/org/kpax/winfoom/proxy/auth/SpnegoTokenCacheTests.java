@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.auth;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.util.functional.PrivilegedActionWrapper;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Eugen Covaci
+ */
+class SpnegoTokenCacheTests {
+
+    @Mock
+    private ProxyConfig proxyConfig;
+
+    @Mock
+    private SystemConfig systemConfig;
+
+    @Mock
+    private KerberosModule kerberosModule;
+
+    @Mock
+    private ProxyExecutorService executorService;
+
+    @InjectMocks
+    private SpnegoTokenCache spnegoTokenCache;
+
+    private final AtomicInteger generated = new AtomicInteger();
+
+    private final SpnegoTokenCache.TokenGenerator generator =
+            () -> new byte[]{(byte) generated.incrementAndGet()};
+
+    @BeforeEach
+    void before() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(systemConfig.getKerberosSpnegoTokenValidity()).thenReturn(60);
+        when(systemConfig.getKerberosSpnegoPrefetch()).thenReturn(2);
+        when(proxyConfig.isKerberos()).thenReturn(true);
+        when(proxyConfig.getProxyKrbPrincipal()).thenReturn("user@EXAMPLE.COM");
+        when(proxyConfig.getProxyHost()).thenReturn("proxy.example.com");
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executorService).execute(any(Runnable.class));
+        doAnswer(invocation -> {
+            ((PrivilegedActionWrapper) invocation.getArgument(0)).execute();
+            return null;
+        }).when(kerberosModule).execute(any(PrivilegedActionWrapper.class));
+    }
+
+    @Test
+    void take_EmptyThenRefilled_HitsAndNoTokenReused() throws Exception {
+        Set<Byte> tokens = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(tokens.add(spnegoTokenCache.take("proxy.example.com", generator)[0]));
+        }
+        assertEquals(1, spnegoTokenCache.getMisses());
+        assertEquals(2, spnegoTokenCache.getHits());
+        // One generated on request, then two and one more in background
+        assertEquals(5, generated.get());
+    }
+
+    @Test
+    void take_Disabled_AlwaysGenerated() throws Exception {
+        when(systemConfig.getKerberosSpnegoTokenValidity()).thenReturn(0);
+        spnegoTokenCache.startRequest();
+        spnegoTokenCache.take("proxy.example.com", generator);
+        spnegoTokenCache.take("proxy.example.com", generator);
+        assertEquals(2, generated.get());
+        assertEquals(0, spnegoTokenCache.getHits());
+        assertEquals(spnegoTokenCache.getRequestNanos(), spnegoTokenCache.getRequestGssNanos());
+    }
+
+    @Test
+    void clear_Refilled_Miss() throws Exception {
+        spnegoTokenCache.take("proxy.example.com", generator);
+        spnegoTokenCache.clear();
+        spnegoTokenCache.take("proxy.example.com", generator);
+        assertEquals(2, spnegoTokenCache.getMisses());
+    }
+
+    @Test
+    void onReload_SameConfiguration_TokensKept() throws Exception {
+        spnegoTokenCache.take("proxy.example.com", generator);
+        spnegoTokenCache.onReload();
+        spnegoTokenCache.take("proxy.example.com", generator);
+        assertEquals(1, spnegoTokenCache.getMisses());
+        assertEquals(1, spnegoTokenCache.getHits());
+    }
+
+    @Test
+    void onReload_PrincipalChanged_TokensCleared() throws Exception {
+        spnegoTokenCache.take("proxy.example.com", generator);
+        when(proxyConfig.getProxyKrbPrincipal()).thenReturn("other@EXAMPLE.COM");
+        spnegoTokenCache.onReload();
+        spnegoTokenCache.take("proxy.example.com", generator);
+        assertEquals(2, spnegoTokenCache.getMisses());
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class CannedResponsesTests {
+
+    @Test
+    void current_Rfc1123Format_Parsable() {
+        String date = HttpDate.current();
+        ZonedDateTime parsed = ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME);
+        assertTrue(Math.abs(parsed.toEpochSecond() - System.currentTimeMillis() / 1000) <= 2);
+        assertTrue(new String(HttpDate.currentHeader(), StandardCharsets.US_ASCII).startsWith("Date: "));
+    }
+
+    @Test
+    void connectionEstablished_Http11_CannedStatusLine() {
+        String response = new String(CannedResponses.connectionEstablished(HttpVersion.HTTP_1_1),
+                StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 200 Connection established\r\nDate: "));
+        assertTrue(response.endsWith(" GMT\r\n\r\n"));
+    }
+
+    @Test
+    void response_CustomReasonPhrase_ReasonPhraseUsed() {
+        String response = new String(CannedResponses.response(HttpVersion.HTTP_1_0,
+                HttpStatus.SC_BAD_GATEWAY, "Cannot connect"), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.0 502 Cannot connect\r\nDate: "));
+        assertTrue(response.endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    void response_NotCanned_DefaultReasonPhrase() {
+        String response = new String(CannedResponses.response(new ProtocolVersion("HTTP", 2, 0),
+                HttpStatus.SC_FORBIDDEN, null), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/2.0 403 Forbidden\r\nDate: "));
+        assertTrue(response.endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    void proxyAuthRequired_BodyWithContentLength() {
+        String response = new String(CannedResponses.proxyAuthRequired(HttpVersion.HTTP_1_1),
+                StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 407 Proxy Authentication Required\r\n"));
+        int bodyStart = response.indexOf("\r\n\r\n") + 4;
+        String body = response.substring(bodyStart);
+        assertTrue(response.contains("Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"));
+        assertTrue(body.contains("Proxy authentication failed"));
+    }
+
+}
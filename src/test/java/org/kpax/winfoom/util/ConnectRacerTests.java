@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class ConnectRacerTests {
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    @Test
+    void race_FirstRefused_SecondWins() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            List<InetSocketAddress> addresses = List.of(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), closedPort()),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+            long start = System.currentTimeMillis();
+            ConnectRacer.Winner winner = ConnectRacer.race(addresses, 5000, 10000);
+            try {
+                assertEquals(1, winner.getIndex());
+                assertTrue(winner.getChannel().isConnected());
+                assertTrue(winner.getChannel().isBlocking());
+                // The refused attempt must not wait for the stagger delay
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            } finally {
+                winner.getChannel().close();
+            }
+        }
+    }
+
+    @Test
+    void race_AllRefused_ConnectException() throws Exception {
+        List<InetSocketAddress> addresses = List.of(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), closedPort()),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), closedPort()));
+        assertThrows(ConnectException.class, () -> ConnectRacer.race(addresses, 100, 5000));
+    }
+
+    @Test
+    void race_Unresolved_UnknownHostException() {
+        List<InetSocketAddress> addresses = List.of(InetSocketAddress.createUnresolved("unknown.invalid", 80));
+        assertThrows(UnknownHostException.class, () -> ConnectRacer.race(addresses, 100, 5000));
+    }
+
+    @Test
+    void connect_Racing_ConnectedSocket() throws Exception {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getConnectRacingStagger()).thenReturn(100);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(5);
+        when(systemConfig.configureSocket(any())).then(invocation -> invocation.getArgument(0));
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket socket = ConnectRacer.connect("127.0.0.1", serverSocket.getLocalPort(), systemConfig)) {
+            assertTrue(socket.isConnected());
+            assertNotNull(socket.getChannel());
+            verify(systemConfig).configureSocket(socket);
+        }
+    }
+
+    @Test
+    void connect_Refused_ConnectException() throws Exception {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(5);
+        when(systemConfig.configureSocket(any())).then(invocation -> invocation.getArgument(0));
+        int port = closedPort();
+        assertThrows(ConnectException.class, () -> ConnectRacer.connect("127.0.0.1", port, systemConfig));
+    }
+
+    @Test
+    void resolve_Literal_SingleAddress() throws Exception {
+        List<InetSocketAddress> addresses = ConnectRacer.resolve("127.0.0.1", 8080, true);
+        assertEquals(1, addresses.size());
+        assertEquals(8080, addresses.get(0).getPort());
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class RingBufferTests {
+
+    @Test
+    void constructor_NotPowerOfTwo_RoundedUp() {
+        assertEquals(8, new RingBuffer<>(5, AtomicLong::new).capacity());
+        assertEquals(8, new RingBuffer<>(8, AtomicLong::new).capacity());
+    }
+
+    @Test
+    void tryClaim_Full_Rejected() {
+        RingBuffer<AtomicLong> ringBuffer = new RingBuffer<>(4, AtomicLong::new);
+        for (int i = 0; i < 4; i++) {
+            long sequence = ringBuffer.tryClaim();
+            assertEquals(i, sequence);
+            ringBuffer.get(sequence).set(i);
+            ringBuffer.publish(sequence);
+        }
+        assertEquals(-1, ringBuffer.tryClaim());
+
+        List<Long> values = new ArrayList<>();
+        assertEquals(2, ringBuffer.drain(entry -> values.add(entry.get()), 2));
+        assertEquals(List.of(0L, 1L), values);
+        assertTrue(ringBuffer.tryClaim() >= 0);
+    }
+
+    @Test
+    void drain_Unpublished_Stops() {
+        RingBuffer<AtomicLong> ringBuffer = new RingBuffer<>(4, AtomicLong::new);
+        long first = ringBuffer.tryClaim();
+        long second = ringBuffer.tryClaim();
+        ringBuffer.publish(second);
+        assertEquals(0, ringBuffer.drain(entry -> {
+        }, 10));
+        ringBuffer.publish(first);
+        assertEquals(2, ringBuffer.drain(entry -> {
+        }, 10));
+    }
+
+    @Test
+    void drain_ConcurrentProducers_NoEntryLost() throws InterruptedException {
+        RingBuffer<AtomicLong> ringBuffer = new RingBuffer<>(64, AtomicLong::new);
+        int producers = 4;
+        int perProducer = 10_000;
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final long base = (long) p * perProducer;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; ) {
+                    long sequence = ringBuffer.tryClaim();
+                    if (sequence >= 0) {
+                        ringBuffer.get(sequence).set(base + i++);
+                        ringBuffer.publish(sequence);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        Set<Long> values = new HashSet<>();
+        while (values.size() < producers * perProducer) {
+            if (ringBuffer.drain(entry -> values.add(entry.get()), 32) == 0) {
+                Thread.yield();
+            }
+        }
+        done.await();
+        assertEquals(producers * perProducer, values.size());
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class SocksHandshakeTests {
+
+    /**
+     * A one-shot fake SOCKS server: for each exchange, it reads the request's bytes and answers with the reply,
+     * then closes the connection and returns everything it read.
+     */
+    private static CompletableFuture<byte[]> serve(ServerSocket serverSocket, int[] requestLengths, byte[][] replies) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                for (int i = 0; i < requestLengths.length; i++) {
+                    byte[] request = new byte[requestLengths[i]];
+                    inputStream.readFully(request);
+                    received.write(request);
+                    socket.getOutputStream().write(replies[i]);
+                }
+                return received.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static Socket connect(ServerSocket serverSocket) throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        socket.setSoTimeout(5000);
+        socket.connect(serverSocket.getLocalSocketAddress());
+        return socket;
+    }
+
+    @Test
+    void connect_Socks4HostName_Socks4aRequest() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            byte[] expected = "\u0004\u0001\u0000P\u0000\u0000\u0000\u0001user\u0000example.com\u0000"
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            CompletableFuture<byte[]> received = serve(serverSocket, new int[]{expected.length},
+                    new byte[][]{{0, 90, 0, 0, 0, 0, 0, 0}});
+            try (Socket socket = connect(serverSocket)) {
+                SocksHandshake.connect(socket, true, "example.com", 80, "user", null);
+            }
+            assertArrayEquals(expected, received.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void connect_Socks4Rejected_SocketException() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serve(serverSocket, new int[]{13}, new byte[][]{{0, 91, 0, 0, 0, 0, 0, 0}});
+            try (Socket socket = connect(serverSocket)) {
+                SocketException e = assertThrows(SocketException.class,
+                        () -> SocksHandshake.connect(socket, true, "10.0.0.1", 443, "user", null));
+                assertEquals("SOCKS request rejected", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void connect_Socks4UserIdRejected_AuthenticationFailed() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serve(serverSocket, new int[]{13}, new byte[][]{{0, 93, 0, 0, 0, 0, 0, 0}});
+            try (Socket socket = connect(serverSocket)) {
+                SocketException e = assertThrows(SocketException.class,
+                        () -> SocksHandshake.connect(socket, true, "10.0.0.1", 443, "user", null));
+                assertTrue(HttpUtils.isSOCKSAuthenticationFailed(e));
+            }
+        }
+    }
+
+    @Test
+    void connect_Socks5UserPassword_DomainNameRequest() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            byte[] greeting = {5, 2, 0, 2};
+            byte[] auth = "\u0001\u0004user\u0004pass".getBytes(StandardCharsets.ISO_8859_1);
+            byte[] request = "\u0005\u0001\u0000\u0003\u000bexample.com\u0001»"
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            CompletableFuture<byte[]> received = serve(serverSocket,
+                    new int[]{greeting.length, auth.length, request.length},
+                    new byte[][]{{5, 2}, {1, 0}, {5, 0, 0, 3, 3, 'a', 'b', 'c', 0, 80}});
+            try (Socket socket = connect(serverSocket)) {
+                SocksHandshake.connect(socket, false, "example.com", 443, "user", "pass");
+                // The whole reply must be consumed
+                assertEquals(-1, socket.getInputStream().read());
+            }
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(greeting);
+            expected.write(auth);
+            expected.write(request);
+            assertArrayEquals(expected.toByteArray(), received.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void connect_Socks5AuthenticationRejected_SocketException() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serve(serverSocket, new int[]{4, 11}, new byte[][]{{5, 2}, {1, 1}});
+            try (Socket socket = connect(serverSocket)) {
+                SocketException e = assertThrows(SocketException.class,
+                        () -> SocksHandshake.connect(socket, false, "example.com", 443, "user", "pass"));
+                assertTrue(HttpUtils.isSOCKSAuthenticationFailed(e));
+            }
+        }
+    }
+
+}
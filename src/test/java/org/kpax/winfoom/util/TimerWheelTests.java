@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class TimerWheelTests {
+
+    private static void advanceFor(TimerWheel timerWheel, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            timerWheel.advance();
+            Thread.sleep(1);
+        }
+        timerWheel.advance();
+    }
+
+    @Test
+    void advance_DeadlineNotReached_NotRun() {
+        TimerWheel timerWheel = new TimerWheel(1, TimeUnit.SECONDS);
+        AtomicInteger counter = new AtomicInteger();
+        timerWheel.schedule(10, TimeUnit.SECONDS, counter::incrementAndGet);
+        timerWheel.advance();
+        assertEquals(0, counter.get());
+        assertEquals(1, timerWheel.size());
+    }
+
+    @Test
+    void advance_SeveralLevels_RunInDeadlineOrder() throws InterruptedException {
+        TimerWheel timerWheel = new TimerWheel(1, TimeUnit.MILLISECONDS);
+        List<Integer> order = new ArrayList<>();
+        // The first level covers 64 ticks, so the later ones cascade from the second level
+        timerWheel.schedule(300, TimeUnit.MILLISECONDS, () -> order.add(300));
+        timerWheel.schedule(10, TimeUnit.MILLISECONDS, () -> order.add(10));
+        timerWheel.schedule(100, TimeUnit.MILLISECONDS, () -> order.add(100));
+        advanceFor(timerWheel, 50);
+        assertEquals(List.of(10), order);
+        advanceFor(timerWheel, 300);
+        assertEquals(List.of(10, 100, 300), order);
+        assertEquals(0, timerWheel.size());
+    }
+
+    @Test
+    void scheduleAt_SameTick_BothRun() throws InterruptedException {
+        TimerWheel timerWheel = new TimerWheel(1, TimeUnit.MILLISECONDS);
+        AtomicInteger counter = new AtomicInteger();
+        long tick = timerWheel.tickFor(5, TimeUnit.MILLISECONDS);
+        timerWheel.scheduleAt(tick, counter::incrementAndGet);
+        timerWheel.scheduleAt(tick, counter::incrementAndGet);
+        advanceFor(timerWheel, 20);
+        assertEquals(2, counter.get());
+    }
+
+    @Test
+    void advance_FailingTask_OthersStillRun() throws InterruptedException {
+        TimerWheel timerWheel = new TimerWheel(1, TimeUnit.MILLISECONDS);
+        AtomicInteger counter = new AtomicInteger();
+        timerWheel.schedule(0, TimeUnit.MILLISECONDS, () -> {
+            throw new IllegalStateException("test");
+        });
+        timerWheel.schedule(0, TimeUnit.MILLISECONDS, counter::incrementAndGet);
+        advanceFor(timerWheel, 5);
+        assertEquals(1, counter.get());
+    }
+
+}
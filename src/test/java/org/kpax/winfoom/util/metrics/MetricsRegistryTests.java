@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Eugen Covaci
+ */
+class MetricsRegistryTests {
+
+    @Test
+    void indexOf_AnyValue_WithinBucketPrecision() {
+        for (long micros = 0; micros < 1_000_000; micros = micros * 2 + 1) {
+            for (long value : new long[]{micros, micros + micros / 3}) {
+                long highest = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value));
+                assertTrue(highest >= value, "highest " + highest + " for " + value);
+                assertTrue(highest <= value + value / 8, "highest " + highest + " for " + value);
+            }
+        }
+    }
+
+    @Test
+    void snapshot_UniformValues_Quantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500, snapshot.getValueAtQuantile(0.5) / 1000, 500 / 8);
+        assertEquals(990, snapshot.getValueAtQuantile(0.99) / 1000, 990 / 8);
+        assertTrue(snapshot.getMax() >= 1_000_000);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500500), snapshot.getSumNanos());
+    }
+
+    @Test
+    void scrape_CounterAndLabels_PrometheusFormat() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_events_total", "Events", "kind", "a").add(3);
+        registry.counter("test_events_total", "Events", "kind", "b\"q").increment();
+        // Same labels, same counter
+        registry.counter("test_events_total", "Events", "kind", "a").increment();
+        registry.gauge("test_level", "Level", () -> 2.5);
+        String scraped = registry.scrape();
+        assertEquals("# HELP test_events_total Events\n" +
+                "# TYPE test_events_total counter\n" +
+                "test_events_total{kind=\"a\"} 4\n" +
+                "test_events_total{kind=\"b\\\"q\"} 1\n" +
+                "# HELP test_level Level\n" +
+                "# TYPE test_level gauge\n" +
+                "test_level 2.5\n", scraped);
+    }
+
+    @Test
+    void scrape_HistogramAndCollector_SummaryInSeconds() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.histogram("test_latency_seconds", "Latency").record(TimeUnit.MILLISECONDS.toNanos(2));
+        registry.register(writer -> writer.header("test_collected", "Collected", "gauge").
+                sample("test_collected", 7, "pool", "http"));
+        String scraped = registry.scrape();
+        assertTrue(scraped.contains("# TYPE test_latency_seconds summary\n"), scraped);
+        assertTrue(scraped.contains("test_latency_seconds{quantile=\"0.5\"} 0.00"), scraped);
+        assertTrue(scraped.contains("test_latency_seconds_sum 0.002\n"), scraped);
+        assertTrue(scraped.contains("test_latency_seconds_count 1\n"), scraped);
+        assertTrue(scraped.endsWith("test_collected{pool=\"http\"} 7\n"), scraped);
+    }
+
+    @Test
+    void counter_SameNameOtherType_Rejected() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Test");
+        assertThrows(IllegalArgumentException.class, () -> registry.histogram("test_total", "Test"));
+    }
+
+}